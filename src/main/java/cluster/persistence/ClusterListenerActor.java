@@ -1,26 +1,67 @@
 package cluster.persistence;
 
 import akka.actor.AbstractLoggingActor;
+import akka.actor.Address;
 import akka.actor.Cancellable;
 import akka.actor.Props;
 import akka.cluster.Cluster;
 import akka.cluster.ClusterEvent;
 import akka.cluster.ClusterEvent.CurrentClusterState;
 import akka.cluster.Member;
+import akka.cluster.sharding.ShardRegion;
 
 import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.function.Consumer;
 import java.util.stream.StreamSupport;
 
+/**
+ * Logs every cluster event and the members of the cluster, and when cluster-timeline is enabled
+ * records a timeline of each rebalance. The shards of every node are polled from its shard region,
+ * and a timeline starts with a member being up, leaving, exiting, removed or unreachable, or with a
+ * shard moving or stopping, and ends once no shard has moved or stopped for the settle time. It
+ * records how long the new members took to be allocated their first shards, how long each shard
+ * took from last being seen on one node to being seen on the next, how many entities were stopped
+ * and restarted, and the latency of the load actors on this node in the meantime, to
+ * {@link EntityMetrics}, and logs a summary line.
+ * <p>
+ * The shards are polled rather than observed, so a handoff duration is accurate to within a poll
+ * interval, and includes the time until the first message to the shard after it was handed off,
+ * as shards start on demand. Every node follows the shards of the whole cluster, so the shard and
+ * entity metrics of one node cover the cluster, while the latency metrics cover the load actors of
+ * the node itself.
+ */
 class ClusterListenerActor extends AbstractLoggingActor {
     private final Cluster cluster = Cluster.get(context().system());
+    private final ClusterTimelineSettings settings;
+    private final EntityMetrics metrics = EntityMetrics.get(context().system());
+    private final Map<String, ShardSeen> shards = new HashMap<>();
+    private final Set<Address> queriedRegions = new HashSet<>();
+    private final Map<Address, ShardRegion.ShardRegionStats> polledRegions = new HashMap<>();
     private Cancellable showClusterStateCancelable;
+    private Cancellable poller;
+    private Timeline timeline;
+
+    ClusterListenerActor(ClusterTimelineSettings settings) {
+        this.settings = settings;
+    }
 
     @Override
     public Receive createReceive() {
         return receiveBuilder()
                 .match(ShowClusterState.class, this::showClusterState)
+                .match(ClusterEvent.MemberUp.class, memberUp -> memberChanged(memberUp, memberUp.member()))
+                .match(ClusterEvent.MemberLeft.class, memberLeft -> memberChanged(memberLeft, memberLeft.member()))
+                .match(ClusterEvent.MemberExited.class, memberExited -> memberChanged(memberExited, memberExited.member()))
+                .match(ClusterEvent.MemberRemoved.class, memberRemoved -> memberChanged(memberRemoved, memberRemoved.member()))
+                .match(ClusterEvent.UnreachableMember.class, unreachable -> memberChanged(unreachable, unreachable.member()))
+                .match(ShardRegion.ShardRegionStats.class, this::regionPolled)
+                .matchEquals("poll", p -> poll())
                 .matchAny(this::logClusterEvent)
                 .build();
     }
@@ -36,21 +77,156 @@ class ClusterListenerActor extends AbstractLoggingActor {
         logClusterMembers();
     }
 
+    private void memberChanged(Object clusterEvent, Member member) {
+        logClusterEvent(clusterEvent);
+        if (settings.enabled) {
+            startTimeline(String.format("%s %s", clusterEvent.getClass().getSimpleName(), member.address()));
+            if (clusterEvent instanceof ClusterEvent.MemberUp) {
+                timeline.membersUp.put(member.address(), System.nanoTime());
+            }
+        }
+    }
+
+    private void startTimeline(String cause) {
+        final long now = System.nanoTime();
+        if (timeline == null) {
+            timeline = new Timeline(now);
+            metrics.rebalanceStarted(settings.slowReply);
+        }
+        timeline.causes.add(cause);
+        timeline.lastChangeNanoTime = now;
+    }
+
+    /**
+     * Asks the shard region of every member with the shard role for its shards, after taking the
+     * replies to the previous poll. The shard regions are asked directly, as only their own stats
+     * have a serializer and so can be asked across nodes.
+     */
+    private void poll() {
+        if (!queriedRegions.isEmpty()) {
+            shardsPolled();
+        }
+        polledRegions.clear();
+        queriedRegions.clear();
+        for (Member member : cluster.state().getMembers()) {
+            if (settings.role.isEmpty() || member.hasRole(settings.role)) {
+                queriedRegions.add(member.address());
+                context().actorSelection(member.address() + "/system/sharding/" + settings.shardTypeName)
+                        .tell(ShardRegion.getRegionStatsInstance(), self());
+            }
+        }
+    }
+
+    private void regionPolled(ShardRegion.ShardRegionStats regionStats) {
+        final Address address = sender().path().address();
+        polledRegions.put(address.hasLocalScope() ? cluster.selfAddress() : address, regionStats);
+    }
+
+    /**
+     * A shard counts as stopped when its region replied without it or is no longer a member. The
+     * shards of a region that did not reply in time are left as they were.
+     */
+    private void shardsPolled() {
+        final long now = System.nanoTime();
+        final Map<String, ShardSeen> polled = new HashMap<>();
+        polledRegions.forEach((region, regionStats) -> regionStats.getStats().forEach((shardId, entities) ->
+                polled.put(shardId, new ShardSeen(region, (Integer) entities, now))));
+
+        shards.forEach((shardId, seen) -> {
+            if (!seen.stopped && !polled.containsKey(shardId)
+                    && (polledRegions.containsKey(seen.region) || !queriedRegions.contains(seen.region))) {
+                startTimeline("shard stopped");
+                seen.stopped = true;
+                timeline.stoppedEntities += seen.entities;
+            }
+        });
+        polled.forEach((shardId, seen) -> {
+            final ShardSeen before = shards.get(shardId);
+            if (before != null && (before.stopped || !before.region.equals(seen.region))) {
+                startTimeline("shard moved");
+                if (!before.stopped) {
+                    timeline.stoppedEntities += before.entities;
+                }
+                final long handoffNanos = now - before.lastSeenNanoTime;
+                metrics.shardHandedOff(handoffNanos);
+                timeline.movedShards.add(shardId);
+                timeline.maxHandoffNanos = Math.max(timeline.maxHandoffNanos, handoffNanos);
+            }
+            shards.put(shardId, seen);
+        });
+
+        if (timeline != null) {
+            timeline.membersUp.entrySet().removeIf(memberUp -> {
+                final ShardRegion.ShardRegionStats regionStats = polledRegions.get(memberUp.getKey());
+                if (regionStats == null || regionStats.getStats().isEmpty()) {
+                    return false;
+                }
+                metrics.shardsAllocated(now - memberUp.getValue());
+                return true;
+            });
+            if (now - timeline.lastChangeNanoTime >= settings.settleTime.toNanos()
+                    || now - timeline.startNanoTime >= settings.maxDuration.toNanos()) {
+                completeTimeline();
+            }
+        }
+    }
+
+    /**
+     * Shards that are still stopped are forgotten, so that they count as new shards once they are
+     * started again rather than as a handoff that took until then.
+     */
+    private void completeTimeline() {
+        final long restartedEntities = timeline.movedShards.stream()
+                .map(shards::get)
+                .filter(seen -> !seen.stopped)
+                .mapToLong(seen -> seen.entities)
+                .sum();
+        final long stoppedShards = shards.values().stream().filter(seen -> seen.stopped).count();
+        shards.values().removeIf(seen -> seen.stopped);
+        final long durationNanos = timeline.lastChangeNanoTime - timeline.startNanoTime;
+        final long unavailableNanos = metrics.rebalanceCompleted(durationNanos, timeline.stoppedEntities, restartedEntities);
+        log().info("Timeline {}", String.format("%s, settled in %.3fs, %d shards moved, handoff max %.3fs, %d shards still stopped, %d entities stopped, %d restarted, %d members up without shards, unavailable %.3fs",
+                timeline.causes, seconds(durationNanos), timeline.movedShards.size(), seconds(timeline.maxHandoffNanos), stoppedShards,
+                timeline.stoppedEntities, restartedEntities, timeline.membersUp.size(), seconds(unavailableNanos)));
+        timeline = null;
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1000000000.0;
+    }
+
+    /**
+     * The initial state comes as a snapshot, so that the members that were already up when this
+     * node joined do not start a timeline.
+     */
     @Override
     public void preStart() {
-        log().debug("Start");
-        cluster.subscribe(self(), ClusterEvent.initialStateAsEvents(),
+        log().debug("Start {}", settings);
+        cluster.subscribe(self(), ClusterEvent.initialStateAsSnapshot(),
                 ClusterEvent.ClusterDomainEvent.class);
+        if (settings.enabled) {
+            poller = context().system().scheduler().schedule(
+                    settings.pollInterval,
+                    settings.pollInterval,
+                    self(),
+                    "poll",
+                    context().system().dispatcher(),
+                    null
+            );
+        }
     }
 
     @Override
     public void postStop() {
         log().debug("Stop");
         cluster.unsubscribe(self());
+        if (poller != null) {
+            poller.cancel();
+        }
     }
 
-    static Props props() {
-        return Props.create(ClusterListenerActor.class);
+    static Props props(ClusterTimelineSettings settings) {
+        return Props.create(ClusterListenerActor.class, settings).withDispatcher(EntityDispatchers.client);
     }
 
     private void logClusterMembers() {
@@ -91,6 +267,37 @@ class ClusterListenerActor extends AbstractLoggingActor {
                 });
     }
 
+    /**
+     * Where a shard was last seen, with its entities then.
+     */
+    private static class ShardSeen {
+        final Address region;
+        final int entities;
+        final long lastSeenNanoTime;
+        boolean stopped;
+
+        ShardSeen(Address region, int entities, long lastSeenNanoTime) {
+            this.region = region;
+            this.entities = entities;
+            this.lastSeenNanoTime = lastSeenNanoTime;
+        }
+    }
+
+    private static class Timeline {
+        final long startNanoTime;
+        final Set<String> causes = new LinkedHashSet<>();
+        final Map<Address, Long> membersUp = new HashMap<>();
+        final Set<String> movedShards = new HashSet<>();
+        long lastChangeNanoTime;
+        long maxHandoffNanos;
+        long stoppedEntities;
+
+        Timeline(long startNanoTime) {
+            this.startNanoTime = startNanoTime;
+            lastChangeNanoTime = startNanoTime;
+        }
+    }
+
     private static class ShowClusterState {
         @Override
         public String toString() {
@@ -0,0 +1,36 @@
+package cluster.persistence;
+
+import akka.actor.ActorSystem;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+
+class ClusterTimelineSettings {
+    final boolean enabled;
+    final String shardTypeName;
+    final String role;
+    final Duration pollInterval;
+    final Duration settleTime;
+    final Duration maxDuration;
+    final Duration slowReply;
+
+    private ClusterTimelineSettings(Config config) {
+        enabled = config.getBoolean("enabled");
+        shardTypeName = config.getString("shard-type-name");
+        role = config.getString("role");
+        pollInterval = config.getDuration("poll-interval");
+        settleTime = config.getDuration("settle-time");
+        maxDuration = config.getDuration("max-duration");
+        slowReply = config.getDuration("slow-reply");
+    }
+
+    static ClusterTimelineSettings create(ActorSystem actorSystem) {
+        return new ClusterTimelineSettings(actorSystem.settings().config().getConfig("cluster-timeline"));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[enabled %b, shard type %s role %s, poll every %s, settle time %s, max duration %s, slow reply %s]",
+                getClass().getSimpleName(), enabled, shardTypeName, role, pollInterval, settleTime, maxDuration, slowReply);
+    }
+}
@@ -0,0 +1,459 @@
+package cluster.persistence;
+
+import akka.serialization.ByteBufferSerializer;
+import akka.serialization.SerializerWithStringManifest;
+
+import java.io.NotSerializableException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Fixed binary layouts for the entity messages, identified by a short manifest per message type.
+ * <p>
+ * Every layout starts with a version byte so that a layout can change without breaking stored
+ * events. Entity ids that are plain decimal numbers are written as varints, other ids as UTF-8.
+ * Amounts are written as a zigzag varint of minor units and the scale. Event times are written as
+ * epoch nanos and message times as the sender's nano time.
+ * <p>
+ * Artery serializes a message straight into its pooled envelope buffer, and deserializes it
+ * straight from the envelope buffer, through the {@link ByteBufferSerializer} methods, so the wire
+ * messages take no byte array on either side. Artery buffers are little endian, so the buffer
+ * methods switch to big endian while they run, to keep one layout for the wire and the journal.
+ */
+public class CompactSerializer extends SerializerWithStringManifest implements ByteBufferSerializer {
+    static final String depositCommandManifest = "DC";
+    static final String withdrawalCommandManifest = "WC";
+    static final String queryManifest = "Q";
+    static final String queryAckNotFoundManifest = "QN";
+    static final String depositEventManifest = "DE";
+    static final String withdrawalEventManifest = "WE";
+    static final String commandAckManifest = "CA";
+    static final String queryAckManifest = "QA";
+    static final String entityManifest = "E";
+    static final String batchQueryManifest = "BQ";
+    static final String shardQueryManifest = "SQ";
+    static final String batchQueryAckManifest = "BA";
+    static final String shardQueryAckManifest = "SA";
+
+    private static final byte version1 = 1;
+    private static final byte numericId = 0;
+    private static final byte textId = 1;
+    private static final byte longAmount = 0;
+    private static final byte bigAmount = 1;
+    private static final byte depositEvent = 0;
+    private static final byte withdrawalEvent = 1;
+    private static final int maxNumericIdDigits = 18;
+
+    private static final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(256));
+
+    @Override
+    public int identifier() {
+        return 428443;
+    }
+
+    @Override
+    public String manifest(Object o) {
+        if (o instanceof EntityMessage.DepositCommand) {
+            return depositCommandManifest;
+        } else if (o instanceof EntityMessage.WithdrawalCommand) {
+            return withdrawalCommandManifest;
+        } else if (o instanceof EntityMessage.Query) {
+            return queryManifest;
+        } else if (o instanceof EntityMessage.QueryAckNotFound) {
+            return queryAckNotFoundManifest;
+        } else if (o instanceof EntityMessage.DepositEvent) {
+            return depositEventManifest;
+        } else if (o instanceof EntityMessage.WithdrawalEvent) {
+            return withdrawalEventManifest;
+        } else if (o instanceof EntityMessage.CommandAck) {
+            return commandAckManifest;
+        } else if (o instanceof EntityMessage.QueryAck) {
+            return queryAckManifest;
+        } else if (o instanceof Entity) {
+            return entityManifest;
+        } else if (o instanceof EntityMessage.BatchQuery) {
+            return batchQueryManifest;
+        } else if (o instanceof EntityMessage.ShardQuery) {
+            return shardQueryManifest;
+        } else if (o instanceof EntityMessage.ShardQueryAck) {
+            return shardQueryAckManifest;
+        } else if (o instanceof EntityMessage.BatchQueryAck) {
+            return batchQueryAckManifest;
+        }
+        throw new IllegalArgumentException(String.format("Cannot serialize %s", o.getClass().getName()));
+    }
+
+    @Override
+    public byte[] toBinary(Object o) {
+        ByteBuffer buffer = buffers.get();
+        while (true) {
+            try {
+                buffer.clear();
+                write(o, buffer);
+                return Arrays.copyOf(buffer.array(), buffer.position());
+            } catch (BufferOverflowException e) {
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+                buffers.set(buffer);
+            }
+        }
+    }
+
+    @Override
+    public Object fromBinary(byte[] bytes, String manifest) throws NotSerializableException {
+        return read(ByteBuffer.wrap(bytes), manifest);
+    }
+
+    @Override
+    public void toBinary(Object o, ByteBuffer buffer) {
+        final ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        try {
+            write(o, buffer);
+        } finally {
+            buffer.order(order);
+        }
+    }
+
+    @Override
+    public Object fromBinary(ByteBuffer buffer, String manifest) throws NotSerializableException {
+        final ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        try {
+            return read(buffer, manifest);
+        } finally {
+            buffer.order(order);
+        }
+    }
+
+    static void write(Object o, ByteBuffer buffer) {
+        buffer.put(version1);
+        if (o instanceof EntityMessage.EntityCommand) {
+            writeCommand((EntityMessage.EntityCommand) o, buffer);
+        } else if (o instanceof EntityMessage.Query) {
+            final EntityMessage.Query query = (EntityMessage.Query) o;
+            buffer.putLong(query.messageNanoTime);
+            writeVarLong(query.requestId, buffer);
+            writeId(query.id, buffer);
+        } else if (o instanceof EntityMessage.QueryAckNotFound) {
+            final EntityMessage.QueryAckNotFound queryAckNotFound = (EntityMessage.QueryAckNotFound) o;
+            buffer.putLong(queryAckNotFound.queryTime);
+            writeVarLong(queryAckNotFound.requestId, buffer);
+            writeId(queryAckNotFound.id, buffer);
+        } else if (o instanceof EntityMessage.EntityEvent) {
+            writeEvent((EntityMessage.EntityEvent) o, buffer);
+        } else if (o instanceof EntityMessage.CommandAck) {
+            final EntityMessage.CommandAck commandAck = (EntityMessage.CommandAck) o;
+            buffer.putLong(commandAck.commandTime);
+            writeVarLong(commandAck.requestId, buffer);
+            buffer.put(commandAck.entityEvent instanceof EntityMessage.DepositEvent ? depositEvent : withdrawalEvent);
+            writeEvent(commandAck.entityEvent, buffer);
+        } else if (o instanceof EntityMessage.QueryAck) {
+            final EntityMessage.QueryAck queryAck = (EntityMessage.QueryAck) o;
+            buffer.putLong(queryAck.queryTime);
+            writeVarLong(queryAck.requestId, buffer);
+            writeEntity(queryAck.entity, buffer);
+        } else if (o instanceof Entity) {
+            writeEntity((Entity) o, buffer);
+        } else if (o instanceof EntityMessage.BatchQuery) {
+            final EntityMessage.BatchQuery batchQuery = (EntityMessage.BatchQuery) o;
+            buffer.putLong(batchQuery.messageNanoTime);
+            writeIds(batchQuery.ids, buffer);
+        } else if (o instanceof EntityMessage.ShardQuery) {
+            final EntityMessage.ShardQuery shardQuery = (EntityMessage.ShardQuery) o;
+            writeVarLong(shardQuery.requestId, buffer);
+            writeIds(shardQuery.ids, buffer);
+        } else if (o instanceof EntityMessage.ShardQueryAck) {
+            final EntityMessage.ShardQueryAck shardQueryAck = (EntityMessage.ShardQueryAck) o;
+            writeVarLong(shardQueryAck.requestId, buffer);
+            writeFound(shardQueryAck.found, buffer);
+            writeIds(shardQueryAck.notFound, buffer);
+            writeIds(shardQueryAck.unanswered, buffer);
+        } else if (o instanceof EntityMessage.BatchQueryAck) {
+            final EntityMessage.BatchQueryAck batchQueryAck = (EntityMessage.BatchQueryAck) o;
+            buffer.putLong(batchQueryAck.queryTime);
+            writeFound(batchQueryAck.found, buffer);
+            writeIds(batchQueryAck.notFound, buffer);
+            writeIds(batchQueryAck.unanswered, buffer);
+        } else {
+            throw new IllegalArgumentException(String.format("Cannot serialize %s", o.getClass().getName()));
+        }
+    }
+
+    static Object read(ByteBuffer buffer, String manifest) throws NotSerializableException {
+        try {
+            return readMessage(buffer, manifest);
+        } catch (BufferUnderflowException e) {
+            throw new NotSerializableException(String.format("Truncated %s", manifest));
+        }
+    }
+
+    private static Object readMessage(ByteBuffer buffer, String manifest) throws NotSerializableException {
+        final byte version = buffer.get();
+        if (version != version1) {
+            throw new NotSerializableException(String.format("Unknown version %d of manifest %s", version, manifest));
+        }
+
+        switch (manifest) {
+            case depositCommandManifest: {
+                final long messageNanoTime = buffer.getLong();
+                final long requestId = readVarLong(buffer);
+                return new EntityMessage.DepositCommand(readId(buffer), readAmount(buffer), requestId, messageNanoTime);
+            }
+            case withdrawalCommandManifest: {
+                final long messageNanoTime = buffer.getLong();
+                final long requestId = readVarLong(buffer);
+                return new EntityMessage.WithdrawalCommand(readId(buffer), readAmount(buffer), requestId, messageNanoTime);
+            }
+            case queryManifest: {
+                final long messageNanoTime = buffer.getLong();
+                final long requestId = readVarLong(buffer);
+                return new EntityMessage.Query(readId(buffer), requestId, messageNanoTime);
+            }
+            case queryAckNotFoundManifest: {
+                final long queryTime = buffer.getLong();
+                final long requestId = readVarLong(buffer);
+                return new EntityMessage.QueryAckNotFound(queryTime, requestId, readId(buffer));
+            }
+            case depositEventManifest:
+                return readEvent(depositEvent, buffer);
+            case withdrawalEventManifest:
+                return readEvent(withdrawalEvent, buffer);
+            case commandAckManifest: {
+                final long commandTime = buffer.getLong();
+                final long requestId = readVarLong(buffer);
+                return new EntityMessage.CommandAck(commandTime, requestId, readEvent(buffer.get(), buffer));
+            }
+            case queryAckManifest: {
+                final long queryTime = buffer.getLong();
+                final long requestId = readVarLong(buffer);
+                return new EntityMessage.QueryAck(queryTime, requestId, readEntity(buffer));
+            }
+            case entityManifest:
+                return readEntity(buffer);
+            case batchQueryManifest: {
+                final long messageNanoTime = buffer.getLong();
+                return new EntityMessage.BatchQuery(readIds(buffer), messageNanoTime);
+            }
+            case shardQueryManifest: {
+                final long requestId = readVarLong(buffer);
+                return new EntityMessage.ShardQuery(requestId, readIds(buffer));
+            }
+            case shardQueryAckManifest: {
+                final long requestId = readVarLong(buffer);
+                final List<Entity> found = readFound(buffer);
+                final List<Entity.Id> notFound = readIds(buffer);
+                return new EntityMessage.ShardQueryAck(requestId, found, notFound, readUnanswered(buffer));
+            }
+            case batchQueryAckManifest: {
+                final long queryTime = buffer.getLong();
+                final List<Entity> found = readFound(buffer);
+                final List<Entity.Id> notFound = readIds(buffer);
+                return new EntityMessage.BatchQueryAck(queryTime, found, notFound, readUnanswered(buffer));
+            }
+            default:
+                throw new NotSerializableException(String.format("Unknown manifest %s", manifest));
+        }
+    }
+
+    private static void writeCommand(EntityMessage.EntityCommand entityCommand, ByteBuffer buffer) {
+        buffer.putLong(entityCommand.messageNanoTime);
+        writeVarLong(entityCommand.requestId, buffer);
+        writeId(entityCommand.id, buffer);
+        writeAmount(entityCommand.amount.minorUnits, buffer);
+    }
+
+    private static void writeEvent(EntityMessage.EntityEvent entityEvent, ByteBuffer buffer) {
+        writeId(entityEvent.id, buffer);
+        writeAmount(entityEvent.amount.minorUnits, buffer);
+        writeInstant(entityEvent.time, buffer);
+    }
+
+    private static EntityMessage.EntityEvent readEvent(byte eventType, ByteBuffer buffer) throws NotSerializableException {
+        final Entity.Id id = readId(buffer);
+        final EntityMessage.Amount amount = readAmount(buffer);
+        final Instant time = readInstant(buffer);
+
+        if (eventType == depositEvent) {
+            return new EntityMessage.DepositEvent(id, amount, time);
+        } else if (eventType == withdrawalEvent) {
+            return new EntityMessage.WithdrawalEvent(id, amount, time);
+        }
+        throw new NotSerializableException(String.format("Unknown event type %d", eventType));
+    }
+
+    private static void writeEntity(Entity entity, ByteBuffer buffer) {
+        writeId(entity.id, buffer);
+        writeAmount(entity.balance.minorUnits, buffer);
+    }
+
+    private static Entity readEntity(ByteBuffer buffer) throws NotSerializableException {
+        final Entity.Id id = readId(buffer);
+        return Entity.deposit(id.id, readAmount(buffer).minorUnits);
+    }
+
+    private static void writeId(Entity.Id id, ByteBuffer buffer) {
+        if (isNumeric(id.id)) {
+            buffer.put(numericId);
+            writeVarLong(Long.parseLong(id.id), buffer);
+        } else {
+            buffer.put(textId);
+            final byte[] bytes = id.id.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length, buffer);
+            buffer.put(bytes);
+        }
+    }
+
+    private static Entity.Id readId(ByteBuffer buffer) throws NotSerializableException {
+        final byte idType = buffer.get();
+        if (idType == numericId) {
+            return new Entity.Id(Long.toString(readVarLong(buffer)));
+        } else if (idType == textId) {
+            final byte[] bytes = new byte[readLength(buffer)];
+            buffer.get(bytes);
+            return new Entity.Id(new String(bytes, StandardCharsets.UTF_8));
+        }
+        throw new NotSerializableException(String.format("Unknown id type %d", idType));
+    }
+
+    private static void writeIds(List<Entity.Id> ids, ByteBuffer buffer) {
+        writeVarLong(ids.size(), buffer);
+        for (Entity.Id id : ids) {
+            writeId(id, buffer);
+        }
+    }
+
+    private static List<Entity.Id> readIds(ByteBuffer buffer) throws NotSerializableException {
+        final int count = readLength(buffer);
+        final List<Entity.Id> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(readId(buffer));
+        }
+        return ids;
+    }
+
+    /**
+     * The unanswered ids were appended to the shard and batch query replies, so a reply from a node
+     * that does not write them yet ends before them.
+     */
+    private static List<Entity.Id> readUnanswered(ByteBuffer buffer) throws NotSerializableException {
+        return buffer.hasRemaining() ? readIds(buffer) : new ArrayList<>();
+    }
+
+    private static void writeFound(List<Entity> found, ByteBuffer buffer) {
+        writeVarLong(found.size(), buffer);
+        for (Entity entity : found) {
+            writeEntity(entity, buffer);
+        }
+    }
+
+    private static List<Entity> readFound(ByteBuffer buffer) throws NotSerializableException {
+        final int count = readLength(buffer);
+        final List<Entity> found = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            found.add(readEntity(buffer));
+        }
+        return found;
+    }
+
+    /**
+     * Ids such as "007" or "-1" would not survive the round trip through a long, so only canonical
+     * non-negative decimal numbers are written as varints.
+     */
+    private static boolean isNumeric(String id) {
+        final int length = id.length();
+        if (length == 0 || length > maxNumericIdDigits || (length > 1 && id.charAt(0) == '0')) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            final char c = id.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Amounts are written as an unscaled value and a scale, which for minor units is always the
+     * minor units scale. Reading accepts any scale that converts exactly to minor units.
+     */
+    private static void writeAmount(long minorUnits, ByteBuffer buffer) {
+        buffer.put(longAmount);
+        writeVarLong(zigzag(minorUnits), buffer);
+        writeVarLong(zigzag(MinorUnits.scale), buffer);
+    }
+
+    private static EntityMessage.Amount readAmount(ByteBuffer buffer) throws NotSerializableException {
+        final byte amountType = buffer.get();
+        if (amountType == longAmount) {
+            final long unscaled = unzigzag(readVarLong(buffer));
+            final int scale = (int) unzigzag(readVarLong(buffer));
+            return scale == MinorUnits.scale
+                    ? EntityMessage.Amount.ofMinorUnits(unscaled)
+                    : new EntityMessage.Amount(BigDecimal.valueOf(unscaled, scale));
+        } else if (amountType == bigAmount) {
+            final byte[] bytes = new byte[readLength(buffer)];
+            buffer.get(bytes);
+            return new EntityMessage.Amount(new BigDecimal(new BigInteger(bytes), (int) unzigzag(readVarLong(buffer))));
+        }
+        throw new NotSerializableException(String.format("Unknown amount type %d", amountType));
+    }
+
+    private static void writeInstant(Instant instant, ByteBuffer buffer) {
+        buffer.putLong(instant.getEpochSecond() * 1000000000L + instant.getNano());
+    }
+
+    private static Instant readInstant(ByteBuffer buffer) {
+        final long epochNanos = buffer.getLong();
+        return Instant.ofEpochSecond(Math.floorDiv(epochNanos, 1000000000L), Math.floorMod(epochNanos, 1000000000L));
+    }
+
+    static void writeVarLong(long value, ByteBuffer buffer) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static long readVarLong(ByteBuffer buffer) throws NotSerializableException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new NotSerializableException("Malformed varint");
+    }
+
+    /**
+     * Reads the length of a byte string or the size of a list, which cannot be more than the bytes
+     * that are left, so that a malformed length fails instead of allocating for it.
+     */
+    private static int readLength(ByteBuffer buffer) throws NotSerializableException {
+        final long length = readVarLong(buffer);
+        if (length > buffer.remaining()) {
+            throw new NotSerializableException(String.format("Length %d is more than the %d bytes left", length, buffer.remaining()));
+        }
+        return (int) length;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
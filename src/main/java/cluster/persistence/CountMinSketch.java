@@ -0,0 +1,92 @@
+package cluster.persistence;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Estimates how often each key was added, in constant memory whatever the number of distinct keys.
+ * Every key increments one counter in each of depth rows of width counters, picked by MurmurHash3 of
+ * the key's UTF-8 bytes seeded with the row, and its estimate is the smallest of those counters. An
+ * estimate is never below the true count, and is above it by at most 2 / width of all adds with a
+ * probability of at least 1 - 1 / 2^depth.
+ * <p>
+ * Adds are lock-free, so actors on any dispatcher can add concurrently.
+ */
+class CountMinSketch {
+    private final int depth;
+    private final int mask;
+    private final AtomicLongArray counters;
+
+    /**
+     * @param width the counters per row, rounded up to a power of two
+     */
+    CountMinSketch(int depth, int width) {
+        if (depth < 1 || width < 1) {
+            throw new IllegalArgumentException(String.format("Depth %d and width %d must be positive", depth, width));
+        }
+        this.depth = depth;
+        int rowWidth = 1;
+        while (rowWidth < width) {
+            rowWidth <<= 1;
+        }
+        mask = rowWidth - 1;
+        counters = new AtomicLongArray(depth * rowWidth);
+    }
+
+    /**
+     * Adds the key once and returns its estimated count, including this add.
+     */
+    long add(String key) {
+        final byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counters.incrementAndGet(index(bytes, row)));
+        }
+        return estimate;
+    }
+
+    long estimate(String key) {
+        final byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counters.get(index(bytes, row)));
+        }
+        return estimate;
+    }
+
+    private int index(byte[] key, int row) {
+        return row * (mask + 1) + (murmur3(key, row) & mask);
+    }
+
+    /**
+     * The 32 bit x86 variant of MurmurHash3. Keys that collide under one seed are unlikely to
+     * collide under another, which a different mix of one shared 32 bit hash per row cannot give.
+     */
+    private static int murmur3(byte[] key, int seed) {
+        int h = seed;
+        final int blocks = key.length & ~3;
+        for (int i = 0; i < blocks; i += 4) {
+            final int k = (key[i] & 0xff) | (key[i + 1] & 0xff) << 8 | (key[i + 2] & 0xff) << 16 | key[i + 3] << 24;
+            h ^= mixKey(k);
+            h = Integer.rotateLeft(h, 13) * 5 + 0xE6546B64;
+        }
+        if (blocks < key.length) {
+            int k = 0;
+            for (int i = key.length - 1; i >= blocks; i--) {
+                k = k << 8 | key[i] & 0xff;
+            }
+            h ^= mixKey(k);
+        }
+        h ^= key.length;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static int mixKey(int k) {
+        return Integer.rotateLeft(k * 0xCC9E2D51, 15) * 0x1B873593;
+    }
+}
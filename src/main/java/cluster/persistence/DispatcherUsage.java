@@ -0,0 +1,69 @@
+package cluster.persistence;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The queued messages and busy time of the actors of one dispatcher, recorded by its
+ * {@link InstrumentedMailbox} and {@link InstrumentedExecutor} and read by {@link EntityMetrics}.
+ */
+class DispatcherUsage {
+    private final LongAdder queuedMessages = new LongAdder();
+    private final LongAccumulator maxDepth = new LongAccumulator(Math::max, 0);
+    private final LongAdder busyNanos = new LongAdder();
+    private volatile int threads;
+    private long sampledBusyNanos;
+    private long sampledNanoTime = System.nanoTime();
+
+    void enqueued(int depth) {
+        queuedMessages.increment();
+        maxDepth.accumulate(depth);
+    }
+
+    void dequeued() {
+        queuedMessages.decrement();
+    }
+
+    void ran(long nanos) {
+        busyNanos.add(nanos);
+    }
+
+    void threads(int threads) {
+        this.threads = threads;
+    }
+
+    int threads() {
+        return threads;
+    }
+
+    long queuedMessages() {
+        return queuedMessages.sum();
+    }
+
+    long busyNanos() {
+        return busyNanos.sum();
+    }
+
+    /**
+     * The deepest mailbox since the previous call.
+     */
+    long takeMaxDepth() {
+        return maxDepth.getThenReset();
+    }
+
+    /**
+     * The share of the time of all threads that they spent running actors since the previous call,
+     * or 0 when the executor is not instrumented. A run that spans two calls counts towards the
+     * second, so a single sample is capped at 1.
+     */
+    double takeUtilization() {
+        final long now = System.nanoTime();
+        final long busy = busyNanos.sum();
+        final double utilization = threads == 0 || now == sampledNanoTime
+                ? 0
+                : Math.min(1.0, (busy - sampledBusyNanos) / ((double) (now - sampledNanoTime) * threads));
+        sampledBusyNanos = busy;
+        sampledNanoTime = now;
+        return utilization;
+    }
+}
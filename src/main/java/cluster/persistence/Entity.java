@@ -1,41 +1,50 @@
 package cluster.persistence;
 
 import java.io.Serializable;
-import java.math.BigDecimal;
-import java.text.DecimalFormat;
 import java.util.Objects;
 
 class Entity implements Serializable {
-    static final long serialVersionUID = 42L;
+    static final long serialVersionUID = 43L;
     final Id id;
-    Balance balance;
-    private static final DecimalFormat df = new DecimalFormat(",##0.00");
+    final Balance balance;
 
     private Entity(Id id, Balance balance) {
         this.id = id;
         this.balance = balance;
     }
 
-    private Entity(String id, BigDecimal amount) {
-        this(new Id(id), new Balance(amount));
+    private Entity(String id, long minorUnits) {
+        this(new Id(id), new Balance(minorUnits));
     }
 
-    static Entity deposit(String id, BigDecimal amount) {
-        return new Entity(id, amount);
+    static Entity deposit(String id, long minorUnits) {
+        return new Entity(id, minorUnits);
     }
 
-    static Entity withdrawal(String id, BigDecimal amount) {
-        return new Entity(id, BigDecimal.ZERO.subtract(amount));
+    static Entity withdrawal(String id, long minorUnits) {
+        return new Entity(id, MinorUnits.subtract(0, minorUnits));
     }
 
-    static Entity deposit(Entity entity, BigDecimal amount) {
-        entity.balance = new Balance(entity.balance.amount.add(amount));
-        return entity;
+    static Entity copy(Entity entity) {
+        return new Entity(entity.id, new Balance(entity.balance.minorUnits));
     }
 
-    static Entity withdrawal(Entity entity, BigDecimal amount) {
-        entity.balance = new Balance(entity.balance.amount.subtract(amount));
-        return entity;
+    /**
+     * Applies the deposit to this entity in place, without allocating.
+     *
+     * @throws ArithmeticException if the balance would overflow
+     */
+    void deposit(long minorUnits) {
+        balance.minorUnits = MinorUnits.add(balance.minorUnits, minorUnits);
+    }
+
+    /**
+     * Applies the withdrawal to this entity in place, without allocating.
+     *
+     * @throws ArithmeticException if the balance would overflow
+     */
+    void withdrawal(long minorUnits) {
+        balance.minorUnits = MinorUnits.subtract(balance.minorUnits, minorUnits);
     }
 
     @Override
@@ -73,16 +82,28 @@ class Entity implements Serializable {
     }
 
     static class Balance implements Serializable {
-        static final long serialVersionUID = 42L;
-        final BigDecimal amount;
+        static final long serialVersionUID = 43L;
+        long minorUnits;
+
+        Balance(long minorUnits) {
+            this.minorUnits = minorUnits;
+        }
 
-        Balance(BigDecimal amount) {
-            this.amount = amount;
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            return minorUnits == ((Balance) o).minorUnits;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(minorUnits);
         }
 
         @Override
         public String toString() {
-            return String.format("%s[%s]", getClass().getSimpleName(), df.format(amount));
+            return String.format("%s[%s]", getClass().getSimpleName(), MinorUnits.format(minorUnits));
         }
     }
 }
@@ -0,0 +1,120 @@
+package cluster.persistence;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.Address;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionId;
+import akka.actor.ExtensionIdProvider;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The load of the nodes of the cluster as seen from this node, for {@link EntityAllocationStrategy}.
+ * There is one instance per actor system, which starts {@link EntityAllocationActor} when
+ * entity-allocation is enabled. When it is not, nothing is counted.
+ * <p>
+ * Every entity counts its commands and queries here by shard. The allocation actor turns the counts
+ * into message rates and publishes them, and keeps the latest rates of every node together with
+ * their cpu and heap from the cluster metrics extension.
+ */
+class EntityAllocation implements Extension {
+    final EntityAllocationSettings settings;
+    final Address selfAddress;
+    private final boolean enabled;
+    private final ConcurrentMap<String, LongAdder> shardMessages = new ConcurrentHashMap<>();
+    private volatile Map<Address, NodeLoad> nodeLoads = Collections.emptyMap();
+    private volatile Map<Address, Map<String, Double>> shardRates = Collections.emptyMap();
+
+    private EntityAllocation(ExtendedActorSystem actorSystem, EntityAllocationSettings settings) {
+        this.settings = settings;
+        selfAddress = actorSystem.provider().getDefaultAddress();
+        enabled = settings.enabled;
+        if (enabled) {
+            actorSystem.systemActorOf(EntityAllocationActor.props(this), "entityAllocation");
+        }
+    }
+
+    static EntityAllocation get(ActorSystem actorSystem) {
+        return Provider.instance.get(actorSystem);
+    }
+
+    void used(String shardId) {
+        if (enabled) {
+            shardMessages.computeIfAbsent(shardId, s -> new LongAdder()).increment();
+        }
+    }
+
+    /**
+     * The messages of each shard on this node since the last call. Shards without messages since
+     * then are left out.
+     */
+    Map<String, Long> takeShardMessages() {
+        final Map<String, Long> messages = new HashMap<>();
+        shardMessages.forEach((shardId, count) -> {
+            final long sum = count.sumThenReset();
+            if (sum > 0) {
+                messages.put(shardId, sum);
+            }
+        });
+        return messages;
+    }
+
+    NodeLoad nodeLoad(Address address) {
+        return nodeLoads.get(address);
+    }
+
+    void nodeLoads(Map<Address, NodeLoad> nodeLoads) {
+        this.nodeLoads = nodeLoads;
+    }
+
+    /**
+     * The latest published message rate per second of a shard on the node at the address, or 0
+     * when that node has not published one for it.
+     */
+    double shardRate(Address address, String shardId) {
+        return shardRates.getOrDefault(address, Collections.emptyMap()).getOrDefault(shardId, 0.0);
+    }
+
+    void shardRates(Map<Address, Map<String, Double>> shardRates) {
+        this.shardRates = shardRates;
+    }
+
+    static class NodeLoad {
+        final double cpu;
+        final double heap;
+
+        NodeLoad(double cpu, double heap) {
+            this.cpu = cpu;
+            this.heap = heap;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[cpu %.2f, heap %.2f]", getClass().getSimpleName(), cpu, heap);
+        }
+    }
+
+    static class Provider extends AbstractExtensionId<EntityAllocation> implements ExtensionIdProvider {
+        static final Provider instance = new Provider();
+
+        private Provider() {
+        }
+
+        @Override
+        public ExtensionId<? extends Extension> lookup() {
+            return instance;
+        }
+
+        @Override
+        public EntityAllocation createExtension(ExtendedActorSystem actorSystem) {
+            return new EntityAllocation(actorSystem, EntityAllocationSettings.create(actorSystem));
+        }
+    }
+}
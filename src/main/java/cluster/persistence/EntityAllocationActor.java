@@ -0,0 +1,163 @@
+package cluster.persistence;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Address;
+import akka.actor.AddressFromURIString;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.cluster.ddata.DistributedData;
+import akka.cluster.ddata.Key;
+import akka.cluster.ddata.LWWMap;
+import akka.cluster.ddata.LWWMapKey;
+import akka.cluster.ddata.Replicator;
+import akka.cluster.ddata.SelfUniqueAddress;
+import akka.cluster.metrics.ClusterMetricsChanged;
+import akka.cluster.metrics.ClusterMetricsExtension;
+import akka.cluster.metrics.NodeMetrics;
+import akka.cluster.metrics.StandardMetrics;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps the load of every node up to date in {@link EntityAllocation}.
+ * <p>
+ * The cpu and heap of every node come from the cluster metrics extension. The cpu is the combined
+ * cpu usage when the Sigar library is available, and the system load average per processor,
+ * capped at 1, when it is not. The heap is the heap in use relative to the maximum heap.
+ * <p>
+ * Once per publish interval this node turns the messages of its shards into rates and publishes
+ * them to a Distributed Data map from node address to the rates of the shards of that node, so
+ * that each node only ever writes its own entry.
+ */
+class EntityAllocationActor extends AbstractActor {
+    private final LoggingAdapter log = Logging.getLogger(context().system(), this);
+    private final EntityAllocation allocation;
+    private final ActorRef replicator = DistributedData.get(context().system()).replicator();
+    private final SelfUniqueAddress node = DistributedData.get(context().system()).selfUniqueAddress();
+    private final Key<LWWMap<String, String>> shardRatesKey = LWWMapKey.create("entity-shard-rates");
+    private long lastPublishNanoTime = System.nanoTime();
+    private Cancellable publisher;
+
+    EntityAllocationActor(EntityAllocation allocation) {
+        this.allocation = allocation;
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(ClusterMetricsChanged.class, this::metricsChanged)
+                .match(Replicator.Changed.class, this::shardRatesChanged)
+                .match(Replicator.UpdateResponse.class, this::published)
+                .matchEquals("publish", p -> publish())
+                .build();
+    }
+
+    private void metricsChanged(ClusterMetricsChanged clusterMetricsChanged) {
+        final Map<Address, EntityAllocation.NodeLoad> nodeLoads = new HashMap<>();
+        for (NodeMetrics nodeMetrics : clusterMetricsChanged.getNodeMetrics()) {
+            nodeLoads.put(nodeMetrics.address(), new EntityAllocation.NodeLoad(cpu(nodeMetrics), heap(nodeMetrics)));
+        }
+        allocation.nodeLoads(nodeLoads);
+        log.debug("Node loads {}", nodeLoads);
+    }
+
+    private static double cpu(NodeMetrics nodeMetrics) {
+        final StandardMetrics.Cpu cpu = StandardMetrics.extractCpu(nodeMetrics);
+        if (cpu == null) {
+            return 0;
+        }
+        if (cpu.cpuCombined().isDefined()) {
+            return (Double) cpu.cpuCombined().get();
+        }
+        if (cpu.systemLoadAverage().isDefined()) {
+            return Math.min(1.0, (Double) cpu.systemLoadAverage().get() / cpu.processors());
+        }
+        return 0;
+    }
+
+    private static double heap(NodeMetrics nodeMetrics) {
+        final StandardMetrics.HeapMemory heap = StandardMetrics.extractHeapMemory(nodeMetrics);
+        if (heap == null) {
+            return 0;
+        }
+        final long max = heap.max().isDefined() ? (Long) heap.max().get() : heap.committed();
+        return max > 0 ? heap.used() / (double) max : 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void shardRatesChanged(Replicator.Changed<?> changed) {
+        if (changed.key().equals(shardRatesKey)) {
+            final Map<Address, Map<String, Double>> shardRates = new HashMap<>();
+            ((LWWMap<String, String>) changed.dataValue()).getEntries()
+                    .forEach((address, rates) -> shardRates.put(AddressFromURIString.parse(address), parse(rates)));
+            allocation.shardRates(shardRates);
+        }
+    }
+
+    private void publish() {
+        final long now = System.nanoTime();
+        final double seconds = (now - lastPublishNanoTime) / 1000000000.0;
+        lastPublishNanoTime = now;
+        final String rates = format(allocation.takeShardMessages(), seconds);
+        replicator.tell(new Replicator.Update<>(shardRatesKey, LWWMap.create(), Replicator.writeLocal(),
+                shardRatesMap -> shardRatesMap.put(node, allocation.selfAddress.toString(), rates)), self());
+    }
+
+    private void published(Replicator.UpdateResponse<?> updateResponse) {
+        if (!(updateResponse instanceof Replicator.UpdateSuccess)) {
+            log.warning("Publish shard rates failed {}", updateResponse);
+        }
+    }
+
+    /**
+     * One line of shard id and whole messages per second per shard, which keeps the map entries
+     * small and readable.
+     */
+    private static String format(Map<String, Long> shardMessages, double seconds) {
+        return shardMessages.entrySet().stream()
+                .map(shard -> String.format("%s %d", shard.getKey(), Math.round(shard.getValue() / seconds)))
+                .collect(Collectors.joining("\n"));
+    }
+
+    private static Map<String, Double> parse(String rates) {
+        final Map<String, Double> shardRates = new HashMap<>();
+        for (String line : rates.split("\n")) {
+            final int space = line.lastIndexOf(' ');
+            if (space > 0) {
+                shardRates.put(line.substring(0, space), Double.parseDouble(line.substring(space + 1)));
+            }
+        }
+        return shardRates;
+    }
+
+    @Override
+    public void preStart() {
+        log.info("Start {}", allocation.settings);
+        ClusterMetricsExtension.get(context().system()).subscribe(self());
+        replicator.tell(new Replicator.Subscribe<>(shardRatesKey, self()), ActorRef.noSender());
+
+        publisher = context().system().scheduler().schedule(
+                allocation.settings.publishInterval,
+                allocation.settings.publishInterval,
+                self(),
+                "publish",
+                context().system().dispatcher(),
+                null
+        );
+    }
+
+    @Override
+    public void postStop() {
+        ClusterMetricsExtension.get(context().system()).unsubscribe(self());
+        publisher.cancel();
+    }
+
+    static Props props(EntityAllocation allocation) {
+        return Props.create(EntityAllocationActor.class, allocation);
+    }
+}
@@ -0,0 +1,41 @@
+package cluster.persistence;
+
+import akka.actor.ActorSystem;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+
+class EntityAllocationSettings {
+    final boolean enabled;
+    final double cpuWeight;
+    final double heapWeight;
+    final double messageRateWeight;
+    final double rebalanceThreshold;
+    final int rebalanceAfterRounds;
+    final Duration rebalanceCooldown;
+    final double allocationTolerance;
+    final Duration publishInterval;
+
+    private EntityAllocationSettings(Config config) {
+        enabled = config.getBoolean("enabled");
+        cpuWeight = config.getDouble("cpu-weight");
+        heapWeight = config.getDouble("heap-weight");
+        messageRateWeight = config.getDouble("message-rate-weight");
+        rebalanceThreshold = config.getDouble("rebalance-threshold");
+        rebalanceAfterRounds = config.getInt("rebalance-after-rounds");
+        rebalanceCooldown = config.getDuration("rebalance-cooldown");
+        allocationTolerance = config.getDouble("allocation-tolerance");
+        publishInterval = config.getDuration("publish-interval");
+    }
+
+    static EntityAllocationSettings create(ActorSystem actorSystem) {
+        return new EntityAllocationSettings(actorSystem.settings().config().getConfig("entity-allocation"));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[enabled %b, weights cpu %.2f heap %.2f message rate %.2f, rebalance threshold %.2f after %d rounds, cooldown %s, allocation tolerance %.2f, publish every %s]",
+                getClass().getSimpleName(), enabled, cpuWeight, heapWeight, messageRateWeight, rebalanceThreshold,
+                rebalanceAfterRounds, rebalanceCooldown, allocationTolerance, publishInterval);
+    }
+}
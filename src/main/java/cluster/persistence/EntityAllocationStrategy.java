@@ -0,0 +1,180 @@
+package cluster.persistence;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Address;
+import akka.cluster.sharding.ShardCoordinator;
+import akka.dispatch.Futures;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import scala.collection.JavaConverters;
+import scala.collection.immutable.IndexedSeq;
+import scala.concurrent.Future;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Allocates shards to the least loaded shard region and moves hot shards away from the most
+ * loaded region, instead of only spreading the number of shards evenly.
+ * <p>
+ * The load of a region is the weighted mean of the cpu and the heap of its node and of its message
+ * rate relative to the busiest region, each between 0 and 1, see {@link EntityAllocationActor}.
+ * The message rate of a region is the sum of the latest published rates of the shards that are
+ * allocated to it.
+ * <p>
+ * A new shard goes to the region with the fewest shards among the regions whose load is within the
+ * allocation tolerance of the least loaded one, so that shards are spread by count while the loads
+ * are even or not known yet.
+ * <p>
+ * A rebalance moves one shard at a time, and only when the loads of the most and the least loaded
+ * region have been further apart than the rebalance threshold for a number of rebalance rounds in
+ * a row and no shard was moved during the cooldown, so that a short burst or the rates that are
+ * still catching up with the previous move do not cause churn. The shard that is moved is the one
+ * whose rate is closest to half the difference between the rates of the two regions, which evens
+ * the rates out the most, and a shard is only moved when that narrows the difference. When the
+ * regions differ by cpu or heap only, the most recently allocated shard of the most loaded region
+ * is moved.
+ */
+class EntityAllocationStrategy extends ShardCoordinator.AbstractShardAllocationStrategy {
+    private final EntityAllocation allocation;
+    private final EntityAllocationSettings settings;
+    private final LoggingAdapter log;
+    private int imbalancedRounds;
+    private long lastRebalanceNanoTime = System.nanoTime() - Long.MAX_VALUE / 2;
+
+    EntityAllocationStrategy(ActorSystem actorSystem) {
+        allocation = EntityAllocation.get(actorSystem);
+        settings = allocation.settings;
+        log = Logging.getLogger(actorSystem, getClass());
+    }
+
+    @Override
+    public Future<ActorRef> allocateShard(ActorRef requester, String shardId, Map<ActorRef, IndexedSeq<String>> currentShardAllocations) {
+        final List<RegionLoad> regionLoads = regionLoads(currentShardAllocations);
+        final double leastLoad = regionLoads.stream().mapToDouble(regionLoad -> regionLoad.load).min().orElse(0);
+        RegionLoad allocateTo = null;
+        for (RegionLoad regionLoad : regionLoads) {
+            if (regionLoad.load <= leastLoad + settings.allocationTolerance
+                    && (allocateTo == null || regionLoad.shards.size() < allocateTo.shards.size())) {
+                allocateTo = regionLoad;
+            }
+        }
+        return Futures.successful(allocateTo == null ? requester : allocateTo.region);
+    }
+
+    @Override
+    public Future<Set<String>> rebalance(Map<ActorRef, IndexedSeq<String>> currentShardAllocations, Set<String> rebalanceInProgress) {
+        if (!rebalanceInProgress.isEmpty() || currentShardAllocations.size() < 2) {
+            return Futures.successful(Collections.emptySet());
+        }
+
+        final List<RegionLoad> regionLoads = regionLoads(currentShardAllocations);
+        RegionLoad most = regionLoads.get(0);
+        RegionLoad least = regionLoads.get(0);
+        for (RegionLoad regionLoad : regionLoads) {
+            most = regionLoad.load > most.load ? regionLoad : most;
+            least = regionLoad.load < least.load ? regionLoad : least;
+        }
+
+        if (most.load - least.load <= settings.rebalanceThreshold) {
+            imbalancedRounds = 0;
+            return Futures.successful(Collections.emptySet());
+        }
+        ++imbalancedRounds;
+        if (imbalancedRounds < settings.rebalanceAfterRounds
+                || System.nanoTime() - lastRebalanceNanoTime < settings.rebalanceCooldown.toNanos()) {
+            return Futures.successful(Collections.emptySet());
+        }
+
+        final String shardId = shardToMove(most, least);
+        if (shardId == null) {
+            return Futures.successful(Collections.emptySet());
+        }
+        log.info("Rebalance {}", String.format("shard %s at %.0f/s from %s (load %.2f, %.0f/s) to %s (load %.2f, %.0f/s)",
+                shardId, allocation.shardRate(most.address, shardId), most.address, most.load, most.rate,
+                least.address, least.load, least.rate));
+        imbalancedRounds = 0;
+        lastRebalanceNanoTime = System.nanoTime();
+        return Futures.successful(Collections.singleton(shardId));
+    }
+
+    private String shardToMove(RegionLoad most, RegionLoad least) {
+        if (most.shards.isEmpty()) {
+            return null;
+        }
+        if (most.rate <= least.rate) {
+            return most.shards.get(most.shards.size() - 1);
+        }
+
+        final double halfDifference = (most.rate - least.rate) / 2;
+        String shardToMove = null;
+        double closest = halfDifference;
+        for (String shardId : most.shards) {
+            final double distance = Math.abs(allocation.shardRate(most.address, shardId) - halfDifference);
+            if (distance < closest) {
+                shardToMove = shardId;
+                closest = distance;
+            }
+        }
+        return shardToMove;
+    }
+
+    private List<RegionLoad> regionLoads(Map<ActorRef, IndexedSeq<String>> currentShardAllocations) {
+        final Map<ActorRef, Double> rates = new HashMap<>();
+        final List<RegionLoad> regionLoads = new ArrayList<>(currentShardAllocations.size());
+        double highestRate = 0;
+        for (Map.Entry<ActorRef, IndexedSeq<String>> regionShards : currentShardAllocations.entrySet()) {
+            final Address address = address(regionShards.getKey());
+            double rate = 0;
+            for (String shardId : JavaConverters.seqAsJavaListConverter(regionShards.getValue()).asJava()) {
+                rate += allocation.shardRate(address, shardId);
+            }
+            rates.put(regionShards.getKey(), rate);
+            highestRate = Math.max(highestRate, rate);
+        }
+
+        final double totalWeight = settings.cpuWeight + settings.heapWeight + settings.messageRateWeight;
+        for (Map.Entry<ActorRef, IndexedSeq<String>> regionShards : currentShardAllocations.entrySet()) {
+            final Address address = address(regionShards.getKey());
+            final EntityAllocation.NodeLoad nodeLoad = allocation.nodeLoad(address);
+            final double rate = rates.get(regionShards.getKey());
+            double load = settings.messageRateWeight * (highestRate > 0 ? rate / highestRate : 0);
+            if (nodeLoad != null) {
+                load += settings.cpuWeight * nodeLoad.cpu + settings.heapWeight * nodeLoad.heap;
+            }
+            regionLoads.add(new RegionLoad(regionShards.getKey(), address,
+                    JavaConverters.seqAsJavaListConverter(regionShards.getValue()).asJava(),
+                    rate, totalWeight > 0 ? load / totalWeight : 0));
+        }
+        return regionLoads;
+    }
+
+    /**
+     * The local shard region has a local path, without the host and port of this node.
+     */
+    private Address address(ActorRef region) {
+        final Address address = region.path().address();
+        return address.hasLocalScope() ? allocation.selfAddress : address;
+    }
+
+    private static class RegionLoad {
+        final ActorRef region;
+        final Address address;
+        final List<String> shards;
+        final double rate;
+        final double load;
+
+        RegionLoad(ActorRef region, Address address, List<String> shards, double rate, double load) {
+            this.region = region;
+            this.address = address;
+            this.shards = shards;
+            this.rate = rate;
+            this.load = load;
+        }
+    }
+}
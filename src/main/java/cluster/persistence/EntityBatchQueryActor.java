@@ -0,0 +1,154 @@
+package cluster.persistence;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Answers a {@link EntityMessage.BatchQuery} with one reply instead of one reply per entity.
+ * <p>
+ * The ids are grouped by the shard that {@link EntityRouting} assigns them to and each group is
+ * sent to the shard region as one {@link EntityMessage.ShardQuery}. On the node of the shard the
+ * entities are queried locally by {@link EntityShardQueryActor}, which replies with the part of the
+ * batch for that shard. Once every part is in, the parts are merged into one
+ * {@link EntityMessage.BatchQueryAck}. A batch with a part that is not answered within the timeout
+ * is answered with the parts so far, and the ids of the missing parts are listed as unanswered.
+ * <p>
+ * When the projection serves the queries, the query destination is the {@link EntityProjectionActor}
+ * and each batch query is forwarded to it whole, as it answers the batch from its view.
+ */
+class EntityBatchQueryActor extends AbstractActor {
+    private final LoggingAdapter log = Logging.getLogger(context().system(), this);
+    private final EntityBatchQuerySettings settings;
+    private final ActorRef shardRegion;
+    private final ActorRef queryDestination;
+    private final EntityRouting routing = EntityRouting.get(context().system());
+    private final Map<Long, PendingBatch> pendingBatches = new HashMap<>();
+    private long nextRequestId;
+    private Cancellable expirer;
+
+    EntityBatchQueryActor(EntityBatchQuerySettings settings, ActorRef shardRegion, ActorRef queryDestination) {
+        this.settings = settings;
+        this.shardRegion = shardRegion;
+        this.queryDestination = queryDestination;
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(EntityMessage.BatchQuery.class, this::batchQuery)
+                .match(EntityMessage.ShardQueryAck.class, this::shardQueryAck)
+                .matchEquals("expire", e -> expirePendingBatches())
+                .build();
+    }
+
+    private void batchQuery(EntityMessage.BatchQuery batchQuery) {
+        if (!queryDestination.equals(shardRegion)) {
+            queryDestination.forward(batchQuery, getContext());
+            return;
+        }
+
+        final Map<String, Map<String, Entity.Id>> idsByShard = new HashMap<>();
+        for (Entity.Id id : batchQuery.ids) {
+            idsByShard.computeIfAbsent(routing.shardId(id), shardId -> new LinkedHashMap<>()).putIfAbsent(id.id, id);
+        }
+        if (idsByShard.isEmpty()) {
+            sender().tell(new EntityMessage.BatchQueryAck(batchQuery.messageNanoTime, new ArrayList<>(), new ArrayList<>()), self());
+            return;
+        }
+
+        final long requestId = ++nextRequestId;
+        final PendingBatch pendingBatch = new PendingBatch(batchQuery, sender(), idsByShard.size());
+        pendingBatches.put(requestId, pendingBatch);
+        idsByShard.values().forEach(ids -> {
+            pendingBatch.ids.putAll(ids);
+            shardRegion.tell(new EntityMessage.ShardQuery(requestId, new ArrayList<>(ids.values())), self());
+        });
+        log.debug("{} in {} shard queries", batchQuery, idsByShard.size());
+    }
+
+    private void shardQueryAck(EntityMessage.ShardQueryAck shardQueryAck) {
+        final PendingBatch pendingBatch = pendingBatches.get(shardQueryAck.requestId);
+        if (pendingBatch == null) {
+            log.debug("Late reply {}", shardQueryAck);
+            return;
+        }
+        pendingBatch.found.addAll(shardQueryAck.found);
+        pendingBatch.notFound.addAll(shardQueryAck.notFound);
+        pendingBatch.unanswered.addAll(shardQueryAck.unanswered);
+        shardQueryAck.found.forEach(entity -> pendingBatch.ids.remove(entity.id.id));
+        shardQueryAck.notFound.forEach(id -> pendingBatch.ids.remove(id.id));
+        shardQueryAck.unanswered.forEach(id -> pendingBatch.ids.remove(id.id));
+        if (--pendingBatch.pendingParts == 0) {
+            pendingBatches.remove(shardQueryAck.requestId);
+            pendingBatch.reply(self());
+        }
+    }
+
+    private void expirePendingBatches() {
+        final long now = System.nanoTime();
+        final Iterator<PendingBatch> pending = pendingBatches.values().iterator();
+        while (pending.hasNext()) {
+            final PendingBatch pendingBatch = pending.next();
+            if (now - pendingBatch.sentNanoTime > settings.timeout.toNanos()) {
+                log.warning("{} timed out with {} shard queries unanswered", pendingBatch.batchQuery, pendingBatch.pendingParts);
+                pending.remove();
+                pendingBatch.unanswered.addAll(pendingBatch.ids.values());
+                pendingBatch.reply(self());
+            }
+        }
+    }
+
+    @Override
+    public void preStart() {
+        log.info("Start {}", settings);
+        expirer = context().system().scheduler().schedule(
+                settings.expireInterval,
+                settings.expireInterval,
+                self(),
+                "expire",
+                context().system().dispatcher(),
+                null
+        );
+    }
+
+    @Override
+    public void postStop() {
+        expirer.cancel();
+    }
+
+    static Props props(EntityBatchQuerySettings settings, ActorRef shardRegion, ActorRef queryDestination) {
+        return Props.create(EntityBatchQueryActor.class, settings, shardRegion, queryDestination).withDispatcher(EntityDispatchers.query);
+    }
+
+    private static class PendingBatch {
+        final EntityMessage.BatchQuery batchQuery;
+        final ActorRef sender;
+        final List<Entity> found = new ArrayList<>();
+        final List<Entity.Id> notFound = new ArrayList<>();
+        final List<Entity.Id> unanswered = new ArrayList<>();
+        final Map<String, Entity.Id> ids = new HashMap<>();
+        final long sentNanoTime = System.nanoTime();
+        int pendingParts;
+
+        PendingBatch(EntityMessage.BatchQuery batchQuery, ActorRef sender, int pendingParts) {
+            this.batchQuery = batchQuery;
+            this.sender = sender;
+            this.pendingParts = pendingParts;
+        }
+
+        void reply(ActorRef self) {
+            sender.tell(new EntityMessage.BatchQueryAck(batchQuery.messageNanoTime, found, notFound, unanswered), self);
+        }
+    }
+}
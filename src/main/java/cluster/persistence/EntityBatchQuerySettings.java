@@ -0,0 +1,28 @@
+package cluster.persistence;
+
+import akka.actor.ActorSystem;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+
+class EntityBatchQuerySettings {
+    final Duration timeout;
+    final Duration shardTimeout;
+    final Duration expireInterval;
+
+    private EntityBatchQuerySettings(Config config) {
+        timeout = config.getDuration("timeout");
+        shardTimeout = config.getDuration("shard-timeout");
+        expireInterval = (shardTimeout.compareTo(timeout) < 0 ? shardTimeout : timeout).dividedBy(10);
+    }
+
+    static EntityBatchQuerySettings create(ActorSystem actorSystem) {
+        return new EntityBatchQuerySettings(actorSystem.settings().config().getConfig("entity-batch-query"));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[timeout %s, shard timeout %s, expire every %s]", getClass().getSimpleName(),
+                timeout, shardTimeout, expireInterval);
+    }
+}
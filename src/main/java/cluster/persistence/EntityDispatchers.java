@@ -0,0 +1,30 @@
+package cluster.persistence;
+
+/**
+ * The dispatchers that keep the entities, the query side and the clients of this node from taking
+ * each other's threads, configured in entity-dispatchers. The cluster, sharding and persistence
+ * infrastructure stays on the default dispatcher and the journal plugins on their own.
+ */
+class EntityDispatchers {
+    /**
+     * The persistent entities.
+     */
+    static final String entity = "entity-dispatchers.entity";
+
+    /**
+     * The actors that answer queries without going through the entities: the read side view, the
+     * near cache and the batch queries.
+     */
+    static final String query = "entity-dispatchers.query";
+
+    /**
+     * The actors that send requests to the entities and follow the cluster: the load actors, the
+     * ingest and the cluster listener.
+     */
+    static final String client = "entity-dispatchers.client";
+
+    static final String[] all = {entity, query, client};
+
+    private EntityDispatchers() {
+    }
+}
@@ -0,0 +1,248 @@
+package cluster.persistence;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.Address;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionId;
+import akka.actor.ExtensionIdProvider;
+import akka.http.javadsl.model.ContentTypes;
+import akka.http.javadsl.model.HttpEntities;
+import akka.http.javadsl.server.Directives;
+import akka.http.javadsl.server.Route;
+import akka.management.javadsl.ManagementRouteProvider;
+import akka.management.javadsl.ManagementRouteProviderSettings;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Finds the entities and shards that take the most commands and queries on this node, in constant
+ * memory whatever the number of entities. There is one instance per actor system, which starts
+ * {@link EntityHotKeysActor} when entity-hot-keys is enabled and registers itself as a management
+ * route provider. When it is not enabled, nothing is counted.
+ * <p>
+ * Every command and query that reaches an entity is added to a {@link CountMinSketch}, and an
+ * entity whose estimate is above the smallest estimate of the current top entities replaces that
+ * entity. Entities that are already in the top only update their estimate, without a lock, so the
+ * hot entities themselves do not contend. The messages of each shard are counted exactly, as there
+ * are only a few shards. The counts cover one interval, after which the hot entities and shards of
+ * the interval are published to the cluster and a new interval starts.
+ * <p>
+ * The management route serves the hot entities and shards of every node, so the top of the whole
+ * cluster can be read from any node.
+ */
+class EntityHotKeys implements Extension, ManagementRouteProvider {
+    final EntityHotKeysSettings settings;
+    final Address selfAddress;
+    private volatile Interval interval;
+    private volatile Map<Address, HotKeys> clusterHotKeys = Collections.emptyMap();
+
+    private EntityHotKeys(ExtendedActorSystem actorSystem, EntityHotKeysSettings settings) {
+        this.settings = settings;
+        selfAddress = actorSystem.provider().getDefaultAddress();
+        interval = new Interval(settings);
+        if (settings.enabled) {
+            actorSystem.systemActorOf(EntityHotKeysActor.props(this), "entityHotKeys");
+        }
+    }
+
+    static EntityHotKeys get(ActorSystem actorSystem) {
+        return Provider.instance.get(actorSystem);
+    }
+
+    void used(String shardId, Entity.Id id) {
+        if (settings.enabled) {
+            interval.add(shardId, id.id);
+        }
+    }
+
+    /**
+     * The hot entities and shards of this node since the last call, most used first, after which a
+     * new interval starts.
+     */
+    HotKeys take() {
+        final Interval taken = interval;
+        interval = new Interval(settings);
+        return taken.hotKeys(selfAddress);
+    }
+
+    void clusterHotKeys(Map<Address, HotKeys> clusterHotKeys) {
+        this.clusterHotKeys = clusterHotKeys;
+    }
+
+    @Override
+    public Route routes(ManagementRouteProviderSettings routeProviderSettings) {
+        return Directives.path(settings.path, () -> Directives.get(() ->
+                Directives.complete(HttpEntities.create(ContentTypes.TEXT_PLAIN_UTF8, report()))));
+    }
+
+    /**
+     * Every entity is on one node at a time, so the hot entities of the cluster are the hottest of
+     * the hot entities of all nodes, and likewise for the shards.
+     */
+    private String report() {
+        final Map<Address, HotKeys> nodes = clusterHotKeys;
+        final StringBuilder text = new StringBuilder();
+        text.append(String.format("Hot entities, messages per second over the last %s%n", settings.interval));
+        nodes.values().stream()
+                .flatMap(hotKeys -> hotKeys.entities.stream())
+                .sorted(HotKey.hottestFirst)
+                .limit(settings.topEntities)
+                .forEach(hotKey -> text.append(String.format("%10.1f  entity %s  shard %s  node %s%n",
+                        hotKey.rate, hotKey.id, hotKey.shardId, hotKey.node)));
+        text.append(String.format("Hot shards, messages per second over the last %s%n", settings.interval));
+        nodes.values().stream()
+                .flatMap(hotKeys -> hotKeys.shards.stream())
+                .sorted(HotKey.hottestFirst)
+                .limit(settings.topShards)
+                .forEach(hotKey -> text.append(String.format("%10.1f  shard %s  node %s%n", hotKey.rate, hotKey.shardId, hotKey.node)));
+        return text.toString();
+    }
+
+    private static class Interval {
+        final int topEntities;
+        final int topShards;
+        final CountMinSketch sketch;
+        final ConcurrentMap<String, Long> top = new ConcurrentHashMap<>();
+        final ConcurrentMap<String, String> topShardIds = new ConcurrentHashMap<>();
+        final ConcurrentMap<String, LongAdder> shardMessages = new ConcurrentHashMap<>();
+        final long startNanoTime = System.nanoTime();
+        volatile long threshold;
+
+        Interval(EntityHotKeysSettings settings) {
+            topEntities = settings.topEntities;
+            topShards = settings.topShards;
+            sketch = new CountMinSketch(settings.sketchDepth, settings.sketchWidth);
+        }
+
+        void add(String shardId, String id) {
+            shardMessages.computeIfAbsent(shardId, s -> new LongAdder()).increment();
+            final long estimate = sketch.add(id);
+            if (estimate > threshold && top.replace(id, estimate) == null) {
+                admit(shardId, id, estimate);
+            }
+        }
+
+        private synchronized void admit(String shardId, String id, long estimate) {
+            top.put(id, estimate);
+            topShardIds.put(id, shardId);
+            if (top.size() > topEntities) {
+                final String coldest = Collections.min(top.entrySet(), Map.Entry.comparingByValue()).getKey();
+                top.remove(coldest);
+                topShardIds.remove(coldest);
+            }
+            if (top.size() >= topEntities) {
+                threshold = Collections.min(top.values());
+            }
+        }
+
+        HotKeys hotKeys(Address node) {
+            final double seconds = (System.nanoTime() - startNanoTime) / 1000000000.0;
+            final List<HotKey> entities = top.entrySet().stream()
+                    .map(entry -> new HotKey(entry.getKey(), topShardIds.get(entry.getKey()), node, entry.getValue() / seconds))
+                    .sorted(HotKey.hottestFirst)
+                    .collect(Collectors.toList());
+            final List<HotKey> shards = shardMessages.entrySet().stream()
+                    .map(entry -> new HotKey(entry.getKey(), entry.getKey(), node, entry.getValue().sum() / seconds))
+                    .sorted(HotKey.hottestFirst)
+                    .limit(topShards)
+                    .collect(Collectors.toList());
+            return new HotKeys(node, entities, shards);
+        }
+    }
+
+    /**
+     * The hot entities and shards of one node in one interval.
+     */
+    static class HotKeys {
+        final Address node;
+        final List<HotKey> entities;
+        final List<HotKey> shards;
+
+        HotKeys(Address node, List<HotKey> entities, List<HotKey> shards) {
+            this.node = node;
+            this.entities = entities;
+            this.shards = shards;
+        }
+
+        /**
+         * One line per entity and per shard, with the rate before the id so that ids may contain
+         * spaces.
+         */
+        String format() {
+            final List<String> lines = new ArrayList<>(entities.size() + shards.size());
+            entities.forEach(hotKey -> lines.add(String.format("entity %d %s %s", Math.round(hotKey.rate), hotKey.shardId, hotKey.id)));
+            shards.forEach(hotKey -> lines.add(String.format("shard %d %s", Math.round(hotKey.rate), hotKey.id)));
+            return String.join("\n", lines);
+        }
+
+        static HotKeys parse(Address node, String text) {
+            final List<HotKey> entities = new ArrayList<>();
+            final List<HotKey> shards = new ArrayList<>();
+            for (String line : text.split("\n")) {
+                final String[] fields = line.split(" ", 4);
+                if (fields[0].equals("entity") && fields.length == 4) {
+                    entities.add(new HotKey(fields[3], fields[2], node, Double.parseDouble(fields[1])));
+                } else if (fields[0].equals("shard") && fields.length == 3) {
+                    shards.add(new HotKey(fields[2], fields[2], node, Double.parseDouble(fields[1])));
+                }
+            }
+            return new HotKeys(node, entities, shards);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, entities %s, shards %s]", getClass().getSimpleName(), node, entities, shards);
+        }
+    }
+
+    /**
+     * An entity or a shard, with the shard id as the id of a shard.
+     */
+    static class HotKey {
+        static final Comparator<HotKey> hottestFirst = Comparator.comparingDouble((HotKey hotKey) -> hotKey.rate).reversed();
+
+        final String id;
+        final String shardId;
+        final Address node;
+        final double rate;
+
+        HotKey(String id, String shardId, Address node, double rate) {
+            this.id = id;
+            this.shardId = shardId;
+            this.node = node;
+            this.rate = rate;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %.1f/s", id, rate);
+        }
+    }
+
+    static class Provider extends AbstractExtensionId<EntityHotKeys> implements ExtensionIdProvider {
+        static final Provider instance = new Provider();
+
+        private Provider() {
+        }
+
+        @Override
+        public ExtensionId<? extends Extension> lookup() {
+            return instance;
+        }
+
+        @Override
+        public EntityHotKeys createExtension(ExtendedActorSystem actorSystem) {
+            return new EntityHotKeys(actorSystem, EntityHotKeysSettings.create(actorSystem));
+        }
+    }
+}
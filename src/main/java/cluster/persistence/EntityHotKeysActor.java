@@ -0,0 +1,113 @@
+package cluster.persistence;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Address;
+import akka.actor.AddressFromURIString;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.cluster.Cluster;
+import akka.cluster.Member;
+import akka.cluster.ddata.DistributedData;
+import akka.cluster.ddata.Key;
+import akka.cluster.ddata.LWWMap;
+import akka.cluster.ddata.LWWMapKey;
+import akka.cluster.ddata.Replicator;
+import akka.cluster.ddata.SelfUniqueAddress;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+/**
+ * Once per interval takes the hot entities and shards of this node from {@link EntityHotKeys},
+ * logs them and publishes them to a Distributed Data map from node address to the hot entities and
+ * shards of that node, so that each node only ever writes its own entry. Keeps the latest entry of
+ * every node in {@link EntityHotKeys} for the management route, and any other node can subscribe
+ * to entity-hot-keys to react to them.
+ */
+class EntityHotKeysActor extends AbstractActor {
+    private final LoggingAdapter log = Logging.getLogger(context().system(), this);
+    private final EntityHotKeys hotKeys;
+    private final ActorRef replicator = DistributedData.get(context().system()).replicator();
+    private final SelfUniqueAddress node = DistributedData.get(context().system()).selfUniqueAddress();
+    private final Key<LWWMap<String, String>> hotKeysKey = LWWMapKey.create("entity-hot-keys");
+    private Cancellable publisher;
+
+    EntityHotKeysActor(EntityHotKeys hotKeys) {
+        this.hotKeys = hotKeys;
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(Replicator.Changed.class, this::hotKeysChanged)
+                .match(Replicator.UpdateResponse.class, this::published)
+                .matchEquals("publish", p -> publish())
+                .build();
+    }
+
+    private void publish() {
+        final EntityHotKeys.HotKeys taken = hotKeys.take();
+        if (!taken.entities.isEmpty()) {
+            log.info("Hot entities {}, hot shards {}", taken.entities, taken.shards);
+        }
+        final String text = taken.format();
+        replicator.tell(new Replicator.Update<>(hotKeysKey, LWWMap.create(), Replicator.writeLocal(),
+                hotKeysMap -> hotKeysMap.put(node, hotKeys.selfAddress.toString(), text)), self());
+    }
+
+    private void published(Replicator.UpdateResponse<?> updateResponse) {
+        if (!(updateResponse instanceof Replicator.UpdateSuccess)) {
+            log.warning("Publish hot entities failed {}", updateResponse);
+        }
+    }
+
+    /**
+     * The entries of nodes that have left the cluster are left out.
+     */
+    @SuppressWarnings("unchecked")
+    private void hotKeysChanged(Replicator.Changed<?> changed) {
+        if (changed.key().equals(hotKeysKey)) {
+            final Set<Address> members = StreamSupport.stream(Cluster.get(context().system()).state().getMembers().spliterator(), false)
+                    .map(Member::address)
+                    .collect(Collectors.toSet());
+            final Map<Address, EntityHotKeys.HotKeys> clusterHotKeys = new HashMap<>();
+            ((LWWMap<String, String>) changed.dataValue()).getEntries().forEach((address, text) -> {
+                final Address nodeAddress = AddressFromURIString.parse(address);
+                if (members.contains(nodeAddress)) {
+                    clusterHotKeys.put(nodeAddress, EntityHotKeys.HotKeys.parse(nodeAddress, text));
+                }
+            });
+            hotKeys.clusterHotKeys(clusterHotKeys);
+        }
+    }
+
+    @Override
+    public void preStart() {
+        log.info("Start {}", hotKeys.settings);
+        replicator.tell(new Replicator.Subscribe<>(hotKeysKey, self()), ActorRef.noSender());
+
+        publisher = context().system().scheduler().schedule(
+                hotKeys.settings.interval,
+                hotKeys.settings.interval,
+                self(),
+                "publish",
+                context().system().dispatcher(),
+                null
+        );
+    }
+
+    @Override
+    public void postStop() {
+        publisher.cancel();
+    }
+
+    static Props props(EntityHotKeys hotKeys) {
+        return Props.create(EntityHotKeysActor.class, hotKeys);
+    }
+}
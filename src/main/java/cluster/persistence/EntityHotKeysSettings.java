@@ -0,0 +1,36 @@
+package cluster.persistence;
+
+import akka.actor.ActorSystem;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+
+class EntityHotKeysSettings {
+    final boolean enabled;
+    final int topEntities;
+    final int topShards;
+    final int sketchDepth;
+    final int sketchWidth;
+    final Duration interval;
+    final String path;
+
+    private EntityHotKeysSettings(Config config) {
+        enabled = config.getBoolean("enabled");
+        topEntities = config.getInt("top-entities");
+        topShards = config.getInt("top-shards");
+        sketchDepth = config.getInt("sketch.depth");
+        sketchWidth = config.getInt("sketch.width");
+        interval = config.getDuration("interval");
+        path = config.getString("path");
+    }
+
+    static EntityHotKeysSettings create(ActorSystem actorSystem) {
+        return new EntityHotKeysSettings(actorSystem.settings().config().getConfig("entity-hot-keys"));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[enabled %b, top entities %d, top shards %d, sketch depth %d width %d, interval %s, path %s]",
+                getClass().getSimpleName(), enabled, topEntities, topShards, sketchDepth, sketchWidth, interval, path);
+    }
+}
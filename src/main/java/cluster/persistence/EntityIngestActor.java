@@ -0,0 +1,240 @@
+package cluster.persistence;
+
+import akka.Done;
+import akka.NotUsed;
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.actor.Status;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import akka.pattern.Patterns;
+import akka.stream.ActorMaterializer;
+import akka.stream.Materializer;
+import akka.stream.OverflowStrategy;
+import akka.stream.javadsl.FileIO;
+import akka.stream.javadsl.Flow;
+import akka.stream.javadsl.Framing;
+import akka.stream.javadsl.FramingTruncation;
+import akka.stream.javadsl.Keep;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Tcp;
+import akka.util.ByteString;
+import scala.concurrent.ExecutionContextExecutor;
+
+import java.math.BigDecimal;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Streams commands from a file or from TCP connections into the entities with backpressure, for
+ * backfills that are too large to send one tell at a time.
+ * <p>
+ * Lines are parsed in batches on the dispatcher, several batches at a time, and the batches are
+ * kept in order. The commands are then spread over lanes by entity id. Each lane asks the shard
+ * region for one command at a time and buffers a few more, so the commands of an entity are
+ * applied in the order they were read and the commands in flight are bounded by the lanes. When
+ * the lanes are full the source is no longer read, so a slow cluster slows the file read or the
+ * TCP clients instead of filling mailboxes.
+ * <p>
+ * A file source writes the acknowledged events to the results file, if set. A TCP connection gets
+ * its own pipeline and answers every line with the acknowledged event. Lines that cannot be parsed
+ * are logged and skipped. Read, rejected and acknowledged commands are logged once per report
+ * interval, with the rate over the interval and the sustained rate since the first command.
+ */
+class EntityIngestActor extends AbstractActor {
+    private final LoggingAdapter log = Logging.getLogger(context().system(), this);
+    private final EntityIngestSettings settings;
+    private final ActorRef shardRegion;
+    private final Materializer materializer = ActorMaterializer.create(context());
+    private final Counters counters = new Counters();
+    private long startNanoTime;
+    private long intervalStartNanoTime;
+    private long intervalStartAcked;
+    private Cancellable reporter;
+
+    EntityIngestActor(EntityIngestSettings settings, ActorRef shardRegion) {
+        this.settings = settings;
+        this.shardRegion = shardRegion;
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .matchEquals(Done.getInstance(), d -> log.info("Ingested {} {}", settings.file, totals()))
+                .match(Tcp.ServerBinding.class, binding -> log.info("Ingest listening on {}", binding.localAddress()))
+                .match(Status.Failure.class, failure -> log.error(failure.cause(), "Ingest failed {}", totals()))
+                .matchEquals("report", r -> report())
+                .build();
+    }
+
+    private void ingestFile() {
+        final ExecutionContextExecutor dispatcher = context().dispatcher();
+        final Flow<String, EntityMessage.CommandAck, NotUsed> commands = commands(settings, shardRegion, dispatcher, counters);
+        final CompletionStage<Done> done = settings.resultsFile.isEmpty()
+                ? FileIO.fromPath(Paths.get(settings.file))
+                        .via(lines(settings))
+                        .via(commands)
+                        .runWith(Sink.ignore(), materializer)
+                : FileIO.fromPath(Paths.get(settings.file))
+                        .via(lines(settings))
+                        .via(commands)
+                        .map(EntityIngestActor::resultLine)
+                        .runWith(FileIO.toPath(Paths.get(settings.resultsFile)), materializer)
+                        .thenApply(ioResult -> Done.getInstance());
+        Patterns.pipe(done, dispatcher).to(self());
+    }
+
+    /**
+     * The connections are handled on the stream's thread, outside of this actor, so the dispatcher
+     * is taken from the actor context before the stream is built.
+     */
+    private void ingestTcp() {
+        final ExecutionContextExecutor dispatcher = context().dispatcher();
+        final CompletionStage<Tcp.ServerBinding> binding = Tcp.get(context().system())
+                .bind(settings.tcpInterface, settings.tcpPort)
+                .to(Sink.foreach(connection -> {
+                    log.info("Ingest connection from {}", connection.remoteAddress());
+                    connection.handleWith(lines(settings)
+                            .via(commands(settings, shardRegion, dispatcher, counters))
+                            .map(EntityIngestActor::resultLine), materializer);
+                }))
+                .run(materializer);
+        Patterns.pipe(binding, dispatcher).to(self());
+    }
+
+    static Flow<ByteString, String, NotUsed> lines(EntityIngestSettings settings) {
+        return Framing.delimiter(ByteString.fromString("\n"), settings.maxLineLength, FramingTruncation.ALLOW)
+                .map(line -> line.utf8String().trim());
+    }
+
+    static Flow<String, EntityMessage.CommandAck, NotUsed> commands(EntityIngestSettings settings, ActorRef shardRegion,
+                                                                   Executor executor, Counters counters) {
+        return Flow.<String>create()
+                .groupedWithin(settings.parseBatch, Duration.ofMillis(10))
+                .mapAsync(settings.parseParallelism, lines -> CompletableFuture.supplyAsync(() -> parse(lines, counters), executor))
+                .mapConcat(entityCommands -> entityCommands)
+                .groupBy(settings.lanes, entityCommand -> Math.floorMod(entityCommand.id.id.hashCode(), settings.lanes))
+                .buffer(settings.laneBuffer, OverflowStrategy.backpressure())
+                .mapAsync(1, entityCommand -> Patterns.ask(shardRegion, entityCommand, settings.askTimeout)
+                        .thenApply(reply -> acknowledged(entityCommand, reply, counters)))
+                .mergeSubstreams();
+    }
+
+    private static List<EntityMessage.EntityCommand> parse(List<String> lines, Counters counters) {
+        final List<EntityMessage.EntityCommand> entityCommands = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            counters.read.increment();
+            final EntityMessage.EntityCommand entityCommand = parse(line);
+            if (entityCommand == null) {
+                counters.rejected.increment();
+            } else {
+                entityCommands.add(entityCommand);
+            }
+        }
+        return entityCommands;
+    }
+
+    /**
+     * Parses "deposit,&lt;id&gt;,&lt;amount&gt;" or "withdrawal,&lt;id&gt;,&lt;amount&gt;", or returns null.
+     */
+    static EntityMessage.EntityCommand parse(String line) {
+        final String[] fields = line.split(",", -1);
+        if (fields.length != 3 || fields[1].trim().isEmpty()) {
+            return null;
+        }
+        try {
+            final Entity.Id id = new Entity.Id(fields[1].trim());
+            final EntityMessage.Amount amount = new EntityMessage.Amount(new BigDecimal(fields[2].trim()));
+            switch (fields[0].trim()) {
+                case "deposit":
+                    return new EntityMessage.DepositCommand(id, amount);
+                case "withdrawal":
+                    return new EntityMessage.WithdrawalCommand(id, amount);
+                default:
+                    return null;
+            }
+        } catch (ArithmeticException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static EntityMessage.CommandAck acknowledged(EntityMessage.EntityCommand entityCommand, Object reply, Counters counters) {
+        if (!(reply instanceof EntityMessage.CommandAck)) {
+            throw new IllegalStateException(String.format("Unexpected reply %s to %s", reply, entityCommand));
+        }
+        counters.acked.increment();
+        return (EntityMessage.CommandAck) reply;
+    }
+
+    private static ByteString resultLine(EntityMessage.CommandAck commandAck) {
+        final EntityMessage.EntityEvent entityEvent = commandAck.entityEvent;
+        return ByteString.fromString(String.format("%s,%s,%s%n",
+                entityEvent instanceof EntityMessage.DepositEvent ? "deposit" : "withdrawal",
+                entityEvent.id.id, entityEvent.amount.toBigDecimal().toPlainString()));
+    }
+
+    private void report() {
+        final long now = System.nanoTime();
+        final long acked = counters.acked.sum();
+        final double intervalSeconds = (now - intervalStartNanoTime) / 1000000000.0;
+        log.info("Ingest {}", String.format("%d acknowledged in %.1fs, %.1f/s, %s",
+                acked - intervalStartAcked, intervalSeconds, (acked - intervalStartAcked) / intervalSeconds, totals()));
+        intervalStartAcked = acked;
+        intervalStartNanoTime = now;
+    }
+
+    private String totals() {
+        final long read = counters.read.sum();
+        final long rejected = counters.rejected.sum();
+        final long acked = counters.acked.sum();
+        final double seconds = (System.nanoTime() - startNanoTime) / 1000000000.0;
+        return String.format("total read %d, rejected %d, acknowledged %d, sustained %.1f/s, buffered or in flight %d",
+                read, rejected, acked, acked / seconds, read - rejected - acked);
+    }
+
+    @Override
+    public void preStart() {
+        log.info("Start {}", settings);
+        startNanoTime = intervalStartNanoTime = System.nanoTime();
+        if (settings.source == EntityIngestSettings.Source.FILE) {
+            ingestFile();
+        } else {
+            ingestTcp();
+        }
+
+        reporter = context().system().scheduler().schedule(
+                settings.reportInterval,
+                settings.reportInterval,
+                self(),
+                "report",
+                context().system().dispatcher(),
+                null
+        );
+    }
+
+    @Override
+    public void postStop() {
+        reporter.cancel();
+    }
+
+    static Props props(EntityIngestSettings settings, ActorRef shardRegion) {
+        return Props.create(EntityIngestActor.class, settings, shardRegion).withDispatcher(EntityDispatchers.client);
+    }
+
+    static class Counters {
+        final LongAdder read = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder acked = new LongAdder();
+    }
+}
@@ -0,0 +1,54 @@
+package cluster.persistence;
+
+import akka.actor.ActorSystem;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+
+class EntityIngestSettings {
+    final boolean enabled;
+    final Source source;
+    final String file;
+    final String resultsFile;
+    final String tcpInterface;
+    final int tcpPort;
+    final int maxLineLength;
+    final int parseBatch;
+    final int parseParallelism;
+    final int lanes;
+    final int laneBuffer;
+    final Duration askTimeout;
+    final Duration reportInterval;
+
+    private EntityIngestSettings(Config config) {
+        enabled = config.getBoolean("enabled");
+        source = Source.valueOf(config.getString("source").toUpperCase());
+        file = config.getString("file");
+        resultsFile = config.getString("results-file");
+        tcpInterface = config.getString("tcp.interface");
+        tcpPort = config.getInt("tcp.port");
+        maxLineLength = config.getInt("max-line-length");
+        parseBatch = config.getInt("parse-batch");
+        parseParallelism = config.getInt("parse-parallelism");
+        lanes = config.getInt("lanes");
+        laneBuffer = config.getInt("lane-buffer");
+        askTimeout = config.getDuration("ask-timeout");
+        reportInterval = config.getDuration("report-interval");
+    }
+
+    static EntityIngestSettings create(ActorSystem actorSystem) {
+        return new EntityIngestSettings(actorSystem.settings().config().getConfig("entity-ingest"));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[enabled %b, %s, parse %d x %d, lanes %d, lane buffer %d, ask timeout %s, report every %s]",
+                getClass().getSimpleName(), enabled,
+                source == Source.FILE ? String.format("file %s", file) : String.format("tcp %s:%d", tcpInterface, tcpPort),
+                parseParallelism, parseBatch, lanes, laneBuffer, askTimeout, reportInterval);
+    }
+
+    enum Source {
+        FILE, TCP
+    }
+}
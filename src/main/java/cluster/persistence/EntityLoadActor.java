@@ -0,0 +1,222 @@
+package cluster.persistence;
+
+import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.japi.pf.ReceiveBuilder;
+import org.HdrHistogram.Histogram;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Drives a share of the configured workload through its destination, which is the shard region or,
+ * for queries, the read side view.
+ * <p>
+ * In open-loop mode requests are scheduled at a fixed rate whether or not earlier requests have
+ * been answered, and the latency of a request is measured from the time it was scheduled for, not
+ * the time it was sent, so that a slow reply also counts against the requests that had to wait for
+ * the next tick or for a free in-flight slot. Requests that are due while the in-flight limit is
+ * reached are queued and sent as slots free up. Queued requests that are not sent within the
+ * request timeout are counted as skipped. In closed-loop mode a fixed number of requests is kept in
+ * flight and each reply or timeout immediately triggers the next request.
+ * <p>
+ * Replies are matched to requests by the request id they carry back, taken from a counter. Timed
+ * out and skipped requests are recorded in the latency percentiles with the time they waited, so
+ * the percentiles do not leave out the slowest requests. Throughput and latency percentiles are
+ * logged once per report interval.
+ */
+abstract class EntityLoadActor extends AbstractLoggingActor {
+    final ActorRef destination;
+    final EntityLoadSettings settings;
+    final KeySpace keySpace;
+    private final String name;
+    private final EntityMetrics.Load metrics;
+    private final double rate;
+    private final int concurrency;
+    private final Map<Long, Long> inFlight = new LinkedHashMap<>();
+    private final Histogram intervalLatency = new Histogram(3);
+    private long startNanoTime;
+    private long nextRequestId;
+    private long due;
+    private long dequeued;
+    private long totalReplies;
+    private long intervalStartNanoTime;
+    private long intervalTimeouts;
+    private long intervalSkipped;
+    private long intervalLate;
+    private Cancellable ticker;
+    private Cancellable reporter;
+
+    EntityLoadActor(ActorRef destination, String name, ToDoubleFunction<EntityLoadSettings> workloadShare) {
+        this.destination = destination;
+        this.name = name;
+        metrics = EntityMetrics.get(context().system()).load(name);
+        settings = EntityLoadSettings.create(context().system());
+        keySpace = KeySpace.from(settings);
+        final double share = workloadShare.applyAsDouble(settings);
+        rate = settings.rate * share;
+        concurrency = share > 0 ? Math.max(1, (int) Math.round(settings.concurrency * share)) : 0;
+    }
+
+    /**
+     * Sends one request with the request id, which its reply carries back, to the destination.
+     */
+    abstract void send(long requestId);
+
+    ReceiveBuilder loadReceiveBuilder() {
+        return receiveBuilder()
+                .matchEquals("tick", t -> tick())
+                .matchEquals("report", r -> report());
+    }
+
+    void replied(long requestId, Object reply) {
+        final Long scheduledNanoTime = inFlight.remove(requestId);
+        if (scheduledNanoTime == null) {
+            ++intervalLate;
+            log().debug("Received (late) {} {}", reply, sender());
+        } else {
+            final long latencyNanos = System.nanoTime() - scheduledNanoTime;
+            ++totalReplies;
+            metrics.replyReceived(latencyNanos);
+            recordLatency(latencyNanos);
+            log().debug("Received {} {}", reply, sender());
+            if (settings.mode == EntityLoadSettings.Mode.CLOSED_LOOP) {
+                fill();
+            } else {
+                sendQueued();
+            }
+        }
+    }
+
+    private void tick() {
+        expire();
+        if (settings.mode == EntityLoadSettings.Mode.OPEN_LOOP) {
+            due = Math.max(due, (long) ((System.nanoTime() - startNanoTime) / 1000000000.0 * rate));
+            sendQueued();
+        } else {
+            fill();
+        }
+    }
+
+    private void fill() {
+        while (inFlight.size() < concurrency) {
+            sendRequest(System.nanoTime());
+        }
+    }
+
+    private void sendQueued() {
+        while (dequeued < due && inFlight.size() < settings.maxInFlight) {
+            sendRequest(scheduledNanoTime(dequeued++));
+        }
+    }
+
+    private void sendRequest(long scheduledNanoTime) {
+        final long requestId = ++nextRequestId;
+        send(requestId);
+        inFlight.put(requestId, scheduledNanoTime);
+        metrics.requestSent();
+    }
+
+    /**
+     * The time that the open-loop request with the number, counted from 0, is due.
+     */
+    private long scheduledNanoTime(long request) {
+        return startNanoTime + (long) ((request + 1) * 1000000000.0 / rate);
+    }
+
+    private void expire() {
+        final long now = System.nanoTime();
+        final long expiredBefore = now - settings.requestTimeout.toNanos();
+        final Iterator<Map.Entry<Long, Long>> requests = inFlight.entrySet().iterator();
+        while (requests.hasNext()) {
+            final Map.Entry<Long, Long> request = requests.next();
+            if (request.getValue() > expiredBefore) {
+                break;
+            }
+            requests.remove();
+            ++intervalTimeouts;
+            metrics.requestTimedOut(now - request.getValue());
+            recordLatency(now - request.getValue());
+        }
+        while (dequeued < due && scheduledNanoTime(dequeued) <= expiredBefore) {
+            final long waitedNanos = now - scheduledNanoTime(dequeued++);
+            ++intervalSkipped;
+            metrics.requestTimedOut(waitedNanos);
+            recordLatency(waitedNanos);
+        }
+    }
+
+    private void recordLatency(long latencyNanos) {
+        intervalLatency.recordValue(TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+    }
+
+    private void report() {
+        final long now = System.nanoTime();
+        final double intervalSeconds = (now - intervalStartNanoTime) / 1000000000.0;
+        final long completed = intervalLatency.getTotalCount() - intervalTimeouts - intervalSkipped;
+
+        log().info("{} {}", name, String.format(
+                "%d in %.1fs, %.1f/s, timeouts %d, skipped %d, late %d, in flight %d, queued %d, latency ms p50 %.3f p90 %.3f p99 %.3f p99.9 %.3f max %.3f",
+                completed, intervalSeconds, completed / intervalSeconds, intervalTimeouts, intervalSkipped, intervalLate, inFlight.size(), due - dequeued,
+                millis(intervalLatency.getValueAtPercentile(50)), millis(intervalLatency.getValueAtPercentile(90)),
+                millis(intervalLatency.getValueAtPercentile(99)), millis(intervalLatency.getValueAtPercentile(99.9)),
+                millis(intervalLatency.getMaxValue())));
+
+        intervalLatency.reset();
+        intervalTimeouts = 0;
+        intervalSkipped = 0;
+        intervalLate = 0;
+        intervalStartNanoTime = now;
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+
+    private Duration tickInterval() {
+        if (settings.mode == EntityLoadSettings.Mode.CLOSED_LOOP || rate <= 0) {
+            return Duration.ofMillis(100);
+        }
+        return Duration.ofMillis(Math.max(10, Math.min(1000, (long) (1000 / rate))));
+    }
+
+    @Override
+    public void preStart() {
+        log().info("Start {} rate {}/s, concurrency {}, {}", name, rate, concurrency, settings);
+        startNanoTime = System.nanoTime();
+        intervalStartNanoTime = startNanoTime;
+
+        if (rate > 0 || concurrency > 0) {
+            ticker = context().system().scheduler().schedule(
+                    tickInterval(),
+                    tickInterval(),
+                    self(),
+                    "tick",
+                    context().system().dispatcher(),
+                    null
+            );
+            reporter = context().system().scheduler().schedule(
+                    settings.reportInterval,
+                    settings.reportInterval,
+                    self(),
+                    "report",
+                    context().system().dispatcher(),
+                    null
+            );
+        }
+    }
+
+    @Override
+    public void postStop() {
+        log().info("Stop {} completed {}", name, totalReplies);
+        if (ticker != null) {
+            ticker.cancel();
+            reporter.cancel();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package cluster.persistence;
+
+import akka.actor.ActorSystem;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+
+class EntityLoadSettings {
+    final Mode mode;
+    final double rate;
+    final int concurrency;
+    final int maxInFlight;
+    final int keySpace;
+    final Distribution distribution;
+    final double zipfExponent;
+    final int depositWeight;
+    final int withdrawalWeight;
+    final int queryWeight;
+    final Duration requestTimeout;
+    final Duration reportInterval;
+
+    private EntityLoadSettings(Config config) {
+        mode = Mode.valueOf(config.getString("mode").toUpperCase().replace('-', '_'));
+        rate = config.getDouble("rate");
+        concurrency = config.getInt("concurrency");
+        maxInFlight = config.getInt("max-in-flight");
+        keySpace = config.getInt("key-space");
+        distribution = Distribution.valueOf(config.getString("distribution").toUpperCase());
+        zipfExponent = config.getDouble("zipf-exponent");
+        depositWeight = config.getInt("mix.deposit");
+        withdrawalWeight = config.getInt("mix.withdrawal");
+        queryWeight = config.getInt("mix.query");
+        requestTimeout = config.getDuration("request-timeout");
+        reportInterval = config.getDuration("report-interval");
+    }
+
+    static EntityLoadSettings create(ActorSystem actorSystem) {
+        return new EntityLoadSettings(actorSystem.settings().config().getConfig("entity-load"));
+    }
+
+    double commandShare() {
+        return (depositWeight + withdrawalWeight) / (double) totalWeight();
+    }
+
+    double queryShare() {
+        return queryWeight / (double) totalWeight();
+    }
+
+    private int totalWeight() {
+        return Math.max(1, depositWeight + withdrawalWeight + queryWeight);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%s, rate %.1f/s, concurrency %d, max in flight %d, key space %d %s, mix %d/%d/%d]",
+                getClass().getSimpleName(), mode, rate, concurrency, maxInFlight, keySpace, distribution,
+                depositWeight, withdrawalWeight, queryWeight);
+    }
+
+    enum Mode {
+        OPEN_LOOP, CLOSED_LOOP
+    }
+
+    enum Distribution {
+        UNIFORM, ZIPF
+    }
+}
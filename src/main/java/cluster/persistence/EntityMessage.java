@@ -1,49 +1,82 @@
 package cluster.persistence;
 
-import akka.cluster.sharding.ShardRegion;
-
 import java.io.Serializable;
 import java.math.BigDecimal;
-import java.text.DecimalFormat;
 import java.time.Instant;
 import java.util.Collections;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.List;
 
 class EntityMessage {
+    /**
+     * A message that is routed to the entity with the id it carries.
+     */
+    interface Routed {
+        Entity.Id entityId();
+    }
+
     static class Amount implements Serializable {
-        static final long serialVersionUID = 42L;
-        final BigDecimal amount;
-        private static final DecimalFormat df = new DecimalFormat(",##0.00");
+        static final long serialVersionUID = 43L;
+        final long minorUnits;
 
         Amount(BigDecimal amount) {
-            this.amount = amount;
+            this(MinorUnits.of(amount));
+        }
+
+        private Amount(long minorUnits) {
+            this.minorUnits = minorUnits;
+        }
+
+        static Amount ofMinorUnits(long minorUnits) {
+            return new Amount(minorUnits);
+        }
+
+        BigDecimal toBigDecimal() {
+            return MinorUnits.toBigDecimal(minorUnits);
         }
 
         @Override
         public String toString() {
-            return String.format("%s[%s]", getClass().getSimpleName(), df.format(amount));
+            return String.format("%s[%s]", getClass().getSimpleName(), MinorUnits.format(minorUnits));
         }
     }
 
-    static class EntityCommand implements Serializable {
+    /**
+     * Changes the balance of one entity. The request id is echoed in the {@link CommandAck}, as
+     * that of a {@link Query}, and is 0 when the sender does not need it.
+     */
+    static class EntityCommand implements Routed, Serializable {
         static final long serialVersionUID = 42L;
         final long messageNanoTime;
+        final long requestId;
         final Entity.Id id;
         final Amount amount;
 
-        private EntityCommand(Entity.Id id, Amount amount) {
-            messageNanoTime = System.nanoTime();
+        private EntityCommand(Entity.Id id, Amount amount, long requestId, long messageNanoTime) {
+            this.messageNanoTime = messageNanoTime;
+            this.requestId = requestId;
             this.id = id;
             this.amount = amount;
         }
+
+        @Override
+        public Entity.Id entityId() {
+            return id;
+        }
     }
 
     static class DepositCommand extends EntityCommand {
         static final long serialVersionUID = 42L;
 
         DepositCommand(Entity.Id id, Amount amount) {
-            super(id, amount);
+            this(id, amount, 0);
+        }
+
+        DepositCommand(Entity.Id id, Amount amount, long requestId) {
+            this(id, amount, requestId, System.nanoTime());
+        }
+
+        DepositCommand(Entity.Id id, Amount amount, long requestId, long messageNanoTime) {
+            super(id, amount, requestId, messageNanoTime);
         }
 
         @Override
@@ -56,7 +89,15 @@ class EntityMessage {
         static final long serialVersionUID = 42L;
 
         WithdrawalCommand(Entity.Id id, Amount amount) {
-            super(id, amount);
+            this(id, amount, 0);
+        }
+
+        WithdrawalCommand(Entity.Id id, Amount amount, long requestId) {
+            this(id, amount, requestId, System.nanoTime());
+        }
+
+        WithdrawalCommand(Entity.Id id, Amount amount, long requestId, long messageNanoTime) {
+            super(id, amount, requestId, messageNanoTime);
         }
 
         @Override
@@ -69,11 +110,16 @@ class EntityMessage {
         static final long serialVersionUID = 42L;
         final Entity.Id id;
         final Amount amount;
-        final Instant time = Instant.now();
+        final Instant time;
 
         private EntityEvent(Entity.Id id, Amount amount) {
+            this(id, amount, Instant.now());
+        }
+
+        private EntityEvent(Entity.Id id, Amount amount, Instant time) {
             this.id = id;
             this.amount = amount;
+            this.time = time;
         }
     }
 
@@ -84,6 +130,10 @@ class EntityMessage {
             super(id, amount);
         }
 
+        DepositEvent(Entity.Id id, Amount amount, Instant time) {
+            super(id, amount, time);
+        }
+
         DepositEvent(DepositCommand depositCommand) {
             this(depositCommand.id, depositCommand.amount);
         }
@@ -101,6 +151,10 @@ class EntityMessage {
             super(id, amount);
         }
 
+        WithdrawalEvent(Entity.Id id, Amount amount, Instant time) {
+            super(id, amount, time);
+        }
+
         WithdrawalEvent(WithdrawalCommand withdrawalCommand) {
             this(withdrawalCommand.id, withdrawalCommand.amount);
         }
@@ -114,15 +168,17 @@ class EntityMessage {
     static class CommandAck implements Serializable {
         static final long serialVersionUID = 42L;
         final long commandTime;
+        final long requestId;
         final EntityEvent entityEvent;
 
-        private CommandAck(long commandTime, EntityEvent entityEvent) {
+        CommandAck(long commandTime, long requestId, EntityEvent entityEvent) {
             this.commandTime = commandTime;
+            this.requestId = requestId;
             this.entityEvent = entityEvent;
         }
 
         static CommandAck from(EntityCommand entityCommand, EntityEvent entityEvent) {
-            return new CommandAck(entityCommand.messageNanoTime, entityEvent);
+            return new CommandAck(entityCommand.messageNanoTime, entityCommand.requestId, entityEvent);
         }
 
         @Override
@@ -132,34 +188,55 @@ class EntityMessage {
         }
     }
 
-    static class Query implements Serializable {
+    /**
+     * Queries one entity. The request id is echoed in the reply, so that an actor with many queries
+     * in flight can tell the replies apart, and is 0 when the sender does not need it.
+     */
+    static class Query implements Routed, Serializable {
         static final long serialVersionUID = 42L;
         final long messageNanoTime;
+        final long requestId;
         final Entity.Id id;
 
         Query(Entity.Id id) {
-            messageNanoTime = System.nanoTime();
+            this(id, 0);
+        }
+
+        Query(Entity.Id id, long requestId) {
+            this(id, requestId, System.nanoTime());
+        }
+
+        Query(Entity.Id id, long requestId, long messageNanoTime) {
+            this.messageNanoTime = messageNanoTime;
+            this.requestId = requestId;
             this.id = id;
         }
 
+        @Override
+        public Entity.Id entityId() {
+            return id;
+        }
+
         @Override
         public String toString() {
-            return String.format("%s[%dus, %s]", getClass().getSimpleName(), messageNanoTime, id);
+            return String.format("%s[%dus, request %d, %s]", getClass().getSimpleName(), messageNanoTime, requestId, id);
         }
     }
 
     static class QueryAck implements Serializable {
         static final long serialVersionUID = 42L;
         final long queryTime;
+        final long requestId;
         final Entity entity;
 
-        private QueryAck(long queryTime, Entity entity) {
+        QueryAck(long queryTime, long requestId, Entity entity) {
             this.queryTime = queryTime;
+            this.requestId = requestId;
             this.entity = entity;
         }
 
         static QueryAck from(Query query, Entity entity) {
-            return new QueryAck(query.messageNanoTime, entity);
+            return new QueryAck(query.messageNanoTime, query.requestId, entity);
         }
 
         @Override
@@ -172,15 +249,17 @@ class EntityMessage {
     static class QueryAckNotFound implements Serializable {
         static final long serialVersionUID = 42L;
         final long queryTime;
+        final long requestId;
         final Entity.Id id;
 
-        private QueryAckNotFound(long queryTime, Entity.Id id) {
+        QueryAckNotFound(long queryTime, long requestId, Entity.Id id) {
             this.queryTime = queryTime;
+            this.requestId = requestId;
             this.id = id;
         }
 
         static QueryAckNotFound from(Query query) {
-            return new QueryAckNotFound(query.messageNanoTime, query.id);
+            return new QueryAckNotFound(query.messageNanoTime, query.requestId, query.id);
         }
 
         @Override
@@ -190,53 +269,136 @@ class EntityMessage {
         }
     }
 
-    static Set<String> eventTag(EntityCommand entityCommand) {
-        int numberOfEventTags = 5;
-        return new HashSet<>(Collections.singletonList(String.format("%d", entityCommand.id.id.hashCode() % numberOfEventTags)));
-    }
-
-    static ShardRegion.MessageExtractor messageExtractor() {
-        final int numberOfShards = 15;
-
-        return new ShardRegion.MessageExtractor() {
-            @Override
-            public String shardId(Object message) {
-                return extractShardIdFromCommand(message);
-            }
-
-            @Override
-            public String entityId(Object message) {
-                return extractEntityIdFromCommand(message);
-            }
-
-            @Override
-            public Object entityMessage(Object message) {
-                return message;
-            }
-
-            private String extractShardIdFromCommand(Object message) {
-                if (message instanceof DepositCommand) {
-                    return ((DepositCommand) message).id.id.hashCode() % numberOfShards + "";
-                } else if (message instanceof WithdrawalCommand) {
-                    return ((WithdrawalCommand) message).id.id.hashCode() % numberOfShards + "";
-                } else if (message instanceof Query) {
-                    return ((Query) message).id.id.hashCode() % numberOfShards + "";
-                } else {
-                    return null;
-                }
-            }
-
-            private String extractEntityIdFromCommand(Object message) {
-                if (message instanceof DepositCommand) {
-                    return ((DepositCommand) message).id.id;
-                } else if (message instanceof WithdrawalCommand) {
-                    return ((WithdrawalCommand) message).id.id;
-                } else if (message instanceof Query) {
-                    return ((Query) message).id.id;
-                } else {
-                    return null;
-                }
-            }
-        };
+    /**
+     * Queries many entities at once. Sent to {@link EntityBatchQueryActor}, which answers with one
+     * {@link BatchQueryAck} of the entities that were found and the ids that were not.
+     */
+    static class BatchQuery implements Serializable {
+        static final long serialVersionUID = 42L;
+        final long messageNanoTime;
+        final List<Entity.Id> ids;
+
+        BatchQuery(List<Entity.Id> ids) {
+            this(ids, System.nanoTime());
+        }
+
+        BatchQuery(List<Entity.Id> ids, long messageNanoTime) {
+            this.messageNanoTime = messageNanoTime;
+            this.ids = ids;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%dus, %d ids]", getClass().getSimpleName(), messageNanoTime, ids.size());
+        }
+    }
+
+    /**
+     * The part of a batch query for the entities of one shard. It is routed to the first of its ids,
+     * and that entity queries the others through its shard, so the part crosses the network once.
+     * The request id identifies the batch at {@link EntityBatchQueryActor}.
+     */
+    static class ShardQuery implements Routed, Serializable {
+        static final long serialVersionUID = 42L;
+        final long requestId;
+        final List<Entity.Id> ids;
+
+        ShardQuery(long requestId, List<Entity.Id> ids) {
+            this.requestId = requestId;
+            this.ids = ids;
+        }
+
+        @Override
+        public Entity.Id entityId() {
+            return ids.get(0);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[request %d, %d ids]", getClass().getSimpleName(), requestId, ids.size());
+        }
+    }
+
+    /**
+     * The reply to a {@link ShardQuery}, with the request id of the shard query. The ids of entities
+     * that did not answer within the shard timeout are listed as unanswered.
+     */
+    static class ShardQueryAck implements Serializable {
+        static final long serialVersionUID = 42L;
+        final long requestId;
+        final List<Entity> found;
+        final List<Entity.Id> notFound;
+        final List<Entity.Id> unanswered;
+
+        ShardQueryAck(long requestId, List<Entity> found, List<Entity.Id> notFound) {
+            this(requestId, found, notFound, Collections.emptyList());
+        }
+
+        ShardQueryAck(long requestId, List<Entity> found, List<Entity.Id> notFound, List<Entity.Id> unanswered) {
+            this.requestId = requestId;
+            this.found = found;
+            this.notFound = notFound;
+            this.unanswered = unanswered;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[request %d, found %d, not found %d, unanswered %d]", getClass().getSimpleName(),
+                    requestId, found.size(), notFound.size(), unanswered.size());
+        }
+    }
+
+    /**
+     * The reply to a {@link BatchQuery}. A batch that is not completely answered within the timeout
+     * is answered with what was found so far, and the ids that are still unanswered, which may or
+     * may not exist, are listed so that they can be queried again.
+     */
+    static class BatchQueryAck implements Serializable {
+        static final long serialVersionUID = 42L;
+        final long queryTime;
+        final List<Entity> found;
+        final List<Entity.Id> notFound;
+        final List<Entity.Id> unanswered;
+
+        BatchQueryAck(long queryTime, List<Entity> found, List<Entity.Id> notFound) {
+            this(queryTime, found, notFound, Collections.emptyList());
+        }
+
+        BatchQueryAck(long queryTime, List<Entity> found, List<Entity.Id> notFound, List<Entity.Id> unanswered) {
+            this.queryTime = queryTime;
+            this.found = found;
+            this.notFound = notFound;
+            this.unanswered = unanswered;
+        }
+
+        @Override
+        public String toString() {
+            final double elapsed = (System.nanoTime() - queryTime) / 1000000000.0;
+            return String.format("%s[found %d, not found %d, unanswered %d, elapsed %.9fs, %dus]", getClass().getSimpleName(),
+                    found.size(), notFound.size(), unanswered.size(), elapsed, queryTime);
+        }
+    }
+
+    /**
+     * Starts an entity so that it recovers before commands arrive, see {@link EntityPrewarmActor}.
+     * The entity handles it once it has recovered and sends it back. It is sent to the local shard
+     * of the entity, so it does not leave the node.
+     */
+    static class Prewarm implements Routed {
+        final Entity.Id id;
+
+        Prewarm(Entity.Id id) {
+            this.id = id;
+        }
+
+        @Override
+        public Entity.Id entityId() {
+            return id;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s]", getClass().getSimpleName(), id);
+        }
     }
 }
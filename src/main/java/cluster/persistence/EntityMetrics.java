@@ -0,0 +1,493 @@
+package cluster.persistence;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionId;
+import akka.actor.ExtensionIdProvider;
+import akka.dispatch.MailboxType;
+import akka.http.javadsl.model.ContentTypes;
+import akka.http.javadsl.model.HttpEntities;
+import akka.http.javadsl.server.Directives;
+import akka.http.javadsl.server.Route;
+import akka.management.javadsl.ManagementRouteProvider;
+import akka.management.javadsl.ManagementRouteProviderSettings;
+import com.typesafe.config.Config;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for the entities, the read side view, the load actors and the
+ * rebalances followed by the cluster listener on this node, served in the Prometheus text format on
+ * the management HTTP server. There is one instance per actor system, which registers itself as a
+ * management route provider.
+ * <p>
+ * The queued messages and utilization of the {@link EntityDispatchers} are read from their
+ * {@link InstrumentedMailbox} at each scrape, whether or not entity-metrics is enabled, as the
+ * mailboxes count them anyway.
+ * <p>
+ * Recording is wait-free and does not allocate: counters are LongAdders and latencies go to
+ * HdrHistogram Recorders, so actors on any dispatcher can record concurrently without contention.
+ * The quantiles of a summary cover the values recorded since the previous scrape, while its count
+ * and sum cover the lifetime of the node. When entity-metrics.enabled is off nothing is recorded.
+ */
+class EntityMetrics implements Extension, ManagementRouteProvider {
+    private final boolean enabled;
+    private final String path;
+    private final LongAdder depositCommands = new LongAdder();
+    private final LongAdder withdrawalCommands = new LongAdder();
+    private final LongAdder entityQueries = new LongAdder();
+    private final LongAdder recoveredEvents = new LongAdder();
+    private final LongAdder snapshots = new LongAdder();
+    private final LongAdder evictedEntities = new LongAdder();
+    private final LongAdder idleEntities = new LongAdder();
+    private final LongAdder viewQueries = new LongAdder();
+    private final LongAdder viewEvents = new LongAdder();
+    private final LongAdder nearCacheHits = new LongAdder();
+    private final LongAdder nearCacheMisses = new LongAdder();
+    private final LongAdder nearCacheEvictions = new LongAdder();
+    private final Summary persistLatency = new Summary();
+    private final Summary recoveryDuration = new Summary();
+    private final Summary viewLag = new Summary();
+    private final Summary nearCacheInvalidationLag = new Summary();
+    private final LongAdder rebalances = new LongAdder();
+    private final LongAdder movedShards = new LongAdder();
+    private final LongAdder stoppedEntities = new LongAdder();
+    private final LongAdder restartedEntities = new LongAdder();
+    private final Summary shardsAllocated = new Summary();
+    private final Summary shardHandoff = new Summary();
+    private final Summary rebalanceDuration = new Summary();
+    private final Summary rebalanceUnavailable = new Summary();
+    private final Rebalance rebalance = new Rebalance();
+    private final ConcurrentMap<String, LongAdder> activeEntities = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Load> loads = new ConcurrentHashMap<>();
+    private final Map<String, DispatcherUsage> dispatchers = new LinkedHashMap<>();
+
+    private EntityMetrics(ExtendedActorSystem actorSystem, Config config) {
+        enabled = config.getBoolean("enabled");
+        path = config.getString("path");
+        for (String id : EntityDispatchers.all) {
+            if (actorSystem.settings().config().hasPath(id)) {
+                final MailboxType mailboxType = actorSystem.mailboxes().lookup(id);
+                if (mailboxType instanceof InstrumentedMailbox) {
+                    dispatchers.put(id.substring(id.lastIndexOf('.') + 1), ((InstrumentedMailbox) mailboxType).usage);
+                }
+            }
+        }
+    }
+
+    static EntityMetrics get(ActorSystem actorSystem) {
+        return Provider.instance.get(actorSystem);
+    }
+
+    void commandReceived(EntityMessage.EntityCommand entityCommand) {
+        if (enabled) {
+            (entityCommand instanceof EntityMessage.DepositCommand ? depositCommands : withdrawalCommands).increment();
+        }
+    }
+
+    /**
+     * Records an event stored for a command that was received at the given local nano time.
+     */
+    void eventPersisted(long receivedNanoTime) {
+        if (enabled) {
+            persistLatency.record(System.nanoTime() - receivedNanoTime);
+        }
+    }
+
+    void entityQueried() {
+        if (enabled) {
+            entityQueries.increment();
+        }
+    }
+
+    void recoveryCompleted(long startNanoTime, int events) {
+        if (enabled) {
+            recoveredEvents.add(events);
+            recoveryDuration.record(System.nanoTime() - startNanoTime);
+        }
+    }
+
+    void snapshotSaved() {
+        if (enabled) {
+            snapshots.increment();
+        }
+    }
+
+    void entityStarted(String shardId) {
+        if (enabled) {
+            activeEntities.computeIfAbsent(shardId, s -> new LongAdder()).increment();
+        }
+    }
+
+    void entityStopped(String shardId) {
+        if (enabled) {
+            activeEntities.computeIfAbsent(shardId, s -> new LongAdder()).decrement();
+        }
+    }
+
+    /**
+     * Records an entity passivated to stay within the entity budget, or after its idle timeout.
+     */
+    void entityPassivated(boolean evicted) {
+        if (enabled) {
+            (evicted ? evictedEntities : idleEntities).increment();
+        }
+    }
+
+    void viewQueried() {
+        if (enabled) {
+            viewQueries.increment();
+        }
+    }
+
+    void viewEventApplied(long lagMillis) {
+        if (enabled) {
+            viewEvents.increment();
+            viewLag.record(TimeUnit.MILLISECONDS.toNanos(lagMillis));
+        }
+    }
+
+    void nearCacheHit() {
+        if (enabled) {
+            nearCacheHits.increment();
+        }
+    }
+
+    void nearCacheMiss() {
+        if (enabled) {
+            nearCacheMisses.increment();
+        }
+    }
+
+    void nearCacheEvicted() {
+        if (enabled) {
+            nearCacheEvictions.increment();
+        }
+    }
+
+    void nearCacheInvalidated(long lagMillis) {
+        if (enabled) {
+            nearCacheInvalidationLag.record(TimeUnit.MILLISECONDS.toNanos(lagMillis));
+        }
+    }
+
+    /**
+     * Starts recording the replies of the load actors for a rebalance, until it is completed.
+     */
+    void rebalanceStarted(Duration slowReply) {
+        if (enabled) {
+            rebalance.start(slowReply.toNanos());
+        }
+    }
+
+    /**
+     * Records the time from a member being up to its shard region hosting its first shard.
+     */
+    void shardsAllocated(long nanos) {
+        if (enabled) {
+            shardsAllocated.record(nanos);
+        }
+    }
+
+    /**
+     * Records the time from a shard last being seen on one node to it being seen on the next.
+     */
+    void shardHandedOff(long nanos) {
+        if (enabled) {
+            movedShards.increment();
+            shardHandoff.record(nanos);
+        }
+    }
+
+    /**
+     * Records a completed rebalance and returns how long the load actors on this node found the
+     * cluster unavailable during it, from sending the first to receiving the last slow reply,
+     * where a timeout counts as a slow reply.
+     */
+    long rebalanceCompleted(long durationNanos, long stopped, long restarted) {
+        if (!enabled) {
+            return 0;
+        }
+        final long unavailableNanos = rebalance.complete();
+        rebalances.increment();
+        stoppedEntities.add(stopped);
+        restartedEntities.add(restarted);
+        rebalanceDuration.record(durationNanos);
+        rebalanceUnavailable.record(unavailableNanos);
+        return unavailableNanos;
+    }
+
+    Load load(String name) {
+        return loads.computeIfAbsent(name, n -> new Load(enabled, rebalance));
+    }
+
+    @Override
+    public Route routes(ManagementRouteProviderSettings settings) {
+        return Directives.path(path, () -> Directives.get(() ->
+                Directives.complete(HttpEntities.create(ContentTypes.TEXT_PLAIN_UTF8, scrape()))));
+    }
+
+    synchronized String scrape() {
+        final StringBuilder text = new StringBuilder(4096);
+
+        // Each stored event was counted as a command first, so reading the commands after sampling
+        // the persist latency keeps the pending commands from going negative.
+        persistLatency.sample();
+        recoveryDuration.sample();
+        viewLag.sample();
+        nearCacheInvalidationLag.sample();
+        shardsAllocated.sample();
+        shardHandoff.sample();
+        rebalanceDuration.sample();
+        rebalanceUnavailable.sample();
+        final Map<String, Load> sortedLoads = new TreeMap<>(loads);
+        sortedLoads.values().forEach(load -> {
+            load.latency.sample();
+            load.rebalanceLatency.sample();
+        });
+        final long deposits = depositCommands.sum();
+        final long withdrawals = withdrawalCommands.sum();
+        writeType(text, "entity_commands_total", "counter", "Commands received by the entities on this node.");
+        writeSample(text, "entity_commands_total", "type=\"deposit\"", deposits);
+        writeSample(text, "entity_commands_total", "type=\"withdrawal\"", withdrawals);
+        writeGauge(text, "entity_pending_commands", "Commands received but not yet stored, which the entities hold in their stash or batch queue.",
+                deposits + withdrawals - persistLatency.count);
+        persistLatency.write(text, "entity_persist_latency_seconds", "Time from receiving a command to its event being stored.");
+        writeCounter(text, "entity_queries_total", "Queries answered by the entities on this node.", entityQueries.sum());
+        writeCounter(text, "entity_recovered_events_total", "Events replayed by recovering entities on this node.", recoveredEvents.sum());
+        recoveryDuration.write(text, "entity_recovery_duration_seconds", "Time from starting an entity to its recovery being completed.");
+        writeCounter(text, "entity_snapshots_total", "Snapshots saved by the entities on this node.", snapshots.sum());
+
+        final Map<String, Long> shards = new TreeMap<>();
+        activeEntities.forEach((shardId, count) -> shards.put(shardId, count.sum()));
+        writeGauge(text, "entity_shards_active", "Shards with active entities on this node.", shards.values().stream().filter(count -> count > 0).count());
+        writeType(text, "entity_active", "gauge", "Active entities on this node per shard.");
+        shards.forEach((shardId, count) -> writeSample(text, "entity_active", String.format("shard=\"%s\"", shardId), count));
+        writeType(text, "entity_passivations_total", "counter", "Entities passivated on this node.");
+        writeSample(text, "entity_passivations_total", "reason=\"evicted\"", evictedEntities.sum());
+        writeSample(text, "entity_passivations_total", "reason=\"idle\"", idleEntities.sum());
+
+        writeCounter(text, "entity_view_queries_total", "Queries answered by the read side view on this node.", viewQueries.sum());
+        writeCounter(text, "entity_view_events_total", "Events applied to the read side view on this node.", viewEvents.sum());
+        viewLag.write(text, "entity_view_lag_seconds", "Time from an event being created to it being applied to the read side view.");
+
+        writeType(text, "entity_near_cache_queries_total", "counter", "Queries that reached the near cache on this node.");
+        writeSample(text, "entity_near_cache_queries_total", "result=\"hit\"", nearCacheHits.sum());
+        writeSample(text, "entity_near_cache_queries_total", "result=\"miss\"", nearCacheMisses.sum());
+        writeCounter(text, "entity_near_cache_evictions_total", "Entries evicted from the near cache on this node because it was full.", nearCacheEvictions.sum());
+        nearCacheInvalidationLag.write(text, "entity_near_cache_invalidation_lag_seconds",
+                "Time from an event being created to it removing the stale entry of its entity from the near cache.");
+
+        writeType(text, "entity_load_requests_total", "counter", "Requests sent by the load actors on this node.");
+        sortedLoads.forEach((name, load) -> writeSample(text, "entity_load_requests_total", load.label(name), load.requests.sum()));
+        writeType(text, "entity_load_timeouts_total", "counter", "Requests of the load actors on this node that were not answered in time.");
+        sortedLoads.forEach((name, load) -> writeSample(text, "entity_load_timeouts_total", load.label(name), load.timeouts.sum()));
+        writeType(text, "entity_load_latency_seconds", "summary", "Time from sending a request to receiving its reply.");
+        sortedLoads.forEach((name, load) -> load.latency.writeSamples(text, "entity_load_latency_seconds", load.label(name)));
+        writeType(text, "entity_load_rebalance_latency_seconds", "summary", "Time from sending a request to receiving its reply while a rebalance was in progress.");
+        sortedLoads.forEach((name, load) -> load.rebalanceLatency.writeSamples(text, "entity_load_rebalance_latency_seconds", load.label(name)));
+
+        writeCounter(text, "cluster_rebalances_total", "Membership changes and shard moves followed until the shards settled.", rebalances.sum());
+        rebalanceDuration.write(text, "cluster_rebalance_duration_seconds", "Time from a membership change or shard move to the last shard moving.");
+        shardsAllocated.write(text, "cluster_member_shards_allocated_seconds", "Time from a member being up to its first shard being allocated to it.");
+        writeCounter(text, "cluster_shard_handoffs_total", "Shards moved from one node to another or restarted.", movedShards.sum());
+        shardHandoff.write(text, "cluster_shard_handoff_seconds", "Time from a shard last being seen on one node to it being seen on the next, to within a poll interval.");
+        writeType(text, "cluster_rebalance_entities_total", "counter", "Entities stopped on their shards leaving a node, and restarted on the same shards once they settled.");
+        writeSample(text, "cluster_rebalance_entities_total", "phase=\"stopped\"", stoppedEntities.sum());
+        writeSample(text, "cluster_rebalance_entities_total", "phase=\"restarted\"", restartedEntities.sum());
+        rebalanceUnavailable.write(text, "cluster_rebalance_unavailable_seconds",
+                "Time during a rebalance from sending the first to receiving the last slow reply of the load actors on this node.");
+
+        writeType(text, "dispatcher_mailbox_messages", "gauge", "Messages queued in the mailboxes of the actors of each dispatcher.");
+        dispatchers.forEach((name, usage) -> writeSample(text, "dispatcher_mailbox_messages", dispatcherLabel(name), Math.max(0, usage.queuedMessages())));
+        writeType(text, "dispatcher_mailbox_max_depth", "gauge", "Messages in the deepest mailbox of each dispatcher since the previous scrape.");
+        dispatchers.forEach((name, usage) -> writeSample(text, "dispatcher_mailbox_max_depth", dispatcherLabel(name), usage.takeMaxDepth()));
+        writeType(text, "dispatcher_threads", "gauge", "Threads of each dispatcher.");
+        dispatchers.forEach((name, usage) -> writeSample(text, "dispatcher_threads", dispatcherLabel(name), usage.threads()));
+        writeType(text, "dispatcher_busy_seconds_total", "counter", "Time the threads of each dispatcher spent running actors.");
+        dispatchers.forEach((name, usage) -> writeSample(text, "dispatcher_busy_seconds_total", dispatcherLabel(name), usage.busyNanos() / 1000000000.0));
+        writeType(text, "dispatcher_utilization", "gauge", "Share of the time of the threads of each dispatcher spent running actors since the previous scrape.");
+        dispatchers.forEach((name, usage) -> writeSample(text, "dispatcher_utilization", dispatcherLabel(name), usage.takeUtilization()));
+
+        return text.toString();
+    }
+
+    private static String dispatcherLabel(String name) {
+        return String.format("dispatcher=\"%s\"", name);
+    }
+
+    private static void writeCounter(StringBuilder text, String name, String help, long value) {
+        writeType(text, name, "counter", help);
+        writeSample(text, name, "", value);
+    }
+
+    private static void writeGauge(StringBuilder text, String name, String help, long value) {
+        writeType(text, name, "gauge", help);
+        writeSample(text, name, "", value);
+    }
+
+    private static void writeType(StringBuilder text, String name, String type, String help) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void writeSample(StringBuilder text, String name, String labels, Object value) {
+        text.append(name);
+        if (!labels.isEmpty()) {
+            text.append('{').append(labels).append('}');
+        }
+        text.append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Metrics of one load actor, which it looks up once and then records to directly.
+     */
+    static class Load {
+        private final boolean enabled;
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder timeouts = new LongAdder();
+        private final Summary latency = new Summary();
+        private final Summary rebalanceLatency = new Summary();
+        private final Rebalance rebalance;
+
+        private Load(boolean enabled, Rebalance rebalance) {
+            this.enabled = enabled;
+            this.rebalance = rebalance;
+        }
+
+        void requestSent() {
+            if (enabled) {
+                requests.increment();
+            }
+        }
+
+        /**
+         * Records a request that was not answered within the given time since it was sent.
+         */
+        void requestTimedOut(long waitedNanos) {
+            if (enabled) {
+                timeouts.increment();
+                if (rebalance.inProgress) {
+                    rebalance.slowReply(waitedNanos);
+                }
+            }
+        }
+
+        void replyReceived(long latencyNanos) {
+            if (enabled) {
+                latency.record(latencyNanos);
+                if (rebalance.inProgress) {
+                    rebalanceLatency.record(latencyNanos);
+                    rebalance.slowReply(latencyNanos);
+                }
+            }
+        }
+
+        private String label(String name) {
+            return String.format("name=\"%s\"", name);
+        }
+    }
+
+    /**
+     * The slow replies and timeouts of the load actors while a rebalance is in progress, of which
+     * only the earliest send and the latest receipt are kept, so the load actors only read a
+     * volatile flag outside of rebalances.
+     */
+    private static class Rebalance {
+        private final LongAccumulator firstSlowSent = new LongAccumulator(Math::min, Long.MAX_VALUE);
+        private final LongAccumulator lastSlowReceived = new LongAccumulator(Math::max, Long.MIN_VALUE);
+        private volatile long slowNanos;
+        private volatile boolean inProgress;
+
+        void start(long slowNanos) {
+            firstSlowSent.reset();
+            lastSlowReceived.reset();
+            this.slowNanos = slowNanos;
+            inProgress = true;
+        }
+
+        void slowReply(long latencyNanos) {
+            if (latencyNanos >= slowNanos) {
+                final long now = System.nanoTime();
+                firstSlowSent.accumulate(now - latencyNanos);
+                lastSlowReceived.accumulate(now);
+            }
+        }
+
+        long complete() {
+            inProgress = false;
+            final long first = firstSlowSent.get();
+            return first == Long.MAX_VALUE ? 0 : Math.max(0, lastSlowReceived.get() - first);
+        }
+    }
+
+    private static class Summary {
+        private static final double[] quantiles = {0.5, 0.9, 0.99, 0.999};
+        private final Recorder recorder = new Recorder(3);
+        private final LongAdder sumMicros = new LongAdder();
+        private Histogram interval;
+        private long count;
+
+        void record(long nanos) {
+            final long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+            recorder.recordValue(micros);
+            sumMicros.add(micros);
+        }
+
+        /**
+         * Takes the values recorded since the previous scrape, which the quantiles are written from.
+         */
+        void sample() {
+            interval = recorder.getIntervalHistogram(interval);
+            count += interval.getTotalCount();
+        }
+
+        void write(StringBuilder text, String name, String help) {
+            writeType(text, name, "summary", help);
+            writeSamples(text, name, "");
+        }
+
+        void writeSamples(StringBuilder text, String name, String labels) {
+            final String separator = labels.isEmpty() ? "" : ",";
+            for (double quantile : quantiles) {
+                writeSample(text, name, String.format("%s%squantile=\"%s\"", labels, separator, quantile),
+                        seconds(interval.getValueAtPercentile(quantile * 100)));
+            }
+            writeSample(text, name + "_sum", labels, seconds(sumMicros.sum()));
+            writeSample(text, name + "_count", labels, count);
+        }
+
+        private static double seconds(long micros) {
+            return micros / 1000000.0;
+        }
+    }
+
+    static class Provider extends AbstractExtensionId<EntityMetrics> implements ExtensionIdProvider {
+        static final Provider instance = new Provider();
+
+        private Provider() {
+        }
+
+        @Override
+        public ExtensionId<? extends Extension> lookup() {
+            return instance;
+        }
+
+        @Override
+        public EntityMetrics createExtension(ExtendedActorSystem actorSystem) {
+            return new EntityMetrics(actorSystem, actorSystem.settings().config().getConfig("entity-metrics"));
+        }
+    }
+}
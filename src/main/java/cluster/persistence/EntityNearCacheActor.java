@@ -0,0 +1,235 @@
+package cluster.persistence;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.cluster.pubsub.DistributedPubSub;
+import akka.cluster.pubsub.DistributedPubSubMediator;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import org.HdrHistogram.Histogram;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A near cache of query results in front of the entities, so that repeated queries for an entity
+ * that has not changed are answered on this node instead of by the entity on its owning node.
+ * <p>
+ * A query that misses is sent on to its entity and the reply is cached. The cache holds at
+ * most max-entries entities and evicts the least recently queried one. Every entity publishes
+ * its events to the event topic through Distributed Pub-Sub once they are persisted, and each event
+ * removes its entity from the cache, so the next query fetches the new state. Pub-Sub delivery is
+ * at most once, so an entry is also dropped once it is older than the time to live, which bounds
+ * how long a lost event can leave a stale entry.
+ * <p>
+ * A reply is not cached if an event for its entity arrived while the query was in flight, because
+ * the reply may have been read before that event was applied.
+ * <p>
+ * Hits, misses, evictions, invalidations and the lag from an event being created to it removing
+ * its entry, which is how long the entry was stale, are logged once per report interval.
+ */
+class EntityNearCacheActor extends AbstractActor {
+    private final LoggingAdapter log = Logging.getLogger(context().system(), this);
+    private final EntityNearCacheSettings settings;
+    private final ActorRef shardRegion;
+    private final EntityMetrics metrics = EntityMetrics.get(context().system());
+    private final LinkedHashMap<String, CacheEntry> cache;
+    private final Map<Long, PendingQuery> pendingQueries = new HashMap<>();
+    private final Map<String, InFlight> inFlight = new HashMap<>();
+    private final Histogram intervalInvalidationLag = new Histogram(3);
+    private long nextRequestId;
+    private long invalidationCount;
+    private long intervalStartNanoTime;
+    private long intervalHits;
+    private long intervalMisses;
+    private long intervalExpirations;
+    private long intervalEvictions;
+    private long intervalInvalidations;
+    private Cancellable reporter;
+
+    EntityNearCacheActor(EntityNearCacheSettings settings, ActorRef shardRegion) {
+        this.settings = settings;
+        this.shardRegion = shardRegion;
+        cache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                if (size() > settings.maxEntries) {
+                    ++intervalEvictions;
+                    metrics.nearCacheEvicted();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(EntityMessage.Query.class, this::query)
+                .match(EntityMessage.QueryAck.class, queryAck -> loaded(queryAck.requestId, queryAck.entity.id, queryAck.entity))
+                .match(EntityMessage.QueryAckNotFound.class, queryAckNotFound -> loaded(queryAckNotFound.requestId, queryAckNotFound.id, null))
+                .match(EntityMessage.EntityEvent.class, this::invalidate)
+                .match(DistributedPubSubMediator.SubscribeAck.class, subscribeAck -> log.info("Subscribed to {}", subscribeAck.subscribe().topic()))
+                .matchEquals("report", r -> report())
+                .build();
+    }
+
+    private void query(EntityMessage.Query query) {
+        final CacheEntry cacheEntry = cache.get(query.id.id);
+        if (cacheEntry != null && System.nanoTime() - cacheEntry.cachedNanoTime < settings.timeToLive.toNanos()) {
+            ++intervalHits;
+            metrics.nearCacheHit();
+            sender().tell(EntityMessage.QueryAck.from(query, Entity.copy(cacheEntry.entity)), self());
+            return;
+        }
+        if (cacheEntry != null) {
+            cache.remove(query.id.id);
+            ++intervalExpirations;
+        }
+
+        ++intervalMisses;
+        metrics.nearCacheMiss();
+        final long requestId = ++nextRequestId;
+        pendingQueries.put(requestId, new PendingQuery(query, sender(), invalidationCount));
+        inFlight.computeIfAbsent(query.id.id, id -> new InFlight()).queries++;
+        shardRegion.tell(new EntityMessage.Query(query.id, requestId), self());
+    }
+
+    private void loaded(long requestId, Entity.Id id, Entity entity) {
+        final PendingQuery pendingQuery = pendingQueries.remove(requestId);
+        if (pendingQuery == null) {
+            log.debug("Late reply for {}", id);
+            return;
+        }
+        final InFlight entityInFlight = complete(id.id);
+        if (entity == null) {
+            pendingQuery.sender.tell(EntityMessage.QueryAckNotFound.from(pendingQuery.query), self());
+            return;
+        }
+        if (entityInFlight.lastInvalidation <= pendingQuery.invalidationCount) {
+            cache.put(id.id, new CacheEntry(Entity.copy(entity), System.nanoTime()));
+        }
+        pendingQuery.sender.tell(EntityMessage.QueryAck.from(pendingQuery.query, entity), self());
+    }
+
+    private InFlight complete(String id) {
+        final InFlight entityInFlight = inFlight.get(id);
+        if (--entityInFlight.queries == 0) {
+            inFlight.remove(id);
+        }
+        return entityInFlight;
+    }
+
+    private void invalidate(EntityMessage.EntityEvent entityEvent) {
+        final InFlight entityInFlight = inFlight.get(entityEvent.id.id);
+        if (entityInFlight != null) {
+            entityInFlight.lastInvalidation = ++invalidationCount;
+        }
+        if (cache.remove(entityEvent.id.id) != null) {
+            final long lagMillis = Math.max(0, Instant.now().toEpochMilli() - entityEvent.time.toEpochMilli());
+            ++intervalInvalidations;
+            intervalInvalidationLag.recordValue(lagMillis);
+            metrics.nearCacheInvalidated(lagMillis);
+        }
+    }
+
+    private void report() {
+        final long now = System.nanoTime();
+        final double intervalSeconds = (now - intervalStartNanoTime) / 1000000000.0;
+        final long queries = intervalHits + intervalMisses;
+        expirePendingQueries(now);
+
+        log.info("Near cache {}", String.format(
+                "%d queries in %.1fs, %.1f/s, hit ratio %.1f%%, misses %d, expired %d, evicted %d, invalidated %d, size %d, in flight %d, stale ms p50 %d p99 %d max %d",
+                queries, intervalSeconds, queries / intervalSeconds, queries == 0 ? 0.0 : 100.0 * intervalHits / queries,
+                intervalMisses, intervalExpirations, intervalEvictions, intervalInvalidations, cache.size(), pendingQueries.size(),
+                intervalInvalidationLag.getValueAtPercentile(50), intervalInvalidationLag.getValueAtPercentile(99),
+                intervalInvalidationLag.getMaxValue()));
+
+        intervalInvalidationLag.reset();
+        intervalHits = 0;
+        intervalMisses = 0;
+        intervalExpirations = 0;
+        intervalEvictions = 0;
+        intervalInvalidations = 0;
+        intervalStartNanoTime = now;
+    }
+
+    /**
+     * Forgets queries whose reply did not arrive in time. The sender has timed out by then.
+     */
+    private void expirePendingQueries(long now) {
+        final Iterator<PendingQuery> pending = pendingQueries.values().iterator();
+        while (pending.hasNext()) {
+            final PendingQuery pendingQuery = pending.next();
+            if (now - pendingQuery.sentNanoTime > settings.requestTimeout.toNanos()) {
+                pending.remove();
+                complete(pendingQuery.query.id.id);
+            }
+        }
+    }
+
+    @Override
+    public void preStart() {
+        log.info("Start {}", settings);
+        intervalStartNanoTime = System.nanoTime();
+        DistributedPubSub.get(context().system()).mediator()
+                .tell(new DistributedPubSubMediator.Subscribe(settings.topic, self()), self());
+
+        reporter = context().system().scheduler().schedule(
+                settings.reportInterval,
+                settings.reportInterval,
+                self(),
+                "report",
+                context().system().dispatcher(),
+                null
+        );
+    }
+
+    @Override
+    public void postStop() {
+        log.info("Stop cache {} entities", cache.size());
+        reporter.cancel();
+    }
+
+    static Props props(EntityNearCacheSettings settings, ActorRef shardRegion) {
+        return Props.create(EntityNearCacheActor.class, settings, shardRegion).withDispatcher(EntityDispatchers.query);
+    }
+
+    private static class CacheEntry {
+        final Entity entity;
+        final long cachedNanoTime;
+
+        CacheEntry(Entity entity, long cachedNanoTime) {
+            this.entity = entity;
+            this.cachedNanoTime = cachedNanoTime;
+        }
+    }
+
+    private static class PendingQuery {
+        final EntityMessage.Query query;
+        final ActorRef sender;
+        final long invalidationCount;
+        final long sentNanoTime = System.nanoTime();
+
+        PendingQuery(EntityMessage.Query query, ActorRef sender, long invalidationCount) {
+            this.query = query;
+            this.sender = sender;
+            this.invalidationCount = invalidationCount;
+        }
+    }
+
+    /**
+     * The queries in flight for one entity and the last invalidation of the entity while they were.
+     */
+    private static class InFlight {
+        int queries;
+        long lastInvalidation;
+    }
+}
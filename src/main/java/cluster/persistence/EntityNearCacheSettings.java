@@ -0,0 +1,34 @@
+package cluster.persistence;
+
+import akka.actor.ActorSystem;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+
+class EntityNearCacheSettings {
+    final boolean enabled;
+    final int maxEntries;
+    final Duration timeToLive;
+    final String topic;
+    final Duration requestTimeout;
+    final Duration reportInterval;
+
+    private EntityNearCacheSettings(Config config) {
+        enabled = config.getBoolean("enabled");
+        maxEntries = config.getInt("max-entries");
+        timeToLive = config.getDuration("time-to-live");
+        topic = config.getString("topic");
+        requestTimeout = config.getDuration("request-timeout");
+        reportInterval = config.getDuration("report-interval");
+    }
+
+    static EntityNearCacheSettings create(ActorSystem actorSystem) {
+        return new EntityNearCacheSettings(actorSystem.settings().config().getConfig("entity-near-cache"));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[enabled %b, max entries %d, time to live %s, topic %s, request timeout %s, report every %s]",
+                getClass().getSimpleName(), enabled, maxEntries, timeToLive, topic, requestTimeout, reportInterval);
+    }
+}
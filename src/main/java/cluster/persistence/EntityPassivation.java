@@ -0,0 +1,354 @@
+package cluster.persistence;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionId;
+import akka.actor.ExtensionIdProvider;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import com.typesafe.config.Config;
+import scala.concurrent.ExecutionContextExecutor;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the entities that are active on this node within a budget, so that a burst of commands
+ * across a large key space does not keep every entity it touched in memory until its idle timeout.
+ * There is one instance per actor system, which is one shard region of entities.
+ * <p>
+ * Every entity registers when it starts, is touched by every command and query, and unregisters
+ * when it stops. A touch only stamps the time on the entry of the entity, which no other entity
+ * writes, so touches take no lock and do not contend. When a start takes the active entities over
+ * the budget, a sweep on the default dispatcher tells the entities picked by the strategy to
+ * passivate, down to the sweep headroom below the budget, so that not every start needs a sweep.
+ * Only one sweep runs at a time. With lru the sweep picks the least recently touched entities.
+ * With segmented-lru the entities that were touched again after the message that started them are
+ * protected, up to the protected ratio of the budget, most recently touched first, and the least
+ * recently touched of the other entities go first, so a scan of entities that are touched once does
+ * not push out the entities that are touched often.
+ * <p>
+ * The budget can also follow heap pressure: when the heap in use after the latest collections is
+ * above the threshold, the budget shrinks by a step of the active entities, down to a minimum, and
+ * it grows back by a step of the configured budget once the heap is below the threshold again.
+ * <p>
+ * Entities still passivate after the idle timeout. The active entities, the budget and the number
+ * of evicted and idle passivations are logged once per report interval.
+ */
+class EntityPassivation implements Extension {
+    static final String evict = "evict";
+    static final String stop = "stop";
+    private static final long protectedRank = 1L << 62;
+
+    final Duration idleTimeout;
+    private final int maxActiveEntities;
+    private final Strategy strategy;
+    private final double protectedRatio;
+    private final double sweepHeadroom;
+    private final boolean heapPressureEnabled;
+    private final double heapPressureThreshold;
+    private final double heapPressureStep;
+    private final int minActiveEntities;
+    private final LoggingAdapter log;
+    private final EntityMetrics metrics;
+    private final ExecutionContextExecutor dispatcher;
+    private final Set<Entry> entries = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    private final LongAdder started = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder idle = new LongAdder();
+    private volatile int budget;
+    private long intervalStartNanoTime = System.nanoTime();
+    private long intervalStartStarted;
+    private long intervalStartEvicted;
+    private long intervalStartIdle;
+
+    private EntityPassivation(ExtendedActorSystem actorSystem, Config config) {
+        idleTimeout = config.getDuration("idle-timeout");
+        maxActiveEntities = config.getInt("max-active-entities");
+        strategy = Strategy.valueOf(config.getString("strategy").toUpperCase().replace('-', '_'));
+        protectedRatio = config.getDouble("protected-ratio");
+        sweepHeadroom = config.getDouble("sweep-headroom");
+        heapPressureEnabled = config.getBoolean("heap-pressure.enabled");
+        heapPressureThreshold = config.getDouble("heap-pressure.threshold");
+        heapPressureStep = config.getDouble("heap-pressure.step");
+        minActiveEntities = config.getInt("heap-pressure.min-active-entities");
+        log = Logging.getLogger(actorSystem, getClass());
+        metrics = EntityMetrics.get(actorSystem);
+        dispatcher = actorSystem.dispatcher();
+        budget = maxActiveEntities;
+
+        final Duration reportInterval = config.getDuration("report-interval");
+        actorSystem.scheduler().schedule(reportInterval, reportInterval, this::report, dispatcher);
+        if (heapPressureEnabled && maxActiveEntities > 0) {
+            final Duration checkInterval = config.getDuration("heap-pressure.check-interval");
+            actorSystem.scheduler().schedule(checkInterval, checkInterval, this::checkHeapPressure, dispatcher);
+        }
+        log.info("Start {}", this);
+    }
+
+    static EntityPassivation get(ActorSystem actorSystem) {
+        return Provider.instance.get(actorSystem);
+    }
+
+    /**
+     * Registers a started entity. The entity keeps the returned entry and passes it to
+     * {@link #touched(Entry)} and {@link #stopped(Entry)}.
+     */
+    Entry started(ActorRef entity) {
+        started.increment();
+        final Entry entry = new Entry(entity);
+        entries.add(entry);
+        if (overBudget() && sweeping.compareAndSet(false, true)) {
+            dispatcher.execute(this::sweep);
+        }
+        return entry;
+    }
+
+    /**
+     * Called by the entity itself only, so the entry has a single writer. The message that started
+     * the entity is its first touch.
+     */
+    void touched(Entry entry) {
+        entry.touchedNanoTime = System.nanoTime();
+        if (entry.touches < 2) {
+            entry.touches = entry.touches + 1;
+        }
+    }
+
+    void stopped(Entry entry) {
+        entries.remove(entry);
+    }
+
+    void idlePassivated() {
+        idle.increment();
+        metrics.entityPassivated(false);
+    }
+
+    private boolean overBudget() {
+        final int currentBudget = budget;
+        return currentBudget > 0 && entries.size() > currentBudget;
+    }
+
+    /**
+     * Evicts down to the headroom below the budget, again as long as entities that started during
+     * the sweep take the active entities over the budget.
+     */
+    private void sweep() {
+        do {
+            try {
+                evict();
+            } finally {
+                sweeping.set(false);
+            }
+        } while (overBudget() && sweeping.compareAndSet(false, true));
+    }
+
+    /**
+     * Ranks the entities on a snapshot of their touch times, as the times keep changing while the
+     * sweep runs: the protected entities after all others, and within each group the least recently
+     * touched first. The entities whose rank is among the lowest are evicted.
+     */
+    private void evict() {
+        final int currentBudget = budget;
+        if (currentBudget <= 0) {
+            return;
+        }
+        final Entry[] snapshot = entries.toArray(new Entry[0]);
+        final int excess = snapshot.length - Math.max(1, (int) (currentBudget * (1 - sweepHeadroom)));
+        if (excess <= 0) {
+            return;
+        }
+
+        final long[] touchedNanoTimes = new long[snapshot.length];
+        long oldest = Long.MAX_VALUE;
+        for (int i = 0; i < snapshot.length; i++) {
+            touchedNanoTimes[i] = snapshot[i].touchedNanoTime;
+            oldest = Math.min(oldest, touchedNanoTimes[i]);
+        }
+        final long[] ranks = new long[snapshot.length];
+        for (int i = 0; i < snapshot.length; i++) {
+            ranks[i] = touchedNanoTimes[i] - oldest;
+        }
+        if (strategy == Strategy.SEGMENTED_LRU) {
+            protect(snapshot, ranks, protectedCapacity(currentBudget));
+        }
+
+        final long threshold = lowest(ranks, excess);
+        int victims = 0;
+        for (int i = 0; i < snapshot.length && victims < excess; i++) {
+            if (ranks[i] <= threshold && entries.remove(snapshot[i])) {
+                ++victims;
+                evicted.increment();
+                metrics.entityPassivated(true);
+                snapshot[i].entity.tell(evict, ActorRef.noSender());
+            }
+        }
+    }
+
+    /**
+     * Moves the most recently touched of the entities that were touched again, up to the capacity,
+     * behind every other entity in the ranks.
+     */
+    private static void protect(Entry[] snapshot, long[] ranks, int capacity) {
+        int candidates = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            if (snapshot[i].touches >= 2) {
+                ++candidates;
+            }
+        }
+        if (candidates == 0) {
+            return;
+        }
+        final long[] candidateRanks = new long[candidates];
+        for (int i = 0, c = 0; i < snapshot.length && c < candidates; i++) {
+            if (snapshot[i].touches >= 2) {
+                candidateRanks[c++] = ranks[i];
+            }
+        }
+        final long demoted = candidates > capacity ? lowest(candidateRanks, candidates - capacity) : -1;
+        for (int i = 0; i < snapshot.length; i++) {
+            if (snapshot[i].touches >= 2 && ranks[i] > demoted) {
+                ranks[i] += protectedRank;
+            }
+        }
+    }
+
+    /**
+     * The count-th lowest of the values.
+     */
+    private static long lowest(long[] values, int count) {
+        final long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[Math.min(count, sorted.length) - 1];
+    }
+
+    private int protectedCapacity(int currentBudget) {
+        return Math.max(1, (int) (currentBudget * protectedRatio));
+    }
+
+    private void checkHeapPressure() {
+        final double heapUsed = heapUsedAfterCollection();
+        final int previousBudget = budget;
+        int newBudget = previousBudget;
+        if (heapUsed > heapPressureThreshold) {
+            newBudget = Math.max(minActiveEntities, Math.min(previousBudget, (int) (entries.size() * (1 - heapPressureStep))));
+        } else if (previousBudget < maxActiveEntities) {
+            newBudget = Math.min(maxActiveEntities, previousBudget + Math.max(1, (int) (maxActiveEntities * heapPressureStep)));
+        }
+        if (newBudget != previousBudget) {
+            budget = newBudget;
+            log.info("Heap used {}, entity budget {} -> {}", String.format("%.1f%%", heapUsed * 100), previousBudget, newBudget);
+        }
+        if (overBudget() && sweeping.compareAndSet(false, true)) {
+            sweep();
+        }
+    }
+
+    /**
+     * The share of the maximum heap that was still in use after the latest collection of each heap
+     * pool, which unlike the current heap use does not count garbage that is waiting to be collected.
+     */
+    private static double heapUsedAfterCollection() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()) {
+                final MemoryUsage usage = pool.getCollectionUsage();
+                if (usage != null) {
+                    used += usage.getUsed();
+                }
+            }
+        }
+        return used / (double) Runtime.getRuntime().maxMemory();
+    }
+
+    int activeEntities() {
+        return entries.size();
+    }
+
+    long startedEntities() {
+        return started.sum();
+    }
+
+    long evictedEntities() {
+        return evicted.sum();
+    }
+
+    private void report() {
+        final long now = System.nanoTime();
+        final long startedNow = started.sum();
+        final long evictedNow = evicted.sum();
+        final long idleNow = idle.sum();
+        final int currentBudget = budget;
+        int active = 0;
+        int touchedAgain = 0;
+        for (Entry entry : entries) {
+            ++active;
+            if (entry.touches >= 2) {
+                ++touchedAgain;
+            }
+        }
+        final int protectedActive = strategy == Strategy.SEGMENTED_LRU
+                ? Math.min(touchedAgain, currentBudget <= 0 ? touchedAgain : protectedCapacity(currentBudget))
+                : 0;
+        log.info("Passivation {}", String.format("active %d (protected %d) of budget %d, in %.1fs started %d, evicted %d, idle %d",
+                active, protectedActive, currentBudget, (now - intervalStartNanoTime) / 1000000000.0,
+                startedNow - intervalStartStarted, evictedNow - intervalStartEvicted, idleNow - intervalStartIdle));
+        intervalStartNanoTime = now;
+        intervalStartStarted = startedNow;
+        intervalStartEvicted = evictedNow;
+        intervalStartIdle = idleNow;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[idle timeout %s, max active %d, %s, protected ratio %.2f, sweep headroom %.2f, heap pressure %b, threshold %.2f, step %.2f, min active %d]",
+                getClass().getSimpleName(), idleTimeout, maxActiveEntities, strategy, protectedRatio, sweepHeadroom,
+                heapPressureEnabled, heapPressureThreshold, heapPressureStep, minActiveEntities);
+    }
+
+    enum Strategy {
+        LRU, SEGMENTED_LRU
+    }
+
+    /**
+     * The recency of one active entity.
+     */
+    static class Entry {
+        final ActorRef entity;
+        volatile long touchedNanoTime = System.nanoTime();
+        volatile int touches;
+
+        private Entry(ActorRef entity) {
+            this.entity = entity;
+        }
+    }
+
+    static class Provider extends AbstractExtensionId<EntityPassivation> implements ExtensionIdProvider {
+        static final Provider instance = new Provider();
+
+        private Provider() {
+        }
+
+        @Override
+        public ExtensionId<? extends Extension> lookup() {
+            return instance;
+        }
+
+        @Override
+        public EntityPassivation createExtension(ExtendedActorSystem actorSystem) {
+            return new EntityPassivation(actorSystem, actorSystem.settings().config().getConfig("entity-passivation"));
+        }
+    }
+}
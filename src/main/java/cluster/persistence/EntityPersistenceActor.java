@@ -1,27 +1,65 @@
 package cluster.persistence;
 
-import akka.actor.PoisonPill;
+import akka.actor.ActorRef;
 import akka.actor.Props;
 import akka.actor.ReceiveTimeout;
+import akka.cluster.pubsub.DistributedPubSub;
+import akka.cluster.pubsub.DistributedPubSubMediator;
 import akka.cluster.sharding.ShardRegion;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
 import akka.persistence.AbstractPersistentActor;
+import akka.persistence.DeleteSnapshotsFailure;
+import akka.persistence.DeleteSnapshotsSuccess;
 import akka.persistence.RecoveryCompleted;
+import akka.persistence.SaveSnapshotFailure;
+import akka.persistence.SaveSnapshotSuccess;
+import akka.persistence.SnapshotOffer;
+import akka.persistence.SnapshotSelectionCriteria;
 import akka.persistence.journal.Tagged;
-import scala.concurrent.duration.Duration;
-import scala.concurrent.duration.FiniteDuration;
 
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
 
 class EntityPersistenceActor extends AbstractPersistentActor {
     private final LoggingAdapter log = Logging.getLogger(context().system(), this);
     private Entity entity;
-    private final FiniteDuration receiveTimeout = Duration.create(60, TimeUnit.SECONDS);
+    private final EntityPersistenceSettings settings;
+    private final EntityRouting routing = EntityRouting.get(context().system());
+    private final EntityMetrics metrics = EntityMetrics.get(context().system());
+    private final EntityPassivation passivation = EntityPassivation.get(context().system());
+    private final EntityPrewarm prewarm = EntityPrewarm.get(context().system());
+    private final EntityAllocation allocation = EntityAllocation.get(context().system());
+    private final EntityHotKeys hotKeys = EntityHotKeys.get(context().system());
+    private final EntityShardQueries shardQueries = EntityShardQueries.get(context().system());
+    private final ActorRef eventPublisher;
+    private final long startNanoTime = System.nanoTime();
+    private EntityPassivation.Entry passivationEntry;
+    private int eventsSinceSnapshot;
+    private int recoveredEvents;
+    private final Queue<BatchedCommand> queuedCommands = new ArrayDeque<>();
+    private final Queue<BatchedCommand> inFlightCommands = new ArrayDeque<>();
+    private boolean batchInFlight;
+    private boolean stopWhenBatchStored;
+    private long lastSnapshotNanoTime = System.nanoTime();
 
+    EntityPersistenceActor(EntityPersistenceSettings settings) {
+        this.settings = settings;
+        eventPublisher = settings.publishEvents ? DistributedPubSub.get(context().system()).mediator() : null;
+    }
+
+    /**
+     * Recovery folds each replayed event into the entity in place, see {@link Entity#deposit(long)},
+     * and only counts it, so that replay is bound by the journal rather than by logging and garbage.
+     * Recovery is logged once, when it completes. How many entities recover at once on this node is
+     * bounded by akka.persistence.max-concurrent-recoveries.
+     */
     @Override
     public Receive createReceiveRecover() {
         return receiveBuilder()
+                .match(SnapshotOffer.class, this::snapshotRecover)
                 .match(EntityMessage.DepositEvent.class, this::depositRecover)
                 .match(EntityMessage.WithdrawalEvent.class, this::withdrawalRecover)
                 .match(RecoveryCompleted.class, c -> recoveryCompleted())
@@ -29,18 +67,28 @@ class EntityPersistenceActor extends AbstractPersistentActor {
                 .build();
     }
 
+    private void snapshotRecover(SnapshotOffer snapshotOffer) {
+        entity = (Entity) snapshotOffer.snapshot();
+        eventsSinceSnapshot = 0;
+        log.debug("Recover {} {}", entity, snapshotOffer.metadata());
+    }
+
     private void depositRecover(EntityMessage.DepositEvent depositEvent) {
         update(depositEvent);
-        log.info("Recover {} {}", entity, depositEvent);
+        ++eventsSinceSnapshot;
+        ++recoveredEvents;
     }
 
     private void withdrawalRecover(EntityMessage.WithdrawalEvent withdrawalEvent) {
         update(withdrawalEvent);
-        log.info("Recover {} {}", entity, withdrawalEvent);
+        ++eventsSinceSnapshot;
+        ++recoveredEvents;
     }
 
     private void recoveryCompleted() {
-        log.debug("Recovery completed {}", entity);
+        metrics.recoveryCompleted(startNanoTime, recoveredEvents);
+        log.info("Recovered {}, sequence nr {}, {} events replayed in {}ms", entity, lastSequenceNr(), recoveredEvents,
+                Math.round((System.nanoTime() - startNanoTime) / 1000.0) / 1000.0);
     }
 
     @Override
@@ -49,68 +97,240 @@ class EntityPersistenceActor extends AbstractPersistentActor {
                 .match(EntityMessage.DepositCommand.class, this::deposit)
                 .match(EntityMessage.WithdrawalCommand.class, this::withdrawal)
                 .match(EntityMessage.Query.class, this::query)
-                .matchEquals(ReceiveTimeout.getInstance(), t -> passivate())
+                .match(EntityMessage.ShardQuery.class, this::shardQuery)
+                .match(EntityMessage.Prewarm.class, p -> sender().tell(p, self()))
+                .match(SaveSnapshotSuccess.class, this::saveSnapshotSuccess)
+                .match(SaveSnapshotFailure.class, this::saveSnapshotFailure)
+                .match(DeleteSnapshotsSuccess.class, d -> log.debug("Older snapshots deleted {}", d.criteria()))
+                .match(DeleteSnapshotsFailure.class, d -> log.warning("Delete older snapshots failed {}", d.cause()))
+                .matchEquals(ReceiveTimeout.getInstance(), t -> idle())
+                .matchEquals(EntityPassivation.evict, e -> passivate())
+                .matchEquals(EntityPassivation.stop, s -> stop())
                 .build();
     }
 
     private void deposit(EntityMessage.DepositCommand depositCommand) {
         log.info("{} <- {}", depositCommand, sender());
-        persist(tagCommand(depositCommand), taggedEvent -> handleDeposit(depositCommand, taggedEvent));
+        metrics.commandReceived(depositCommand);
+        used(depositCommand.id);
+        final long receivedNanoTime = System.nanoTime();
+        if (settings.batchingEnabled) {
+            batch(depositCommand, receivedNanoTime);
+        } else if (settings.immediateQueries) {
+            persistAsync(tagCommand(depositCommand), taggedEvent -> handleDeposit(depositCommand, receivedNanoTime, taggedEvent));
+        } else {
+            persist(tagCommand(depositCommand), taggedEvent -> handleDeposit(depositCommand, receivedNanoTime, taggedEvent));
+        }
     }
 
-    private void handleDeposit(EntityMessage.DepositCommand depositCommand, Tagged taggedEvent) {
+    private void handleDeposit(EntityMessage.DepositCommand depositCommand, long receivedNanoTime, Tagged taggedEvent) {
         if (taggedEvent.payload() instanceof EntityMessage.DepositEvent) {
             EntityMessage.DepositEvent depositEvent = (EntityMessage.DepositEvent) taggedEvent.payload();
             update(depositEvent);
+            publish(depositEvent);
+            metrics.eventPersisted(receivedNanoTime);
             log.info("{} {} {} -> {}", depositCommand, depositEvent, entity, sender());
             sender().tell(EntityMessage.CommandAck.from(depositCommand, depositEvent), self());
+            snapshotIfDue();
         }
     }
 
     private void withdrawal(EntityMessage.WithdrawalCommand withdrawalCommand) {
         log.info("{} <- {}", withdrawalCommand, sender());
-        persist(tagCommand(withdrawalCommand), taggedEvent -> handleWithdrawal(withdrawalCommand, taggedEvent));
+        metrics.commandReceived(withdrawalCommand);
+        used(withdrawalCommand.id);
+        final long receivedNanoTime = System.nanoTime();
+        if (settings.batchingEnabled) {
+            batch(withdrawalCommand, receivedNanoTime);
+        } else if (settings.immediateQueries) {
+            persistAsync(tagCommand(withdrawalCommand), taggedEvent -> handleWithdrawal(withdrawalCommand, receivedNanoTime, taggedEvent));
+        } else {
+            persist(tagCommand(withdrawalCommand), taggedEvent -> handleWithdrawal(withdrawalCommand, receivedNanoTime, taggedEvent));
+        }
     }
 
-    private void handleWithdrawal(EntityMessage.WithdrawalCommand withdrawalCommand, Tagged taggedEvent) {
+    private void handleWithdrawal(EntityMessage.WithdrawalCommand withdrawalCommand, long receivedNanoTime, Tagged taggedEvent) {
         if (taggedEvent.payload() instanceof EntityMessage.WithdrawalEvent) {
             EntityMessage.WithdrawalEvent withdrawalEvent = (EntityMessage.WithdrawalEvent) taggedEvent.payload();
             update(withdrawalEvent);
+            publish(withdrawalEvent);
+            metrics.eventPersisted(receivedNanoTime);
             log.info("{} {} {} -> {}", withdrawalCommand, withdrawalEvent, entity, sender());
             sender().tell(EntityMessage.CommandAck.from(withdrawalCommand, withdrawalEvent), self());
+            snapshotIfDue();
+        }
+    }
+
+    /**
+     * Commands that arrive while a batch is being written are queued here instead of being stashed.
+     * The next batch is written as soon as the journal has confirmed the previous one, so every
+     * command is still acknowledged only after its event is stored, and in arrival order.
+     */
+    private void batch(EntityMessage.EntityCommand entityCommand, long receivedNanoTime) {
+        queuedCommands.add(new BatchedCommand(entityCommand, sender(), receivedNanoTime));
+        if (!batchInFlight) {
+            persistBatch();
+        }
+    }
+
+    private void persistBatch() {
+        if (queuedCommands.isEmpty()) {
+            batchInFlight = false;
+            if (stopWhenBatchStored) {
+                context().stop(self());
+            }
+            return;
         }
+
+        final int batchSize = Math.min(queuedCommands.size(), settings.batchingMaxBatchSize);
+        final List<Tagged> taggedEvents = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            final BatchedCommand batchedCommand = queuedCommands.poll();
+            inFlightCommands.add(batchedCommand);
+            taggedEvents.add(tagCommand(batchedCommand.entityCommand));
+        }
+
+        log.debug("Persist batch of {} events, {} queued", batchSize, queuedCommands.size());
+        batchInFlight = true;
+        persistAllAsync(taggedEvents, this::handleBatched);
+        deferAsync(batchSize, persisted -> persistBatch());
     }
 
-    private static Tagged tagCommand(EntityMessage.DepositCommand depositCommand) {
-        return new Tagged(new EntityMessage.DepositEvent(depositCommand), EntityMessage.eventTag(depositCommand));
+    private void handleBatched(Tagged taggedEvent) {
+        final BatchedCommand batchedCommand = inFlightCommands.poll();
+        final EntityMessage.EntityEvent entityEvent = (EntityMessage.EntityEvent) taggedEvent.payload();
+        if (entityEvent instanceof EntityMessage.DepositEvent) {
+            update((EntityMessage.DepositEvent) entityEvent);
+        } else {
+            update((EntityMessage.WithdrawalEvent) entityEvent);
+        }
+        publish(entityEvent);
+        metrics.eventPersisted(batchedCommand.receivedNanoTime);
+        log.info("{} {} {} -> {}", batchedCommand.entityCommand, entityEvent, entity, batchedCommand.sender);
+        batchedCommand.sender.tell(EntityMessage.CommandAck.from(batchedCommand.entityCommand, entityEvent), self());
+        snapshotIfDue();
     }
 
-    private static Tagged tagCommand(EntityMessage.WithdrawalCommand withdrawalCommand) {
-        return new Tagged(new EntityMessage.WithdrawalEvent(withdrawalCommand), EntityMessage.eventTag(withdrawalCommand));
+    private Tagged tagCommand(EntityMessage.EntityCommand entityCommand) {
+        return entityCommand instanceof EntityMessage.DepositCommand
+                ? routing.tagged(new EntityMessage.DepositEvent((EntityMessage.DepositCommand) entityCommand))
+                : routing.tagged(new EntityMessage.WithdrawalEvent((EntityMessage.WithdrawalCommand) entityCommand));
     }
 
     private void update(EntityMessage.DepositEvent depositEvent) {
-        entity = entity == null
-                ? Entity.deposit(depositEvent.id.id, depositEvent.amount.amount)
-                : Entity.deposit(entity, depositEvent.amount.amount);
+        if (entity == null) {
+            entity = Entity.deposit(depositEvent.id.id, depositEvent.amount.minorUnits);
+        } else {
+            entity.deposit(depositEvent.amount.minorUnits);
+        }
     }
 
     private void update(EntityMessage.WithdrawalEvent withdrawalEvent) {
-        entity = entity == null
-                ? Entity.withdrawal(withdrawalEvent.id.id, withdrawalEvent.amount.amount)
-                : Entity.withdrawal(entity, withdrawalEvent.amount.amount);
+        if (entity == null) {
+            entity = Entity.withdrawal(withdrawalEvent.id.id, withdrawalEvent.amount.minorUnits);
+        } else {
+            entity.withdrawal(withdrawalEvent.amount.minorUnits);
+        }
+    }
+
+    /**
+     * Tells the near caches on every node that the entity changed, see {@link EntityNearCacheActor}.
+     */
+    private void publish(EntityMessage.EntityEvent entityEvent) {
+        if (eventPublisher != null) {
+            eventPublisher.tell(new DistributedPubSubMediator.Publish(settings.eventTopic, entityEvent), self());
+        }
     }
 
+    private void snapshotIfDue() {
+        ++eventsSinceSnapshot;
+        if (isSnapshotDue()) {
+            saveSnapshot(Entity.copy(entity));
+            eventsSinceSnapshot = 0;
+            lastSnapshotNanoTime = System.nanoTime();
+        }
+    }
+
+    private boolean isSnapshotDue() {
+        if (settings.snapshotEveryNEvents > 0 && eventsSinceSnapshot >= settings.snapshotEveryNEvents) {
+            return true;
+        }
+        return !settings.snapshotEveryInterval.isZero()
+                && System.nanoTime() - lastSnapshotNanoTime >= settings.snapshotEveryInterval.toNanos();
+    }
+
+    private void saveSnapshotSuccess(SaveSnapshotSuccess saveSnapshotSuccess) {
+        log.debug("Snapshot saved {} {}", entity, saveSnapshotSuccess.metadata());
+        metrics.snapshotSaved();
+        if (settings.snapshotDeleteOlder) {
+            long sequenceNr = saveSnapshotSuccess.metadata().sequenceNr();
+            deleteSnapshots(SnapshotSelectionCriteria.create(sequenceNr - 1, Long.MAX_VALUE));
+        }
+    }
+
+    private void saveSnapshotFailure(SaveSnapshotFailure saveSnapshotFailure) {
+        log.warning("Snapshot failed {} {}", saveSnapshotFailure.metadata(), saveSnapshotFailure.cause());
+    }
+
+    /**
+     * Answers from the entity as of the last stored event, as events are only applied once they are
+     * stored. With persist a query waits in the stash behind the commands that are being stored,
+     * while with persistAsync or batching, see entity-persistence.immediate-queries, it is answered
+     * at once with the state those commands started from.
+     */
     private void query(EntityMessage.Query query) {
+        metrics.entityQueried();
+        used(query.id);
         if (entity == null) {
             sender().tell(EntityMessage.QueryAckNotFound.from(query), self());
         } else {
-            sender().tell(EntityMessage.QueryAck.from(query, entity), self());
+            sender().tell(EntityMessage.QueryAck.from(query, Entity.copy(entity)), self());
         }
     }
 
+    /**
+     * Lets the shard query actor of this node query this and the other entities of the shard through
+     * the shard, which is the parent of every entity, see {@link EntityBatchQueryActor}.
+     */
+    private void shardQuery(EntityMessage.ShardQuery shardQuery) {
+        used(shardQuery.entityId());
+        shardQueries.query(shardQuery, context().parent(), sender());
+    }
+
+    private void used(Entity.Id id) {
+        passivation.touched(passivationEntry);
+        prewarm.used(shardId(), id);
+        allocation.used(shardId());
+        hotKeys.used(shardId(), id);
+    }
+
+    private void idle() {
+        passivation.idlePassivated();
+        passivate();
+    }
+
+    /**
+     * Asks the shard to stop this entity, see {@link EntityPassivation}. The shard buffers the
+     * messages that arrive for the entity until it has stopped and then starts it again for them.
+     */
     private void passivate() {
-        context().parent().tell(new ShardRegion.Passivate(PoisonPill.getInstance()), self());
+        context().parent().tell(new ShardRegion.Passivate(EntityPassivation.stop), self());
+    }
+
+    /**
+     * Stops once the commands that are being stored are acknowledged. Unlike a PoisonPill the stop
+     * message is stashed while a persist is pending, so only a batch or persistAsync calls can
+     * still be in flight here. A deferred handler runs after those of the pending persistAsync
+     * calls.
+     */
+    private void stop() {
+        if (batchInFlight) {
+            stopWhenBatchStored = true;
+        } else if (settings.immediateQueries) {
+            deferAsync(EntityPassivation.stop, s -> context().stop(self()));
+        } else {
+            context().stop(self());
+        }
     }
 
     @Override
@@ -121,17 +341,40 @@ class EntityPersistenceActor extends AbstractPersistentActor {
     @Override
     public void preStart() {
         log.info("Start");
-        context().setReceiveTimeout(receiveTimeout);
+        metrics.entityStarted(shardId());
+        passivationEntry = passivation.started(self());
+        prewarm.entityStarted(context().parent(), shardId());
+        if (!passivation.idleTimeout.isZero()) {
+            getContext().setReceiveTimeout(passivation.idleTimeout);
+        }
     }
 
     @Override
     public void postStop() {
+        metrics.entityStopped(shardId());
+        passivation.stopped(passivationEntry);
         log.info("Stop passivate {}", entity == null
                 ? String.format("(entity %s not initialized)", self().path().name())
                 : entity.id);
     }
 
-    static Props props() {
-        return Props.create(EntityPersistenceActor.class);
+    private String shardId() {
+        return self().path().parent().name();
+    }
+
+    static Props props(EntityPersistenceSettings settings) {
+        return Props.create(EntityPersistenceActor.class, settings).withDispatcher(EntityDispatchers.entity);
+    }
+
+    private static class BatchedCommand {
+        final EntityMessage.EntityCommand entityCommand;
+        final ActorRef sender;
+        final long receivedNanoTime;
+
+        BatchedCommand(EntityMessage.EntityCommand entityCommand, ActorRef sender, long receivedNanoTime) {
+            this.entityCommand = entityCommand;
+            this.sender = sender;
+            this.receivedNanoTime = receivedNanoTime;
+        }
     }
 }
@@ -0,0 +1,44 @@
+package cluster.persistence;
+
+import akka.actor.ActorSystem;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+
+class EntityPersistenceSettings {
+    final int snapshotEveryNEvents;
+    final Duration snapshotEveryInterval;
+    final boolean snapshotDeleteOlder;
+    final boolean batchingEnabled;
+    final int batchingMaxBatchSize;
+    final boolean immediateQueries;
+    final boolean publishEvents;
+    final String eventTopic;
+
+    private EntityPersistenceSettings(Config config, Config nearCacheConfig) {
+        snapshotEveryNEvents = config.getInt("snapshot.every-n-events");
+        snapshotEveryInterval = config.getDuration("snapshot.every-interval");
+        snapshotDeleteOlder = config.getBoolean("snapshot.delete-older");
+        batchingEnabled = config.getBoolean("batching.enabled");
+        batchingMaxBatchSize = config.getInt("batching.max-batch-size");
+        immediateQueries = config.getBoolean("immediate-queries");
+        publishEvents = nearCacheConfig.getBoolean("enabled");
+        eventTopic = nearCacheConfig.getString("topic");
+    }
+
+    static EntityPersistenceSettings create(ActorSystem actorSystem) {
+        final Config config = actorSystem.settings().config();
+        return new EntityPersistenceSettings(config.getConfig("entity-persistence"), config.getConfig("entity-near-cache"));
+    }
+
+    boolean snapshotsEnabled() {
+        return snapshotEveryNEvents > 0 || !snapshotEveryInterval.isZero();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[snapshot every %d events, every %s, delete older %b, batching %b, max batch %d, immediate queries %b, publish events %b]",
+                getClass().getSimpleName(), snapshotEveryNEvents, snapshotEveryInterval, snapshotDeleteOlder,
+                batchingEnabled, batchingMaxBatchSize, immediateQueries, publishEvents);
+    }
+}
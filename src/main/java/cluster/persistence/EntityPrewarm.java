@@ -0,0 +1,122 @@
+package cluster.persistence;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionId;
+import akka.actor.ExtensionIdProvider;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Counts how often the entities of each shard on this node are used and notices when a shard
+ * starts on this node, for {@link EntityPrewarmActor}. There is one instance per actor system,
+ * which starts the prewarm actor when entity-prewarm is enabled. When it is not, nothing is
+ * counted.
+ * <p>
+ * A shard starts on a node when it is allocated there, after a rebalance or a restart, and its
+ * first entity starts right away for the message that caused the allocation. So the first entity
+ * of a shard actor that this instance has not seen yet marks the allocation of that shard.
+ * <p>
+ * Each shard counts its entities in a fixed number of {@link SpaceSaving} counters rather than one
+ * count per entity, so the memory does not grow with the key space, and an entity that takes more
+ * than 1 / tracked-entities-per-shard of the uses of its shard is always counted.
+ * <p>
+ * The counts are halved each time the hottest entities are taken, so that they follow the entities
+ * that are used now rather than the ones that were used since the node started. A shard that was
+ * not used since the hottest entities were last taken is left out and keeps its counts, so that
+ * the hot entities that were published for it stay published while it is idle.
+ */
+class EntityPrewarm implements Extension {
+    private final ActorRef prewarmActor;
+    private final int trackedEntitiesPerShard;
+    private final ConcurrentMap<String, ShardUse> shardUses = new ConcurrentHashMap<>();
+    private final Set<ActorRef> startedShards = ConcurrentHashMap.newKeySet();
+
+    private EntityPrewarm(ExtendedActorSystem actorSystem, EntityPrewarmSettings settings) {
+        trackedEntitiesPerShard = settings.trackedEntitiesPerShard;
+        prewarmActor = settings.enabled
+                ? actorSystem.systemActorOf(EntityPrewarmActor.props(settings), "entityPrewarm")
+                : null;
+    }
+
+    static EntityPrewarm get(ActorSystem actorSystem) {
+        return Provider.instance.get(actorSystem);
+    }
+
+    void entityStarted(ActorRef shard, String shardId) {
+        if (prewarmActor != null && startedShards.add(shard)) {
+            prewarmActor.tell(new EntityPrewarmActor.ShardStarted(shard, shardId), ActorRef.noSender());
+        }
+    }
+
+    void shardStopped(ActorRef shard) {
+        startedShards.remove(shard);
+    }
+
+    void used(String shardId, Entity.Id id) {
+        if (prewarmActor != null) {
+            final ShardUse shardUse = shardUses.computeIfAbsent(shardId, s -> new ShardUse(trackedEntitiesPerShard));
+            synchronized (shardUse) {
+                shardUse.counts.add(id.id);
+                shardUse.usedSinceTaken = true;
+            }
+        }
+    }
+
+    /**
+     * The most used entity ids of each shard on this node that was used since the last call, most
+     * used first, after which the counts of those shards are halved and the entities whose count
+     * drops to zero are forgotten.
+     */
+    Map<String, List<String>> hottest(int perShard) {
+        final Map<String, List<String>> hottest = new HashMap<>();
+        shardUses.forEach((shardId, shardUse) -> {
+            synchronized (shardUse) {
+                if (!shardUse.usedSinceTaken) {
+                    return;
+                }
+                shardUse.usedSinceTaken = false;
+                final List<String> ids = shardUse.counts.top(perShard);
+                if (!ids.isEmpty()) {
+                    hottest.put(shardId, ids);
+                }
+                shardUse.counts.halve();
+            }
+        });
+        return hottest;
+    }
+
+    private static class ShardUse {
+        final SpaceSaving counts;
+        boolean usedSinceTaken;
+
+        ShardUse(int trackedEntities) {
+            counts = new SpaceSaving(trackedEntities);
+        }
+    }
+
+    static class Provider extends AbstractExtensionId<EntityPrewarm> implements ExtensionIdProvider {
+        static final Provider instance = new Provider();
+
+        private Provider() {
+        }
+
+        @Override
+        public ExtensionId<? extends Extension> lookup() {
+            return instance;
+        }
+
+        @Override
+        public EntityPrewarm createExtension(ExtendedActorSystem actorSystem) {
+            return new EntityPrewarm(actorSystem, EntityPrewarmSettings.create(actorSystem));
+        }
+    }
+}
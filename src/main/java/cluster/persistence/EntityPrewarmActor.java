@@ -0,0 +1,226 @@
+package cluster.persistence;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.actor.Terminated;
+import akka.cluster.ddata.DistributedData;
+import akka.cluster.ddata.Key;
+import akka.cluster.ddata.LWWMap;
+import akka.cluster.ddata.LWWMapKey;
+import akka.cluster.ddata.Replicator;
+import akka.cluster.ddata.SelfUniqueAddress;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import org.HdrHistogram.Histogram;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts the hot entities of a shard as soon as the shard is allocated on this node, so that they
+ * recover from the journal before the commands for them arrive instead of while the commands wait.
+ * <p>
+ * Every node publishes the most used entities of the shards it hosts, see {@link EntityPrewarm},
+ * to a Distributed Data map from shard id to entity ids once per publish interval, and keeps the
+ * latest map of every node. When a shard starts here, a {@link EntityMessage.Prewarm} for each of
+ * its hot entities is sent to the local shard, at most max-concurrent-recoveries at a time, so that
+ * prewarming does not crowd out the recoveries of the entities that commands are already waiting
+ * for. An entity answers once it has recovered, and an entity that does not answer within the
+ * timeout is no longer waited for.
+ * <p>
+ * The map is kept in memory on every node, so it survives restarts of some of the nodes. To keep
+ * it across a restart of the whole cluster, add entity-hot-ids to the durable keys of
+ * akka.cluster.distributed-data.
+ */
+class EntityPrewarmActor extends AbstractActor {
+    private final LoggingAdapter log = Logging.getLogger(context().system(), this);
+    private final EntityPrewarmSettings settings;
+    private final ActorRef replicator = DistributedData.get(context().system()).replicator();
+    private final SelfUniqueAddress node = DistributedData.get(context().system()).selfUniqueAddress();
+    private final Key<LWWMap<String, String>> hotIdsKey = LWWMapKey.create("entity-hot-ids");
+    private final Map<String, List<String>> hotIds = new HashMap<>();
+    private final Queue<Pending> queued = new ArrayDeque<>();
+    private final Map<String, Pending> inFlight = new HashMap<>();
+    private final Histogram intervalRecoveryTime = new Histogram(3);
+    private long intervalStartNanoTime;
+    private int intervalShards;
+    private int intervalPrewarmed;
+    private int intervalTimedOut;
+    private Cancellable publisher;
+    private Cancellable reporter;
+
+    EntityPrewarmActor(EntityPrewarmSettings settings) {
+        this.settings = settings;
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(ShardStarted.class, this::shardStarted)
+                .match(EntityMessage.Prewarm.class, this::prewarmed)
+                .match(Terminated.class, this::shardStopped)
+                .match(Replicator.Changed.class, this::hotIdsChanged)
+                .match(Replicator.UpdateResponse.class, this::published)
+                .matchEquals("publish", p -> publish())
+                .matchEquals("report", r -> report())
+                .build();
+    }
+
+    private void shardStarted(ShardStarted shardStarted) {
+        context().watch(shardStarted.shard);
+        final List<String> ids = hotIds.getOrDefault(shardStarted.shardId, Collections.emptyList());
+        ids.forEach(id -> queued.add(new Pending(shardStarted.shard, new EntityMessage.Prewarm(new Entity.Id(id)))));
+        ++intervalShards;
+        log.debug("Shard {} started, prewarm {} entities", shardStarted.shardId, ids.size());
+        prewarmNext();
+    }
+
+    private void prewarmNext() {
+        while (inFlight.size() < settings.maxConcurrentRecoveries && !queued.isEmpty()) {
+            final Pending pending = queued.poll();
+            if (!inFlight.containsKey(pending.prewarm.id.id)) {
+                pending.sentNanoTime = System.nanoTime();
+                inFlight.put(pending.prewarm.id.id, pending);
+                pending.shard.tell(pending.prewarm, self());
+            }
+        }
+    }
+
+    private void prewarmed(EntityMessage.Prewarm prewarm) {
+        final Pending pending = inFlight.remove(prewarm.id.id);
+        if (pending != null) {
+            ++intervalPrewarmed;
+            intervalRecoveryTime.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - pending.sentNanoTime));
+        }
+        prewarmNext();
+    }
+
+    /**
+     * A shard stops when it is handed off to another node, and the prewarming of its entities stops
+     * with it.
+     */
+    private void shardStopped(Terminated terminated) {
+        EntityPrewarm.get(context().system()).shardStopped(terminated.actor());
+        queued.removeIf(pending -> pending.shard.equals(terminated.actor()));
+        inFlight.values().removeIf(pending -> pending.shard.equals(terminated.actor()));
+        prewarmNext();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void hotIdsChanged(Replicator.Changed<?> changed) {
+        if (changed.key().equals(hotIdsKey)) {
+            hotIds.clear();
+            ((LWWMap<String, String>) changed.dataValue()).getEntries()
+                    .forEach((shardId, ids) -> hotIds.put(shardId, Arrays.asList(ids.split("\n"))));
+        }
+    }
+
+    private void publish() {
+        final Map<String, List<String>> hottest = EntityPrewarm.get(context().system()).hottest(settings.hotEntitiesPerShard);
+        if (!hottest.isEmpty()) {
+            replicator.tell(new Replicator.Update<>(hotIdsKey, LWWMap.create(), Replicator.writeLocal(), hotIdsMap -> {
+                LWWMap<String, String> updated = hotIdsMap;
+                for (Map.Entry<String, List<String>> shard : hottest.entrySet()) {
+                    updated = updated.put(node, shard.getKey(), String.join("\n", shard.getValue()));
+                }
+                return updated;
+            }), self());
+        }
+    }
+
+    private void published(Replicator.UpdateResponse<?> updateResponse) {
+        if (!(updateResponse instanceof Replicator.UpdateSuccess)) {
+            log.warning("Publish hot entities failed {}", updateResponse);
+        }
+    }
+
+    private void report() {
+        final long now = System.nanoTime();
+        final Iterator<Pending> pending = inFlight.values().iterator();
+        while (pending.hasNext()) {
+            if (now - pending.next().sentNanoTime > settings.timeout.toNanos()) {
+                pending.remove();
+                ++intervalTimedOut;
+            }
+        }
+        prewarmNext();
+
+        if (intervalShards > 0 || intervalPrewarmed > 0 || intervalTimedOut > 0 || !queued.isEmpty()) {
+            log.info("Prewarm {}", String.format("%d shards started in %.1fs, prewarmed %d, timed out %d, queued %d, in flight %d, recovery ms p50 %.1f p99 %.1f max %.1f",
+                    intervalShards, (now - intervalStartNanoTime) / 1000000000.0, intervalPrewarmed, intervalTimedOut,
+                    queued.size(), inFlight.size(),
+                    intervalRecoveryTime.getValueAtPercentile(50) / 1000.0, intervalRecoveryTime.getValueAtPercentile(99) / 1000.0,
+                    intervalRecoveryTime.getMaxValue() / 1000.0));
+        }
+
+        intervalRecoveryTime.reset();
+        intervalShards = 0;
+        intervalPrewarmed = 0;
+        intervalTimedOut = 0;
+        intervalStartNanoTime = now;
+    }
+
+    @Override
+    public void preStart() {
+        log.info("Start {}", settings);
+        intervalStartNanoTime = System.nanoTime();
+        replicator.tell(new Replicator.Subscribe<>(hotIdsKey, self()), ActorRef.noSender());
+
+        publisher = context().system().scheduler().schedule(
+                settings.publishInterval,
+                settings.publishInterval,
+                self(),
+                "publish",
+                context().system().dispatcher(),
+                null
+        );
+        reporter = context().system().scheduler().schedule(
+                settings.reportInterval,
+                settings.reportInterval,
+                self(),
+                "report",
+                context().system().dispatcher(),
+                null
+        );
+    }
+
+    @Override
+    public void postStop() {
+        publisher.cancel();
+        reporter.cancel();
+    }
+
+    static Props props(EntityPrewarmSettings settings) {
+        return Props.create(EntityPrewarmActor.class, settings);
+    }
+
+    static class ShardStarted {
+        final ActorRef shard;
+        final String shardId;
+
+        ShardStarted(ActorRef shard, String shardId) {
+            this.shard = shard;
+            this.shardId = shardId;
+        }
+    }
+
+    private static class Pending {
+        final ActorRef shard;
+        final EntityMessage.Prewarm prewarm;
+        long sentNanoTime;
+
+        Pending(ActorRef shard, EntityMessage.Prewarm prewarm) {
+            this.shard = shard;
+            this.prewarm = prewarm;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package cluster.persistence;
+
+import akka.actor.ActorSystem;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+
+class EntityPrewarmSettings {
+    final boolean enabled;
+    final int hotEntitiesPerShard;
+    final int trackedEntitiesPerShard;
+    final int maxConcurrentRecoveries;
+    final Duration publishInterval;
+    final Duration timeout;
+    final Duration reportInterval;
+
+    private EntityPrewarmSettings(Config config) {
+        enabled = config.getBoolean("enabled");
+        hotEntitiesPerShard = config.getInt("hot-entities-per-shard");
+        trackedEntitiesPerShard = config.getInt("tracked-entities-per-shard");
+        maxConcurrentRecoveries = config.getInt("max-concurrent-recoveries");
+        publishInterval = config.getDuration("publish-interval");
+        timeout = config.getDuration("timeout");
+        reportInterval = config.getDuration("report-interval");
+    }
+
+    static EntityPrewarmSettings create(ActorSystem actorSystem) {
+        return new EntityPrewarmSettings(actorSystem.settings().config().getConfig("entity-prewarm"));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[enabled %b, hot entities per shard %d, tracked entities per shard %d, max concurrent recoveries %d, publish every %s, timeout %s, report every %s]",
+                getClass().getSimpleName(), enabled, hotEntitiesPerShard, trackedEntitiesPerShard, maxConcurrentRecoveries, publishInterval, timeout, reportInterval);
+    }
+}
@@ -0,0 +1,243 @@
+package cluster.persistence;
+
+import akka.actor.AbstractActor;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import akka.persistence.query.EventEnvelope;
+import akka.persistence.query.Offset;
+import akka.persistence.query.PersistenceQuery;
+import akka.persistence.query.javadsl.EventsByTagQuery;
+import akka.stream.ActorMaterializer;
+import akka.stream.javadsl.RestartSource;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import org.HdrHistogram.Histogram;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Read side view of the entity balances, built from the tagged events instead of from the entities.
+ * <p>
+ * One eventsByTag stream per event tag runs in parallel and feeds this actor, which applies the
+ * events to an in-memory view and answers {@link EntityMessage.Query} from it, so queries never
+ * wake up or recover an {@link EntityPersistenceActor}. The view is eventually consistent: a query
+ * sent right after a command may not see the command's event yet.
+ * <p>
+ * Each stream restarts with backoff when it fails and resumes from the offset of the last event
+ * applied for its tag. Events that are delivered again after a restart are recognized by their
+ * sequence number and skipped. The offsets are kept in memory along with the view, so a new
+ * incarnation of this actor rebuilds the view from the start of each tag.
+ * <p>
+ * Throughput, the lag between an event being persisted and applied, and the view size are logged
+ * once per report interval.
+ */
+class EntityProjectionActor extends AbstractActor {
+    private final LoggingAdapter log = Logging.getLogger(context().system(), this);
+    private final EntityProjectionSettings settings;
+    private final EntityMetrics metrics = EntityMetrics.get(context().system());
+    private final Map<String, ViewEntry> view = new HashMap<>();
+    private final Map<String, Offset> offsets = new ConcurrentHashMap<>();
+    private final Histogram intervalLag = new Histogram(3);
+    private long intervalStartNanoTime;
+    private long intervalEvents;
+    private long intervalDuplicates;
+    private long intervalQueries;
+    private long totalEvents;
+    private Cancellable reporter;
+
+    EntityProjectionActor(EntityProjectionSettings settings) {
+        this.settings = settings;
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(EntityMessage.Query.class, this::query)
+                .match(EntityMessage.BatchQuery.class, this::batchQuery)
+                .match(ProjectedEvents.class, this::project)
+                .matchEquals(StreamMessage.init, i -> sender().tell(StreamMessage.ack, self()))
+                .matchEquals(StreamMessage.completed, c -> log.warning("Projection stream completed"))
+                .match(StreamFailed.class, f -> log.error(f.cause, "Projection stream failed"))
+                .matchEquals("report", r -> report())
+                .build();
+    }
+
+    private void query(EntityMessage.Query query) {
+        ++intervalQueries;
+        metrics.viewQueried();
+        final ViewEntry viewEntry = view.get(query.id.id);
+        if (viewEntry == null) {
+            sender().tell(EntityMessage.QueryAckNotFound.from(query), self());
+        } else {
+            sender().tell(EntityMessage.QueryAck.from(query, Entity.copy(viewEntry.entity)), self());
+        }
+    }
+
+    private void batchQuery(EntityMessage.BatchQuery batchQuery) {
+        final List<Entity> found = new ArrayList<>();
+        final List<Entity.Id> notFound = new ArrayList<>();
+        for (Entity.Id id : batchQuery.ids) {
+            ++intervalQueries;
+            metrics.viewQueried();
+            final ViewEntry viewEntry = view.get(id.id);
+            if (viewEntry == null) {
+                notFound.add(id);
+            } else {
+                found.add(Entity.copy(viewEntry.entity));
+            }
+        }
+        sender().tell(new EntityMessage.BatchQueryAck(batchQuery.messageNanoTime, found, notFound), self());
+    }
+
+    private void project(ProjectedEvents projectedEvents) {
+        final long nowMillis = Instant.now().toEpochMilli();
+        for (EventEnvelope eventEnvelope : projectedEvents.eventEnvelopes) {
+            if (eventEnvelope.event() instanceof EntityMessage.EntityEvent) {
+                final EntityMessage.EntityEvent entityEvent = (EntityMessage.EntityEvent) eventEnvelope.event();
+                if (update(entityEvent, eventEnvelope.sequenceNr())) {
+                    final long lagMillis = Math.max(0, nowMillis - entityEvent.time.toEpochMilli());
+                    ++intervalEvents;
+                    intervalLag.recordValue(lagMillis);
+                    metrics.viewEventApplied(lagMillis);
+                } else {
+                    ++intervalDuplicates;
+                }
+            }
+            offsets.put(projectedEvents.tag, eventEnvelope.offset());
+        }
+        sender().tell(StreamMessage.ack, self());
+    }
+
+    private boolean update(EntityMessage.EntityEvent entityEvent, long sequenceNr) {
+        final ViewEntry viewEntry = view.get(entityEvent.id.id);
+        if (viewEntry == null) {
+            view.put(entityEvent.id.id, new ViewEntry(entityEvent instanceof EntityMessage.DepositEvent
+                    ? Entity.deposit(entityEvent.id.id, entityEvent.amount.minorUnits)
+                    : Entity.withdrawal(entityEvent.id.id, entityEvent.amount.minorUnits), sequenceNr));
+            return true;
+        }
+        if (sequenceNr <= viewEntry.sequenceNr) {
+            return false;
+        }
+        if (entityEvent instanceof EntityMessage.DepositEvent) {
+            viewEntry.entity.deposit(entityEvent.amount.minorUnits);
+        } else {
+            viewEntry.entity.withdrawal(entityEvent.amount.minorUnits);
+        }
+        viewEntry.sequenceNr = sequenceNr;
+        return true;
+    }
+
+    private void report() {
+        final long now = System.nanoTime();
+        final double intervalSeconds = (now - intervalStartNanoTime) / 1000000000.0;
+        totalEvents += intervalEvents;
+
+        log.info("Projection {}", String.format(
+                "%d events in %.1fs, %.1f/s, duplicates %d, queries %d, %.1f/s, view %d entities, %d events total, lag ms p50 %d p99 %d max %d",
+                intervalEvents, intervalSeconds, intervalEvents / intervalSeconds, intervalDuplicates,
+                intervalQueries, intervalQueries / intervalSeconds, view.size(), totalEvents,
+                intervalLag.getValueAtPercentile(50), intervalLag.getValueAtPercentile(99), intervalLag.getMaxValue()));
+        log.debug("Projection offsets {}", offsets);
+
+        intervalLag.reset();
+        intervalEvents = 0;
+        intervalDuplicates = 0;
+        intervalQueries = 0;
+        intervalStartNanoTime = now;
+    }
+
+    private void startProjection(EventsByTagQuery readJournal, String tag, ActorMaterializer materializer) {
+        RestartSource.withBackoff(
+                settings.restartMinBackoff,
+                settings.restartMaxBackoff,
+                settings.restartRandomFactor,
+                () -> eventsByTag(readJournal, tag))
+                .batch(settings.maxBatchSize, eventEnvelope -> {
+                    final List<EventEnvelope> eventEnvelopes = new ArrayList<>();
+                    eventEnvelopes.add(eventEnvelope);
+                    return eventEnvelopes;
+                }, (eventEnvelopes, eventEnvelope) -> {
+                    eventEnvelopes.add(eventEnvelope);
+                    return eventEnvelopes;
+                })
+                .map(eventEnvelopes -> new ProjectedEvents(tag, eventEnvelopes))
+                .runWith(Sink.actorRefWithAck(self(), StreamMessage.init, StreamMessage.ack, StreamMessage.completed, StreamFailed::new),
+                        materializer);
+    }
+
+    private Source<EventEnvelope, ?> eventsByTag(EventsByTagQuery readJournal, String tag) {
+        final Offset offset = offsets.getOrDefault(tag, Offset.noOffset());
+        log.info("Start eventsByTag {} from {}", tag, offset);
+        return readJournal.eventsByTag(tag, offset);
+    }
+
+    @Override
+    public void preStart() {
+        log.info("Start {}", settings);
+        intervalStartNanoTime = System.nanoTime();
+
+        final EventsByTagQuery readJournal = PersistenceQuery.get(context().system())
+                .getReadJournalFor(EventsByTagQuery.class, settings.readJournalPluginId);
+        final ActorMaterializer materializer = ActorMaterializer.create(context());
+        EntityRouting.get(context().system()).eventTags().forEach(tag -> startProjection(readJournal, tag, materializer));
+
+        reporter = context().system().scheduler().schedule(
+                settings.reportInterval,
+                settings.reportInterval,
+                self(),
+                "report",
+                context().system().dispatcher(),
+                null
+        );
+    }
+
+    @Override
+    public void postStop() {
+        log.info("Stop view {} entities, {} events total", view.size(), totalEvents + intervalEvents);
+        reporter.cancel();
+    }
+
+    static Props props(EntityProjectionSettings settings) {
+        return Props.create(EntityProjectionActor.class, settings).withDispatcher(EntityDispatchers.query);
+    }
+
+    private static class ViewEntry {
+        final Entity entity;
+        long sequenceNr;
+
+        ViewEntry(Entity entity, long sequenceNr) {
+            this.entity = entity;
+            this.sequenceNr = sequenceNr;
+        }
+    }
+
+    private static class ProjectedEvents {
+        final String tag;
+        final List<EventEnvelope> eventEnvelopes;
+
+        ProjectedEvents(String tag, List<EventEnvelope> eventEnvelopes) {
+            this.tag = tag;
+            this.eventEnvelopes = eventEnvelopes;
+        }
+    }
+
+    private enum StreamMessage {
+        init, ack, completed
+    }
+
+    private static class StreamFailed {
+        final Throwable cause;
+
+        StreamFailed(Throwable cause) {
+            this.cause = cause;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package cluster.persistence;
+
+import akka.actor.ActorSystem;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+
+class EntityProjectionSettings {
+    final boolean enabled;
+    final boolean serveQueries;
+    final String readJournalPluginId;
+    final int maxBatchSize;
+    final Duration restartMinBackoff;
+    final Duration restartMaxBackoff;
+    final double restartRandomFactor;
+    final Duration reportInterval;
+
+    private EntityProjectionSettings(Config config) {
+        enabled = config.getBoolean("enabled");
+        serveQueries = config.getBoolean("serve-queries");
+        readJournalPluginId = config.getString("read-journal-plugin-id");
+        maxBatchSize = config.getInt("max-batch-size");
+        restartMinBackoff = config.getDuration("restart-backoff.min");
+        restartMaxBackoff = config.getDuration("restart-backoff.max");
+        restartRandomFactor = config.getDouble("restart-backoff.random-factor");
+        reportInterval = config.getDuration("report-interval");
+    }
+
+    static EntityProjectionSettings create(ActorSystem actorSystem) {
+        return new EntityProjectionSettings(actorSystem.settings().config().getConfig("entity-projection"));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[enabled %b, serve queries %b, read journal %s, max batch %d, restart backoff %s to %s, report every %s]",
+                getClass().getSimpleName(), enabled, serveQueries, readJournalPluginId, maxBatchSize,
+                restartMinBackoff, restartMaxBackoff, reportInterval);
+    }
+}
@@ -0,0 +1,165 @@
+package cluster.persistence;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionId;
+import akka.actor.ExtensionIdProvider;
+import akka.cluster.sharding.ShardRegion;
+import akka.persistence.journal.Tagged;
+import com.typesafe.config.Config;
+import scala.collection.JavaConverters;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Maps entity ids to shard ids and event tags, with the number of shards and tags taken from the
+ * entity-routing configuration. There is one instance per actor system.
+ * <p>
+ * The String hash code of an entity id is mixed with the murmur3 finalizer before it is reduced to
+ * a shard or tag, which spreads sequential ids evenly and never yields a negative shard or tag. The
+ * shard id strings and the tag sets are built once, so routing a message or tagging an event does
+ * not allocate.
+ * <p>
+ * With legacy-hash on, ids are mapped as before the murmur3 finalizer was introduced: the signed
+ * remainder of the hash code, so shards and tags range from -(n - 1) to n - 1. Journals written with
+ * that mapping keep it, since the projection only reads the tags that {@link #eventTags()} lists and
+ * two nodes that disagree on a shard id would each start a writer for the same entity.
+ */
+class EntityRouting implements Extension {
+    final int numberOfShards;
+    final int numberOfEventTags;
+    final boolean legacyHash;
+    private final String[] shardIds;
+    private final String[] eventTags;
+    private final List<scala.collection.immutable.Set<String>> eventTagSets;
+    private final ShardRegion.MessageExtractor messageExtractor = new MessageExtractor();
+
+    EntityRouting(Config config) {
+        numberOfShards = config.getInt("number-of-shards");
+        numberOfEventTags = config.getInt("number-of-event-tags");
+        legacyHash = config.getBoolean("legacy-hash");
+        if (numberOfShards < 1 || numberOfEventTags < 1) {
+            throw new IllegalArgumentException(String.format("Number of shards %d and number of event tags %d must be positive",
+                    numberOfShards, numberOfEventTags));
+        }
+
+        shardIds = new String[slots(numberOfShards)];
+        for (int slot = 0; slot < shardIds.length; slot++) {
+            shardIds[slot] = Integer.toString(slot - offset(numberOfShards));
+        }
+        eventTags = new String[slots(numberOfEventTags)];
+        eventTagSets = new ArrayList<>(eventTags.length);
+        for (int slot = 0; slot < eventTags.length; slot++) {
+            eventTags[slot] = Integer.toString(slot - offset(numberOfEventTags));
+            eventTagSets.add(JavaConverters.asScalaSetConverter(Collections.singleton(eventTags[slot])).asScala().toSet());
+        }
+    }
+
+    static EntityRouting get(ActorSystem actorSystem) {
+        return Provider.instance.get(actorSystem);
+    }
+
+    ShardRegion.MessageExtractor messageExtractor() {
+        return messageExtractor;
+    }
+
+    String shardId(Entity.Id id) {
+        return shardIds[slot(id, numberOfShards)];
+    }
+
+    String eventTag(Entity.Id id) {
+        return eventTags[slot(id, numberOfEventTags)];
+    }
+
+    /**
+     * Every tag that {@link #tagged(EntityMessage.EntityEvent)} can produce.
+     */
+    List<String> eventTags() {
+        final List<String> tags = new ArrayList<>(eventTags.length);
+        Collections.addAll(tags, eventTags);
+        return tags;
+    }
+
+    Tagged tagged(EntityMessage.EntityEvent entityEvent) {
+        return new Tagged(entityEvent, eventTagSets.get(slot(entityEvent.id, numberOfEventTags)));
+    }
+
+    /**
+     * Index into the shard id or tag array for an id, which holds the remainders -(n - 1) to n - 1 in
+     * legacy mode and 0 to n - 1 otherwise.
+     */
+    private int slot(Entity.Id id, int n) {
+        return legacyHash ? id.id.hashCode() % n + offset(n) : Math.floorMod(hash(id), n);
+    }
+
+    private int slots(int n) {
+        return n + offset(n);
+    }
+
+    private int offset(int n) {
+        return legacyHash ? n - 1 : 0;
+    }
+
+    private static int hash(Entity.Id id) {
+        int h = id.id.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%d shards, %d event tags, legacy hash %b]", getClass().getSimpleName(), numberOfShards, numberOfEventTags, legacyHash);
+    }
+
+    private class MessageExtractor implements ShardRegion.MessageExtractor {
+        @Override
+        public String shardId(Object message) {
+            if (message instanceof EntityMessage.Routed) {
+                return EntityRouting.this.shardId(((EntityMessage.Routed) message).entityId());
+            } else if (message instanceof ShardRegion.StartEntity) {
+                return EntityRouting.this.shardId(new Entity.Id(((ShardRegion.StartEntity) message).entityId()));
+            } else {
+                return null;
+            }
+        }
+
+        @Override
+        public String entityId(Object message) {
+            if (message instanceof EntityMessage.Routed) {
+                return ((EntityMessage.Routed) message).entityId().id;
+            } else {
+                return null;
+            }
+        }
+
+        @Override
+        public Object entityMessage(Object message) {
+            return message;
+        }
+    }
+
+    static class Provider extends AbstractExtensionId<EntityRouting> implements ExtensionIdProvider {
+        static final Provider instance = new Provider();
+
+        private Provider() {
+        }
+
+        @Override
+        public ExtensionId<? extends Extension> lookup() {
+            return instance;
+        }
+
+        @Override
+        public EntityRouting createExtension(ExtendedActorSystem actorSystem) {
+            return new EntityRouting(actorSystem.settings().config().getConfig("entity-routing"));
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package cluster.persistence;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionId;
+import akka.actor.ExtensionIdProvider;
+
+/**
+ * Runs the shard queries that arrive at the entities of this node in {@link EntityShardQueryActor},
+ * which is started once per actor system, so that a shard query outlives the entity it was routed
+ * to. That entity may passivate, be evicted or be handed off before all its neighbours answer.
+ */
+class EntityShardQueries implements Extension {
+    private final ActorRef shardQueryActor;
+
+    private EntityShardQueries(ExtendedActorSystem actorSystem, EntityBatchQuerySettings settings) {
+        shardQueryActor = actorSystem.systemActorOf(EntityShardQueryActor.props(settings), "entityShardQuery");
+    }
+
+    static EntityShardQueries get(ActorSystem actorSystem) {
+        return Provider.instance.get(actorSystem);
+    }
+
+    /**
+     * Queries the ids of the shard query through the shard that hosts them and sends the
+     * {@link EntityMessage.ShardQueryAck} to the given actor.
+     */
+    void query(EntityMessage.ShardQuery shardQuery, ActorRef shard, ActorRef replyTo) {
+        shardQueryActor.tell(new EntityShardQueryActor.Start(shardQuery, shard, replyTo), ActorRef.noSender());
+    }
+
+    static class Provider extends AbstractExtensionId<EntityShardQueries> implements ExtensionIdProvider {
+        static final Provider instance = new Provider();
+
+        private Provider() {
+        }
+
+        @Override
+        public ExtensionId<? extends Extension> lookup() {
+            return instance;
+        }
+
+        @Override
+        public EntityShardQueries createExtension(ExtendedActorSystem actorSystem) {
+            return new EntityShardQueries(actorSystem, EntityBatchQuerySettings.create(actorSystem));
+        }
+    }
+}
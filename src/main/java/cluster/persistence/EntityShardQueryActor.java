@@ -0,0 +1,140 @@
+package cluster.persistence;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Answers the {@link EntityMessage.ShardQuery} parts of batch queries on the node that hosts their
+ * shards. There is one per node, started by {@link EntityShardQueries}. The entity that receives a
+ * shard query passes it on with its shard, and this actor sends a query for each id to that shard,
+ * so the queries never leave the node. The replies carry a request id per shard query and are
+ * collected into one {@link EntityMessage.ShardQueryAck} for the batch query actor.
+ * <p>
+ * A shard query whose entities do not all answer within the shard timeout is answered with the
+ * replies so far, and the ids that did not answer are listed as unanswered.
+ */
+class EntityShardQueryActor extends AbstractActor {
+    private final LoggingAdapter log = Logging.getLogger(context().system(), this);
+    private final EntityBatchQuerySettings settings;
+    private final Map<Long, Pending> pendingShardQueries = new HashMap<>();
+    private long nextRequestId;
+    private Cancellable expirer;
+
+    EntityShardQueryActor(EntityBatchQuerySettings settings) {
+        this.settings = settings;
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(Start.class, this::start)
+                .match(EntityMessage.QueryAck.class, queryAck -> replied(queryAck.requestId, queryAck.entity.id, queryAck.entity))
+                .match(EntityMessage.QueryAckNotFound.class, queryAckNotFound -> replied(queryAckNotFound.requestId, queryAckNotFound.id, null))
+                .matchEquals("expire", e -> expirePendingShardQueries())
+                .build();
+    }
+
+    private void start(Start start) {
+        final long requestId = ++nextRequestId;
+        final Pending pending = new Pending(start);
+        for (Entity.Id id : start.shardQuery.ids) {
+            if (pending.ids.putIfAbsent(id.id, id) == null) {
+                start.shard.tell(new EntityMessage.Query(id, requestId), self());
+            }
+        }
+        pendingShardQueries.put(requestId, pending);
+    }
+
+    private void replied(long requestId, Entity.Id id, Entity entity) {
+        final Pending pending = pendingShardQueries.get(requestId);
+        if (pending == null || pending.ids.remove(id.id) == null) {
+            return;
+        }
+        if (entity == null) {
+            pending.notFound.add(id);
+        } else {
+            pending.found.add(entity);
+        }
+        if (pending.ids.isEmpty()) {
+            pendingShardQueries.remove(requestId);
+            pending.reply(self());
+        }
+    }
+
+    private void expirePendingShardQueries() {
+        final long now = System.nanoTime();
+        final Iterator<Pending> pendings = pendingShardQueries.values().iterator();
+        while (pendings.hasNext()) {
+            final Pending pending = pendings.next();
+            if (now - pending.startNanoTime > settings.shardTimeout.toNanos()) {
+                log.warning("{} timed out with {} entities unanswered", pending.start.shardQuery, pending.ids.size());
+                pendings.remove();
+                pending.reply(self());
+            }
+        }
+    }
+
+    @Override
+    public void preStart() {
+        expirer = context().system().scheduler().schedule(
+                settings.expireInterval,
+                settings.expireInterval,
+                self(),
+                "expire",
+                context().system().dispatcher(),
+                null
+        );
+    }
+
+    @Override
+    public void postStop() {
+        expirer.cancel();
+    }
+
+    static Props props(EntityBatchQuerySettings settings) {
+        return Props.create(EntityShardQueryActor.class, settings).withDispatcher(EntityDispatchers.query);
+    }
+
+    static class Start {
+        final EntityMessage.ShardQuery shardQuery;
+        final ActorRef shard;
+        final ActorRef replyTo;
+
+        Start(EntityMessage.ShardQuery shardQuery, ActorRef shard, ActorRef replyTo) {
+            this.shardQuery = shardQuery;
+            this.shard = shard;
+            this.replyTo = replyTo;
+        }
+    }
+
+    private static class Pending {
+        final Start start;
+        final Map<String, Entity.Id> ids = new LinkedHashMap<>();
+        final List<Entity> found = new ArrayList<>();
+        final List<Entity.Id> notFound = new ArrayList<>();
+        final long startNanoTime = System.nanoTime();
+
+        Pending(Start start) {
+            this.start = start;
+        }
+
+        /**
+         * Sends what was collected, with the ids that have not answered yet as unanswered.
+         */
+        void reply(ActorRef self) {
+            start.replyTo.tell(new EntityMessage.ShardQueryAck(start.shardQuery.requestId, found, notFound,
+                    new ArrayList<>(ids.values())), self);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package cluster.persistence;
+
+import akka.actor.ExtendedActorSystem;
+import akka.serialization.JSerializer;
+import org.nustaq.serialization.FSTConfiguration;
+
+import java.util.function.Supplier;
+
+/**
+ * A variant of {@link FstSerializer} set up by fst-serializer. With register-classes the entity
+ * classes are registered with each configuration, so a message carries a short class id instead
+ * of each class name. With per-thread configurations every thread serializes with a configuration
+ * of its own, so the dispatcher threads never contend on the class and serializer caches of one
+ * configuration. Without share-references the objects are written without the identity tracking
+ * that lets a graph share objects, which the entity messages never do.
+ * <p>
+ * Its bytes depend on these settings and on the registered classes, so every node that reads them
+ * must use the same settings and the same list of classes, and new classes go at the end of the
+ * list. The bytes cannot be read by {@link FstSerializer}, which has its own identifier.
+ */
+public class FstRegisteredSerializer extends JSerializer {
+    private static final Class<?>[] registeredClasses = {
+            Entity.class,
+            Entity.Id.class,
+            Entity.Balance.class,
+            EntityMessage.Amount.class,
+            EntityMessage.DepositCommand.class,
+            EntityMessage.WithdrawalCommand.class,
+            EntityMessage.Query.class,
+            EntityMessage.QueryAckNotFound.class,
+            EntityMessage.DepositEvent.class,
+            EntityMessage.WithdrawalEvent.class,
+            EntityMessage.CommandAck.class,
+            EntityMessage.QueryAck.class,
+            EntityMessage.BatchQuery.class,
+            EntityMessage.ShardQuery.class,
+            EntityMessage.ShardQueryAck.class,
+            EntityMessage.BatchQueryAck.class
+    };
+
+    private final Supplier<FSTConfiguration> configurations;
+
+    public FstRegisteredSerializer(ExtendedActorSystem actorSystem) {
+        this(FstSerializerSettings.create(actorSystem));
+    }
+
+    FstRegisteredSerializer(FstSerializerSettings settings) {
+        if (settings.perThread) {
+            final ThreadLocal<FSTConfiguration> perThread = ThreadLocal.withInitial(() -> configuration(settings));
+            configurations = perThread::get;
+        } else {
+            final FSTConfiguration shared = configuration(settings);
+            configurations = () -> shared;
+        }
+    }
+
+    private static FSTConfiguration configuration(FstSerializerSettings settings) {
+        final FSTConfiguration conf = FSTConfiguration.createDefaultConfiguration();
+        conf.setShareReferences(settings.shareReferences);
+        if (settings.registerClasses) {
+            conf.registerClass(registeredClasses);
+        }
+        return conf;
+    }
+
+    @Override
+    public int identifier() {
+        return 428444;
+    }
+
+    @Override
+    public byte[] toBinary(Object o) {
+        return configurations.get().asByteArray(o);
+    }
+
+    @Override
+    public Object fromBinaryJava(byte[] bytes, Class<?> manifest) {
+        return configurations.get().asObject(bytes);
+    }
+
+    @Override
+    public boolean includeManifest() {
+        return false;
+    }
+}
@@ -1,10 +1,23 @@
 package cluster.persistence;
 
 import akka.serialization.JSerializer;
+import org.nustaq.serialization.FSTBasicObjectSerializer;
+import org.nustaq.serialization.FSTClazzInfo;
 import org.nustaq.serialization.FSTConfiguration;
+import org.nustaq.serialization.FSTObjectInput;
+import org.nustaq.serialization.FSTObjectOutput;
 
+import java.io.IOException;
+import java.math.BigDecimal;
+
+/**
+ * Reads the events and snapshots that were stored before the entity messages were bound to the
+ * compact serializer. Those were written while {@link EntityMessage.Amount} and
+ * {@link Entity.Balance} held a BigDecimal amount, so both are read, and written, in that shape
+ * and converted to and from minor units, see {@link MinorUnits}.
+ */
 public class FstSerializer extends JSerializer {
-    private static FSTConfiguration conf = FSTConfiguration.createDefaultConfiguration();
+    private static FSTConfiguration conf = configuration();
 
     @Override
     public int identifier() {
@@ -25,4 +38,60 @@ public class FstSerializer extends JSerializer {
     public boolean includeManifest() {
         return false;
     }
+
+    private static FSTConfiguration configuration() {
+        final FSTConfiguration configuration = FSTConfiguration.createDefaultConfiguration();
+        configuration.registerSerializer(EntityMessage.Amount.class, new AmountSerializer(), false);
+        configuration.registerSerializer(Entity.Balance.class, new BalanceSerializer(), false);
+        return configuration;
+    }
+
+    /**
+     * Writes the amount as FST wrote the fields of the class with one BigDecimal field, the object
+     * followed by a version tag of 0.
+     */
+    private static void writeAmount(FSTObjectOutput out, BigDecimal amount) throws IOException {
+        out.writeObject(amount);
+        out.getCodec().writeVersionTag(0);
+    }
+
+    private static long readAmount(FSTObjectInput in) throws Exception {
+        final BigDecimal amount = (BigDecimal) in.readObject();
+        in.getCodec().readVersionTag();
+        return MinorUnits.of(amount);
+    }
+
+    private static class AmountSerializer extends FSTBasicObjectSerializer {
+        @Override
+        public void writeObject(FSTObjectOutput out, Object toWrite, FSTClazzInfo clzInfo,
+                                FSTClazzInfo.FSTFieldInfo referencedBy, int streamPosition) throws IOException {
+            writeAmount(out, ((EntityMessage.Amount) toWrite).toBigDecimal());
+        }
+
+        @Override
+        @SuppressWarnings("rawtypes")
+        public Object instantiate(Class objectClass, FSTObjectInput in, FSTClazzInfo serializationInfo,
+                                  FSTClazzInfo.FSTFieldInfo referencee, int streamPosition) throws Exception {
+            final EntityMessage.Amount amount = EntityMessage.Amount.ofMinorUnits(readAmount(in));
+            in.registerObject(amount, streamPosition, serializationInfo, referencee);
+            return amount;
+        }
+    }
+
+    private static class BalanceSerializer extends FSTBasicObjectSerializer {
+        @Override
+        public void writeObject(FSTObjectOutput out, Object toWrite, FSTClazzInfo clzInfo,
+                                FSTClazzInfo.FSTFieldInfo referencedBy, int streamPosition) throws IOException {
+            writeAmount(out, MinorUnits.toBigDecimal(((Entity.Balance) toWrite).minorUnits));
+        }
+
+        @Override
+        @SuppressWarnings("rawtypes")
+        public Object instantiate(Class objectClass, FSTObjectInput in, FSTClazzInfo serializationInfo,
+                                  FSTClazzInfo.FSTFieldInfo referencee, int streamPosition) throws Exception {
+            final Entity.Balance balance = new Entity.Balance(readAmount(in));
+            in.registerObject(balance, streamPosition, serializationInfo, referencee);
+            return balance;
+        }
+    }
 }
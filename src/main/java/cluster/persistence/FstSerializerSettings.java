@@ -0,0 +1,30 @@
+package cluster.persistence;
+
+import akka.actor.ActorSystem;
+import com.typesafe.config.Config;
+
+class FstSerializerSettings {
+    final boolean registerClasses;
+    final boolean perThread;
+    final boolean shareReferences;
+
+    FstSerializerSettings(Config config) {
+        registerClasses = config.getBoolean("register-classes");
+        final String configurations = config.getString("configurations");
+        if (!configurations.equals("shared") && !configurations.equals("per-thread")) {
+            throw new IllegalArgumentException(String.format("Unknown fst-serializer.configurations %s, use shared or per-thread", configurations));
+        }
+        perThread = configurations.equals("per-thread");
+        shareReferences = config.getBoolean("share-references");
+    }
+
+    static FstSerializerSettings create(ActorSystem actorSystem) {
+        return new FstSerializerSettings(actorSystem.settings().config().getConfig("fst-serializer"));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[register classes %b, configurations %s, share references %b]",
+                getClass().getSimpleName(), registerClasses, perThread ? "per-thread" : "shared", shareReferences);
+    }
+}
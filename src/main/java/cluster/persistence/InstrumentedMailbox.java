@@ -0,0 +1,84 @@
+package cluster.persistence;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.dispatch.Envelope;
+import akka.dispatch.MailboxType;
+import akka.dispatch.MessageQueue;
+import akka.dispatch.ProducesMessageQueue;
+import akka.dispatch.UnboundedDequeBasedMessageQueueSemantics;
+import com.typesafe.config.Config;
+import scala.Option;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An unbounded mailbox that counts the messages queued in the mailboxes of a dispatcher and the
+ * depth of the deepest one, configured as the mailbox-type of the dispatcher. Akka creates one
+ * instance per dispatcher, which {@link InstrumentedExecutor} and {@link EntityMetrics} find by the
+ * dispatcher id.
+ * <p>
+ * The queues support putting messages back at the front, so that persistent actors can stash and
+ * unstash on it. A lock-free deque with a counter keeps the depth constant time to read.
+ */
+public class InstrumentedMailbox implements MailboxType, ProducesMessageQueue<InstrumentedMailbox.Queue> {
+    final DispatcherUsage usage = new DispatcherUsage();
+
+    public InstrumentedMailbox(ActorSystem.Settings settings, Config config) {
+    }
+
+    @Override
+    public MessageQueue create(Option<ActorRef> owner, Option<ActorSystem> system) {
+        return new Queue(usage);
+    }
+
+    static class Queue implements MessageQueue, UnboundedDequeBasedMessageQueueSemantics {
+        private final ConcurrentLinkedDeque<Envelope> queue = new ConcurrentLinkedDeque<>();
+        private final AtomicInteger depth = new AtomicInteger();
+        private final DispatcherUsage usage;
+
+        Queue(DispatcherUsage usage) {
+            this.usage = usage;
+        }
+
+        @Override
+        public void enqueue(ActorRef receiver, Envelope handle) {
+            queue.offerLast(handle);
+            usage.enqueued(depth.incrementAndGet());
+        }
+
+        @Override
+        public void enqueueFirst(ActorRef receiver, Envelope handle) {
+            queue.offerFirst(handle);
+            usage.enqueued(depth.incrementAndGet());
+        }
+
+        @Override
+        public Envelope dequeue() {
+            final Envelope handle = queue.pollFirst();
+            if (handle != null) {
+                depth.decrementAndGet();
+                usage.dequeued();
+            }
+            return handle;
+        }
+
+        @Override
+        public int numberOfMessages() {
+            return Math.max(0, depth.get());
+        }
+
+        @Override
+        public boolean hasMessages() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public void cleanUp(ActorRef owner, MessageQueue deadLetters) {
+            for (Envelope handle = dequeue(); handle != null; handle = dequeue()) {
+                deadLetters.enqueue(owner, handle);
+            }
+        }
+    }
+}
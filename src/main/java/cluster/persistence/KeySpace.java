@@ -0,0 +1,54 @@
+package cluster.persistence;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks entity ids from 1 to size, either uniformly or following a Zipf distribution where id 1 is
+ * the most frequently picked. The Zipf cumulative distribution is computed once and sampled with a
+ * binary search.
+ */
+class KeySpace {
+    private final int size;
+    private final double[] cumulativeProbabilities;
+
+    private KeySpace(int size, double[] cumulativeProbabilities) {
+        this.size = size;
+        this.cumulativeProbabilities = cumulativeProbabilities;
+    }
+
+    static KeySpace uniform(int size) {
+        return new KeySpace(size, null);
+    }
+
+    static KeySpace zipf(int size, double exponent) {
+        final double[] cumulativeProbabilities = new double[size];
+        double sum = 0;
+        for (int rank = 1; rank <= size; rank++) {
+            sum += 1.0 / Math.pow(rank, exponent);
+            cumulativeProbabilities[rank - 1] = sum;
+        }
+        for (int i = 0; i < size; i++) {
+            cumulativeProbabilities[i] /= sum;
+        }
+        return new KeySpace(size, cumulativeProbabilities);
+    }
+
+    static KeySpace from(EntityLoadSettings settings) {
+        return settings.distribution == EntityLoadSettings.Distribution.ZIPF
+                ? zipf(settings.keySpace, settings.zipfExponent)
+                : uniform(settings.keySpace);
+    }
+
+    Entity.Id nextId() {
+        return new Entity.Id(String.valueOf(next()));
+    }
+
+    int next() {
+        if (cumulativeProbabilities == null) {
+            return 1 + ThreadLocalRandom.current().nextInt(size);
+        }
+        final int index = Arrays.binarySearch(cumulativeProbabilities, ThreadLocalRandom.current().nextDouble());
+        return 1 + Math.min(size - 1, index >= 0 ? index : -index - 1);
+    }
+}
@@ -0,0 +1,52 @@
+package cluster.persistence;
+
+import java.math.BigDecimal;
+
+/**
+ * Money held as a long count of minor units, cents, so that applying a deposit or withdrawal is a
+ * checked long addition instead of a new BigDecimal. Formatting is done by hand because the shared
+ * DecimalFormat it replaces is not thread-safe.
+ */
+class MinorUnits {
+    static final int scale = 2;
+
+    static long of(BigDecimal amount) {
+        return amount.movePointRight(scale).longValueExact();
+    }
+
+    static BigDecimal toBigDecimal(long minorUnits) {
+        return BigDecimal.valueOf(minorUnits, scale);
+    }
+
+    static long add(long minorUnits, long amount) {
+        return Math.addExact(minorUnits, amount);
+    }
+
+    static long subtract(long minorUnits, long amount) {
+        return Math.subtractExact(minorUnits, amount);
+    }
+
+    /**
+     * Formats as the ",##0.00" pattern does, for example -1,234.56.
+     */
+    static String format(long minorUnits) {
+        final String digits = Long.toString(minorUnits);
+        final int start = minorUnits < 0 ? 1 : 0;
+        final int padding = Math.max(0, scale + 1 - (digits.length() - start));
+        final int unitDigits = digits.length() - start + padding - scale;
+        final StringBuilder formatted = new StringBuilder(digits.length() + padding + unitDigits / 3 + 2);
+
+        if (minorUnits < 0) {
+            formatted.append('-');
+        }
+        for (int i = 0; i < unitDigits + scale; i++) {
+            if (i == unitDigits) {
+                formatted.append('.');
+            } else if (i > 0 && i < unitDigits && (unitDigits - i) % 3 == 0) {
+                formatted.append(',');
+            }
+            formatted.append(i < padding ? '0' : digits.charAt(start + i - padding));
+        }
+        return formatted.toString();
+    }
+}
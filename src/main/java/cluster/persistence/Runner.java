@@ -6,6 +6,7 @@ import akka.actor.ActorSystem;
 import akka.actor.CoordinatedShutdown;
 import akka.cluster.sharding.ClusterSharding;
 import akka.cluster.sharding.ClusterShardingSettings;
+import akka.cluster.sharding.ShardCoordinator;
 import akka.management.javadsl.AkkaManagement;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
@@ -26,22 +27,31 @@ public class Runner {
     private static void startupClusterNodes(List<String> ports) {
         System.out.printf("Start cluster on port(s) %s%n", ports);
 
-        ports.forEach(port -> {
-            ActorSystem actorSystem = ActorSystem.create("persistence", setupClusterNodeConfig(port));
+        ports.forEach(port -> startupClusterNode(ActorSystem.create("persistence", setupClusterNodeConfig(port))));
+    }
 
-            AkkaManagement.get(actorSystem).start();
+    /**
+     * Starts everything that runs on a node in the given actor system and returns its shard region,
+     * so that a benchmark can start nodes with its own configuration, see ClusterScalingBenchmark.
+     */
+    static ActorRef startupClusterNode(ActorSystem actorSystem) {
+        AkkaManagement.get(actorSystem).start();
 
-            actorSystem.actorOf(ClusterListenerActor.props(), "clusterListener");
+        actorSystem.actorOf(ClusterListenerActor.props(ClusterTimelineSettings.create(actorSystem)), "clusterListener");
 
-            ActorRef shardingRegion = setupClusterSharding(actorSystem);
+        ActorRef shardingRegion = setupClusterSharding(actorSystem);
+        ActorRef projectionOrRegion = setupEntityProjection(actorSystem, shardingRegion);
+        ActorRef queryDestination = setupEntityNearCache(actorSystem, shardingRegion, projectionOrRegion);
 
-            actorSystem.actorOf(EntityCommandActor.props(shardingRegion), "entityCommand");
-            actorSystem.actorOf(EntityQueryActor.props(shardingRegion), "entityQuery");
+        actorSystem.actorOf(EntityCommandActor.props(shardingRegion), "entityCommand");
+        actorSystem.actorOf(EntityQueryActor.props(queryDestination), "entityQuery");
+        actorSystem.actorOf(EntityBatchQueryActor.props(EntityBatchQuerySettings.create(actorSystem), shardingRegion, projectionOrRegion), "entityBatchQuery");
+        setupEntityIngest(actorSystem, shardingRegion);
 
-            addCoordinatedShutdownTask(actorSystem, CoordinatedShutdown.PhaseClusterShutdown());
+        addCoordinatedShutdownTask(actorSystem, CoordinatedShutdown.PhaseClusterShutdown());
 
-            actorSystem.log().info("Akka node {}", actorSystem.provider().getDefaultAddress());
-        });
+        actorSystem.log().info("Akka node {}", actorSystem.provider().getDefaultAddress());
+        return shardingRegion;
     }
 
     private static Config setupClusterNodeConfig(String port) {
@@ -53,14 +63,50 @@ public class Runner {
 
     private static ActorRef setupClusterSharding(ActorSystem actorSystem) {
         ClusterShardingSettings settings = ClusterShardingSettings.create(actorSystem).withRole("write-side");
+        // Started before the first shard, so that the hot entities of every shard are known by then.
+        EntityPrewarm.get(actorSystem);
         return ClusterSharding.get(actorSystem).start(
                 "entity",
-                EntityPersistenceActor.props(),
+                EntityPersistenceActor.props(EntityPersistenceSettings.create(actorSystem)),
                 settings,
-                EntityMessage.messageExtractor()
+                EntityRouting.get(actorSystem).messageExtractor(),
+                shardAllocationStrategy(actorSystem, settings),
+                EntityPassivation.stop
         );
     }
 
+    private static ShardCoordinator.ShardAllocationStrategy shardAllocationStrategy(ActorSystem actorSystem, ClusterShardingSettings settings) {
+        return EntityAllocation.get(actorSystem).settings.enabled
+                ? new EntityAllocationStrategy(actorSystem)
+                : ClusterSharding.get(actorSystem).defaultShardAllocationStrategy(settings);
+    }
+
+    private static ActorRef setupEntityProjection(ActorSystem actorSystem, ActorRef shardingRegion) {
+        EntityProjectionSettings settings = EntityProjectionSettings.create(actorSystem);
+        if (!settings.enabled) {
+            return shardingRegion;
+        }
+        ActorRef entityProjection = actorSystem.actorOf(EntityProjectionActor.props(settings), "entityProjection");
+        return settings.serveQueries ? entityProjection : shardingRegion;
+    }
+
+    private static ActorRef setupEntityNearCache(ActorSystem actorSystem, ActorRef shardingRegion, ActorRef queryDestination) {
+        EntityNearCacheSettings settings = EntityNearCacheSettings.create(actorSystem);
+        if (!settings.enabled) {
+            return queryDestination;
+        }
+        // Misses go to the entities, not to the projection, which may not have applied the event that
+        // invalidated an entry yet and would refill it with the old state for the whole time to live.
+        return actorSystem.actorOf(EntityNearCacheActor.props(settings, shardingRegion), "entityNearCache");
+    }
+
+    private static void setupEntityIngest(ActorSystem actorSystem, ActorRef shardingRegion) {
+        EntityIngestSettings settings = EntityIngestSettings.create(actorSystem);
+        if (settings.enabled) {
+            actorSystem.actorOf(EntityIngestActor.props(settings, shardingRegion), "entityIngest");
+        }
+    }
+
     private static void addCoordinatedShutdownTask(ActorSystem actorSystem, String coordindateShutdownPhase) {
         CoordinatedShutdown.get(actorSystem).addTask(
                 coordindateShutdownPhase,
@@ -0,0 +1,110 @@
+package cluster.persistence;
+
+import akka.dispatch.Futures;
+import akka.persistence.AtomicWrite;
+import akka.persistence.PersistentRepr;
+import akka.persistence.journal.Tagged;
+import akka.persistence.journal.japi.AsyncWriteJournal;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import com.typesafe.config.Config;
+import scala.collection.JavaConverters;
+import scala.compat.java8.FutureConverters;
+import scala.concurrent.Future;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+/**
+ * A journal plugin that appends events to memory-mapped segment files on the local disk, see
+ * {@link SegmentJournalStore}. Every node in one JVM that is configured with the same directory
+ * shares one store, so the nodes that {@link Runner} starts see each other's events as they would
+ * with a shared Cassandra journal. Nodes in separate JVMs need separate directories.
+ * <p>
+ * Each call writes all of its atomic writes and completes after one commit, which with fsync on
+ * is shared with the writes of all other entities that are waiting at the same time.
+ */
+public class SegmentJournal extends AsyncWriteJournal {
+    private final SegmentStoreSettings settings;
+    private final SegmentJournalStore store;
+    private final Serialization serialization;
+
+    public SegmentJournal(Config config) {
+        settings = new SegmentStoreSettings(config);
+        store = SegmentJournalStore.acquire(settings);
+        serialization = SerializationExtension.get(context().system());
+    }
+
+    @Override
+    public Future<Iterable<Optional<Exception>>> doAsyncWriteMessages(Iterable<AtomicWrite> messages) {
+        final List<Optional<Exception>> results = new ArrayList<>();
+        final List<SegmentJournalStore.Event> events = new ArrayList<>();
+        for (AtomicWrite write : messages) {
+            try {
+                final List<SegmentJournalStore.Event> writeEvents = new ArrayList<>();
+                for (PersistentRepr repr : JavaConverters.seqAsJavaListConverter(write.payload()).asJava()) {
+                    writeEvents.add(event(repr));
+                }
+                events.addAll(writeEvents);
+                results.add(Optional.empty());
+            } catch (Exception e) {
+                results.add(Optional.of(e));
+            }
+        }
+
+        try {
+            store.append(events);
+        } catch (IOException e) {
+            return Futures.failed(e);
+        }
+        return FutureConverters.toScala(store.commit().thenApply(done -> results));
+    }
+
+    private SegmentJournalStore.Event event(PersistentRepr repr) throws Exception {
+        Object payload = repr.payload();
+        Collection<String> tags = Collections.emptySet();
+        if (payload instanceof Tagged) {
+            tags = JavaConverters.setAsJavaSetConverter(((Tagged) payload).tags()).asJava();
+            payload = ((Tagged) payload).payload();
+        }
+        final byte[] bytes = serialization.serialize(repr.withPayload(payload)).get();
+        return new SegmentJournalStore.Event(repr.persistenceId(), repr.sequenceNr(), tags, bytes);
+    }
+
+    @Override
+    public Future<Void> doAsyncDeleteMessagesTo(String persistenceId, long toSequenceNr) {
+        try {
+            store.delete(persistenceId, toSequenceNr);
+        } catch (IOException e) {
+            return Futures.failed(e);
+        }
+        return FutureConverters.toScala(store.commit());
+    }
+
+    @Override
+    public Future<Void> doAsyncReplayMessages(String persistenceId, long fromSequenceNr, long toSequenceNr, long max,
+                                              Consumer<PersistentRepr> replayCallback) {
+        return Futures.future(() -> {
+            for (SegmentJournalStore.Event event : store.replay(persistenceId, fromSequenceNr, toSequenceNr, max)) {
+                replayCallback.accept(serialization.deserialize(event.payload, PersistentRepr.class).get());
+            }
+            return null;
+        }, context().dispatcher());
+    }
+
+    @Override
+    public Future<Long> doAsyncReadHighestSequenceNr(String persistenceId, long fromSequenceNr) {
+        return Futures.successful(store.highestSequenceNr(persistenceId));
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        SegmentJournalStore.release(settings);
+        super.postStop();
+    }
+}
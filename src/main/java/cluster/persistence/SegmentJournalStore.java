@@ -0,0 +1,338 @@
+package cluster.persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * The events of {@link SegmentJournal} in a {@link SegmentLog}, with an in-memory index of the
+ * positions of the events of each persistence id and of each tag. The indexes are rebuilt from the
+ * log when it is opened.
+ * <p>
+ * Appended events are committed together: with fsync on, one flusher thread forces all records
+ * appended since its previous force and then completes every commit that was waiting for them, so
+ * the writes of many entities share one fsync. Events are visible to eventsByTag only once they are
+ * committed, in the order of their ordering number, which is global to the log.
+ */
+class SegmentJournalStore implements Closeable {
+    private static final byte eventRecord = 1;
+    private static final byte deleteRecord = 2;
+    private static final SharedByDirectory<SegmentJournalStore> stores = new SharedByDirectory<>();
+
+    private final SegmentLog log;
+    private final boolean fsync;
+    private final Map<String, PositionIndex> persistenceIds = new HashMap<>();
+    private final Map<String, Long> deletedTo = new HashMap<>();
+    private final Map<String, PositionIndex> tags = new HashMap<>();
+    private long ordering;
+    private volatile long committedOrdering;
+    private final Object commitLock = new Object();
+    private List<CompletableFuture<Void>> pendingCommits = new ArrayList<>();
+    private long pendingOrdering;
+    private boolean closed;
+    private final Thread flusher;
+
+    static class Event {
+        final long ordering;
+        final String persistenceId;
+        final long sequenceNr;
+        final Collection<String> tags;
+        final byte[] payload;
+
+        Event(String persistenceId, long sequenceNr, Collection<String> tags, byte[] payload) {
+            this(0, persistenceId, sequenceNr, tags, payload);
+        }
+
+        private Event(long ordering, String persistenceId, long sequenceNr, Collection<String> tags, byte[] payload) {
+            this.ordering = ordering;
+            this.persistenceId = persistenceId;
+            this.sequenceNr = sequenceNr;
+            this.tags = tags;
+            this.payload = payload;
+        }
+    }
+
+    private SegmentJournalStore(SegmentStoreSettings settings) throws IOException {
+        fsync = settings.fsync;
+        log = SegmentLog.open(settings.dir, settings.segmentSize, this::recover);
+        committedOrdering = ordering;
+        flusher = new Thread(this::flush, String.format("segment-journal-flusher-%s", settings.dir.getFileName()));
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    static SegmentJournalStore acquire(SegmentStoreSettings settings) {
+        return stores.acquire(settings.dir, dir -> new SegmentJournalStore(settings));
+    }
+
+    static void release(SegmentStoreSettings settings) throws IOException {
+        stores.release(settings.dir);
+    }
+
+    private void recover(long position, byte type, ByteBuffer body) {
+        if (type == eventRecord) {
+            final long eventOrdering = body.getLong();
+            final long sequenceNr = body.getLong();
+            final String persistenceId = readString(body);
+            index(persistenceId, sequenceNr, readTags(body), eventOrdering, position);
+            ordering = Math.max(ordering, eventOrdering);
+        } else if (type == deleteRecord) {
+            final String persistenceId = readString(body);
+            deletedTo.merge(persistenceId, body.getLong(), Math::max);
+        }
+    }
+
+    /**
+     * Appends the events in order, either all of them or, if one is too large for a segment, none.
+     * They are durable and visible to eventsByTag after the next {@link #commit()} completes.
+     */
+    synchronized void append(List<Event> events) throws IOException {
+        final List<ByteBuffer> bodies = new ArrayList<>(events.size());
+        long eventOrdering = ordering;
+        for (Event event : events) {
+            final ByteBuffer body = encode(++eventOrdering, event);
+            if (body.remaining() > log.maxBodySize()) {
+                throw new IOException(String.format("Event %d of %s with %d bytes does not fit into a segment",
+                        event.sequenceNr, event.persistenceId, body.remaining()));
+            }
+            bodies.add(body);
+        }
+        for (int i = 0; i < events.size(); i++) {
+            final Event event = events.get(i);
+            final long position = log.append(eventRecord, bodies.get(i));
+            index(event.persistenceId, event.sequenceNr, event.tags, ++ordering, position);
+        }
+    }
+
+    /**
+     * Deletes the events of the persistence id up to the sequence number, or up to its highest
+     * sequence number if that is lower, so that events written later are not deleted.
+     */
+    synchronized void delete(String persistenceId, long toSequenceNr) throws IOException {
+        final long deleteTo = Math.min(toSequenceNr, highestSequenceNr(persistenceId));
+        final byte[] id = persistenceId.getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer body = ByteBuffer.allocate(2 + id.length + 8);
+        body.putShort((short) id.length).put(id).putLong(deleteTo).flip();
+        log.append(deleteRecord, body);
+        deletedTo.merge(persistenceId, deleteTo, Math::max);
+    }
+
+    /**
+     * Completes once everything appended before this call is durable.
+     */
+    CompletionStage<Void> commit() {
+        final long appendedOrdering;
+        synchronized (this) {
+            appendedOrdering = ordering;
+            if (!fsync) {
+                committedOrdering = appendedOrdering;
+                return CompletableFuture.completedFuture(null);
+            }
+        }
+        final CompletableFuture<Void> commit = new CompletableFuture<>();
+        synchronized (commitLock) {
+            if (closed) {
+                commit.completeExceptionally(new IOException("Segment journal is closed"));
+            } else {
+                pendingCommits.add(commit);
+                pendingOrdering = Math.max(pendingOrdering, appendedOrdering);
+                commitLock.notify();
+            }
+        }
+        return commit;
+    }
+
+    private void flush() {
+        while (true) {
+            final List<CompletableFuture<Void>> commits;
+            final long flushOrdering;
+            synchronized (commitLock) {
+                while (pendingCommits.isEmpty() && !closed) {
+                    try {
+                        commitLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (closed) {
+                    pendingCommits.forEach(commit -> commit.completeExceptionally(new IOException("Segment journal is closed")));
+                    return;
+                }
+                commits = pendingCommits;
+                flushOrdering = pendingOrdering;
+                pendingCommits = new ArrayList<>();
+            }
+            try {
+                log.force();
+                committedOrdering = Math.max(committedOrdering, flushOrdering);
+                commits.forEach(commit -> commit.complete(null));
+            } catch (RuntimeException e) {
+                commits.forEach(commit -> commit.completeExceptionally(e));
+            }
+        }
+    }
+
+    /**
+     * The events of the persistence id from and to the sequence numbers, at most max of them.
+     */
+    List<Event> replay(String persistenceId, long fromSequenceNr, long toSequenceNr, long max) {
+        final long[] positions;
+        synchronized (this) {
+            final PositionIndex index = persistenceIds.get(persistenceId);
+            if (index == null) {
+                return new ArrayList<>();
+            }
+            final long from = Math.max(fromSequenceNr, deletedTo.getOrDefault(persistenceId, 0L) + 1);
+            positions = index.positions(from, toSequenceNr, max);
+        }
+        return read(positions);
+    }
+
+    synchronized long highestSequenceNr(String persistenceId) {
+        final PositionIndex index = persistenceIds.get(persistenceId);
+        return index == null ? 0 : index.lastKey();
+    }
+
+    /**
+     * The committed events with the tag after the ordering number, at most max of them. Deleted
+     * events are included, as in most journals that index tags.
+     */
+    List<Event> eventsByTag(String tag, long afterOrdering, int max) {
+        final long[] positions;
+        synchronized (this) {
+            final PositionIndex index = tags.get(tag);
+            if (index == null) {
+                return new ArrayList<>();
+            }
+            positions = index.positions(afterOrdering + 1, committedOrdering, max);
+        }
+        return read(positions);
+    }
+
+    private List<Event> read(long[] positions) {
+        final List<Event> events = new ArrayList<>(positions.length);
+        for (long position : positions) {
+            events.add(decode(log.read(position)));
+        }
+        return events;
+    }
+
+    private void index(String persistenceId, long sequenceNr, Collection<String> eventTags, long eventOrdering, long position) {
+        persistenceIds.computeIfAbsent(persistenceId, p -> new PositionIndex()).add(sequenceNr, position);
+        for (String tag : eventTags) {
+            tags.computeIfAbsent(tag, t -> new PositionIndex()).add(eventOrdering, position);
+        }
+    }
+
+    private static ByteBuffer encode(long eventOrdering, Event event) {
+        final byte[] id = event.persistenceId.getBytes(StandardCharsets.UTF_8);
+        final List<byte[]> eventTags = new ArrayList<>(event.tags.size());
+        int size = 8 + 8 + 2 + id.length + 1 + 4 + event.payload.length;
+        for (String tag : event.tags) {
+            final byte[] bytes = tag.getBytes(StandardCharsets.UTF_8);
+            eventTags.add(bytes);
+            size += 2 + bytes.length;
+        }
+
+        final ByteBuffer body = ByteBuffer.allocate(size);
+        body.putLong(eventOrdering).putLong(event.sequenceNr).putShort((short) id.length).put(id);
+        body.put((byte) eventTags.size());
+        for (byte[] tag : eventTags) {
+            body.putShort((short) tag.length).put(tag);
+        }
+        body.putInt(event.payload.length).put(event.payload);
+        body.flip();
+        return body;
+    }
+
+    private static Event decode(ByteBuffer body) {
+        final long eventOrdering = body.getLong();
+        final long sequenceNr = body.getLong();
+        final String persistenceId = readString(body);
+        final List<String> eventTags = readTags(body);
+        final byte[] payload = new byte[body.getInt()];
+        body.get(payload);
+        return new Event(eventOrdering, persistenceId, sequenceNr, eventTags, payload);
+    }
+
+    private static List<String> readTags(ByteBuffer body) {
+        final int count = body.get();
+        final List<String> eventTags = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            eventTags.add(readString(body));
+        }
+        return eventTags;
+    }
+
+    private static String readString(ByteBuffer body) {
+        final byte[] bytes = new byte[body.getShort()];
+        body.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (commitLock) {
+            closed = true;
+            commitLock.notify();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.force();
+        log.close();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%s, fsync %b]", getClass().getSimpleName(), log, fsync);
+    }
+
+    /**
+     * Positions of records in ascending key order, which is the sequence number for a persistence
+     * id and the ordering number for a tag.
+     */
+    private static class PositionIndex {
+        private long[] keys = new long[8];
+        private long[] positions = new long[8];
+        private int size;
+
+        void add(long key, long position) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            keys[size] = key;
+            positions[size] = position;
+            ++size;
+        }
+
+        long lastKey() {
+            return size == 0 ? 0 : keys[size - 1];
+        }
+
+        long[] positions(long fromKey, long toKey, long max) {
+            int from = Arrays.binarySearch(keys, 0, size, fromKey);
+            if (from < 0) {
+                from = -from - 1;
+            }
+            int to = from;
+            while (to < size && keys[to] <= toKey && to - from < max) {
+                ++to;
+            }
+            return Arrays.copyOfRange(positions, from, to);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package cluster.persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of records in fixed size, memory-mapped segment files.
+ * <p>
+ * A record is its length, a CRC32 of its type and body, its type and its body. Appending copies
+ * the record into the mapped segment, so it is visible to readers at once but only durable after
+ * {@link #force()}. A record that does not fit into the rest of a segment starts the next segment,
+ * and the unused rest stays zero, which reads as the end of the segment.
+ * <p>
+ * Opening the log scans every segment and stops at the first record whose checksum does not match,
+ * which is where a crash interrupted the last append; the next append overwrites it. The rest of
+ * the last segment is cleared, as records that were written after it before the crash would
+ * otherwise read as valid again once new records end where one of them begins. The position
+ * of a record is its segment number in the high and its offset in the low 32 bits.
+ * <p>
+ * A lock file keeps a second process from opening the same directory. Within a process the log is
+ * shared through {@link SharedByDirectory}.
+ */
+class SegmentLog implements Closeable {
+    private static final int headerSize = 4 + 4 + 1;
+    private final Path dir;
+    private final int segmentSize;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final List<FileChannel> channels = new ArrayList<>();
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    private final CRC32 crc = new CRC32();
+    private int writeSegment;
+    private int writeOffset;
+    private int unforcedSegment;
+
+    interface RecordVisitor {
+        void visit(long position, byte type, ByteBuffer body) throws IOException;
+    }
+
+    private SegmentLog(Path dir, int segmentSize) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(dir);
+        lockChannel = FileChannel.open(dir.resolve("lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        lock = lockChannel.tryLock();
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException(String.format("Segment log %s is used by another process", dir));
+        }
+    }
+
+    /**
+     * Opens the log in the directory, calling the visitor with every valid record in order.
+     */
+    static SegmentLog open(Path dir, int segmentSize, RecordVisitor visitor) throws IOException {
+        final SegmentLog segmentLog = new SegmentLog(dir, segmentSize);
+        try {
+            segmentLog.recover(visitor);
+            return segmentLog;
+        } catch (IOException | RuntimeException e) {
+            segmentLog.close();
+            throw e;
+        }
+    }
+
+    private void recover(RecordVisitor visitor) throws IOException {
+        final List<Path> files;
+        try (Stream<Path> list = Files.list(dir)) {
+            files = list.filter(path -> path.getFileName().toString().matches("segment-\\d+\\.log"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        for (int segment = 0; segment < files.size(); segment++) {
+            if (!files.get(segment).equals(segmentFile(segment))) {
+                throw new IOException(String.format("Segment %s is missing", segmentFile(segment)));
+            }
+            mapSegment(segment);
+        }
+        if (segments.length == 0) {
+            mapSegment(0);
+        }
+
+        for (int segment = 0; segment < segments.length; segment++) {
+            final ByteBuffer buffer = segments[segment].duplicate();
+            int offset = 0;
+            while (true) {
+                final ByteBuffer body = readRecord(buffer, offset);
+                if (body == null) {
+                    break;
+                }
+                final int length = body.remaining();
+                visitor.visit(position(segment, offset), buffer.get(offset + 8), body);
+                offset += headerSize + length;
+            }
+            writeSegment = segment;
+            writeOffset = offset;
+        }
+        if (clear(segments[writeSegment], writeOffset)) {
+            segments[writeSegment].force();
+        }
+        unforcedSegment = writeSegment;
+    }
+
+    /**
+     * Zeroes the bytes of the segment from the offset on that are not zero yet, so that only the
+     * pages that hold stale records are written, and returns whether there were any.
+     */
+    private static boolean clear(MappedByteBuffer segment, int offset) {
+        boolean cleared = false;
+        for (int i = offset; i < segment.capacity(); i++) {
+            if (segment.get(i) != 0) {
+                segment.put(i, (byte) 0);
+                cleared = true;
+            }
+        }
+        return cleared;
+    }
+
+    /**
+     * Returns the body of the record at the offset, or null at the end of the valid records.
+     */
+    private ByteBuffer readRecord(ByteBuffer buffer, int offset) {
+        if (offset + headerSize > buffer.capacity()) {
+            return null;
+        }
+        final int length = buffer.getInt(offset);
+        if (length <= 0 || length > buffer.capacity() - offset - headerSize) {
+            return null;
+        }
+        final ByteBuffer record = buffer.duplicate();
+        record.limit(offset + headerSize + length).position(offset + 8);
+        final CRC32 checksum = new CRC32();
+        checksum.update(record.duplicate());
+        if ((int) checksum.getValue() != buffer.getInt(offset + 4)) {
+            return null;
+        }
+        record.position(offset + headerSize);
+        return record.slice();
+    }
+
+    /**
+     * The largest record body that fits into a segment.
+     */
+    int maxBodySize() {
+        return segmentSize - headerSize;
+    }
+
+    /**
+     * Appends a record and returns its position.
+     */
+    synchronized long append(byte type, ByteBuffer body) throws IOException {
+        final int length = body.remaining();
+        if (length == 0 || length > maxBodySize()) {
+            throw new IOException(String.format("Record of %d bytes does not fit into a segment of %d bytes", length, segmentSize));
+        }
+        if (writeOffset + headerSize + length > segmentSize) {
+            mapSegment(writeSegment + 1);
+            ++writeSegment;
+            writeOffset = 0;
+        }
+
+        crc.reset();
+        crc.update(type);
+        crc.update(body.duplicate());
+
+        final ByteBuffer buffer = segments[writeSegment];
+        buffer.position(writeOffset);
+        buffer.putInt(length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(type);
+        buffer.put(body);
+
+        final long position = position(writeSegment, writeOffset);
+        writeOffset += headerSize + length;
+        return position;
+    }
+
+    /**
+     * Returns the body of the record at the position, which must come from {@link #append} or the
+     * visitor given to {@link #open}.
+     */
+    ByteBuffer read(long position) {
+        final ByteBuffer buffer = segments[(int) (position >>> 32)].duplicate();
+        final int offset = (int) position;
+        buffer.limit(offset + headerSize + buffer.getInt(offset)).position(offset + headerSize);
+        return buffer.slice();
+    }
+
+    /**
+     * Writes the records appended so far to the storage device.
+     */
+    void force() {
+        final int fromSegment;
+        final int toSegment;
+        synchronized (this) {
+            fromSegment = unforcedSegment;
+            toSegment = writeSegment;
+            unforcedSegment = writeSegment;
+        }
+        final MappedByteBuffer[] mapped = segments;
+        for (int segment = fromSegment; segment <= toSegment; segment++) {
+            mapped[segment].force();
+        }
+    }
+
+    private void mapSegment(int segment) throws IOException {
+        final FileChannel channel = FileChannel.open(segmentFile(segment),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channels.add(channel);
+        final MappedByteBuffer[] mapped = Arrays.copyOf(segments, segment + 1);
+        mapped[segment] = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        segments = mapped;
+    }
+
+    private Path segmentFile(int segment) {
+        return dir.resolve(String.format("segment-%010d.log", segment));
+    }
+
+    private static long position(int segment, int offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (FileChannel channel : channels) {
+            channel.close();
+        }
+        if (lock != null) {
+            lock.release();
+        }
+        lockChannel.close();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%s, %d segments of %d bytes]", getClass().getSimpleName(), dir, segments.length, segmentSize);
+    }
+}
@@ -0,0 +1,118 @@
+package cluster.persistence;
+
+import akka.NotUsed;
+import akka.actor.ExtendedActorSystem;
+import akka.japi.Pair;
+import akka.pattern.Patterns;
+import akka.persistence.PersistentRepr;
+import akka.persistence.query.EventEnvelope;
+import akka.persistence.query.Offset;
+import akka.persistence.query.ReadJournalProvider;
+import akka.persistence.query.Sequence;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import akka.stream.javadsl.Source;
+import com.typesafe.config.Config;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * The read journal of {@link SegmentJournal}, which provides eventsByTag by polling the tag index
+ * of the store that the journal with the same directory writes to. Events are emitted once they are
+ * committed, in the order they were written, and the offset is their {@link Sequence} ordering
+ * number, which resumes after the given offset.
+ */
+public class SegmentReadJournalProvider implements ReadJournalProvider {
+    private final SegmentReadJournal javadslReadJournal;
+
+    public SegmentReadJournalProvider(ExtendedActorSystem actorSystem, Config config) {
+        final SegmentStoreSettings settings = new SegmentStoreSettings(config);
+        final SegmentJournalStore store = SegmentJournalStore.acquire(settings);
+        actorSystem.registerOnTermination(() -> {
+            try {
+                SegmentJournalStore.release(settings);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        javadslReadJournal = new SegmentReadJournal(actorSystem, store,
+                config.getDuration("refresh-interval"), config.getInt("max-buffer-size"));
+    }
+
+    @Override
+    public akka.persistence.query.scaladsl.ReadJournal scaladslReadJournal() {
+        return new ScaladslSegmentReadJournal(javadslReadJournal);
+    }
+
+    @Override
+    public akka.persistence.query.javadsl.ReadJournal javadslReadJournal() {
+        return javadslReadJournal;
+    }
+
+    static class SegmentReadJournal implements akka.persistence.query.javadsl.EventsByTagQuery {
+        private final ExtendedActorSystem actorSystem;
+        private final SegmentJournalStore store;
+        private final Serialization serialization;
+        private final Duration refreshInterval;
+        private final int maxBufferSize;
+
+        SegmentReadJournal(ExtendedActorSystem actorSystem, SegmentJournalStore store, Duration refreshInterval, int maxBufferSize) {
+            this.actorSystem = actorSystem;
+            this.store = store;
+            this.serialization = SerializationExtension.get(actorSystem);
+            this.refreshInterval = refreshInterval;
+            this.maxBufferSize = maxBufferSize;
+        }
+
+        @Override
+        public Source<EventEnvelope, NotUsed> eventsByTag(String tag, Offset offset) {
+            return Source.unfoldAsync(afterOrdering(offset), after -> poll(tag, after))
+                    .mapConcat(events -> events);
+        }
+
+        private CompletionStage<Optional<Pair<Long, List<EventEnvelope>>>> poll(String tag, long afterOrdering) {
+            final List<SegmentJournalStore.Event> events = store.eventsByTag(tag, afterOrdering, maxBufferSize);
+            if (events.isEmpty()) {
+                return Patterns.after(refreshInterval, actorSystem.scheduler(), actorSystem.dispatcher(),
+                        () -> CompletableFuture.completedFuture(Optional.of(Pair.create(afterOrdering, new ArrayList<>()))));
+            }
+
+            final List<EventEnvelope> envelopes = new ArrayList<>(events.size());
+            for (SegmentJournalStore.Event event : events) {
+                final PersistentRepr repr = serialization.deserialize(event.payload, PersistentRepr.class).get();
+                envelopes.add(new EventEnvelope(Offset.sequence(event.ordering), event.persistenceId, event.sequenceNr, repr.payload()));
+            }
+            final long lastOrdering = events.get(events.size() - 1).ordering;
+            return CompletableFuture.completedFuture(Optional.of(Pair.create(lastOrdering, envelopes)));
+        }
+
+        private static long afterOrdering(Offset offset) {
+            if (offset instanceof Sequence) {
+                return ((Sequence) offset).value();
+            } else if (Offset.noOffset().equals(offset)) {
+                return 0;
+            }
+            throw new IllegalArgumentException(String.format("Segment read journal does not support offset %s", offset));
+        }
+    }
+
+    private static class ScaladslSegmentReadJournal implements akka.persistence.query.scaladsl.EventsByTagQuery {
+        private final SegmentReadJournal javadslReadJournal;
+
+        ScaladslSegmentReadJournal(SegmentReadJournal javadslReadJournal) {
+            this.javadslReadJournal = javadslReadJournal;
+        }
+
+        @Override
+        public akka.stream.scaladsl.Source<EventEnvelope, NotUsed> eventsByTag(String tag, Offset offset) {
+            return javadslReadJournal.eventsByTag(tag, offset).asScala();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package cluster.persistence;
+
+import akka.dispatch.Futures;
+import akka.persistence.SelectedSnapshot;
+import akka.persistence.SnapshotMetadata;
+import akka.persistence.SnapshotSelectionCriteria;
+import akka.persistence.serialization.Snapshot;
+import akka.persistence.snapshot.japi.SnapshotStore;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import com.typesafe.config.Config;
+import scala.concurrent.Future;
+
+import java.util.Optional;
+
+/**
+ * A snapshot store plugin that appends snapshots to memory-mapped segment files on the local disk,
+ * see {@link SegmentSnapshots}, and shares them between the nodes in one JVM like
+ * {@link SegmentJournal}.
+ */
+public class SegmentSnapshotStore extends SnapshotStore {
+    private final SegmentStoreSettings settings;
+    private final SegmentSnapshots snapshots;
+    private final Serialization serialization;
+
+    public SegmentSnapshotStore(Config config) {
+        settings = new SegmentStoreSettings(config);
+        snapshots = SegmentSnapshots.acquire(settings);
+        serialization = SerializationExtension.get(context().system());
+    }
+
+    @Override
+    public Future<Optional<SelectedSnapshot>> doLoadAsync(String persistenceId, SnapshotSelectionCriteria criteria) {
+        return Futures.future(() -> snapshots.load(persistenceId, criteria)
+                .map(loaded -> SelectedSnapshot.create(loaded.getKey(),
+                        serialization.deserialize(loaded.getValue(), Snapshot.class).get().data())), context().dispatcher());
+    }
+
+    @Override
+    public Future<Void> doSaveAsync(SnapshotMetadata metadata, Object snapshot) {
+        return Futures.future(() -> {
+            snapshots.save(metadata, serialization.serialize(new Snapshot(snapshot)).get());
+            return null;
+        }, context().dispatcher());
+    }
+
+    @Override
+    public Future<Void> doDeleteAsync(SnapshotMetadata metadata) {
+        final long maxTimestamp = metadata.timestamp() == 0 ? Long.MAX_VALUE : metadata.timestamp();
+        return doDeleteAsync(metadata.persistenceId(),
+                SnapshotSelectionCriteria.create(metadata.sequenceNr(), maxTimestamp, metadata.sequenceNr(), metadata.timestamp()));
+    }
+
+    @Override
+    public Future<Void> doDeleteAsync(String persistenceId, SnapshotSelectionCriteria criteria) {
+        return Futures.future(() -> {
+            snapshots.delete(persistenceId, criteria);
+            return null;
+        }, context().dispatcher());
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        SegmentSnapshots.release(settings);
+        super.postStop();
+    }
+}
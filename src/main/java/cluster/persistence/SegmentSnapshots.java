@@ -0,0 +1,159 @@
+package cluster.persistence;
+
+import akka.persistence.SnapshotMetadata;
+import akka.persistence.SnapshotSelectionCriteria;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * The snapshots of {@link SegmentSnapshotStore} in a {@link SegmentLog}, with an in-memory index
+ * of the snapshots of each persistence id in sequence number order. A deletion is appended as a
+ * record with its selection criteria and removes the matching snapshots from the index, also when
+ * the index is rebuilt from the log. The space of deleted snapshots is not reclaimed.
+ */
+class SegmentSnapshots implements Closeable {
+    private static final byte snapshotRecord = 1;
+    private static final byte deleteRecord = 2;
+    private static final SharedByDirectory<SegmentSnapshots> stores = new SharedByDirectory<>();
+
+    private final SegmentLog log;
+    private final boolean fsync;
+    private final Map<String, List<Entry>> persistenceIds = new HashMap<>();
+
+    private static class Entry {
+        final SnapshotMetadata metadata;
+        final long position;
+
+        Entry(SnapshotMetadata metadata, long position) {
+            this.metadata = metadata;
+            this.position = position;
+        }
+    }
+
+    private SegmentSnapshots(SegmentStoreSettings settings) throws IOException {
+        fsync = settings.fsync;
+        log = SegmentLog.open(settings.dir, settings.segmentSize, this::recover);
+    }
+
+    static SegmentSnapshots acquire(SegmentStoreSettings settings) {
+        return stores.acquire(settings.dir, dir -> new SegmentSnapshots(settings));
+    }
+
+    static void release(SegmentStoreSettings settings) throws IOException {
+        stores.release(settings.dir);
+    }
+
+    private void recover(long position, byte type, ByteBuffer body) {
+        final String persistenceId = readString(body);
+        if (type == snapshotRecord) {
+            index(new SnapshotMetadata(persistenceId, body.getLong(), body.getLong()), position);
+        } else if (type == deleteRecord) {
+            remove(persistenceId, new SnapshotSelectionCriteria(body.getLong(), body.getLong(), body.getLong(), body.getLong()));
+        }
+    }
+
+    /**
+     * Appends the serialized snapshot, which is durable when this returns if fsync is on.
+     */
+    void save(SnapshotMetadata metadata, byte[] snapshot) throws IOException {
+        final byte[] id = metadata.persistenceId().getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer body = ByteBuffer.allocate(2 + id.length + 8 + 8 + 4 + snapshot.length);
+        body.putShort((short) id.length).put(id)
+                .putLong(metadata.sequenceNr())
+                .putLong(metadata.timestamp())
+                .putInt(snapshot.length).put(snapshot)
+                .flip();
+        synchronized (this) {
+            index(metadata, log.append(snapshotRecord, body));
+        }
+        if (fsync) {
+            log.force();
+        }
+    }
+
+    /**
+     * The newest snapshot that matches the criteria and its serialized form.
+     */
+    Optional<Map.Entry<SnapshotMetadata, byte[]>> load(String persistenceId, SnapshotSelectionCriteria criteria) {
+        Entry newest = null;
+        synchronized (this) {
+            for (Entry entry : persistenceIds.getOrDefault(persistenceId, new ArrayList<>())) {
+                if (criteria.matches(entry.metadata)) {
+                    newest = entry;
+                }
+            }
+        }
+        if (newest == null) {
+            return Optional.empty();
+        }
+
+        final ByteBuffer body = log.read(newest.position);
+        readString(body);
+        body.position(body.position() + 8 + 8);
+        final byte[] snapshot = new byte[body.getInt()];
+        body.get(snapshot);
+        return Optional.of(new HashMap.SimpleImmutableEntry<>(newest.metadata, snapshot));
+    }
+
+    void delete(String persistenceId, SnapshotSelectionCriteria criteria) throws IOException {
+        final byte[] id = persistenceId.getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer body = ByteBuffer.allocate(2 + id.length + 4 * 8);
+        body.putShort((short) id.length).put(id)
+                .putLong(criteria.maxSequenceNr())
+                .putLong(criteria.maxTimestamp())
+                .putLong(criteria.minSequenceNr())
+                .putLong(criteria.minTimestamp())
+                .flip();
+        synchronized (this) {
+            log.append(deleteRecord, body);
+            remove(persistenceId, criteria);
+        }
+        if (fsync) {
+            log.force();
+        }
+    }
+
+    private void index(SnapshotMetadata metadata, long position) {
+        final List<Entry> entries = persistenceIds.computeIfAbsent(metadata.persistenceId(), p -> new ArrayList<>());
+        int index = entries.size();
+        while (index > 0 && entries.get(index - 1).metadata.sequenceNr() > metadata.sequenceNr()) {
+            --index;
+        }
+        entries.add(index, new Entry(metadata, position));
+    }
+
+    private void remove(String persistenceId, SnapshotSelectionCriteria criteria) {
+        final List<Entry> entries = persistenceIds.get(persistenceId);
+        if (entries != null) {
+            entries.removeIf(entry -> criteria.matches(entry.metadata));
+            if (entries.isEmpty()) {
+                persistenceIds.remove(persistenceId);
+            }
+        }
+    }
+
+    private static String readString(ByteBuffer body) {
+        final byte[] bytes = new byte[body.getShort()];
+        body.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.force();
+        log.close();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%s, fsync %b]", getClass().getSimpleName(), log, fsync);
+    }
+}
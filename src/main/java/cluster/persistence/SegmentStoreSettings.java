@@ -0,0 +1,27 @@
+package cluster.persistence;
+
+import com.typesafe.config.Config;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+class SegmentStoreSettings {
+    final Path dir;
+    final int segmentSize;
+    final boolean fsync;
+
+    SegmentStoreSettings(Config config) {
+        dir = Paths.get(config.getString("dir"));
+        final long bytes = config.getBytes("segment-size");
+        if (bytes < 4096 || bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format("Segment size %d must be from 4k to 2g", bytes));
+        }
+        segmentSize = (int) bytes;
+        fsync = config.getBoolean("fsync");
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%s, segment size %d, fsync %b]", getClass().getSimpleName(), dir, segmentSize, fsync);
+    }
+}
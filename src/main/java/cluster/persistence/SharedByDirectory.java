@@ -0,0 +1,54 @@
+package cluster.persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stores that are opened once per directory and JVM and shared by every actor system in the JVM
+ * that uses the directory, such as the nodes that {@link Runner} starts in one JVM. The store is
+ * closed when the last user releases it.
+ */
+class SharedByDirectory<T extends Closeable> {
+    private final Map<Path, Shared<T>> stores = new HashMap<>();
+
+    interface Opener<T> {
+        T open(Path dir) throws IOException;
+    }
+
+    synchronized T acquire(Path dir, Opener<T> opener) {
+        final Path key = dir.toAbsolutePath().normalize();
+        Shared<T> shared = stores.get(key);
+        if (shared == null) {
+            try {
+                shared = new Shared<>(opener.open(key));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            stores.put(key, shared);
+        }
+        ++shared.users;
+        return shared.store;
+    }
+
+    synchronized void release(Path dir) throws IOException {
+        final Path key = dir.toAbsolutePath().normalize();
+        final Shared<T> shared = stores.get(key);
+        if (shared != null && --shared.users == 0) {
+            stores.remove(key);
+            shared.store.close();
+        }
+    }
+
+    private static class Shared<T> {
+        final T store;
+        int users;
+
+        Shared(T store) {
+            this.store = store;
+        }
+    }
+}
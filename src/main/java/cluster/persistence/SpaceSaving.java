@@ -0,0 +1,142 @@
+package cluster.persistence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the keys that were added most often in a fixed number of counters, with the Space-Saving
+ * algorithm of Metwally, Agrawal and El Abbadi. A key that is not counted yet takes over the counter
+ * with the smallest count and continues from that count, so a count is never below the true count
+ * of its key and above it by at most the count it took over. Every key that was added more often
+ * than 1 / capacity of all adds has a counter.
+ * <p>
+ * The counters are kept in a min-heap on their counts, so adding a key takes O(log capacity) time
+ * and no allocation once every counter is taken. It is not thread-safe.
+ */
+class SpaceSaving {
+    private final Counter[] heap;
+    private final Map<String, Counter> counters;
+    private int size;
+
+    SpaceSaving(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException(String.format("Capacity %d must be positive", capacity));
+        }
+        heap = new Counter[capacity];
+        counters = new HashMap<>(capacity * 2);
+    }
+
+    void add(String key) {
+        Counter counter = counters.get(key);
+        if (counter == null) {
+            if (size < heap.length) {
+                counter = new Counter(key, size);
+                heap[size++] = counter;
+                counters.put(key, counter);
+                ++counter.count;
+                siftUp(counter.position);
+                return;
+            }
+            counter = heap[0];
+            counters.remove(counter.key);
+            counter.key = key;
+            counters.put(key, counter);
+        }
+        ++counter.count;
+        siftDown(counter.position);
+    }
+
+    long count(String key) {
+        final Counter counter = counters.get(key);
+        return counter == null ? 0 : counter.count;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * The keys with the highest counts, highest first.
+     */
+    List<String> top(int count) {
+        final Counter[] sorted = Arrays.copyOf(heap, size);
+        Arrays.sort(sorted, (c1, c2) -> Long.compare(c2.count, c1.count));
+        final List<String> keys = new ArrayList<>(Math.min(count, size));
+        for (int i = 0; i < count && i < size; i++) {
+            keys.add(sorted[i].key);
+        }
+        return keys;
+    }
+
+    /**
+     * Halves every count and frees the counters whose count drops to zero.
+     */
+    void halve() {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            final Counter counter = heap[i];
+            counter.count >>= 1;
+            if (counter.count == 0) {
+                counters.remove(counter.key);
+            } else {
+                counter.position = kept;
+                heap[kept++] = counter;
+            }
+        }
+        Arrays.fill(heap, kept, size, null);
+        size = kept;
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+    private void siftUp(int position) {
+        final Counter counter = heap[position];
+        while (position > 0) {
+            final int parent = (position - 1) / 2;
+            if (heap[parent].count <= counter.count) {
+                break;
+            }
+            heap[position] = heap[parent];
+            heap[position].position = position;
+            position = parent;
+        }
+        heap[position] = counter;
+        counter.position = position;
+    }
+
+    private void siftDown(int position) {
+        final Counter counter = heap[position];
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heap[child + 1].count < heap[child].count) {
+                ++child;
+            }
+            if (heap[child].count >= counter.count) {
+                break;
+            }
+            heap[position] = heap[child];
+            heap[position].position = position;
+            position = child;
+        }
+        heap[position] = counter;
+        counter.position = position;
+    }
+
+    private static class Counter {
+        String key;
+        long count;
+        int position;
+
+        Counter(String key, int position) {
+            this.key = key;
+            this.position = position;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package cluster.persistence;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.cluster.Cluster;
+import akka.cluster.MemberStatus;
+import akka.cluster.sharding.ClusterSharding;
+import akka.cluster.sharding.ClusterShardingSettings;
+import akka.pattern.Patterns;
+import com.typesafe.config.Config;
+import org.HdrHistogram.Histogram;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.StreamSupport;
+
+/**
+ * Compares reading a page of entities from a node that does not host them, once as one query per
+ * entity sent concurrently through the sharding proxy, and once as one {@link EntityMessage.BatchQuery}
+ * through an {@link EntityBatchQueryActor}, which sends one message per shard. Both nodes run in
+ * this JVM and talk over loopback TCP.
+ */
+public class BatchQueryBenchmark {
+    private static final int entityCount = 5000;
+    private static final int pageSize = 500;
+    private static final int pageCount = 200;
+    private static final Duration timeout = Duration.ofSeconds(10);
+
+    public static void main(String[] args) throws Exception {
+        final ActorSystem owner = ActorSystem.create("batchquery", config("write-side"));
+        final ActorSystem querier = ActorSystem.create("batchquery", config());
+
+        try {
+            Cluster.get(owner).join(Cluster.get(owner).selfAddress());
+            Cluster.get(querier).join(Cluster.get(owner).selfAddress());
+            awaitMembersUp(querier, 2);
+
+            final EntityRouting routing = EntityRouting.get(owner);
+            ClusterSharding.get(owner).start("entity", EntityPersistenceActor.props(EntityPersistenceSettings.create(owner)),
+                    ClusterShardingSettings.create(owner).withRole("write-side"), routing.messageExtractor());
+            final ActorRef proxy = ClusterSharding.get(querier).startProxy("entity", Optional.of("write-side"), routing.messageExtractor());
+            final ActorRef batchQuery = querier.actorOf(EntityBatchQueryActor.props(EntityBatchQuerySettings.create(querier), proxy, proxy), "entityBatchQuery");
+
+            final EntityMessage.Amount amount = new EntityMessage.Amount(BigDecimal.ONE);
+            for (int first = 1; first <= entityCount; first += pageSize) {
+                final List<CompletableFuture<Object>> deposits = new ArrayList<>(pageSize);
+                for (int i = first; i < first + pageSize && i <= entityCount; i++) {
+                    deposits.add(ask(proxy, new EntityMessage.DepositCommand(new Entity.Id(String.valueOf(i)), amount)));
+                }
+                CompletableFuture.allOf(deposits.toArray(new CompletableFuture<?>[0])).get(1, TimeUnit.MINUTES);
+            }
+
+            final KeySpace keySpace = KeySpace.uniform(entityCount);
+            run("Single queries", keySpace, pageCount / 5, page -> singleQueries(proxy, page));
+            run("Single queries", keySpace, pageCount, page -> singleQueries(proxy, page)).print();
+            run("Batch query", keySpace, pageCount / 5, page -> batchQuery(batchQuery, page));
+            run("Batch query", keySpace, pageCount, page -> batchQuery(batchQuery, page)).print();
+        } finally {
+            querier.terminate();
+            owner.terminate();
+            querier.getWhenTerminated().toCompletableFuture().get(1, TimeUnit.MINUTES);
+            owner.getWhenTerminated().toCompletableFuture().get(1, TimeUnit.MINUTES);
+        }
+    }
+
+    private static Result run(String name, KeySpace keySpace, int pages, PageQuery pageQuery) throws Exception {
+        final Result result = new Result(name);
+        final long start = System.nanoTime();
+        for (int p = 0; p < pages; p++) {
+            final Map<String, Entity.Id> distinct = new LinkedHashMap<>();
+            while (distinct.size() < pageSize) {
+                final Entity.Id id = keySpace.nextId();
+                distinct.putIfAbsent(id.id, id);
+            }
+            final List<Entity.Id> page = new ArrayList<>(distinct.values());
+
+            final long t1 = System.nanoTime();
+            final int found = pageQuery.query(page);
+            result.latency.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - t1));
+            if (found != pageSize) {
+                throw new IllegalStateException(String.format("%s found %d of %d entities", name, found, pageSize));
+            }
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        result.pages = pages;
+        return result;
+    }
+
+    private static int singleQueries(ActorRef proxy, List<Entity.Id> page) throws Exception {
+        final List<CompletableFuture<Object>> replies = new ArrayList<>(page.size());
+        for (Entity.Id id : page) {
+            replies.add(ask(proxy, new EntityMessage.Query(id)));
+        }
+        int found = 0;
+        for (CompletableFuture<Object> reply : replies) {
+            if (reply.get(timeout.toMillis(), TimeUnit.MILLISECONDS) instanceof EntityMessage.QueryAck) {
+                ++found;
+            }
+        }
+        return found;
+    }
+
+    private static int batchQuery(ActorRef batchQuery, List<Entity.Id> page) throws Exception {
+        final Object reply = ask(batchQuery, new EntityMessage.BatchQuery(page)).get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        if (!(reply instanceof EntityMessage.BatchQueryAck) || !((EntityMessage.BatchQueryAck) reply).unanswered.isEmpty()) {
+            throw new IllegalStateException(String.format("Unexpected batch query reply %s", reply));
+        }
+        return ((EntityMessage.BatchQueryAck) reply).found.size();
+    }
+
+    private static CompletableFuture<Object> ask(ActorRef destination, Object message) {
+        return Patterns.ask(destination, message, timeout).toCompletableFuture();
+    }
+
+    private static void awaitMembersUp(ActorSystem actorSystem, int members) throws InterruptedException {
+        final Cluster cluster = Cluster.get(actorSystem);
+        while (StreamSupport.stream(cluster.state().getMembers().spliterator(), false)
+                .filter(member -> member.status().equals(MemberStatus.up()))
+                .count() < members) {
+            Thread.sleep(100);
+        }
+    }
+
+    private static Config config(String... roles) {
+        return BenchmarkConfig.local(
+                String.format("akka.actor.provider = cluster%n") +
+                        String.format("akka.remote.netty.tcp.port = 0%n") +
+                        String.format("akka.cluster.seed-nodes = []%n") +
+                        String.format("akka.cluster.roles = [%s]%n", String.join(",", roles)) +
+                        String.format("akka.cluster.jmx.multi-mbeans-in-same-jvm = on%n") +
+                        String.format("entity-persistence.snapshot.every-n-events = 0%n"));
+    }
+
+    private interface PageQuery {
+        int query(List<Entity.Id> page) throws Exception;
+    }
+
+    private static class Result {
+        final String name;
+        final Histogram latency = new Histogram(3);
+        long elapsedNanos;
+        int pages;
+
+        Result(String name) {
+            this.name = name;
+        }
+
+        void print() {
+            final double seconds = elapsedNanos / 1000000000.0;
+            System.out.println();
+            System.out.printf("========== %s ==========%n", name);
+            System.out.printf("Pages %,d of %,d entities in %.1fs, %,.0f entities/s%n", pages, pageSize, seconds, pages * pageSize / seconds);
+            System.out.printf("Page latency us p50 %,d p90 %,d p99 %,d max %,d%n",
+                    latency.getValueAtPercentile(50), latency.getValueAtPercentile(90),
+                    latency.getValueAtPercentile(99), latency.getMaxValue());
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package cluster.persistence;
+
+import akka.persistence.journal.Tagged;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import java.util.UUID;
+
+/**
+ * Configuration shared by the benchmarks that run entities in a single local actor system against
+ * the in-memory journal and the local file snapshot store, with logging reduced to warnings.
+ */
+class BenchmarkConfig {
+    static Config local(String overrides) {
+        return local(ConfigFactory.parseString(overrides));
+    }
+
+    static Config local(Config overrides) {
+        return ConfigFactory.load(overrides
+                .withFallback(ConfigFactory.parseString(
+                        String.format("akka.loglevel = WARNING%n") +
+                                String.format("akka.stdout-loglevel = WARNING%n") +
+                                String.format("akka.log-dead-letters = off%n") +
+                                String.format("akka.actor.provider = local%n") +
+                                String.format("akka.extensions = []%n") +
+                                String.format("akka.persistence.journal.plugin = akka.persistence.journal.inmem%n") +
+                                String.format("akka.persistence.journal.inmem.event-adapters.untag = \"%s\"%n", UntaggingEventAdapter.class.getName()) +
+                                String.format("akka.persistence.journal.inmem.event-adapter-bindings.\"%s\" = untag%n", Tagged.class.getName()) +
+                                String.format("akka.persistence.snapshot-store.plugin = akka.persistence.snapshot-store.local%n") +
+                                String.format("akka.persistence.snapshot-store.local.dir = target/snapshots/%s%n", UUID.randomUUID()) +
+                                String.format("akka_management_http_port = 0%n")))
+                .withFallback(ConfigFactory.parseResourcesAnySyntax("application")));
+    }
+}
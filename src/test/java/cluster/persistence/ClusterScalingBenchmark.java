@@ -0,0 +1,356 @@
+package cluster.persistence;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.cluster.Cluster;
+import akka.cluster.MemberStatus;
+import akka.cluster.sharding.ShardRegion;
+import akka.dispatch.DispatcherPrerequisites;
+import akka.dispatch.ExecutionContexts;
+import akka.dispatch.ExecutorServiceConfigurator;
+import akka.dispatch.ExecutorServiceFactory;
+import akka.dispatch.MonitorableThreadFactory;
+import akka.pattern.Patterns;
+import com.typesafe.config.Config;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+/**
+ * Starts 1 to N write-side nodes in one JVM with {@link Runner#startupClusterNode(ActorSystem)},
+ * against the segment journal in a fresh directory per run, and runs the same scripted workload
+ * through their shard regions at each node count. Writes throughput, latency percentiles and cpu
+ * per node of every node count to a JSON results file, by default target/cluster-scaling.json, so
+ * that runs can be compared to catch regressions.
+ * <p>
+ * The workload keeps a fixed number of requests in flight per node, spread over the shard regions
+ * of all nodes, so the offered load grows with the nodes. A warm-up, in which the shards are
+ * allocated and the entities recover, is not measured. The load actors that Runner starts on every
+ * node are idle, as entity-load.rate is 0, and the read side projection is off.
+ * <p>
+ * The nodes share the process, so the cpu of a node is the cpu time of the threads of its default
+ * dispatcher and of its entity dispatchers, which run its actors. Their thread names start with the
+ * node, see {@link NodeExecutor}. The cpu of the other dispatchers, such as remoting and the journal,
+ * is reported once for the process as shared.
+ * <p>
+ * Usage: ClusterScalingBenchmark [node counts, default 1,2,3] [results file]
+ */
+public class ClusterScalingBenchmark {
+    private static final int entityCount = 10000;
+    private static final int concurrencyPerNode = 16;
+    private static final int depositWeight = 25;
+    private static final int withdrawalWeight = 25;
+    private static final int queryWeight = 50;
+    private static final Duration warmUpTime = Duration.ofSeconds(10);
+    private static final Duration measureTime = Duration.ofSeconds(30);
+    private static final Duration timeout = Duration.ofSeconds(5);
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        final int[] nodeCounts = args.length > 0
+                ? Arrays.stream(args[0].split(",")).mapToInt(Integer::parseInt).toArray()
+                : new int[]{1, 2, 3};
+        final Path resultsFile = Paths.get(args.length > 1 ? args[1] : "target/cluster-scaling.json");
+
+        final List<String> runs = new ArrayList<>();
+        for (int nodeCount : nodeCounts) {
+            runs.add(run(nodeCount));
+        }
+
+        final String results = String.format(Locale.ROOT,
+                "{%n  \"benchmark\": \"%s\",%n  \"timestamp\": \"%s\",%n  \"processors\": %d,%n  \"workload\": %s,%n  \"runs\": [%n%s%n  ]%n}%n",
+                ClusterScalingBenchmark.class.getSimpleName(), Instant.now(), Runtime.getRuntime().availableProcessors(),
+                workload(), String.join(String.format(",%n"), runs));
+        if (resultsFile.getParent() != null) {
+            Files.createDirectories(resultsFile.getParent());
+        }
+        Files.write(resultsFile, results.getBytes(StandardCharsets.UTF_8));
+        System.out.println();
+        System.out.printf("Results written to %s%n", resultsFile.toAbsolutePath());
+    }
+
+    private static String workload() {
+        return String.format(Locale.ROOT,
+                "{\"entities\": %d, \"distribution\": \"uniform\", \"concurrencyPerNode\": %d, \"mix\": {\"deposit\": %d, \"withdrawal\": %d, \"query\": %d}, \"warmUpSeconds\": %d, \"measureSeconds\": %d, \"timeoutSeconds\": %d}",
+                entityCount, concurrencyPerNode, depositWeight, withdrawalWeight, queryWeight,
+                warmUpTime.getSeconds(), measureTime.getSeconds(), timeout.getSeconds());
+    }
+
+    private static String run(int nodeCount) throws Exception {
+        final String journalDir = String.format("target/cluster-scaling/%s", UUID.randomUUID());
+        final List<Node> nodes = new ArrayList<>();
+        try {
+            for (int i = 0; i < nodeCount; i++) {
+                nodes.add(new Node(i + 1, journalDir));
+            }
+            final Cluster first = Cluster.get(nodes.get(0).actorSystem);
+            nodes.forEach(node -> Cluster.get(node.actorSystem).join(first.selfAddress()));
+            awaitMembersUp(nodes.get(0).actorSystem, nodeCount);
+            nodes.forEach(node -> node.shardRegion = Runner.startupClusterNode(node.actorSystem));
+
+            final Workload workload = new Workload(nodes);
+            workload.run(warmUpTime);
+            workload.reset();
+            nodes.forEach(Node::startCpu);
+            final long processCpuStart = processCpuNanos();
+            final long elapsedNanos = workload.run(measureTime);
+            final long processCpuNanos = processCpuNanos() - processCpuStart;
+
+            final Histogram latency = workload.latency.getIntervalHistogram();
+            final double seconds = elapsedNanos / 1000000000.0;
+            final double throughput = latency.getTotalCount() / seconds;
+            long nodesCpuNanos = 0;
+            final List<String> nodeResults = new ArrayList<>();
+            for (Node node : nodes) {
+                final long cpuNanos = node.cpuNanos();
+                nodesCpuNanos += cpuNanos;
+                nodeResults.add(String.format(Locale.ROOT,
+                        "        {\"node\": %d, \"address\": \"%s\", \"shards\": %d, \"cpuSeconds\": %.3f, \"cpuUtilization\": %.3f}",
+                        node.number, node.actorSystem.provider().getDefaultAddress(), node.shards(),
+                        cpuNanos / 1000000000.0, cpuNanos / (double) elapsedNanos));
+            }
+
+            System.out.println();
+            System.out.printf("========== %d node%s ==========%n", nodeCount, nodeCount == 1 ? "" : "s");
+            System.out.printf("%,.0f requests/s, timeouts %d, latency ms p50 %.3f p90 %.3f p99 %.3f p99.9 %.3f max %.3f, process cpu %.1fs%n",
+                    throughput, workload.timeouts.get(), millis(latency.getValueAtPercentile(50)), millis(latency.getValueAtPercentile(90)),
+                    millis(latency.getValueAtPercentile(99)), millis(latency.getValueAtPercentile(99.9)), millis(latency.getMaxValue()),
+                    processCpuNanos / 1000000000.0);
+
+            return String.format(Locale.ROOT,
+                    "    {%n      \"nodes\": %d,%n      \"seconds\": %.3f,%n      \"requests\": %d,%n      \"timeouts\": %d,%n      \"throughput\": %.1f,%n" +
+                            "      \"latencyMillis\": {\"p50\": %.3f, \"p90\": %.3f, \"p99\": %.3f, \"p999\": %.3f, \"max\": %.3f},%n" +
+                            "      \"processCpuSeconds\": %.3f,%n      \"sharedCpuSeconds\": %.3f,%n      \"nodeResults\": [%n%s%n      ]%n    }",
+                    nodeCount, seconds, latency.getTotalCount(), workload.timeouts.get(), throughput,
+                    millis(latency.getValueAtPercentile(50)), millis(latency.getValueAtPercentile(90)),
+                    millis(latency.getValueAtPercentile(99)), millis(latency.getValueAtPercentile(99.9)), millis(latency.getMaxValue()),
+                    processCpuNanos / 1000000000.0, Math.max(0, processCpuNanos - nodesCpuNanos) / 1000000000.0,
+                    String.join(String.format(",%n"), nodeResults));
+        } finally {
+            for (Node node : nodes) {
+                node.terminate();
+            }
+        }
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+
+    private static long processCpuNanos() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+    }
+
+    /**
+     * Keeps concurrencyPerNode requests in flight per node, each lane sending its next request to
+     * the shard region of the next node as soon as its previous one is answered or timed out.
+     */
+    private static class Workload {
+        private final List<Node> nodes;
+        private final KeySpace keySpace = KeySpace.uniform(entityCount);
+        private final Recorder latency = new Recorder(3);
+        private final AtomicLong timeouts = new AtomicLong();
+
+        Workload(List<Node> nodes) {
+            this.nodes = nodes;
+        }
+
+        void reset() {
+            latency.reset();
+            timeouts.set(0);
+        }
+
+        long run(Duration time) throws Exception {
+            final long start = System.nanoTime();
+            final long end = start + time.toNanos();
+            final List<CompletableFuture<Void>> lanes = new ArrayList<>();
+            for (int lane = 0; lane < concurrencyPerNode * nodes.size(); lane++) {
+                final CompletableFuture<Void> done = new CompletableFuture<>();
+                send(lane, end, done);
+                lanes.add(done);
+            }
+            CompletableFuture.allOf(lanes.toArray(new CompletableFuture<?>[0])).get(time.toMillis() + 2 * timeout.toMillis(), TimeUnit.MILLISECONDS);
+            return System.nanoTime() - start;
+        }
+
+        private void send(int lane, long end, CompletableFuture<Void> done) {
+            if (System.nanoTime() >= end) {
+                done.complete(null);
+                return;
+            }
+            final ActorRef shardRegion = nodes.get(lane % nodes.size()).shardRegion;
+            final long sentNanoTime = System.nanoTime();
+            final CompletionStage<Object> reply = Patterns.ask(shardRegion, request(), timeout);
+            reply.whenComplete((message, error) -> {
+                if (error == null) {
+                    latency.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sentNanoTime));
+                } else {
+                    timeouts.incrementAndGet();
+                }
+                send(lane, end, done);
+            });
+        }
+
+        private Object request() {
+            final Entity.Id id = keySpace.nextId();
+            final int pick = ThreadLocalRandom.current().nextInt(depositWeight + withdrawalWeight + queryWeight);
+            if (pick < depositWeight) {
+                return new EntityMessage.DepositCommand(id, new EntityMessage.Amount(BigDecimal.ONE));
+            } else if (pick < depositWeight + withdrawalWeight) {
+                return new EntityMessage.WithdrawalCommand(id, new EntityMessage.Amount(BigDecimal.ONE));
+            } else {
+                return new EntityMessage.Query(id);
+            }
+        }
+    }
+
+    /**
+     * A write-side node whose default dispatcher runs on a pool of its own, like the fork join pool
+     * that Akka would start, and whose entity dispatchers run on {@link NodeExecutor}, so that the
+     * threads of the node are named after it and their cpu time can be told apart from the other
+     * nodes.
+     */
+    private static class Node {
+        final int number;
+        final String threadPrefix;
+        final ActorSystem actorSystem;
+        final ForkJoinPool pool;
+        final Map<Long, Long> cpuStart = new HashMap<>();
+        ActorRef shardRegion;
+
+        Node(int number, String journalDir) {
+            this.number = number;
+            threadPrefix = String.format("node-%d-", number);
+            final int parallelism = Math.min(64, Math.max(8, Runtime.getRuntime().availableProcessors() * 3));
+            final AtomicInteger poolThreads = new AtomicInteger();
+            pool = new ForkJoinPool(parallelism, forkJoinPool -> {
+                final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+                thread.setName(String.format("%sdispatcher-%d", threadPrefix, poolThreads.incrementAndGet()));
+                return thread;
+            }, null, true);
+            actorSystem = ActorSystem.create("scaling", config(threadPrefix, journalDir), ClusterScalingBenchmark.class.getClassLoader(),
+                    ExecutionContexts.fromExecutorService(pool));
+        }
+
+        void startCpu() {
+            cpuStart.clear();
+            for (ThreadInfo thread : nodeThreads()) {
+                cpuStart.put(thread.getThreadId(), Math.max(0, threads.getThreadCpuTime(thread.getThreadId())));
+            }
+        }
+
+        /**
+         * The cpu time of the node's threads since startCpu. Threads that a pool retired in the
+         * meantime are left out.
+         */
+        long cpuNanos() {
+            long nanos = 0;
+            for (ThreadInfo thread : nodeThreads()) {
+                final long cpu = threads.getThreadCpuTime(thread.getThreadId());
+                if (cpu >= 0) {
+                    nanos += cpu - cpuStart.getOrDefault(thread.getThreadId(), 0L);
+                }
+            }
+            return nanos;
+        }
+
+        private List<ThreadInfo> nodeThreads() {
+            return Arrays.stream(threads.getThreadInfo(threads.getAllThreadIds()))
+                    .filter(thread -> thread != null && thread.getThreadName().startsWith(threadPrefix))
+                    .collect(Collectors.toList());
+        }
+
+        int shards() throws Exception {
+            final ShardRegion.CurrentShardRegionState state = (ShardRegion.CurrentShardRegionState) Patterns.ask(shardRegion,
+                    ShardRegion.getShardRegionStateInstance(), timeout).toCompletableFuture().get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+            return state.getShards().size();
+        }
+
+        void terminate() throws Exception {
+            actorSystem.terminate();
+            actorSystem.getWhenTerminated().toCompletableFuture().get(1, TimeUnit.MINUTES);
+            pool.shutdown();
+        }
+    }
+
+    private static void awaitMembersUp(ActorSystem actorSystem, int members) throws InterruptedException {
+        final Cluster cluster = Cluster.get(actorSystem);
+        while (StreamSupport.stream(cluster.state().getMembers().spliterator(), false)
+                .filter(member -> member.status().equals(MemberStatus.up()))
+                .count() < members) {
+            Thread.sleep(100);
+        }
+    }
+
+    private static Config config(String threadPrefix, String journalDir) {
+        final StringBuilder dispatchers = new StringBuilder();
+        for (String dispatcher : EntityDispatchers.all) {
+            dispatchers.append(String.format("%s.executor = \"%s\"%n", dispatcher, NodeExecutor.class.getName()))
+                    .append(String.format("%s.thread-prefix = \"%s\"%n", dispatcher, threadPrefix));
+        }
+        return BenchmarkConfig.local(dispatchers +
+                String.format("akka.actor.provider = cluster%n") +
+                        String.format("akka.remote.netty.tcp.port = 0%n") +
+                        String.format("akka.cluster.seed-nodes = []%n") +
+                        String.format("akka.cluster.roles = [write-side]%n") +
+                        String.format("akka.cluster.jmx.multi-mbeans-in-same-jvm = on%n") +
+                        String.format("akka.persistence.journal.plugin = segment-journal%n") +
+                        String.format("segment-journal.dir = \"%s\"%n", journalDir) +
+                        String.format("entity-projection.enabled = off%n") +
+                        String.format("entity-load.rate = 0%n") +
+                        String.format("entity-passivation.report-interval = 1h%n"));
+    }
+
+    /**
+     * Runs an entity dispatcher of a node on {@link InstrumentedExecutor}, with thread names that
+     * start with the thread-prefix of the dispatcher, as the nodes share the actor system name that
+     * Akka names the threads after.
+     */
+    public static class NodeExecutor extends ExecutorServiceConfigurator {
+        private final InstrumentedExecutor executor;
+        private final String threadPrefix;
+
+        public NodeExecutor(Config config, DispatcherPrerequisites prerequisites) {
+            super(config, prerequisites);
+            executor = new InstrumentedExecutor(config, prerequisites);
+            threadPrefix = config.getString("thread-prefix");
+        }
+
+        @Override
+        public ExecutorServiceFactory createExecutorServiceFactory(String id, ThreadFactory threadFactory) {
+            if (threadFactory instanceof MonitorableThreadFactory) {
+                final MonitorableThreadFactory monitorable = (MonitorableThreadFactory) threadFactory;
+                return executor.createExecutorServiceFactory(id, monitorable.withName(threadPrefix + monitorable.name()));
+            }
+            return executor.createExecutorServiceFactory(id, threadFactory);
+        }
+    }
+}
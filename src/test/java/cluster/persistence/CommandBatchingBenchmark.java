@@ -0,0 +1,96 @@
+package cluster.persistence;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+
+import java.math.BigDecimal;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Floods a single hot entity with commands and measures how fast they are acknowledged, first with
+ * one persist per command and then with command batching at increasing batch sizes.
+ */
+public class CommandBatchingBenchmark {
+    private static final int commandCount = 100000;
+
+    public static void main(String[] args) throws Exception {
+        testCommandThroughput(false, 1);
+        testCommandThroughput(true, 1);
+        testCommandThroughput(true, 10);
+        testCommandThroughput(true, 100);
+        testCommandThroughput(true, 1000);
+    }
+
+    private static void testCommandThroughput(boolean batching, int maxBatchSize) throws Exception {
+        final ActorSystem actorSystem = ActorSystem.create("batching", BenchmarkConfig.local(
+                String.format("entity-persistence.batching.enabled = %b%n", batching) +
+                        String.format("entity-persistence.batching.max-batch-size = %d%n", maxBatchSize) +
+                        String.format("entity-persistence.snapshot.every-n-events = 0%n")));
+
+        try {
+            final ActorRef entity = actorSystem.actorOf(EntityPersistenceActor.props(EntityPersistenceSettings.create(actorSystem)), "1");
+
+            runCommands(actorSystem, entity, commandCount / 10);
+            final long elapsedNanos = runCommands(actorSystem, entity, commandCount);
+
+            System.out.println();
+            System.out.printf("========== %s ==========%n", batching ? String.format("Batching, max batch size %,d", maxBatchSize) : "No batching");
+            System.out.printf("Acknowledged %,d commands in %.3fs%n", commandCount, elapsedNanos / 1000000000.0);
+            System.out.printf("Throughput %,.0f commands/s%n", commandCount / (elapsedNanos / 1000000000.0));
+        } finally {
+            actorSystem.terminate();
+            actorSystem.getWhenTerminated().toCompletableFuture().get(1, TimeUnit.MINUTES);
+        }
+    }
+
+    private static long runCommands(ActorSystem actorSystem, ActorRef entity, int count) throws Exception {
+        final CompletableFuture<Long> done = new CompletableFuture<>();
+        final ActorRef ackCounter = actorSystem.actorOf(AckCounter.props(count, done));
+
+        final long t1 = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            entity.tell(new EntityMessage.DepositCommand(new Entity.Id("1"), new EntityMessage.Amount(BigDecimal.ONE)), ackCounter);
+        }
+        final long t2 = done.get(5, TimeUnit.MINUTES);
+
+        actorSystem.stop(ackCounter);
+        return t2 - t1;
+    }
+
+    private static class AckCounter extends AbstractActor {
+        private final int expected;
+        private final CompletableFuture<Long> done;
+        private int received;
+        private long lastCommandTime = Long.MIN_VALUE;
+
+        AckCounter(int expected, CompletableFuture<Long> done) {
+            this.expected = expected;
+            this.done = done;
+        }
+
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .match(EntityMessage.CommandAck.class, this::commandAck)
+                    .build();
+        }
+
+        private void commandAck(EntityMessage.CommandAck commandAck) {
+            if (commandAck.commandTime < lastCommandTime) {
+                done.completeExceptionally(new IllegalStateException(String.format("Out of order %s", commandAck)));
+            }
+            lastCommandTime = commandAck.commandTime;
+
+            if (++received == expected) {
+                done.complete(System.nanoTime());
+            }
+        }
+
+        static Props props(int expected, CompletableFuture<Long> done) {
+            return Props.create(AckCounter.class, expected, done);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package cluster.persistence;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.NotSerializableException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Round trips every message of {@link CompactSerializer} through the byte array and the byte buffer
+ * methods, and reads the version 1 layouts in src/test/resources/compact-v1, which were written by
+ * hand from the layouts: a deposit of 123.45 for entity 12345 and a withdrawal of 23.40 for entity
+ * account-7, both at 2019-06-01T12:00:00.123456789Z, a snapshot of entity 12345 with a balance of
+ * 100.05, and a deposit command of 1.00 for entity 42 with request id 300 and message nano time
+ * 123456789.
+ */
+class CompactSerializerTest {
+    private static final CompactSerializer serializer = new CompactSerializer();
+    private static final Instant time = Instant.parse("2019-06-01T12:00:00.123456789Z");
+
+    @Test
+    void roundTripsEveryManifestThroughByteArrays() throws Exception {
+        for (Object message : messages()) {
+            final String manifest = serializer.manifest(message);
+            final byte[] bytes = serializer.toBinary(message);
+            final Object read = serializer.fromBinary(bytes, manifest);
+
+            assertSame(message.getClass(), read.getClass(), manifest);
+            assertArrayEquals(bytes, serializer.toBinary(read), manifest);
+        }
+    }
+
+    @Test
+    void roundTripsEveryManifestThroughByteBuffers() throws Exception {
+        for (Object message : messages()) {
+            final String manifest = serializer.manifest(message);
+            final ByteBuffer buffer = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+            serializer.toBinary(message, buffer);
+            assertEquals(ByteOrder.LITTLE_ENDIAN, buffer.order(), manifest);
+            buffer.flip();
+
+            final byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            assertArrayEquals(serializer.toBinary(message), bytes, manifest);
+
+            final Object read = serializer.fromBinary(buffer, manifest);
+            assertEquals(ByteOrder.LITTLE_ENDIAN, buffer.order(), manifest);
+            assertEquals(0, buffer.remaining(), manifest);
+            assertSame(message.getClass(), read.getClass(), manifest);
+            assertArrayEquals(bytes, serializer.toBinary(read), manifest);
+        }
+    }
+
+    @Test
+    void readsVersion1Layouts() throws Exception {
+        final EntityMessage.DepositEvent depositEvent = (EntityMessage.DepositEvent)
+                serializer.fromBinary(layout("deposit-event"), CompactSerializer.depositEventManifest);
+        assertEquals("12345", depositEvent.id.id);
+        assertEquals(12345, depositEvent.amount.minorUnits);
+        assertEquals(time, depositEvent.time);
+
+        final EntityMessage.WithdrawalEvent withdrawalEvent = (EntityMessage.WithdrawalEvent)
+                serializer.fromBinary(layout("withdrawal-event"), CompactSerializer.withdrawalEventManifest);
+        assertEquals("account-7", withdrawalEvent.id.id);
+        assertEquals(2340, withdrawalEvent.amount.minorUnits);
+        assertEquals(time, withdrawalEvent.time);
+
+        final Entity entity = (Entity) serializer.fromBinary(layout("entity-snapshot"), CompactSerializer.entityManifest);
+        assertEquals("12345", entity.id.id);
+        assertEquals(10005, entity.balance.minorUnits);
+
+        final EntityMessage.DepositCommand depositCommand = (EntityMessage.DepositCommand)
+                serializer.fromBinary(layout("deposit-command"), CompactSerializer.depositCommandManifest);
+        assertEquals(123456789, depositCommand.messageNanoTime);
+        assertEquals(300, depositCommand.requestId);
+        assertEquals("42", depositCommand.id.id);
+        assertEquals(100, depositCommand.amount.minorUnits);
+    }
+
+    @Test
+    void writesVersion1Layouts() throws Exception {
+        assertArrayEquals(layout("deposit-event"), serializer.toBinary(
+                new EntityMessage.DepositEvent(new Entity.Id("12345"), EntityMessage.Amount.ofMinorUnits(12345), time)));
+        assertArrayEquals(layout("withdrawal-event"), serializer.toBinary(
+                new EntityMessage.WithdrawalEvent(new Entity.Id("account-7"), EntityMessage.Amount.ofMinorUnits(2340), time)));
+        assertArrayEquals(layout("entity-snapshot"), serializer.toBinary(Entity.deposit("12345", 10005)));
+        assertArrayEquals(layout("deposit-command"), serializer.toBinary(
+                new EntityMessage.DepositCommand(new Entity.Id("42"), EntityMessage.Amount.ofMinorUnits(100), 300, 123456789)));
+    }
+
+    @Test
+    void rejectsMalformedInput() {
+        final byte[] deposit = layout("deposit-event");
+        assertThrows(NotSerializableException.class,
+                () -> serializer.fromBinary(Arrays.copyOf(deposit, deposit.length - 1), CompactSerializer.depositEventManifest));
+        assertThrows(NotSerializableException.class,
+                () -> serializer.fromBinary(new byte[]{1, 0, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1}, CompactSerializer.entityManifest));
+        assertThrows(NotSerializableException.class,
+                () -> serializer.fromBinary(new byte[]{1, 1, 100, 'a'}, CompactSerializer.entityManifest));
+        assertThrows(NotSerializableException.class,
+                () -> serializer.fromBinary(new byte[]{2}, CompactSerializer.entityManifest));
+        assertThrows(NotSerializableException.class,
+                () -> serializer.fromBinary(new byte[]{1}, "unknown"));
+    }
+
+    /**
+     * One message per manifest, with numeric and text ids, negative balances and request ids.
+     */
+    private static List<Object> messages() {
+        final Entity.Id numericId = new Entity.Id("12345");
+        final Entity.Id textId = new Entity.Id("account-7");
+        final EntityMessage.Amount amount = EntityMessage.Amount.ofMinorUnits(12345);
+        final EntityMessage.DepositCommand depositCommand = new EntityMessage.DepositCommand(numericId, amount, 17);
+        final EntityMessage.WithdrawalCommand withdrawalCommand = new EntityMessage.WithdrawalCommand(textId, amount, 18);
+        final EntityMessage.Query query = new EntityMessage.Query(textId, 19);
+        final List<Entity.Id> ids = Arrays.asList(numericId, textId, new Entity.Id("007"));
+        final List<Entity> entities = Arrays.asList(Entity.deposit("1", 100), Entity.withdrawal("account-8", 250));
+        return Arrays.asList(
+                depositCommand,
+                withdrawalCommand,
+                query,
+                EntityMessage.QueryAckNotFound.from(query),
+                new EntityMessage.DepositEvent(numericId, amount, time),
+                new EntityMessage.WithdrawalEvent(textId, amount, time),
+                EntityMessage.CommandAck.from(depositCommand, new EntityMessage.DepositEvent(depositCommand)),
+                EntityMessage.CommandAck.from(withdrawalCommand, new EntityMessage.WithdrawalEvent(withdrawalCommand)),
+                EntityMessage.QueryAck.from(query, Entity.withdrawal("account-7", 100)),
+                Entity.deposit("12345", Long.MAX_VALUE),
+                new EntityMessage.BatchQuery(ids),
+                new EntityMessage.ShardQuery(Long.MAX_VALUE, ids),
+                new EntityMessage.ShardQueryAck(20, entities, Collections.singletonList(textId)),
+                new EntityMessage.ShardQueryAck(21, entities, Collections.emptyList(), Collections.singletonList(numericId)),
+                new EntityMessage.BatchQueryAck(System.nanoTime(), entities, Collections.emptyList()),
+                new EntityMessage.BatchQueryAck(System.nanoTime(), entities, Collections.singletonList(textId), ids));
+    }
+
+    private static byte[] layout(String name) {
+        try {
+            return Files.readAllBytes(Paths.get(CompactSerializerTest.class.getResource(String.format("/compact-v1/%s.bin", name)).toURI()));
+        } catch (Exception e) {
+            throw new AssertionError(name, e);
+        }
+    }
+}
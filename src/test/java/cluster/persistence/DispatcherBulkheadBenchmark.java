@@ -0,0 +1,135 @@
+package cluster.persistence;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.pattern.Patterns;
+import org.HdrHistogram.Histogram;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Floods the entities with commands and meanwhile measures the round trip to an actor that stands
+ * in for the query side, first with every actor on the default dispatcher and then with the
+ * entities, the query side and the clients on their {@link EntityDispatchers}. With one
+ * dispatcher the queries wait behind the runs of the entities in its queue, with the bulkheads
+ * they have threads of their own. Prints the dispatcher_ metrics of the second run.
+ */
+public class DispatcherBulkheadBenchmark {
+    private static final int entityCount = 2000;
+    private static final int commandsInFlight = 2000;
+    private static final Duration warmUpTime = Duration.ofSeconds(5);
+    private static final Duration runTime = Duration.ofSeconds(15);
+    private static final Duration timeout = Duration.ofSeconds(10);
+
+    public static void main(String[] args) throws Exception {
+        testQueryLatency("Default dispatcher", false);
+        testQueryLatency("Entity dispatchers", true);
+    }
+
+    private static void testQueryLatency(String name, boolean bulkheads) throws Exception {
+        final ActorSystem actorSystem = ActorSystem.create("bulkhead", BenchmarkConfig.local(
+                String.format("entity-persistence.snapshot.every-n-events = 0%n")));
+        try {
+            final EntityPersistenceSettings settings = EntityPersistenceSettings.create(actorSystem);
+            final ActorRef[] entities = new ActorRef[entityCount];
+            for (int i = 0; i < entityCount; i++) {
+                entities[i] = actorSystem.actorOf(dispatcher(EntityPersistenceActor.props(settings), bulkheads), Integer.toString(i + 1));
+            }
+            final ActorRef query = actorSystem.actorOf(dispatcher(Echo.props(EntityDispatchers.query), bulkheads), "query");
+            final ActorRef flood = actorSystem.actorOf(dispatcher(Flood.props(entities), bulkheads), "flood");
+
+            ping(query, warmUpTime);
+            EntityMetrics.get(actorSystem).scrape();
+            final Histogram latency = ping(query, runTime);
+            final String metrics = EntityMetrics.get(actorSystem).scrape();
+            actorSystem.stop(flood);
+
+            System.out.println();
+            System.out.printf("========== %s ==========%n", name);
+            System.out.printf("Query round trips %,d while flooding %,d entities, latency ms p50 %.3f p90 %.3f p99 %.3f max %.3f%n",
+                    latency.getTotalCount(), entityCount, latency.getValueAtPercentile(50) / 1000.0, latency.getValueAtPercentile(90) / 1000.0,
+                    latency.getValueAtPercentile(99) / 1000.0, latency.getMaxValue() / 1000.0);
+            if (bulkheads) {
+                Arrays.stream(metrics.split("\n"))
+                        .filter(line -> line.startsWith("dispatcher_"))
+                        .forEach(System.out::println);
+            }
+        } finally {
+            actorSystem.terminate();
+            actorSystem.getWhenTerminated().toCompletableFuture().get(1, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Moves the actors of the tiers to the default dispatcher, unless the bulkheads are measured.
+     */
+    private static Props dispatcher(Props props, boolean bulkheads) {
+        return bulkheads ? props : props.withDispatcher("akka.actor.default-dispatcher");
+    }
+
+    private static Histogram ping(ActorRef query, Duration time) throws Exception {
+        final Histogram latency = new Histogram(3);
+        final long start = System.nanoTime();
+        while (System.nanoTime() - start < time.toNanos()) {
+            final long sent = System.nanoTime();
+            Patterns.ask(query, sent, timeout).toCompletableFuture().get();
+            latency.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sent));
+            Thread.sleep(1);
+        }
+        return latency;
+    }
+
+    private static class Echo extends AbstractActor {
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .matchAny(message -> sender().tell(message, self()))
+                    .build();
+        }
+
+        static Props props(String dispatcher) {
+            return Props.create(Echo.class).withDispatcher(dispatcher);
+        }
+    }
+
+    /**
+     * Keeps the given number of commands in flight to the entities, sending the next one with
+     * each acknowledgement.
+     */
+    private static class Flood extends AbstractActor {
+        private final ActorRef[] entities;
+        private final KeySpace keySpace = KeySpace.uniform(entityCount);
+
+        Flood(ActorRef[] entities) {
+            this.entities = entities;
+        }
+
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .match(EntityMessage.CommandAck.class, commandAck -> command())
+                    .build();
+        }
+
+        private void command() {
+            final Entity.Id id = keySpace.nextId();
+            entities[Integer.parseInt(id.id) - 1].tell(new EntityMessage.DepositCommand(id, new EntityMessage.Amount(BigDecimal.ONE)), self());
+        }
+
+        @Override
+        public void preStart() {
+            for (int i = 0; i < commandsInFlight; i++) {
+                command();
+            }
+        }
+
+        static Props props(ActorRef[] entities) {
+            return Props.create(Flood.class, (Object) entities).withDispatcher(EntityDispatchers.client);
+        }
+    }
+}
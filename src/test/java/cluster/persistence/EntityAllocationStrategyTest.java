@@ -0,0 +1,218 @@
+package cluster.persistence;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Address;
+import akka.actor.ExtendedActorSystem;
+import akka.testkit.javadsl.TestKit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import scala.collection.JavaConverters;
+import scala.collection.immutable.IndexedSeq;
+import scala.concurrent.Future;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Allocations and rebalances of {@link EntityAllocationStrategy} for given node loads and shard
+ * rates, which are set on {@link EntityAllocation} directly. The regions are references to remote
+ * shard regions that are never sent to, so each region has the address of its own node.
+ */
+class EntityAllocationStrategyTest {
+    private static final Address nodeA = new Address("akka.tcp", "allocation", "10.0.0.1", 2552);
+    private static final Address nodeB = new Address("akka.tcp", "allocation", "10.0.0.2", 2552);
+    private static final Address nodeC = new Address("akka.tcp", "allocation", "10.0.0.3", 2552);
+    private ActorSystem actorSystem;
+
+    @AfterEach
+    void stop() {
+        TestKit.shutdownActorSystem(actorSystem);
+    }
+
+    @Test
+    void allocatesToTheFewestShardsWithinTheToleranceOfTheLeastLoad() {
+        final EntityAllocationStrategy strategy = strategy(1, 0, "0.2", 3, "30s");
+        final Map<ActorRef, IndexedSeq<String>> allocations = allocations(
+                region(nodeA), shards("1", "2", "3"), region(nodeB), shards("4", "5"), region(nodeC), shards("6"));
+
+        nodeLoads(0.10, 0.14, 0.50);
+        assertEquals(region(nodeB), allocate(strategy, allocations));
+
+        nodeLoads(0.10, 0.16, 0.50);
+        assertEquals(region(nodeA), allocate(strategy, allocations));
+
+        nodeLoads(0.10, 0.16, 0.12);
+        assertEquals(region(nodeC), allocate(strategy, allocations));
+    }
+
+    @Test
+    void allocatesByShardCountWhileTheLoadsAreNotKnown() {
+        final EntityAllocationStrategy strategy = strategy(1, 1, "0.2", 3, "30s");
+        final Map<ActorRef, IndexedSeq<String>> allocations = allocations(
+                region(nodeA), shards("1", "2"), region(nodeB), shards(), region(nodeC), shards("3"));
+
+        assertEquals(region(nodeB), allocate(strategy, allocations));
+    }
+
+    @Test
+    void rebalancesAfterTheLoadsDifferByMoreThanTheThresholdForTheRounds() {
+        final EntityAllocationStrategy strategy = strategy(1, 0, "0.2", 3, "0s");
+        final Map<ActorRef, IndexedSeq<String>> allocations = allocations(
+                region(nodeA), shards("1", "2"), region(nodeB), shards("3"));
+
+        nodeLoads(0.50, 0.30);
+        for (int round = 0; round < 5; round++) {
+            assertEquals(Collections.emptySet(), rebalance(strategy, allocations), "within the threshold");
+        }
+
+        nodeLoads(0.90, 0.10);
+        assertEquals(Collections.emptySet(), rebalance(strategy, allocations));
+        assertEquals(Collections.emptySet(), rebalance(strategy, allocations));
+        nodeLoads(0.50, 0.40);
+        assertEquals(Collections.emptySet(), rebalance(strategy, allocations), "a balanced round starts over");
+
+        nodeLoads(0.90, 0.10);
+        assertEquals(Collections.emptySet(), rebalance(strategy, allocations));
+        assertEquals(Collections.emptySet(), rebalance(strategy, allocations));
+        assertEquals(Collections.singleton("2"), rebalance(strategy, allocations));
+        assertEquals(Collections.emptySet(), rebalance(strategy, allocations), "the rounds start over after a move");
+    }
+
+    @Test
+    void rebalancesNoMoreThanOncePerCooldown() throws InterruptedException {
+        final EntityAllocationStrategy strategy = strategy(1, 0, "0.2", 1, "500ms");
+        final Map<ActorRef, IndexedSeq<String>> allocations = allocations(
+                region(nodeA), shards("1", "2"), region(nodeB), shards("3"));
+
+        nodeLoads(0.90, 0.10);
+        assertEquals(Collections.singleton("2"), rebalance(strategy, allocations));
+        assertEquals(Collections.emptySet(), rebalance(strategy, allocations));
+        Thread.sleep(600);
+        assertEquals(Collections.singleton("2"), rebalance(strategy, allocations));
+    }
+
+    @Test
+    void rebalancesNothingWhileARebalanceIsInProgressOrWithOneRegion() {
+        final EntityAllocationStrategy strategy = strategy(1, 0, "0.2", 1, "0s");
+        nodeLoads(0.90, 0.10);
+
+        assertEquals(Collections.emptySet(), rebalance(strategy, allocations(
+                region(nodeA), shards("1", "2"), region(nodeB), shards("3")), "1"));
+        assertEquals(Collections.emptySet(), rebalance(strategy, allocations(region(nodeA), shards("1", "2"))));
+    }
+
+    @Test
+    void movesTheShardWhoseRateIsClosestToHalfTheDifference() {
+        final EntityAllocationStrategy strategy = strategy(0, 1, "0.2", 1, "0s");
+        final Map<ActorRef, IndexedSeq<String>> allocations = allocations(
+                region(nodeA), shards("1", "2", "3"), region(nodeB), shards("4"));
+
+        // Node A at 150/s and node B at 30/s are 120/s apart, and shard 2 at 40/s is the closest to
+        // the 60/s that would even them out.
+        shardRates(rates("1", 100, "2", 40, "3", 10), rates("4", 30));
+        assertEquals(Collections.singleton("2"), rebalance(strategy, allocations));
+    }
+
+    @Test
+    void movesNoShardThatWouldNotNarrowTheDifference() {
+        final EntityAllocationStrategy strategy = strategy(0, 1, "0.2", 1, "0s");
+        final Map<ActorRef, IndexedSeq<String>> allocations = allocations(
+                region(nodeA), shards("1", "2"), region(nodeB), shards("3"));
+
+        // Moving shard 1 at 200/s would only swap the loads of the nodes.
+        shardRates(rates("1", 200, "2", 0), rates("3", 0));
+        assertEquals(Collections.emptySet(), rebalance(strategy, allocations));
+    }
+
+    @Test
+    void movesTheLatestShardWhenTheRegionsDifferByCpuAndHeapOnly() {
+        final EntityAllocationStrategy strategy = strategy(1, 0, "0.2", 1, "0s");
+        final Map<ActorRef, IndexedSeq<String>> allocations = allocations(
+                region(nodeA), shards("1", "2", "3"), region(nodeB), shards("4"));
+
+        nodeLoads(0.90, 0.10);
+        assertEquals(Collections.singleton("3"), rebalance(strategy, allocations));
+    }
+
+    /**
+     * A strategy on a new actor system with the given weights of the cpu and the message rate,
+     * without the heap, and the given rebalance threshold, rounds and cooldown.
+     */
+    private EntityAllocationStrategy strategy(double cpuWeight, double messageRateWeight, String threshold, int rounds, String cooldown) {
+        actorSystem = ActorSystem.create("allocation", BenchmarkConfig.local(
+                String.format("akka.actor.provider = remote%n") +
+                        String.format("akka.remote.netty.tcp.port = 0%n") +
+                        String.format("entity-allocation.cpu-weight = %s%n", cpuWeight) +
+                        String.format("entity-allocation.heap-weight = 0%n") +
+                        String.format("entity-allocation.message-rate-weight = %s%n", messageRateWeight) +
+                        String.format("entity-allocation.rebalance-threshold = %s%n", threshold) +
+                        String.format("entity-allocation.rebalance-after-rounds = %d%n", rounds) +
+                        String.format("entity-allocation.rebalance-cooldown = %s%n", cooldown) +
+                        String.format("entity-allocation.allocation-tolerance = 0.05%n")));
+        return new EntityAllocationStrategy(actorSystem);
+    }
+
+    private ActorRef region(Address address) {
+        return ((ExtendedActorSystem) actorSystem).provider().resolveActorRef(String.format("%s/system/sharding/entity", address));
+    }
+
+    /**
+     * The cpu of nodes A, B and C, in that order.
+     */
+    private void nodeLoads(double... cpus) {
+        final Map<Address, EntityAllocation.NodeLoad> nodeLoads = new HashMap<>();
+        final Address[] nodes = {nodeA, nodeB, nodeC};
+        for (int i = 0; i < cpus.length; i++) {
+            nodeLoads.put(nodes[i], new EntityAllocation.NodeLoad(cpus[i], 0));
+        }
+        EntityAllocation.get(actorSystem).nodeLoads(nodeLoads);
+    }
+
+    private void shardRates(Map<String, Double> ratesA, Map<String, Double> ratesB) {
+        final Map<Address, Map<String, Double>> shardRates = new HashMap<>();
+        shardRates.put(nodeA, ratesA);
+        shardRates.put(nodeB, ratesB);
+        EntityAllocation.get(actorSystem).shardRates(shardRates);
+    }
+
+    private static Map<String, Double> rates(Object... shardRates) {
+        final Map<String, Double> rates = new HashMap<>();
+        for (int i = 0; i < shardRates.length; i += 2) {
+            rates.put((String) shardRates[i], ((Number) shardRates[i + 1]).doubleValue());
+        }
+        return rates;
+    }
+
+    private static IndexedSeq<String> shards(String... shardIds) {
+        return JavaConverters.asScalaBufferConverter(Arrays.asList(shardIds)).asScala().toIndexedSeq();
+    }
+
+    private static Map<ActorRef, IndexedSeq<String>> allocations(Object... regionShards) {
+        final Map<ActorRef, IndexedSeq<String>> allocations = new LinkedHashMap<>();
+        for (int i = 0; i < regionShards.length; i += 2) {
+            @SuppressWarnings("unchecked") final IndexedSeq<String> shards = (IndexedSeq<String>) regionShards[i + 1];
+            allocations.put((ActorRef) regionShards[i], shards);
+        }
+        return allocations;
+    }
+
+    private static ActorRef allocate(EntityAllocationStrategy strategy, Map<ActorRef, IndexedSeq<String>> allocations) {
+        return value(strategy.allocateShard(ActorRef.noSender(), "7", allocations));
+    }
+
+    private static Set<String> rebalance(EntityAllocationStrategy strategy, Map<ActorRef, IndexedSeq<String>> allocations, String... inProgress) {
+        return value(strategy.rebalance(allocations, new HashSet<>(Arrays.asList(inProgress))));
+    }
+
+    private static <T> T value(Future<T> future) {
+        return future.value().get().get();
+    }
+}
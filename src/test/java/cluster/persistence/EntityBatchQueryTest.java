@@ -0,0 +1,116 @@
+package cluster.persistence;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Shard queries run by {@link EntityShardQueries} and batch queries run by
+ * {@link EntityBatchQueryActor}, with test probes as the shard and the shard region, answered
+ * completely and answered in part within the timeouts.
+ */
+class EntityBatchQueryTest {
+    private static final Duration timeout = Duration.ofMillis(1000);
+    private static final Duration shardTimeout = Duration.ofMillis(500);
+    private ActorSystem actorSystem;
+
+    @BeforeEach
+    void start() {
+        actorSystem = ActorSystem.create("batchquery", BenchmarkConfig.local(
+                String.format("entity-batch-query.timeout = %dms%n", timeout.toMillis()) +
+                        String.format("entity-batch-query.shard-timeout = %dms%n", shardTimeout.toMillis())));
+    }
+
+    @AfterEach
+    void stop() {
+        TestKit.shutdownActorSystem(actorSystem);
+    }
+
+    @Test
+    void answersAShardQueryOnceEveryEntityAnswered() {
+        final TestKit shard = new TestKit(actorSystem);
+        final TestKit batch = new TestKit(actorSystem);
+        final EntityMessage.ShardQuery shardQuery = new EntityMessage.ShardQuery(7, ids("1", "2"));
+        EntityShardQueries.get(actorSystem).query(shardQuery, shard.getRef(), batch.getRef());
+
+        final EntityMessage.Query first = shard.expectMsgClass(EntityMessage.Query.class);
+        final ActorRef shardQueryActor = shard.getLastSender();
+        final EntityMessage.Query second = shard.expectMsgClass(EntityMessage.Query.class);
+        shardQueryActor.tell(EntityMessage.QueryAck.from(first, Entity.deposit(first.id.id, 100)), shard.getRef());
+        shardQueryActor.tell(EntityMessage.QueryAckNotFound.from(second), shard.getRef());
+
+        final EntityMessage.ShardQueryAck shardQueryAck = batch.expectMsgClass(shardTimeout.dividedBy(2), EntityMessage.ShardQueryAck.class);
+        assertEquals(7, shardQueryAck.requestId);
+        assertEquals(first.id.id, shardQueryAck.found.get(0).id.id);
+        assertEquals(second.id.id, shardQueryAck.notFound.get(0).id);
+        assertTrue(shardQueryAck.unanswered.isEmpty());
+    }
+
+    @Test
+    void answersAShardQueryInPartAfterTheShardTimeout() {
+        final TestKit shard = new TestKit(actorSystem);
+        final TestKit batch = new TestKit(actorSystem);
+        EntityShardQueries.get(actorSystem).query(new EntityMessage.ShardQuery(8, ids("1", "2", "3")), shard.getRef(), batch.getRef());
+
+        final EntityMessage.Query first = shard.expectMsgClass(EntityMessage.Query.class);
+        shard.getLastSender().tell(EntityMessage.QueryAck.from(first, Entity.deposit(first.id.id, 100)), shard.getRef());
+        shard.expectMsgClass(EntityMessage.Query.class);
+        shard.expectMsgClass(EntityMessage.Query.class);
+
+        batch.expectNoMessage(shardTimeout.dividedBy(2));
+        final EntityMessage.ShardQueryAck shardQueryAck = batch.expectMsgClass(shardTimeout, EntityMessage.ShardQueryAck.class);
+        assertEquals(8, shardQueryAck.requestId);
+        assertEquals(Collections.singletonList(first.id.id), shardQueryAck.found.stream().map(entity -> entity.id.id).collect(Collectors.toList()));
+        final Set<String> unanswered = new HashSet<>(Arrays.asList("1", "2", "3"));
+        unanswered.remove(first.id.id);
+        assertEquals(unanswered, new HashSet<>(names(shardQueryAck.unanswered)));
+    }
+
+    @Test
+    void answersABatchQueryInPartAfterTheTimeout() {
+        final TestKit shardRegion = new TestKit(actorSystem);
+        final TestKit client = new TestKit(actorSystem);
+        final ActorRef batchQueryActor = actorSystem.actorOf(EntityBatchQueryActor.props(
+                EntityBatchQuerySettings.create(actorSystem), shardRegion.getRef(), shardRegion.getRef()));
+        final EntityRouting routing = EntityRouting.get(actorSystem);
+        final List<Entity.Id> ids = ids("1", "2", "3", "4", "5", "6");
+        assertTrue(ids.stream().map(routing::shardId).distinct().count() > 1);
+
+        batchQueryActor.tell(new EntityMessage.BatchQuery(ids), client.getRef());
+        final EntityMessage.ShardQuery answered = shardRegion.expectMsgClass(EntityMessage.ShardQuery.class);
+        batchQueryActor.tell(new EntityMessage.ShardQueryAck(answered.requestId,
+                Collections.singletonList(Entity.deposit(answered.ids.get(0).id, 100)),
+                answered.ids.subList(1, answered.ids.size())), shardRegion.getRef());
+
+        client.expectNoMessage(timeout.dividedBy(2));
+        final EntityMessage.BatchQueryAck batchQueryAck = client.expectMsgClass(timeout, EntityMessage.BatchQueryAck.class);
+        assertEquals(answered.ids.get(0).id, batchQueryAck.found.get(0).id.id);
+        assertEquals(answered.ids.size() - 1, batchQueryAck.notFound.size());
+        final List<String> unanswered = ids.stream().map(id -> id.id)
+                .filter(id -> answered.ids.stream().noneMatch(answeredId -> answeredId.id.equals(id)))
+                .collect(Collectors.toList());
+        assertEquals(new HashSet<>(unanswered), new HashSet<>(names(batchQueryAck.unanswered)));
+    }
+
+    private static List<Entity.Id> ids(String... ids) {
+        return Arrays.stream(ids).map(Entity.Id::new).collect(Collectors.toList());
+    }
+
+    private static List<String> names(List<Entity.Id> ids) {
+        return ids.stream().map(id -> id.id).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,84 @@
+package cluster.persistence;
+
+import akka.actor.ActorSystem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost {@link EntityMetrics} adds to each command an entity handles, measured as the calls an
+ * entity makes for one command with metrics enabled and disabled, from one thread and from as many
+ * threads as there are cores, and the cost of one scrape.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class EntityMetricsBenchmark {
+    @Param({"true", "false"})
+    public boolean enabled;
+
+    private ActorSystem actorSystem;
+    private EntityMetrics metrics;
+    private EntityMessage.DepositCommand command;
+
+    @Setup
+    public void setup() {
+        actorSystem = ActorSystem.create("metrics", BenchmarkConfig.local(String.format("entity-metrics.enabled = %b%n", enabled)));
+        metrics = EntityMetrics.get(actorSystem);
+        command = new EntityMessage.DepositCommand(new Entity.Id("1"), new EntityMessage.Amount(BigDecimal.ONE));
+    }
+
+    @TearDown
+    public void tearDown() {
+        actorSystem.terminate();
+    }
+
+    @Benchmark
+    public void command() {
+        recordCommand();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void commandMultiThreaded() {
+        recordCommand();
+    }
+
+    @Benchmark
+    public Object scrape() {
+        return metrics.scrape();
+    }
+
+    private void recordCommand() {
+        metrics.commandReceived(command);
+        metrics.eventPersisted(System.nanoTime());
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(EntityMetricsBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build())
+                .run();
+    }
+}
@@ -0,0 +1,110 @@
+package cluster.persistence;
+
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The entities that the sweep of {@link EntityPassivation} tells to passivate when a start takes
+ * the active entities over the budget, with test probes as the entities.
+ */
+class EntityPassivationTest {
+    private static final int budget = 10;
+
+    @Test
+    void lruEvictsTheLeastRecentlyTouched() throws Exception {
+        run("lru", (passivation, probes, entries) -> {
+            for (int i = budget - 1; i >= 0; i--) {
+                touch(passivation, entries.get(i));
+            }
+            entries.add(passivation.started(probes.get(budget).getRef()));
+
+            probes.get(budget - 1).expectMsgEquals(EntityPassivation.evict);
+            expectNoEviction(probes, budget - 1);
+            assertEquals(budget, passivation.activeEntities());
+        });
+    }
+
+    @Test
+    void segmentedLruEvictsTheEntitiesTouchedOnceFirst() throws Exception {
+        run("segmented-lru", (passivation, probes, entries) -> {
+            for (int i = 0; i < budget; i++) {
+                touch(passivation, entries.get(i));
+            }
+            // The first five are touched again after the message that started them, most recently
+            // of all, so the least recently touched entity that was only touched once goes.
+            for (int i = 0; i < budget / 2; i++) {
+                touch(passivation, entries.get(i));
+            }
+            entries.add(passivation.started(probes.get(budget).getRef()));
+
+            probes.get(budget / 2).expectMsgEquals(EntityPassivation.evict);
+            expectNoEviction(probes, budget / 2);
+        });
+    }
+
+    @Test
+    void segmentedLruEvictsProtectedEntitiesBeyondTheProtectedRatio() throws Exception {
+        run("segmented-lru", (passivation, probes, entries) -> {
+            for (int round = 0; round < 2; round++) {
+                for (int i = 0; i < budget; i++) {
+                    touch(passivation, entries.get(i));
+                }
+            }
+            // All ten are touched again, but only eight fit the protected segment, so the two least
+            // recently touched of them rank with the new entity, which was touched last.
+            entries.add(passivation.started(probes.get(budget).getRef()));
+
+            probes.get(0).expectMsgEquals(EntityPassivation.evict);
+            expectNoEviction(probes, 0);
+        });
+    }
+
+    private static void run(String strategy, Scenario scenario) throws Exception {
+        final ActorSystem actorSystem = ActorSystem.create("passivation", BenchmarkConfig.local(
+                String.format("entity-passivation.max-active-entities = %d%n", budget) +
+                        String.format("entity-passivation.strategy = %s%n", strategy) +
+                        String.format("entity-passivation.protected-ratio = 0.8%n") +
+                        String.format("entity-passivation.sweep-headroom = 0%n")));
+        try {
+            final EntityPassivation passivation = EntityPassivation.get(actorSystem);
+            final List<TestKit> probes = new ArrayList<>();
+            final List<EntityPassivation.Entry> entries = new ArrayList<>();
+            for (int i = 0; i <= budget; i++) {
+                probes.add(new TestKit(actorSystem));
+            }
+            for (int i = 0; i < budget; i++) {
+                entries.add(passivation.started(probes.get(i).getRef()));
+            }
+            scenario.run(passivation, probes, entries);
+        } finally {
+            TestKit.shutdownActorSystem(actorSystem);
+        }
+    }
+
+    /**
+     * Touches the entry and waits for the clock to move on, so that every touch has its own time.
+     */
+    private static void touch(EntityPassivation passivation, EntityPassivation.Entry entry) throws InterruptedException {
+        passivation.touched(entry);
+        Thread.sleep(1);
+    }
+
+    private static void expectNoEviction(List<TestKit> probes, int evicted) {
+        for (int i = 0; i < probes.size(); i++) {
+            if (i != evicted) {
+                probes.get(i).expectNoMessage(Duration.ofMillis(i == 0 ? 200 : 1));
+            }
+        }
+    }
+
+    private interface Scenario {
+        void run(EntityPassivation passivation, List<TestKit> probes, List<EntityPassivation.Entry> entries) throws Exception;
+    }
+}
@@ -0,0 +1,205 @@
+package cluster.persistence;
+
+import akka.actor.ActorSystem;
+import akka.cluster.sharding.ShardRegion;
+import akka.persistence.journal.Tagged;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time and allocation per routed message and per tagged event for {@link EntityRouting}, with
+ * legacy-hash off, compared with the extractor and event tag that EntityMessage used before, which
+ * dispatched on the message class and built the shard id and the tag set per call.
+ * {@link #main(String[])} also prints how evenly sequential entity ids are spread over the shards
+ * by each.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class EntityRoutingBenchmark {
+    private static final int numberOfShards = 15;
+    private static final int numberOfEventTags = 5;
+    private static final int messageCount = 1024;
+    private static final int keySpace = 100000;
+
+    private ActorSystem actorSystem;
+    private ShardRegion.MessageExtractor routedExtractor;
+    private ShardRegion.MessageExtractor legacyExtractor;
+    private EntityRouting routing;
+    private Object[] messages;
+    private EntityMessage.EntityEvent[] events;
+    private int next;
+
+    @Setup
+    public void setup() {
+        actorSystem = ActorSystem.create("routing", BenchmarkConfig.local(
+                String.format("entity-routing.number-of-shards = %d%n", numberOfShards) +
+                        String.format("entity-routing.number-of-event-tags = %d%n", numberOfEventTags) +
+                        "entity-routing.legacy-hash = off\n"));
+        routing = EntityRouting.get(actorSystem);
+        routedExtractor = routing.messageExtractor();
+        legacyExtractor = new LegacyMessageExtractor();
+
+        final java.util.Random random = new java.util.Random(42);
+        messages = new Object[messageCount];
+        events = new EntityMessage.EntityEvent[messageCount];
+        for (int i = 0; i < messageCount; i++) {
+            final Entity.Id id = new Entity.Id(String.valueOf(1 + random.nextInt(keySpace)));
+            final EntityMessage.Amount amount = EntityMessage.Amount.ofMinorUnits(random.nextInt(10000));
+            switch (i % 3) {
+                case 0:
+                    messages[i] = new EntityMessage.DepositCommand(id, amount);
+                    break;
+                case 1:
+                    messages[i] = new EntityMessage.WithdrawalCommand(id, amount);
+                    break;
+                default:
+                    messages[i] = new EntityMessage.Query(id);
+            }
+            events[i] = new EntityMessage.DepositEvent(id, amount);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        actorSystem.terminate();
+    }
+
+    @Benchmark
+    public void routeRouted(Blackhole blackhole) {
+        final Object message = messages[next++ & (messageCount - 1)];
+        blackhole.consume(routedExtractor.shardId(message));
+        blackhole.consume(routedExtractor.entityId(message));
+    }
+
+    @Benchmark
+    public void routeLegacy(Blackhole blackhole) {
+        final Object message = messages[next++ & (messageCount - 1)];
+        blackhole.consume(legacyExtractor.shardId(message));
+        blackhole.consume(legacyExtractor.entityId(message));
+    }
+
+    @Benchmark
+    public Object shardIdRouted() {
+        return routedExtractor.shardId(messages[next++ & (messageCount - 1)]);
+    }
+
+    @Benchmark
+    public Object shardIdLegacy() {
+        return legacyExtractor.shardId(messages[next++ & (messageCount - 1)]);
+    }
+
+    @Benchmark
+    public Object taggedRouted() {
+        return routing.tagged(events[next++ & (messageCount - 1)]);
+    }
+
+    @Benchmark
+    public Object taggedLegacy() {
+        final EntityMessage.EntityEvent event = events[next++ & (messageCount - 1)];
+        return new Tagged(event, legacyEventTag(event.id));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        printShardDistribution();
+
+        new Runner(new OptionsBuilder()
+                .include(EntityRoutingBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build())
+                .run();
+    }
+
+    private static void printShardDistribution() {
+        final ActorSystem actorSystem = ActorSystem.create("routing", BenchmarkConfig.local(
+                String.format("entity-routing.number-of-shards = %d%n", numberOfShards) +
+                        "entity-routing.legacy-hash = off\n"));
+        try {
+            final ShardRegion.MessageExtractor routed = EntityRouting.get(actorSystem).messageExtractor();
+            final ShardRegion.MessageExtractor legacy = new LegacyMessageExtractor();
+            final Map<String, Integer> routedShards = new TreeMap<>();
+            final Map<String, Integer> legacyShards = new TreeMap<>();
+            for (int i = 1; i <= keySpace; i++) {
+                final EntityMessage.Query query = new EntityMessage.Query(new Entity.Id(String.valueOf(i)));
+                routedShards.merge(routed.shardId(query), 1, Integer::sum);
+                legacyShards.merge(legacy.shardId(query), 1, Integer::sum);
+            }
+
+            System.out.printf("========== Entity ids 1 to %,d over %d shards ==========%n", keySpace, numberOfShards);
+            printShards("Routed", routedShards);
+            printShards("Legacy", legacyShards);
+        } finally {
+            actorSystem.terminate();
+        }
+    }
+
+    private static void printShards(String name, Map<String, Integer> shards) {
+        final int min = Collections.min(shards.values());
+        final int max = Collections.max(shards.values());
+        System.out.printf("%s %d distinct shard ids, entities per shard min %,d max %,d, %s%n", name, shards.size(), min, max, shards);
+    }
+
+    private static Set<String> legacyEventTag(Entity.Id id) {
+        return new HashSet<>(Collections.singletonList(String.format("%d", id.id.hashCode() % numberOfEventTags)));
+    }
+
+    /**
+     * The extractor EntityMessage.messageExtractor returned before {@link EntityRouting}.
+     */
+    private static class LegacyMessageExtractor implements ShardRegion.MessageExtractor {
+        @Override
+        public String shardId(Object message) {
+            if (message instanceof EntityMessage.DepositCommand) {
+                return ((EntityMessage.DepositCommand) message).id.id.hashCode() % numberOfShards + "";
+            } else if (message instanceof EntityMessage.WithdrawalCommand) {
+                return ((EntityMessage.WithdrawalCommand) message).id.id.hashCode() % numberOfShards + "";
+            } else if (message instanceof EntityMessage.Query) {
+                return ((EntityMessage.Query) message).id.id.hashCode() % numberOfShards + "";
+            } else {
+                return null;
+            }
+        }
+
+        @Override
+        public String entityId(Object message) {
+            if (message instanceof EntityMessage.DepositCommand) {
+                return ((EntityMessage.DepositCommand) message).id.id;
+            } else if (message instanceof EntityMessage.WithdrawalCommand) {
+                return ((EntityMessage.WithdrawalCommand) message).id.id;
+            } else if (message instanceof EntityMessage.Query) {
+                return ((EntityMessage.Query) message).id.id;
+            } else {
+                return null;
+            }
+        }
+
+        @Override
+        public Object entityMessage(Object message) {
+            return message;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package cluster.persistence;
+
+import akka.cluster.sharding.ShardRegion;
+import com.typesafe.config.ConfigFactory;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Shard ids and event tags of {@link EntityRouting} with and without legacy-hash, where the legacy
+ * mapping must match the signed remainder that journals written before the murmur3 routing used.
+ */
+class EntityRoutingTest {
+    private static final String[] ids = {"1", "42", "12345", "account-7", "polygenelubricants", "", "Aa", "BB"};
+
+    @Test
+    void legacyHashKeepsTheSignedRemainder() {
+        final EntityRouting routing = routing(true);
+        for (String id : ids) {
+            final Entity.Id entityId = new Entity.Id(id);
+            assertEquals(String.valueOf(id.hashCode() % 15), routing.shardId(entityId), id);
+            assertEquals(String.valueOf(id.hashCode() % 5), routing.eventTag(entityId), id);
+            assertEquals(routing.eventTag(entityId), routing.tagged(deposit(entityId)).tags().head(), id);
+        }
+        assertEquals("-8", routing.shardId(new Entity.Id("polygenelubricants")), "hash code Integer.MIN_VALUE");
+    }
+
+    @Test
+    void legacyHashListsTheNegativeTags() {
+        assertEquals(range(-4, 4), routing(true).eventTags());
+        assertEquals(range(0, 4), routing(false).eventTags());
+    }
+
+    @Test
+    void murmurHashNeverYieldsANegativeShardOrTag() {
+        final EntityRouting routing = routing(false);
+        for (int i = 0; i < 10000; i++) {
+            final Entity.Id id = new Entity.Id(String.valueOf(i));
+            final int shard = Integer.parseInt(routing.shardId(id));
+            assertTrue(shard >= 0 && shard < 15, id.id);
+            assertTrue(routing.eventTags().contains(routing.eventTag(id)), id.id);
+        }
+        for (String id : ids) {
+            final int shard = Integer.parseInt(routing.shardId(new Entity.Id(id)));
+            assertTrue(shard >= 0 && shard < 15, id);
+        }
+    }
+
+    @Test
+    void routesStartEntityLikeTheEntityMessages() {
+        for (boolean legacyHash : new boolean[]{true, false}) {
+            final ShardRegion.MessageExtractor extractor = routing(legacyHash).messageExtractor();
+            for (String id : ids) {
+                final Entity.Id entityId = new Entity.Id(id);
+                assertEquals(extractor.shardId(new EntityMessage.Query(entityId)),
+                        extractor.shardId(new ShardRegion.StartEntity(id)), id);
+                assertEquals(id, extractor.entityId(new EntityMessage.Query(entityId)));
+            }
+        }
+    }
+
+    private static EntityRouting routing(boolean legacyHash) {
+        return new EntityRouting(ConfigFactory.parseString(
+                String.format("number-of-shards = 15%n") +
+                        String.format("number-of-event-tags = 5%n") +
+                        String.format("legacy-hash = %s%n", legacyHash ? "on" : "off")));
+    }
+
+    private static EntityMessage.DepositEvent deposit(Entity.Id id) {
+        return new EntityMessage.DepositEvent(new EntityMessage.DepositCommand(id, EntityMessage.Amount.ofMinorUnits(100)));
+    }
+
+    private static List<String> range(int from, int to) {
+        final List<String> tags = new ArrayList<>();
+        for (int tag = from; tag <= to; tag++) {
+            tags.add(String.valueOf(tag));
+        }
+        return tags;
+    }
+}
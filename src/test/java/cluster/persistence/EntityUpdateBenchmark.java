@@ -0,0 +1,139 @@
+package cluster.persistence;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Time and allocation per applied event for the long minor units balance compared with the
+ * BigDecimal balance it replaced, which allocated a new BigDecimal and Balance per event.
+ * {@link #main(String[])} also prints the heap used per entity with 1M entities resident.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class EntityUpdateBenchmark {
+    private static final int entityCount = 1000000;
+    private static volatile Object retained;
+
+    private Entity entity;
+    private BigDecimalEntity bigDecimalEntity;
+    private EntityMessage.Amount amount;
+    private BigDecimal bigDecimalAmount;
+
+    @Setup
+    public void setup() {
+        entity = Entity.deposit("1", 0);
+        bigDecimalEntity = new BigDecimalEntity("1", BigDecimal.ZERO);
+        amount = new EntityMessage.Amount(new BigDecimal("12.34"));
+        bigDecimalAmount = new BigDecimal("12.34");
+    }
+
+    @Benchmark
+    public Object applyMinorUnits() {
+        entity.deposit(amount.minorUnits);
+        entity.withdrawal(amount.minorUnits);
+        return entity;
+    }
+
+    @Benchmark
+    public Object applyBigDecimal() {
+        bigDecimalEntity.deposit(bigDecimalAmount);
+        bigDecimalEntity.withdrawal(bigDecimalAmount);
+        return bigDecimalEntity;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        printHeapFootprint();
+
+        new Runner(new OptionsBuilder()
+                .include(EntityUpdateBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build())
+                .run();
+    }
+
+    private static void printHeapFootprint() {
+        final long minorUnitsBytes = heapUsed(() -> {
+            final Entity[] entities = new Entity[entityCount];
+            for (int i = 0; i < entityCount; i++) {
+                entities[i] = Entity.deposit(String.valueOf(i), 123456);
+            }
+            return entities;
+        });
+        final long bigDecimalBytes = heapUsed(() -> {
+            final BigDecimalEntity[] entities = new BigDecimalEntity[entityCount];
+            for (int i = 0; i < entityCount; i++) {
+                entities[i] = new BigDecimalEntity(String.valueOf(i), new BigDecimal("1234.56"));
+            }
+            return entities;
+        });
+
+        System.out.printf("========== Heap used by %,d entities ==========%n", entityCount);
+        System.out.printf("Minor units balance %,d bytes, %d bytes per entity%n", minorUnitsBytes, minorUnitsBytes / entityCount);
+        System.out.printf("BigDecimal balance %,d bytes, %d bytes per entity%n", bigDecimalBytes, bigDecimalBytes / entityCount);
+    }
+
+    private static long heapUsed(Supplier<Object> allocation) {
+        final long before = usedAfterGc();
+        retained = allocation.get();
+        final long after = usedAfterGc();
+        retained = null;
+        return after - before;
+    }
+
+    private static long usedAfterGc() {
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * The BigDecimal representation Entity used before minor units.
+     */
+    private static class BigDecimalEntity {
+        final Entity.Id id;
+        BigDecimalBalance balance;
+
+        BigDecimalEntity(String id, BigDecimal amount) {
+            this.id = new Entity.Id(id);
+            this.balance = new BigDecimalBalance(amount);
+        }
+
+        void deposit(BigDecimal amount) {
+            balance = new BigDecimalBalance(balance.amount.add(amount));
+        }
+
+        void withdrawal(BigDecimal amount) {
+            balance = new BigDecimalBalance(balance.amount.subtract(amount));
+        }
+    }
+
+    private static class BigDecimalBalance {
+        final BigDecimal amount;
+
+        BigDecimalBalance(BigDecimal amount) {
+            this.amount = amount;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package cluster.persistence;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A serialization and deserialization round trip of an entity message with {@link FstSerializer}
+ * and with the variants of {@link FstRegisteredSerializer}, one serializer shared by all threads
+ * as it is by the dispatcher threads of a node. {@link #main(String[])} runs it with 1 thread and
+ * doubles the threads up to the available cores, then prints the throughput of each variant per
+ * thread count and its scaling over 1 thread.
+ * <p>
+ * Run with {@code mvn -Pjmh test-compile exec:exec -Djmh.args="FstSerializerBenchmark -t 4"} for a
+ * single thread count.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FstSerializerBenchmark {
+    @Param({"DepositCommand", "CommandAck", "QueryAck"})
+    public String messageType;
+
+    @Param({"fst", "registered-shared", "registered-per-thread", "registered-per-thread-unshared"})
+    public String variant;
+
+    private SerializationBenchmark.Codec codec;
+    private Object message;
+
+    @Setup
+    public void setup() {
+        message = SerializationBenchmark.message(messageType);
+        final FstRegisteredSerializer registered;
+        switch (variant) {
+            case "fst":
+                final FstSerializer fst = new FstSerializer();
+                codec = codec(fst::toBinary, fst::fromBinary);
+                return;
+            case "registered-shared":
+                registered = new FstRegisteredSerializer(settings("shared", true));
+                break;
+            case "registered-per-thread":
+                registered = new FstRegisteredSerializer(settings("per-thread", true));
+                break;
+            case "registered-per-thread-unshared":
+                registered = new FstRegisteredSerializer(settings("per-thread", false));
+                break;
+            default:
+                throw new IllegalArgumentException(String.format("Unknown variant %s", variant));
+        }
+        codec = codec(registered::toBinary, registered::fromBinary);
+    }
+
+    @Benchmark
+    public Object roundTrip() {
+        return codec.fromBinary(codec.toBinary(message));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        printSerializedSizes();
+
+        final int cores = Runtime.getRuntime().availableProcessors();
+        final List<Integer> threadCounts = new ArrayList<>();
+        for (int threads = 1; threads < cores; threads *= 2) {
+            threadCounts.add(threads);
+        }
+        threadCounts.add(cores);
+
+        final Map<String, Map<Integer, Double>> throughput = new TreeMap<>();
+        for (int threads : threadCounts) {
+            final Collection<RunResult> results = new Runner(new OptionsBuilder()
+                    .include(FstSerializerBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build())
+                    .run();
+            for (RunResult result : results) {
+                final String name = String.format("%s %s", result.getParams().getParam("messageType"), result.getParams().getParam("variant"));
+                throughput.computeIfAbsent(name, n -> new LinkedHashMap<>()).put(threads, result.getPrimaryResult().getScore());
+            }
+        }
+
+        System.out.println();
+        System.out.printf("%-48s", "Round trips per us, scaling over 1 thread");
+        threadCounts.forEach(threads -> System.out.printf("%18s", threads + (threads == 1 ? " thread" : " threads")));
+        System.out.println();
+        throughput.forEach((name, scores) -> {
+            System.out.printf("%-48s", name);
+            scores.forEach((threads, score) -> System.out.printf("%10.3f %6.2fx", score, score / scores.get(1)));
+            System.out.println();
+        });
+    }
+
+    private static void printSerializedSizes() {
+        final String[] messageTypes = {"DepositCommand", "CommandAck", "QueryAck"};
+        final String[] variants = {"fst", "registered-shared", "registered-per-thread-unshared"};
+
+        System.out.printf("%-20s", "Serialized bytes");
+        for (String variant : variants) {
+            System.out.printf("%32s", variant);
+        }
+        System.out.println();
+
+        for (String messageType : messageTypes) {
+            System.out.printf("%-20s", messageType);
+            for (String variant : variants) {
+                final FstSerializerBenchmark benchmark = new FstSerializerBenchmark();
+                benchmark.messageType = messageType;
+                benchmark.variant = variant;
+                benchmark.setup();
+                System.out.printf("%32d", benchmark.codec.toBinary(benchmark.message).length);
+            }
+            System.out.println();
+        }
+    }
+
+    private static FstSerializerSettings settings(String configurations, boolean shareReferences) {
+        return new FstSerializerSettings(BenchmarkConfig.local(
+                String.format("fst-serializer.configurations = %s%n", configurations) +
+                        String.format("fst-serializer.share-references = %b%n", shareReferences))
+                .getConfig("fst-serializer"));
+    }
+
+    private interface ToBinary {
+        byte[] toBinary(Object message);
+    }
+
+    private interface FromBinary {
+        Object fromBinary(byte[] bytes);
+    }
+
+    private static SerializationBenchmark.Codec codec(ToBinary toBinary, FromBinary fromBinary) {
+        return new SerializationBenchmark.Codec() {
+            @Override
+            public byte[] toBinary(Object message) {
+                return toBinary.toBinary(message);
+            }
+
+            @Override
+            public Object fromBinary(byte[] bytes) {
+                return fromBinary.fromBinary(bytes);
+            }
+        };
+    }
+}
@@ -0,0 +1,117 @@
+package cluster.persistence;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.persistence.serialization.MessageFormats;
+import akka.protobuf.ByteString;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import akka.testkit.javadsl.TestKit;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Reads the events and the snapshot in src/test/resources/fst-baseline, which {@link FstSerializer}
+ * wrote with the classes from before amounts were held in minor units: a deposit of 123.45 and a
+ * withdrawal of 23.40 for entity 12345, and a snapshot of that entity with a balance of 100.05.
+ */
+class FstSerializerTest {
+    private static final String entityId = "12345";
+    private static final FstSerializer fstSerializer = new FstSerializer();
+
+    @Test
+    void readsBaselineEventsAndSnapshot() throws Exception {
+        final ActorSystem actorSystem = ActorSystem.create("fst", BenchmarkConfig.local(""));
+        try {
+            final Serialization serialization = SerializationExtension.get(actorSystem);
+
+            final EntityMessage.DepositEvent depositEvent = (EntityMessage.DepositEvent)
+                    serialization.deserialize(baseline("deposit-event"), fstSerializer.identifier(), "").get();
+            assertEquals(entityId, depositEvent.id.id);
+            assertEquals(12345, depositEvent.amount.minorUnits);
+
+            final EntityMessage.WithdrawalEvent withdrawalEvent = (EntityMessage.WithdrawalEvent)
+                    serialization.deserialize(baseline("withdrawal-event"), fstSerializer.identifier(), "").get();
+            assertEquals(entityId, withdrawalEvent.id.id);
+            assertEquals(2340, withdrawalEvent.amount.minorUnits);
+
+            final Entity entity = (Entity)
+                    serialization.deserialize(baseline("entity-snapshot"), fstSerializer.identifier(), "").get();
+            assertEquals(entityId, entity.id.id);
+            assertEquals(10005, entity.balance.minorUnits);
+        } finally {
+            TestKit.shutdownActorSystem(actorSystem);
+        }
+    }
+
+    @Test
+    void writesBaselineShape() throws Exception {
+        for (String name : Arrays.asList("deposit-event", "withdrawal-event", "entity-snapshot")) {
+            final byte[] bytes = baseline(name);
+            assertArrayEquals(bytes, fstSerializer.toBinary(fstSerializer.fromBinary(bytes)), name);
+        }
+    }
+
+    @Test
+    void recoversEntityFromBaselineEvents() throws Exception {
+        final Path dir = Files.createTempDirectory("fst-baseline");
+        final Config config = BenchmarkConfig.local(ConfigFactory.parseString(
+                String.format("akka.persistence.journal.plugin = segment-journal%n") +
+                        String.format("segment-journal.dir = \"%s\"%n", dir) +
+                        String.format("segment-journal.fsync = off%n")));
+
+        final SegmentStoreSettings settings = new SegmentStoreSettings(config.getConfig("segment-journal"));
+        final SegmentJournalStore store = SegmentJournalStore.acquire(settings);
+        try {
+            store.append(Arrays.asList(event(1, "deposit-event"), event(2, "withdrawal-event")));
+            store.commit().toCompletableFuture().get(10, TimeUnit.SECONDS);
+        } finally {
+            SegmentJournalStore.release(settings);
+        }
+
+        final ActorSystem actorSystem = ActorSystem.create("fst", config);
+        try {
+            final TestKit probe = new TestKit(actorSystem);
+            final ActorRef entity = actorSystem.actorOf(
+                    EntityPersistenceActor.props(EntityPersistenceSettings.create(actorSystem)), entityId);
+            entity.tell(new EntityMessage.Query(new Entity.Id(entityId)), probe.getRef());
+
+            final EntityMessage.QueryAck queryAck = probe.expectMsgClass(Duration.ofSeconds(10), EntityMessage.QueryAck.class);
+            assertEquals(10005, queryAck.entity.balance.minorUnits);
+        } finally {
+            TestKit.shutdownActorSystem(actorSystem);
+        }
+    }
+
+    /**
+     * A journal record of the baseline event as the persistence message serializer writes it, with
+     * the payload under the id of the fst serializer.
+     */
+    private static SegmentJournalStore.Event event(long sequenceNr, String name) throws Exception {
+        final MessageFormats.PersistentMessage message = MessageFormats.PersistentMessage.newBuilder()
+                .setPayload(MessageFormats.PersistentPayload.newBuilder()
+                        .setSerializerId(fstSerializer.identifier())
+                        .setPayload(ByteString.copyFrom(baseline(name))))
+                .setPersistenceId(entityId)
+                .setSequenceNr(sequenceNr)
+                .setWriterUuid("baseline")
+                .build();
+        return new SegmentJournalStore.Event(entityId, sequenceNr, Collections.emptySet(), message.toByteArray());
+    }
+
+    private static byte[] baseline(String name) throws Exception {
+        return Files.readAllBytes(Paths.get(FstSerializerTest.class.getResource(String.format("/fst-baseline/%s.bin", name)).toURI()));
+    }
+}
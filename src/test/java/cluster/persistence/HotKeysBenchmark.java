@@ -0,0 +1,133 @@
+package cluster.persistence;
+
+import akka.actor.ActorSystem;
+import com.typesafe.config.Config;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Compares the hot entities found by {@link EntityHotKeys} with the exact top entities of zipf
+ * distributed streams over a large key space, and measures the cost of tracking an access with
+ * the sketch and with an exact concurrent map of counters, from one thread and from several.
+ */
+public class HotKeysBenchmark {
+    private static final int keySpace = 1000000;
+    private static final int accesses = 2000000;
+    private static final int topEntities = 20;
+    private static final int[] threadCounts = {1, 4};
+
+    public static void main(String[] args) throws Exception {
+        final ActorSystem actorSystem = ActorSystem.create("hotKeys", config());
+        try {
+            final EntityHotKeys hotKeys = EntityHotKeys.get(actorSystem);
+            final EntityRouting routing = EntityRouting.get(actorSystem);
+            for (double exponent : new double[]{1.2, 1.0, 0.8}) {
+                testAccuracy(hotKeys, routing, exponent);
+            }
+            for (int threads : threadCounts) {
+                testCost(hotKeys, routing, threads);
+            }
+        } finally {
+            actorSystem.terminate();
+            actorSystem.getWhenTerminated().toCompletableFuture().get(1, TimeUnit.MINUTES);
+        }
+    }
+
+    private static void testAccuracy(EntityHotKeys hotKeys, EntityRouting routing, double exponent) {
+        final KeySpace keys = KeySpace.zipf(keySpace, exponent);
+        final Map<String, Long> exact = new HashMap<>();
+        hotKeys.take();
+        for (int i = 0; i < accesses; i++) {
+            final Entity.Id id = keys.nextId();
+            hotKeys.used(routing.shardId(id), id);
+            exact.merge(id.id, 1L, Long::sum);
+        }
+        final EntityHotKeys.HotKeys found = hotKeys.take();
+
+        final List<Map.Entry<String, Long>> exactTop = exact.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(topEntities)
+                .collect(Collectors.toList());
+        final Set<String> exactTopIds = exactTop.stream().map(Map.Entry::getKey).collect(Collectors.toSet());
+        final Set<String> foundIds = found.entities.stream().map(hotKey -> hotKey.id).collect(Collectors.toSet());
+        final Set<String> missed = new HashSet<>(exactTopIds);
+        missed.removeAll(foundIds);
+
+        System.out.println();
+        System.out.printf("========== Zipf exponent %.1f, %,d accesses over %,d keys, %,d distinct ==========%n",
+                exponent, accesses, keySpace, exact.size());
+        System.out.printf("Top %d found %d, hottest exact %,d, %d-th exact %,d%n", topEntities, topEntities - missed.size(),
+                exactTop.get(0).getValue(), topEntities, exactTop.get(exactTop.size() - 1).getValue());
+        if (!missed.isEmpty()) {
+            System.out.printf("Missed %s with exact counts %s%n", missed,
+                    missed.stream().map(exact::get).collect(Collectors.toList()));
+        }
+    }
+
+    private static void testCost(EntityHotKeys hotKeys, EntityRouting routing, int threads) throws Exception {
+        final KeySpace keys = KeySpace.zipf(keySpace, 1.0);
+        final Entity.Id[] ids = new Entity.Id[accesses];
+        final String[] shardIds = new String[accesses];
+        for (int i = 0; i < accesses; i++) {
+            ids[i] = keys.nextId();
+            shardIds[i] = routing.shardId(ids[i]);
+        }
+
+        final ConcurrentMap<String, LongAdder> exact = new ConcurrentHashMap<>();
+        for (int round = 0; round < 3; round++) {
+            hotKeys.take();
+            final long sketchNanos = run(threads, i -> hotKeys.used(shardIds[i], ids[i]));
+            exact.clear();
+            final long exactNanos = run(threads, i -> exact.computeIfAbsent(ids[i].id, id -> new LongAdder()).increment());
+            if (round == 2) {
+                System.out.println();
+                System.out.printf("========== %d thread%s, %,d accesses ==========%n", threads, threads == 1 ? "" : "s", accesses);
+                System.out.printf("Sketch and top %d %.1f ns per access, %,d counters%n", topEntities,
+                        sketchNanos / (double) accesses, hotKeys.settings.sketchDepth * hotKeys.settings.sketchWidth);
+                System.out.printf("Exact map %.1f ns per access, %,d counters%n", exactNanos / (double) accesses, exact.size());
+            }
+        }
+    }
+
+    private interface Access {
+        void access(int i);
+    }
+
+    private static long run(int threads, Access access) throws InterruptedException {
+        final List<Thread> workers = new ArrayList<>(threads);
+        for (int t = 0; t < threads; t++) {
+            final int first = t;
+            workers.add(new Thread(() -> {
+                for (int i = first; i < accesses; i += threads) {
+                    access.access(i);
+                }
+            }));
+        }
+        final long t1 = System.nanoTime();
+        workers.forEach(Thread::start);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return System.nanoTime() - t1;
+    }
+
+    private static Config config() {
+        return BenchmarkConfig.local(
+                String.format("akka.actor.provider = cluster%n") +
+                        String.format("akka.remote.netty.tcp.port = 0%n") +
+                        String.format("akka.cluster.seed-nodes = []%n") +
+                        String.format("entity-hot-keys.enabled = on%n") +
+                        String.format("entity-hot-keys.top-entities = %d%n", topEntities) +
+                        String.format("entity-hot-keys.interval = 1h%n"));
+    }
+}
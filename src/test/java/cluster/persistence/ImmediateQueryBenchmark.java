@@ -0,0 +1,161 @@
+package cluster.persistence;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import org.HdrHistogram.Histogram;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a single hot entity busy with commands against the segment journal with fsync, so that a
+ * write is pending nearly all the time, and measures the latency of queries sent to it one at a
+ * time meanwhile, with persist, with entity-persistence.immediate-queries and with batching. The
+ * next query is sent with the next acknowledgement, so that the queries do not crowd out the
+ * commands.
+ * <p>
+ * The commands and queries come from one actor, so the acknowledgement of a command reaches it
+ * before the reply to any query that was answered after the event of the command was stored. A
+ * query whose balance includes more deposits than were acknowledged when its reply arrived would
+ * have seen an event that was not stored yet, and is counted as uncommitted.
+ */
+public class ImmediateQueryBenchmark {
+    private static final int commandCount = 20000;
+    private static final int commandsInFlight = 8;
+    private static final EntityMessage.Amount amount = new EntityMessage.Amount(BigDecimal.ONE);
+
+    public static void main(String[] args) throws Exception {
+        testQueryLatency("Persist", false, false);
+        testQueryLatency("Immediate queries", true, false);
+        testQueryLatency("Batching", false, true);
+    }
+
+    private static void testQueryLatency(String name, boolean immediateQueries, boolean batching) throws Exception {
+        final ActorSystem actorSystem = ActorSystem.create("immediateQuery", BenchmarkConfig.local(
+                String.format("akka.persistence.journal.plugin = segment-journal%n") +
+                        String.format("segment-journal.dir = target/segment-journal/%s%n", UUID.randomUUID()) +
+                        String.format("entity-persistence.immediate-queries = %b%n", immediateQueries) +
+                        String.format("entity-persistence.batching.enabled = %b%n", batching) +
+                        String.format("entity-persistence.snapshot.every-n-events = 0%n")));
+
+        try {
+            final ActorRef entity = actorSystem.actorOf(EntityPersistenceActor.props(EntityPersistenceSettings.create(actorSystem)), "1");
+
+            run(actorSystem, entity, commandCount / 10);
+            final Result result = run(actorSystem, entity, commandCount);
+
+            System.out.println();
+            System.out.printf("========== %s ==========%n", name);
+            System.out.printf("Commands %,d in %.3fs, %,.0f/s%n", commandCount, result.elapsedNanos / 1000000000.0,
+                    commandCount / (result.elapsedNanos / 1000000000.0));
+            System.out.printf("Queries %,d, uncommitted %d, latency ms p50 %.3f p90 %.3f p99 %.3f max %.3f%n",
+                    result.latency.getTotalCount(), result.uncommitted,
+                    result.latency.getValueAtPercentile(50) / 1000.0, result.latency.getValueAtPercentile(90) / 1000.0,
+                    result.latency.getValueAtPercentile(99) / 1000.0, result.latency.getMaxValue() / 1000.0);
+        } finally {
+            actorSystem.terminate();
+            actorSystem.getWhenTerminated().toCompletableFuture().get(1, TimeUnit.MINUTES);
+        }
+    }
+
+    private static Result run(ActorSystem actorSystem, ActorRef entity, int count) throws Exception {
+        final CompletableFuture<Result> done = new CompletableFuture<>();
+        final ActorRef driver = actorSystem.actorOf(Driver.props(entity, count, done));
+        final Result result = done.get(5, TimeUnit.MINUTES);
+        actorSystem.stop(driver);
+        return result;
+    }
+
+    private static class Result {
+        final Histogram latency = new Histogram(3);
+        long elapsedNanos;
+        int uncommitted;
+    }
+
+    private static class Driver extends AbstractActor {
+        private final ActorRef entity;
+        private final int count;
+        private final CompletableFuture<Result> done;
+        private final Result result = new Result();
+        private final long startNanoTime = System.nanoTime();
+        private long startMinorUnits = -1;
+        private int sent;
+        private int acknowledged;
+        private boolean queryInFlight;
+
+        Driver(ActorRef entity, int count, CompletableFuture<Result> done) {
+            this.entity = entity;
+            this.count = count;
+            this.done = done;
+        }
+
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .match(EntityMessage.CommandAck.class, this::commandAck)
+                    .match(EntityMessage.QueryAck.class, this::queryAck)
+                    .match(EntityMessage.QueryAckNotFound.class, notFound -> replied(notFound.queryTime, 0))
+                    .build();
+        }
+
+        private void commandAck(EntityMessage.CommandAck commandAck) {
+            if (++acknowledged == count) {
+                result.elapsedNanos = System.nanoTime() - startNanoTime;
+                done.complete(result);
+            } else {
+                if (sent < count) {
+                    command();
+                }
+                if (!queryInFlight) {
+                    query();
+                }
+            }
+        }
+
+        private void queryAck(EntityMessage.QueryAck queryAck) {
+            replied(queryAck.queryTime, queryAck.entity.balance.minorUnits);
+        }
+
+        /**
+         * The first reply gives the balance that the commands of this run start from, which is 0
+         * when the entity does not exist yet.
+         */
+        private void replied(long queryTime, long minorUnits) {
+            queryInFlight = false;
+            if (startMinorUnits < 0) {
+                startMinorUnits = minorUnits;
+                for (int i = 0; i < commandsInFlight; i++) {
+                    command();
+                }
+            } else {
+                result.latency.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - queryTime));
+                if (minorUnits - startMinorUnits > acknowledged * amount.minorUnits) {
+                    ++result.uncommitted;
+                }
+            }
+        }
+
+        private void command() {
+            ++sent;
+            entity.tell(new EntityMessage.DepositCommand(new Entity.Id("1"), amount), self());
+        }
+
+        private void query() {
+            queryInFlight = true;
+            entity.tell(new EntityMessage.Query(new Entity.Id("1")), self());
+        }
+
+        @Override
+        public void preStart() {
+            query();
+        }
+
+        static Props props(ActorRef entity, int count, CompletableFuture<Result> done) {
+            return Props.create(Driver.class, entity, count, done);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package cluster.persistence;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.cluster.Cluster;
+import akka.cluster.MemberStatus;
+import akka.cluster.sharding.ClusterSharding;
+import akka.cluster.sharding.ClusterShardingSettings;
+import akka.stream.ActorMaterializer;
+import akka.stream.javadsl.FileIO;
+import akka.stream.javadsl.Sink;
+import com.typesafe.config.Config;
+
+import java.io.BufferedWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.stream.StreamSupport;
+
+/**
+ * Ingests a file of deposits into a single node cluster, once by sending every command with a tell
+ * as fast as the file is read, and once through the {@link EntityIngestActor} pipeline with an
+ * increasing number of lanes. Reports the throughput and the peak of commands that were read but
+ * not yet acknowledged, which for the tells are waiting in mailboxes. The deposit amounts of an
+ * entity increase through the file, so the pipeline also checks that each entity's commands were
+ * acknowledged in file order.
+ */
+public class IngestBenchmark {
+    private static final int entityCount = 10000;
+    private static final int commandCount = 200000;
+    private static final Path file = Paths.get("target", "ingest-benchmark.csv");
+
+    public static void main(String[] args) throws Exception {
+        writeFile();
+        testTells();
+        testPipeline(16);
+        testPipeline(64);
+        testPipeline(256);
+    }
+
+    private static void writeFile() throws Exception {
+        Files.createDirectories(file.getParent());
+        final KeySpace keySpace = KeySpace.uniform(entityCount);
+        final Map<String, Integer> sequences = new HashMap<>();
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < commandCount; i++) {
+                final Entity.Id id = keySpace.nextId();
+                writer.write(String.format("deposit,%s,%d%n", id.id, sequences.merge(id.id, 1, Integer::sum)));
+            }
+        }
+    }
+
+    private static void testTells() throws Exception {
+        final ActorSystem actorSystem = ActorSystem.create("ingest", config(1));
+        try {
+            final ActorRef shardRegion = startSharding(actorSystem);
+            final LongAdder sent = new LongAdder();
+            final LongAdder acked = new LongAdder();
+            final ActorRef ackCounter = actorSystem.actorOf(AckCounter.props(acked));
+
+            final PeakSampler peak = new PeakSampler(() -> sent.sum() - acked.sum());
+            final long t1 = System.nanoTime();
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                shardRegion.tell(EntityIngestActor.parse(line), ackCounter);
+                sent.increment();
+            }
+            final long t2 = awaitAcked(acked);
+            peak.stop();
+
+            print("One tell per command", acked.sum(), t2 - t1, peak.peak(), -1);
+        } finally {
+            terminate(actorSystem);
+        }
+    }
+
+    private static void testPipeline(int lanes) throws Exception {
+        final ActorSystem actorSystem = ActorSystem.create("ingest", config(lanes));
+        try {
+            final ActorRef shardRegion = startSharding(actorSystem);
+            final EntityIngestSettings settings = EntityIngestSettings.create(actorSystem);
+            final EntityIngestActor.Counters counters = new EntityIngestActor.Counters();
+            final Map<String, Long> lastAmounts = new HashMap<>();
+            final LongAdder outOfOrder = new LongAdder();
+
+            final PeakSampler peak = new PeakSampler(() -> counters.read.sum() - counters.acked.sum());
+            final long t1 = System.nanoTime();
+            FileIO.fromPath(file)
+                    .via(EntityIngestActor.lines(settings))
+                    .via(EntityIngestActor.commands(settings, shardRegion, actorSystem.dispatcher(), counters))
+                    .runWith(Sink.foreach(commandAck -> {
+                        final long amount = commandAck.entityEvent.amount.minorUnits;
+                        final Long last = lastAmounts.put(commandAck.entityEvent.id.id, amount);
+                        if (last != null && last > amount) {
+                            outOfOrder.increment();
+                        }
+                    }), ActorMaterializer.create(actorSystem))
+                    .toCompletableFuture()
+                    .get(5, TimeUnit.MINUTES);
+            final long t2 = System.nanoTime();
+            peak.stop();
+
+            print(String.format("Pipeline, %d lanes", lanes), counters.acked.sum(), t2 - t1, peak.peak(), outOfOrder.sum());
+        } finally {
+            terminate(actorSystem);
+        }
+    }
+
+    /**
+     * Waits until every command is acknowledged or no more acknowledgements arrive, as commands
+     * that overflow the shard region buffer are dropped, and returns when the last one arrived.
+     */
+    private static long awaitAcked(LongAdder acked) throws InterruptedException {
+        long lastAcked = -1;
+        long lastAckedNanoTime = System.nanoTime();
+        while (acked.sum() < commandCount && System.nanoTime() - lastAckedNanoTime < TimeUnit.SECONDS.toNanos(5)) {
+            if (acked.sum() != lastAcked) {
+                lastAcked = acked.sum();
+                lastAckedNanoTime = System.nanoTime();
+            }
+            Thread.sleep(1);
+        }
+        return acked.sum() < commandCount ? lastAckedNanoTime : System.nanoTime();
+    }
+
+    private static void print(String name, long acked, long elapsedNanos, long peak, long outOfOrder) {
+        System.out.println();
+        System.out.printf("========== %s ==========%n", name);
+        System.out.printf("Acknowledged %,d of %,d commands in %.3fs, %,.0f commands/s%n",
+                acked, commandCount, elapsedNanos / 1000000000.0, acked / (elapsedNanos / 1000000000.0));
+        System.out.printf("Peak read but not acknowledged %,d%n", peak);
+        if (outOfOrder >= 0) {
+            System.out.printf("Acknowledged out of file order %,d%n", outOfOrder);
+        }
+    }
+
+    private static ActorRef startSharding(ActorSystem actorSystem) throws InterruptedException {
+        final Cluster cluster = Cluster.get(actorSystem);
+        cluster.join(cluster.selfAddress());
+        while (StreamSupport.stream(cluster.state().getMembers().spliterator(), false)
+                .noneMatch(member -> member.status().equals(MemberStatus.up()))) {
+            Thread.sleep(100);
+        }
+        return ClusterSharding.get(actorSystem).start("entity", EntityPersistenceActor.props(EntityPersistenceSettings.create(actorSystem)),
+                ClusterShardingSettings.create(actorSystem), EntityRouting.get(actorSystem).messageExtractor());
+    }
+
+    private static void terminate(ActorSystem actorSystem) throws Exception {
+        actorSystem.terminate();
+        actorSystem.getWhenTerminated().toCompletableFuture().get(1, TimeUnit.MINUTES);
+    }
+
+    private static Config config(int lanes) {
+        return BenchmarkConfig.local(
+                String.format("akka.actor.provider = cluster%n") +
+                        String.format("akka.remote.netty.tcp.port = 0%n") +
+                        String.format("akka.cluster.seed-nodes = []%n") +
+                        String.format("akka.cluster.roles = []%n") +
+                        String.format("entity-persistence.snapshot.every-n-events = 0%n") +
+                        String.format("entity-ingest.lanes = %d%n", lanes));
+    }
+
+    /**
+     * Samples a gauge every millisecond and keeps its highest value.
+     */
+    private static class PeakSampler {
+        private final LongAccumulator peak = new LongAccumulator(Math::max, 0);
+        private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+
+        PeakSampler(LongSupplier gauge) {
+            sampler.scheduleAtFixedRate(() -> peak.accumulate(gauge.getAsLong()), 0, 1, TimeUnit.MILLISECONDS);
+        }
+
+        void stop() throws InterruptedException {
+            sampler.shutdown();
+            sampler.awaitTermination(1, TimeUnit.SECONDS);
+        }
+
+        long peak() {
+            return peak.get();
+        }
+    }
+
+    private static class AckCounter extends AbstractActor {
+        private final LongAdder acked;
+
+        AckCounter(LongAdder acked) {
+            this.acked = acked;
+        }
+
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .match(EntityMessage.CommandAck.class, commandAck -> acked.increment())
+                    .build();
+        }
+
+        static Props props(LongAdder acked) {
+            return Props.create(AckCounter.class, acked);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package cluster.persistence;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.PoisonPill;
+import akka.actor.Props;
+import akka.pattern.Patterns;
+import com.typesafe.config.Config;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the in-memory journal with {@link SegmentJournal}, with and without fsync, by writing
+ * events to many entities at once and then recovering all of them at once. Snapshots are off so
+ * that recovery replays every event.
+ */
+public class JournalBenchmark {
+    private static final int entityCount = 1000;
+    private static final int eventsPerEntity = 100;
+    private static final Duration timeout = Duration.ofMinutes(5);
+
+    public static void main(String[] args) throws Exception {
+        testJournal("In-memory journal", "");
+        testJournal("Segment journal, fsync on", segmentJournal(true));
+        testJournal("Segment journal, fsync off", segmentJournal(false));
+    }
+
+    private static String segmentJournal(boolean fsync) {
+        return String.format("akka.persistence.journal.plugin = segment-journal%n") +
+                String.format("segment-journal.dir = target/segment-journal/%s%n", UUID.randomUUID()) +
+                String.format("segment-journal.fsync = %b%n", fsync);
+    }
+
+    private static void testJournal(String name, String overrides) throws Exception {
+        final ActorSystem actorSystem = ActorSystem.create("journal", config(overrides));
+
+        try {
+            final List<ActorRef> entities = startEntities(actorSystem);
+            final long writeNanos = writeEvents(actorSystem, entities);
+            stopEntities(entities);
+            final long recoveryNanos = recoverEntities(actorSystem);
+
+            final int eventCount = entityCount * eventsPerEntity;
+            System.out.println();
+            System.out.printf("========== %s ==========%n", name);
+            System.out.printf("Wrote %,d events to %,d entities in %.3fs, %,.0f events/s%n",
+                    eventCount, entityCount, writeNanos / 1000000000.0, eventCount / (writeNanos / 1000000000.0));
+            System.out.printf("Recovered %,d entities in %.3fs, %,.0f events/s%n",
+                    entityCount, recoveryNanos / 1000000000.0, eventCount / (recoveryNanos / 1000000000.0));
+        } finally {
+            actorSystem.terminate();
+            actorSystem.getWhenTerminated().toCompletableFuture().get(1, TimeUnit.MINUTES);
+        }
+    }
+
+    private static List<ActorRef> startEntities(ActorSystem actorSystem) {
+        final EntityPersistenceSettings settings = EntityPersistenceSettings.create(actorSystem);
+        final List<ActorRef> entities = new ArrayList<>(entityCount);
+        for (int i = 1; i <= entityCount; i++) {
+            entities.add(actorSystem.actorOf(EntityPersistenceActor.props(settings), String.valueOf(i)));
+        }
+        return entities;
+    }
+
+    private static long writeEvents(ActorSystem actorSystem, List<ActorRef> entities) throws Exception {
+        final CompletableFuture<Long> done = new CompletableFuture<>();
+        final ActorRef ackCounter = actorSystem.actorOf(AckCounter.props(entityCount * eventsPerEntity, done));
+
+        final long t1 = System.nanoTime();
+        for (int i = 0; i < eventsPerEntity; i++) {
+            for (ActorRef entity : entities) {
+                entity.tell(new EntityMessage.DepositCommand(new Entity.Id(entity.path().name()), new EntityMessage.Amount(BigDecimal.ONE)), ackCounter);
+            }
+        }
+        final long t2 = done.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+
+        actorSystem.stop(ackCounter);
+        return t2 - t1;
+    }
+
+    private static void stopEntities(List<ActorRef> entities) throws Exception {
+        final List<CompletableFuture<Boolean>> stopped = new ArrayList<>(entityCount);
+        for (ActorRef entity : entities) {
+            stopped.add(Patterns.gracefulStop(entity, timeout, PoisonPill.getInstance()).toCompletableFuture());
+        }
+        CompletableFuture.allOf(stopped.toArray(new CompletableFuture<?>[0])).get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        Thread.sleep(100); // the names of the stopped entities are released asynchronously
+    }
+
+    private static long recoverEntities(ActorSystem actorSystem) throws Exception {
+        final long t1 = System.nanoTime();
+        final List<CompletableFuture<Object>> replies = new ArrayList<>(entityCount);
+        for (ActorRef entity : startEntities(actorSystem)) {
+            final CompletionStage<Object> reply = Patterns.ask(entity, new EntityMessage.Query(new Entity.Id(entity.path().name())), timeout);
+            replies.add(reply.toCompletableFuture());
+        }
+        CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0])).get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        final long t2 = System.nanoTime();
+
+        for (CompletableFuture<Object> reply : replies) {
+            final Object queryAck = reply.get();
+            if (!(queryAck instanceof EntityMessage.QueryAck) ||
+                    ((EntityMessage.QueryAck) queryAck).entity.balance.minorUnits != MinorUnits.of(BigDecimal.valueOf(eventsPerEntity))) {
+                throw new IllegalStateException(String.format("Unexpected recovered state %s", queryAck));
+            }
+        }
+        return t2 - t1;
+    }
+
+    private static Config config(String overrides) {
+        return BenchmarkConfig.local(overrides +
+                String.format("entity-persistence.snapshot.every-n-events = 0%n") +
+                String.format("entity-persistence.snapshot.every-interval = 0s%n"));
+    }
+
+    private static class AckCounter extends AbstractActor {
+        private final int expected;
+        private final CompletableFuture<Long> done;
+        private int received;
+
+        AckCounter(int expected, CompletableFuture<Long> done) {
+            this.expected = expected;
+            this.done = done;
+        }
+
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .match(EntityMessage.CommandAck.class, commandAck -> {
+                        if (++received == expected) {
+                            done.complete(System.nanoTime());
+                        }
+                    })
+                    .build();
+        }
+
+        static Props props(int expected, CompletableFuture<Long> done) {
+            return Props.create(AckCounter.class, expected, done);
+        }
+    }
+}
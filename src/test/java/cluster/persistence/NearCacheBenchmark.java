@@ -0,0 +1,153 @@
+package cluster.persistence;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.cluster.Cluster;
+import akka.cluster.MemberStatus;
+import akka.cluster.sharding.ClusterSharding;
+import akka.cluster.sharding.ClusterShardingSettings;
+import akka.pattern.Patterns;
+import com.typesafe.config.Config;
+import org.HdrHistogram.Histogram;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.StreamSupport;
+
+/**
+ * Measures query latency from a node that does not host the entities, once through its sharding
+ * proxy and once through an {@link EntityNearCacheActor} in front of the proxy. Both nodes run in
+ * this JVM and talk over loopback TCP. Queries pick zipf distributed entities, and every tenth
+ * operation is a deposit, so the cache is invalidated as it would be under a read-mostly load.
+ * A query that returns a balance without a deposit that was already acknowledged counts as stale.
+ */
+public class NearCacheBenchmark {
+    private static final int entityCount = 1000;
+    private static final int operationCount = 50000;
+    private static final int depositEvery = 10;
+    private static final Duration timeout = Duration.ofSeconds(10);
+
+    public static void main(String[] args) throws Exception {
+        testQueries(false);
+        testQueries(true);
+    }
+
+    private static void testQueries(boolean nearCache) throws Exception {
+        final ActorSystem owner = ActorSystem.create("nearcache", config(nearCache, "write-side"));
+        final ActorSystem querier = ActorSystem.create("nearcache", config(nearCache));
+
+        try {
+            Cluster.get(owner).join(Cluster.get(owner).selfAddress());
+            Cluster.get(querier).join(Cluster.get(owner).selfAddress());
+            awaitMembersUp(querier, 2);
+
+            final EntityRouting routing = EntityRouting.get(owner);
+            ClusterSharding.get(owner).start("entity", EntityPersistenceActor.props(EntityPersistenceSettings.create(owner)),
+                    ClusterShardingSettings.create(owner).withRole("write-side"), routing.messageExtractor());
+            final ActorRef proxy = ClusterSharding.get(querier).startProxy("entity", Optional.of("write-side"), routing.messageExtractor());
+            final ActorRef destination = nearCache
+                    ? querier.actorOf(EntityNearCacheActor.props(EntityNearCacheSettings.create(querier), proxy), "entityNearCache")
+                    : proxy;
+            Thread.sleep(1000); // lets the cache subscribe to the event topic on both nodes
+
+            final Map<String, Long> balances = new HashMap<>();
+            for (int i = 1; i <= entityCount; i++) {
+                deposit(proxy, new Entity.Id(String.valueOf(i)), balances);
+            }
+
+            final KeySpace keySpace = KeySpace.zipf(entityCount, 1.0);
+            run(destination, proxy, keySpace, balances, operationCount / 5);
+            final Result result = run(destination, proxy, keySpace, balances, operationCount);
+
+            System.out.println();
+            System.out.printf("========== %s ==========%n", nearCache ? "Near cache" : "Sharding proxy");
+            System.out.printf("Queries %,d, deposits %,d, stale reads %,d%n", result.queries, result.deposits, result.staleReads);
+            System.out.printf("Query latency us p50 %,d p90 %,d p99 %,d max %,d%n",
+                    result.latency.getValueAtPercentile(50), result.latency.getValueAtPercentile(90),
+                    result.latency.getValueAtPercentile(99), result.latency.getMaxValue());
+            if (nearCache) {
+                Arrays.stream(EntityMetrics.get(querier).scrape().split("\n"))
+                        .filter(line -> line.startsWith("entity_near_cache_") && !line.contains("quantile"))
+                        .forEach(System.out::println);
+            }
+        } finally {
+            querier.terminate();
+            owner.terminate();
+            querier.getWhenTerminated().toCompletableFuture().get(1, TimeUnit.MINUTES);
+            owner.getWhenTerminated().toCompletableFuture().get(1, TimeUnit.MINUTES);
+        }
+    }
+
+    private static Result run(ActorRef destination, ActorRef proxy, KeySpace keySpace, Map<String, Long> balances, int operations) throws Exception {
+        final Result result = new Result();
+        for (int i = 1; i <= operations; i++) {
+            final Entity.Id id = keySpace.nextId();
+            if (i % depositEvery == 0) {
+                deposit(proxy, id, balances);
+                ++result.deposits;
+                continue;
+            }
+
+            final long t1 = System.nanoTime();
+            final Object reply = ask(destination, new EntityMessage.Query(id));
+            result.latency.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - t1));
+            ++result.queries;
+            if (!(reply instanceof EntityMessage.QueryAck)) {
+                throw new IllegalStateException(String.format("Unexpected query reply %s", reply));
+            }
+            if (((EntityMessage.QueryAck) reply).entity.balance.minorUnits != balances.get(id.id)) {
+                ++result.staleReads;
+            }
+        }
+        return result;
+    }
+
+    private static void deposit(ActorRef proxy, Entity.Id id, Map<String, Long> balances) throws Exception {
+        final EntityMessage.Amount amount = new EntityMessage.Amount(BigDecimal.ONE);
+        final Object reply = ask(proxy, new EntityMessage.DepositCommand(id, amount));
+        if (!(reply instanceof EntityMessage.CommandAck)) {
+            throw new IllegalStateException(String.format("Unexpected command reply %s", reply));
+        }
+        balances.merge(id.id, amount.minorUnits, Long::sum);
+    }
+
+    private static Object ask(ActorRef destination, Object message) throws Exception {
+        return Patterns.ask(destination, message, timeout)
+                .toCompletableFuture()
+                .get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private static void awaitMembersUp(ActorSystem actorSystem, int members) throws InterruptedException {
+        final Cluster cluster = Cluster.get(actorSystem);
+        while (StreamSupport.stream(cluster.state().getMembers().spliterator(), false)
+                .filter(member -> member.status().equals(MemberStatus.up()))
+                .count() < members) {
+            Thread.sleep(100);
+        }
+    }
+
+    private static Config config(boolean nearCache, String... roles) {
+        return BenchmarkConfig.local(
+                String.format("akka.actor.provider = cluster%n") +
+                        String.format("akka.remote.netty.tcp.port = 0%n") +
+                        String.format("akka.cluster.seed-nodes = []%n") +
+                        String.format("akka.cluster.roles = [%s]%n", String.join(",", roles)) +
+                        String.format("akka.cluster.jmx.multi-mbeans-in-same-jvm = on%n") +
+                        String.format("entity-persistence.snapshot.every-n-events = 0%n") +
+                        String.format("entity-near-cache.enabled = %b%n", nearCache) +
+                        String.format("entity-near-cache.max-entries = %d%n", entityCount / 2) +
+                        String.format("entity-near-cache.report-interval = 1h%n"));
+    }
+
+    private static class Result {
+        final Histogram latency = new Histogram(3);
+        int queries;
+        int deposits;
+        int staleReads;
+    }
+}
@@ -0,0 +1,223 @@
+package cluster.persistence;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.cluster.Cluster;
+import akka.cluster.MemberStatus;
+import akka.cluster.sharding.ClusterSharding;
+import akka.cluster.sharding.ClusterShardingSettings;
+import akka.pattern.Patterns;
+import com.typesafe.config.Config;
+import org.HdrHistogram.Histogram;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.StreamSupport;
+
+/**
+ * Queries a zipf distributed hot set of entities mixed with scans that touch a large number of
+ * other entities once each, as a backfill or a report would, with no entity budget and with a
+ * budget below the hot set for each passivation strategy. Reports the peak of active entities,
+ * how many entities were started, which each recover from the journal, how many were evicted,
+ * the latency of the hot queries and the heap in use afterwards.
+ * <p>
+ * Also touches registered entries from a growing number of threads, as the entities of a busy node
+ * do on every message, within the budget and with a share of starts that take it over the budget,
+ * and reports the operations per second.
+ */
+public class PassivationBenchmark {
+    private static final int hotEntities = 2000;
+    private static final int scanEntities = 50000;
+    private static final int operationCount = 100000;
+    private static final int scanShare = 20;
+    private static final int concurrency = 50;
+    private static final int budget = 1000;
+    private static final Duration timeout = Duration.ofSeconds(10);
+    private static final int contentionEntities = 8192;
+    private static final int[] contentionThreads = {1, 2, 4, 8, 16, 32, 64};
+    private static final Duration contentionDuration = Duration.ofSeconds(2);
+
+    public static void main(String[] args) throws Exception {
+        testPassivation(0, "lru");
+        testPassivation(budget, "lru");
+        testPassivation(budget, "segmented-lru");
+        testContention(contentionEntities * 2, 0);
+        testContention(contentionEntities / 2, 1);
+    }
+
+    /**
+     * Runs {@link #contend} with each number of threads, after a warm-up round with one thread.
+     */
+    private static void testContention(int maxActiveEntities, int startPercentage) throws Exception {
+        final ActorSystem actorSystem = ActorSystem.create("passivation", BenchmarkConfig.local(
+                String.format("entity-passivation.max-active-entities = %d%n", maxActiveEntities) +
+                        String.format("entity-passivation.report-interval = 1h%n")));
+        try {
+            final EntityPassivation passivation = EntityPassivation.get(actorSystem);
+            final ActorRef entity = actorSystem.actorOf(Props.empty());
+            System.out.println();
+            System.out.printf("========== Contention, %,d entities, budget %,d, %d%% starts ==========%n",
+                    contentionEntities, maxActiveEntities, startPercentage);
+            contend(passivation, entity, 1, startPercentage);
+            for (int threads : contentionThreads) {
+                final long evictedBefore = passivation.evictedEntities();
+                final double operations = contend(passivation, entity, threads, startPercentage);
+                System.out.printf("Threads %2d, %,.0f operations/s, evicted %,d%n", threads, operations,
+                        passivation.evictedEntities() - evictedBefore);
+            }
+        } finally {
+            actorSystem.terminate();
+            actorSystem.getWhenTerminated().toCompletableFuture().get(1, TimeUnit.MINUTES);
+        }
+    }
+
+    private static void testPassivation(int maxActiveEntities, String strategy) throws Exception {
+        final ActorSystem actorSystem = ActorSystem.create("passivation", config(maxActiveEntities, strategy));
+        try {
+            final ActorRef shardRegion = startSharding(actorSystem);
+            final EntityPassivation passivation = EntityPassivation.get(actorSystem);
+
+            final List<CompletableFuture<Object>> deposits = new ArrayList<>();
+            for (int i = 1; i <= hotEntities; i++) {
+                deposits.add(ask(shardRegion, new EntityMessage.DepositCommand(hotId(i), new EntityMessage.Amount(BigDecimal.ONE))));
+                if (deposits.size() == concurrency) {
+                    awaitAll(deposits);
+                }
+            }
+            awaitAll(deposits);
+
+            final long startedBefore = passivation.startedEntities();
+            final long evictedBefore = passivation.evictedEntities();
+            final KeySpace hotKeys = KeySpace.zipf(hotEntities, 1.0);
+            final Histogram hotLatency = new Histogram(3);
+            int peakActive = 0;
+            int nextScanEntity = 0;
+
+            final long t1 = System.nanoTime();
+            for (int i = 0; i < operationCount; i += concurrency) {
+                final List<CompletableFuture<Object>> queries = new ArrayList<>(concurrency);
+                final List<Long> hotStarts = new ArrayList<>(concurrency);
+                for (int q = 0; q < concurrency; q++) {
+                    if (ThreadLocalRandom.current().nextInt(100) < scanShare) {
+                        queries.add(ask(shardRegion, new EntityMessage.Query(new Entity.Id(String.format("scan-%d", ++nextScanEntity % scanEntities)))));
+                        hotStarts.add(-1L);
+                    } else {
+                        hotStarts.add(System.nanoTime());
+                        queries.add(ask(shardRegion, new EntityMessage.Query(hotId(Integer.parseInt(hotKeys.nextId().id)))));
+                    }
+                }
+                for (int q = 0; q < concurrency; q++) {
+                    queries.get(q).get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+                    if (hotStarts.get(q) >= 0) {
+                        hotLatency.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - hotStarts.get(q)));
+                    }
+                }
+                peakActive = Math.max(peakActive, passivation.activeEntities());
+            }
+            final long t2 = System.nanoTime();
+
+            System.gc();
+            System.out.println();
+            System.out.printf("========== %s ==========%n", maxActiveEntities == 0
+                    ? "No entity budget" : String.format("Budget %,d, %s", maxActiveEntities, strategy));
+            System.out.printf("Operations %,d in %.3fs, %,.0f/s%n", operationCount, (t2 - t1) / 1000000000.0,
+                    operationCount / ((t2 - t1) / 1000000000.0));
+            System.out.printf("Active entities peak %,d, at end %,d%n", peakActive, passivation.activeEntities());
+            System.out.printf("Entities started %,d, evicted %,d%n",
+                    passivation.startedEntities() - startedBefore, passivation.evictedEntities() - evictedBefore);
+            System.out.printf("Hot query latency us p50 %,d p90 %,d p99 %,d max %,d%n",
+                    hotLatency.getValueAtPercentile(50), hotLatency.getValueAtPercentile(90),
+                    hotLatency.getValueAtPercentile(99), hotLatency.getMaxValue());
+            System.out.printf("Heap used after gc %,d MB%n",
+                    ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / (1024 * 1024));
+        } finally {
+            actorSystem.terminate();
+            actorSystem.getWhenTerminated().toCompletableFuture().get(1, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Each thread owns a slice of the entries, as each entity touches only its own, and touches a
+     * random one of them, or with the given percentage stops it and starts a new one instead.
+     */
+    private static double contend(EntityPassivation passivation, ActorRef entity, int threads, int startPercentage) throws InterruptedException {
+        final LongAdder operations = new LongAdder();
+        final long end = System.nanoTime() + contentionDuration.toNanos();
+        final List<Thread> workers = new ArrayList<>(threads);
+        for (int t = 0; t < threads; t++) {
+            final EntityPassivation.Entry[] entries = new EntityPassivation.Entry[contentionEntities / threads];
+            for (int e = 0; e < entries.length; e++) {
+                entries[e] = passivation.started(entity);
+            }
+            workers.add(new Thread(() -> {
+                final ThreadLocalRandom random = ThreadLocalRandom.current();
+                long count = 0;
+                while (System.nanoTime() < end) {
+                    for (int i = 0; i < 1000; i++) {
+                        final int e = random.nextInt(entries.length);
+                        if (random.nextInt(100) < startPercentage) {
+                            passivation.stopped(entries[e]);
+                            entries[e] = passivation.started(entity);
+                        } else {
+                            passivation.touched(entries[e]);
+                        }
+                    }
+                    count += 1000;
+                }
+                for (EntityPassivation.Entry entry : entries) {
+                    passivation.stopped(entry);
+                }
+                operations.add(count);
+            }));
+        }
+        workers.forEach(Thread::start);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return operations.sum() / (contentionDuration.toNanos() / 1000000000.0);
+    }
+
+    private static Entity.Id hotId(int i) {
+        return new Entity.Id(String.valueOf(i));
+    }
+
+    private static CompletableFuture<Object> ask(ActorRef destination, Object message) {
+        return Patterns.ask(destination, message, timeout).toCompletableFuture();
+    }
+
+    private static void awaitAll(List<CompletableFuture<Object>> replies) throws Exception {
+        CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0])).get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        replies.clear();
+    }
+
+    private static ActorRef startSharding(ActorSystem actorSystem) throws InterruptedException {
+        final Cluster cluster = Cluster.get(actorSystem);
+        cluster.join(cluster.selfAddress());
+        while (StreamSupport.stream(cluster.state().getMembers().spliterator(), false)
+                .noneMatch(member -> member.status().equals(MemberStatus.up()))) {
+            Thread.sleep(100);
+        }
+        return ClusterSharding.get(actorSystem).start("entity", EntityPersistenceActor.props(EntityPersistenceSettings.create(actorSystem)),
+                ClusterShardingSettings.create(actorSystem), EntityRouting.get(actorSystem).messageExtractor());
+    }
+
+    private static Config config(int maxActiveEntities, String strategy) {
+        return BenchmarkConfig.local(
+                String.format("akka.actor.provider = cluster%n") +
+                        String.format("akka.remote.netty.tcp.port = 0%n") +
+                        String.format("akka.cluster.seed-nodes = []%n") +
+                        String.format("akka.cluster.roles = []%n") +
+                        String.format("entity-persistence.snapshot.every-n-events = 0%n") +
+                        String.format("entity-passivation.max-active-entities = %d%n", maxActiveEntities) +
+                        String.format("entity-passivation.strategy = %s%n", strategy) +
+                        String.format("entity-passivation.report-interval = 1h%n"));
+    }
+}
@@ -0,0 +1,170 @@
+package cluster.persistence;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.cluster.Cluster;
+import akka.cluster.MemberStatus;
+import akka.cluster.sharding.ClusterSharding;
+import akka.cluster.sharding.ClusterShardingSettings;
+import akka.pattern.Patterns;
+import com.typesafe.config.Config;
+import org.HdrHistogram.Histogram;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.StreamSupport;
+
+/**
+ * Moves every shard from one node to another and measures the query latency right after the move,
+ * with and without prewarming. Node A hosts the entities first, a querier node without the
+ * write-side role sends zipf distributed queries through its proxy, then node B joins and node A
+ * leaves, so that every shard is handed off to B and each entity recovers there from the shared
+ * segment journal. Snapshots are off, so every recovery replays all events of its entity.
+ */
+public class PrewarmBenchmark {
+    private static final int entityCount = 300;
+    private static final int eventsPerEntity = 200;
+    private static final int warmQueries = 5000;
+    private static final int measuredQueries = 6000;
+    private static final int firstQueries = 1000;
+    private static final int concurrency = 10;
+    private static final Duration timeout = Duration.ofSeconds(30);
+
+    public static void main(String[] args) throws Exception {
+        final String dir = String.format("target/segment-journal/%s", UUID.randomUUID());
+        final ActorSystem loader = ActorSystem.create("prewarm", config(dir, false, "write-side"));
+        try {
+            Cluster.get(loader).join(Cluster.get(loader).selfAddress());
+            awaitMembersUp(loader, 1);
+            final ActorRef shardRegion = startSharding(loader);
+            for (int event = 0; event < eventsPerEntity; event++) {
+                final List<CompletableFuture<Object>> deposits = new ArrayList<>(entityCount);
+                for (int i = 1; i <= entityCount; i++) {
+                    deposits.add(ask(shardRegion, new EntityMessage.DepositCommand(new Entity.Id(String.valueOf(i)),
+                            new EntityMessage.Amount(BigDecimal.ONE))));
+                }
+                CompletableFuture.allOf(deposits.toArray(new CompletableFuture<?>[0])).get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            terminate(loader);
+        }
+
+        // The first round warms up the JVM for the second.
+        for (int round = 1; round <= 2; round++) {
+            testHandOff(dir, false, round);
+            testHandOff(dir, true, round);
+        }
+    }
+
+    private static void testHandOff(String dir, boolean prewarm, int round) throws Exception {
+        final ActorSystem nodeA = ActorSystem.create("prewarm", config(dir, prewarm, "write-side"));
+        final ActorSystem querier = ActorSystem.create("prewarm", config(dir, prewarm));
+        ActorSystem nodeB = null;
+        try {
+            Cluster.get(nodeA).join(Cluster.get(nodeA).selfAddress());
+            Cluster.get(querier).join(Cluster.get(nodeA).selfAddress());
+            awaitMembersUp(querier, 2);
+            startSharding(nodeA);
+            final ActorRef proxy = ClusterSharding.get(querier).startProxy("entity", Optional.of("write-side"),
+                    EntityRouting.get(querier).messageExtractor());
+
+            final KeySpace keySpace = KeySpace.zipf(entityCount, 1.0);
+            query(proxy, keySpace, warmQueries);
+            Thread.sleep(3000); // the hot entities are published every second and gossiped to every node
+
+            nodeB = ActorSystem.create("prewarm", config(dir, prewarm, "write-side"));
+            Cluster.get(nodeB).join(Cluster.get(nodeA).selfAddress());
+            awaitMembersUp(querier, 3);
+            startSharding(nodeB);
+            Thread.sleep(3000);
+
+            Cluster.get(nodeA).leave(Cluster.get(nodeA).selfAddress());
+            while (StreamSupport.stream(Cluster.get(querier).state().getMembers().spliterator(), false)
+                    .anyMatch(member -> member.address().equals(Cluster.get(nodeA).selfAddress()))) {
+                Thread.sleep(100);
+            }
+
+            final Histogram[] latencies = query(proxy, keySpace, measuredQueries);
+            System.out.println();
+            System.out.printf("========== %s, round %d ==========%n", prewarm ? "Prewarm" : "No prewarm", round);
+            print(String.format("First %,d queries", firstQueries), latencies[0]);
+            print(String.format("Next %,d queries", measuredQueries - firstQueries), latencies[1]);
+        } finally {
+            terminate(querier);
+            if (nodeB != null) {
+                terminate(nodeB);
+            }
+            terminate(nodeA);
+        }
+    }
+
+    private static Histogram[] query(ActorRef proxy, KeySpace keySpace, int queries) throws Exception {
+        final Histogram[] latencies = {new Histogram(3), new Histogram(3)};
+        for (int i = 0; i < queries; i += concurrency) {
+            final List<CompletableFuture<Object>> replies = new ArrayList<>(concurrency);
+            final long t1 = System.nanoTime();
+            for (int q = 0; q < concurrency; q++) {
+                replies.add(ask(proxy, new EntityMessage.Query(keySpace.nextId())));
+            }
+            for (CompletableFuture<Object> reply : replies) {
+                if (!(reply.get(timeout.toMillis(), TimeUnit.MILLISECONDS) instanceof EntityMessage.QueryAck)) {
+                    throw new IllegalStateException(String.format("Unexpected query reply %s", reply.get()));
+                }
+                latencies[i < firstQueries ? 0 : 1].recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - t1));
+            }
+        }
+        return latencies;
+    }
+
+    private static void print(String name, Histogram latency) {
+        System.out.printf("%s latency us p50 %,d p90 %,d p99 %,d max %,d%n", name,
+                latency.getValueAtPercentile(50), latency.getValueAtPercentile(90),
+                latency.getValueAtPercentile(99), latency.getMaxValue());
+    }
+
+    private static ActorRef startSharding(ActorSystem actorSystem) {
+        EntityPrewarm.get(actorSystem);
+        return ClusterSharding.get(actorSystem).start("entity", EntityPersistenceActor.props(EntityPersistenceSettings.create(actorSystem)),
+                ClusterShardingSettings.create(actorSystem).withRole("write-side"), EntityRouting.get(actorSystem).messageExtractor());
+    }
+
+    private static CompletableFuture<Object> ask(ActorRef destination, Object message) {
+        return Patterns.ask(destination, message, timeout).toCompletableFuture();
+    }
+
+    private static void awaitMembersUp(ActorSystem actorSystem, int members) throws InterruptedException {
+        final Cluster cluster = Cluster.get(actorSystem);
+        while (StreamSupport.stream(cluster.state().getMembers().spliterator(), false)
+                .filter(member -> member.status().equals(MemberStatus.up()))
+                .count() < members) {
+            Thread.sleep(100);
+        }
+    }
+
+    private static void terminate(ActorSystem actorSystem) throws Exception {
+        actorSystem.terminate();
+        actorSystem.getWhenTerminated().toCompletableFuture().get(1, TimeUnit.MINUTES);
+    }
+
+    private static Config config(String dir, boolean prewarm, String... roles) {
+        return BenchmarkConfig.local(
+                String.format("akka.actor.provider = cluster%n") +
+                        String.format("akka.remote.netty.tcp.port = 0%n") +
+                        String.format("akka.cluster.seed-nodes = []%n") +
+                        String.format("akka.cluster.roles = [%s]%n", String.join(",", roles)) +
+                        String.format("akka.cluster.jmx.multi-mbeans-in-same-jvm = on%n") +
+                        String.format("akka.persistence.journal.plugin = segment-journal%n") +
+                        String.format("segment-journal.dir = %s%n", dir) +
+                        String.format("segment-journal.fsync = off%n") +
+                        String.format("entity-persistence.snapshot.every-n-events = 0%n") +
+                        String.format("entity-passivation.report-interval = 1h%n") +
+                        String.format("entity-prewarm.enabled = %b%n", prewarm) +
+                        String.format("entity-prewarm.publish-interval = 1s%n"));
+    }
+}
@@ -0,0 +1,168 @@
+package cluster.persistence;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.cluster.Cluster;
+import akka.cluster.MemberStatus;
+import akka.cluster.sharding.ClusterSharding;
+import akka.cluster.sharding.ClusterShardingSettings;
+import akka.pattern.Patterns;
+import com.typesafe.config.Config;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.StreamSupport;
+
+/**
+ * Runs two write-side nodes and a commanding node in one JVM, lets a third write-side node join
+ * and then the first one leave, while the commanding node keeps commands in flight to the entities
+ * and records their latency as a load actor would. After each membership change it prints the
+ * timeline metrics of the commanding node, whose cluster listener follows the shards of the whole
+ * cluster.
+ * <p>
+ * Each node has its own in-memory journal, so entities lose their state when their shard moves,
+ * which does not change the timings.
+ */
+public class RebalanceTimelineBenchmark {
+    private static final int entityCount = 1000;
+    private static final int concurrency = 20;
+    private static final Duration warmUpTime = Duration.ofSeconds(10);
+    private static final Duration phaseTime = Duration.ofSeconds(40);
+    private static final Duration timeout = Duration.ofSeconds(10);
+
+    public static void main(String[] args) throws Exception {
+        final List<ActorSystem> nodes = new ArrayList<>();
+        final ActorSystem commander = ActorSystem.create("timeline", config());
+        try {
+            final Cluster cluster = Cluster.get(commander);
+            cluster.join(cluster.selfAddress());
+            commander.actorOf(ClusterListenerActor.props(ClusterTimelineSettings.create(commander)), "clusterListener");
+            for (int i = 0; i < 2; i++) {
+                nodes.add(startNode(cluster));
+            }
+            awaitMembersUp(commander, 3);
+            final ActorRef proxy = ClusterSharding.get(commander).startProxy("entity", Optional.of("write-side"),
+                    EntityRouting.get(commander).messageExtractor());
+            final Commands commands = new Commands(proxy, EntityMetrics.get(commander).load("Commands"));
+
+            commands.run(warmUpTime);
+            EntityMetrics.get(commander).scrape();
+
+            nodes.add(startNode(cluster));
+            commands.run(phaseTime);
+            report("Third node joined", commander, commands);
+
+            Cluster.get(nodes.get(0)).leave(Cluster.get(nodes.get(0)).selfAddress());
+            commands.run(phaseTime);
+            report("First node left", commander, commands);
+        } finally {
+            for (ActorSystem node : nodes) {
+                terminate(node);
+            }
+            terminate(commander);
+        }
+    }
+
+    private static class Commands {
+        private final ActorRef proxy;
+        private final EntityMetrics.Load metrics;
+        private final KeySpace keySpace = KeySpace.uniform(entityCount);
+        private long sent;
+        private long failed;
+        private long maxLatencyNanos;
+
+        Commands(ActorRef proxy, EntityMetrics.Load metrics) {
+            this.proxy = proxy;
+            this.metrics = metrics;
+        }
+
+        void run(Duration time) throws InterruptedException {
+            sent = 0;
+            failed = 0;
+            maxLatencyNanos = 0;
+            final long start = System.nanoTime();
+            while (System.nanoTime() - start < time.toNanos()) {
+                final List<CompletableFuture<Void>> replies = new ArrayList<>(concurrency);
+                for (int c = 0; c < concurrency; c++) {
+                    final long sentNanoTime = System.nanoTime();
+                    replies.add(Patterns.ask(proxy, new EntityMessage.DepositCommand(keySpace.nextId(),
+                            new EntityMessage.Amount(BigDecimal.ONE)), timeout).toCompletableFuture()
+                            .handle((reply, error) -> {
+                                if (error == null) {
+                                    final long latencyNanos = System.nanoTime() - sentNanoTime;
+                                    metrics.replyReceived(latencyNanos);
+                                    synchronized (this) {
+                                        maxLatencyNanos = Math.max(maxLatencyNanos, latencyNanos);
+                                    }
+                                } else {
+                                    metrics.requestTimedOut(System.nanoTime() - sentNanoTime);
+                                    synchronized (this) {
+                                        ++failed;
+                                    }
+                                }
+                                return null;
+                            }));
+                    metrics.requestSent();
+                    ++sent;
+                }
+                CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0])).join();
+            }
+        }
+    }
+
+    private static void report(String phase, ActorSystem commander, Commands commands) {
+        System.out.println();
+        System.out.printf("========== %s ==========%n", phase);
+        synchronized (commands) {
+            System.out.printf("Commands %,d, failed %,d, max latency %.3fs%n", commands.sent, commands.failed,
+                    commands.maxLatencyNanos / 1000000000.0);
+        }
+        Arrays.stream(EntityMetrics.get(commander).scrape().split("\n"))
+                .filter(line -> line.startsWith("cluster_") || line.startsWith("entity_load_rebalance_"))
+                .forEach(System.out::println);
+    }
+
+    private static ActorSystem startNode(Cluster cluster) {
+        final ActorSystem node = ActorSystem.create("timeline", config("write-side"));
+        Cluster.get(node).join(cluster.selfAddress());
+        final ClusterShardingSettings settings = ClusterShardingSettings.create(node).withRole("write-side");
+        ClusterSharding.get(node).start("entity", EntityPersistenceActor.props(EntityPersistenceSettings.create(node)),
+                settings, EntityRouting.get(node).messageExtractor(),
+                ClusterSharding.get(node).defaultShardAllocationStrategy(settings), EntityPassivation.stop);
+        return node;
+    }
+
+    private static void awaitMembersUp(ActorSystem actorSystem, int members) throws InterruptedException {
+        final Cluster cluster = Cluster.get(actorSystem);
+        while (StreamSupport.stream(cluster.state().getMembers().spliterator(), false)
+                .filter(member -> member.status().equals(MemberStatus.up()))
+                .count() < members) {
+            Thread.sleep(100);
+        }
+    }
+
+    private static void terminate(ActorSystem actorSystem) throws Exception {
+        actorSystem.terminate();
+        actorSystem.getWhenTerminated().toCompletableFuture().get(1, TimeUnit.MINUTES);
+    }
+
+    private static Config config(String... roles) {
+        return BenchmarkConfig.local(
+                String.format("akka.actor.provider = cluster%n") +
+                        String.format("akka.remote.netty.tcp.port = 0%n") +
+                        String.format("akka.cluster.seed-nodes = []%n") +
+                        String.format("akka.cluster.roles = [%s]%n", String.join(",", roles)) +
+                        String.format("akka.cluster.jmx.multi-mbeans-in-same-jvm = on%n") +
+                        String.format("akka.cluster.sharding.rebalance-interval = 2s%n") +
+                        String.format("entity-passivation.report-interval = 1h%n") +
+                        String.format("cluster-timeline.poll-interval = 500ms%n") +
+                        String.format("cluster-timeline.settle-time = 8s%n") +
+                        String.format("cluster-timeline.slow-reply = 100ms%n"));
+    }
+}
@@ -0,0 +1,113 @@
+package cluster.persistence;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.InvalidActorNameException;
+import akka.actor.PoisonPill;
+import akka.pattern.Patterns;
+import com.typesafe.config.Config;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long an {@link EntityPersistenceActor} takes to recover as its event history grows,
+ * with and without snapshots. Uses the in-memory journal and the local file snapshot store so that
+ * the journal round trip does not hide the replay cost. Logging is reduced to warnings like in the
+ * other benchmarks; run with -Dakka.loglevel=INFO to include the cost of logging at the level the
+ * application runs with.
+ */
+public class RecoveryPerformanceBenchmark {
+    private static final int warmupRecoveries = 3;
+    private static final int measuredRecoveries = 5;
+    private static final Duration timeout = Duration.ofMinutes(5);
+
+    public static void main(String[] args) throws Exception {
+        final int[] historyLengths = {10000, 100000, 1000000};
+
+        for (int historyLength : historyLengths) {
+            testRecovery(historyLength, 0);
+            testRecovery(historyLength, 10000);
+        }
+    }
+
+    private static void testRecovery(int historyLength, int snapshotEveryNEvents) throws Exception {
+        final ActorSystem actorSystem = ActorSystem.create("recovery", config(snapshotEveryNEvents));
+
+        try {
+            final String entityId = "1";
+            final ActorRef writer = actorSystem.actorOf(EntityPersistenceActor.props(EntityPersistenceSettings.create(actorSystem)), entityId);
+            for (int i = 0; i < historyLength; i++) {
+                writer.tell(new EntityMessage.DepositCommand(new Entity.Id(entityId), new EntityMessage.Amount(BigDecimal.ONE)), ActorRef.noSender());
+            }
+            query(writer);
+            stop(writer);
+
+            for (int i = 0; i < warmupRecoveries; i++) {
+                recover(actorSystem, entityId);
+            }
+
+            long totalNanos = 0;
+            long bestNanos = Long.MAX_VALUE;
+            for (int i = 0; i < measuredRecoveries; i++) {
+                final long elapsedNanos = recover(actorSystem, entityId);
+                totalNanos += elapsedNanos;
+                bestNanos = Math.min(bestNanos, elapsedNanos);
+            }
+
+            System.out.println();
+            System.out.printf("========== Recovery %,d events, %s ==========%n", historyLength,
+                    snapshotEveryNEvents > 0 ? String.format("snapshot every %,d events", snapshotEveryNEvents) : "no snapshots");
+            System.out.printf("Average recovery time %.3fms%n", totalNanos / (double) measuredRecoveries / 1000000.0);
+            System.out.printf("Best recovery time %.3fms%n", bestNanos / 1000000.0);
+            if (snapshotEveryNEvents == 0) {
+                System.out.printf("Replay rate %,.0f events/s%n", historyLength / (bestNanos / 1000000000.0));
+            }
+        } finally {
+            actorSystem.terminate();
+            actorSystem.getWhenTerminated().toCompletableFuture().get(1, TimeUnit.MINUTES);
+        }
+    }
+
+    private static long recover(ActorSystem actorSystem, String entityId) throws Exception {
+        ActorRef entity;
+        long t1;
+        while (true) {
+            try {
+                t1 = System.nanoTime();
+                entity = actorSystem.actorOf(EntityPersistenceActor.props(EntityPersistenceSettings.create(actorSystem)), entityId);
+                break;
+            } catch (InvalidActorNameException e) {
+                Thread.sleep(1); // the previous incarnation is stopped but its name is not released yet
+            }
+        }
+        query(entity);
+        final long t2 = System.nanoTime();
+
+        stop(entity);
+        return t2 - t1;
+    }
+
+    private static void query(ActorRef entity) throws Exception {
+        final Object reply = Patterns.ask(entity, new EntityMessage.Query(new Entity.Id(entity.path().name())), timeout)
+                .toCompletableFuture()
+                .get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+
+        if (!(reply instanceof EntityMessage.QueryAck)) {
+            throw new IllegalStateException(String.format("Unexpected query reply %s", reply));
+        }
+    }
+
+    private static void stop(ActorRef entity) throws Exception {
+        Patterns.gracefulStop(entity, timeout, PoisonPill.getInstance())
+                .toCompletableFuture()
+                .get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private static Config config(int snapshotEveryNEvents) {
+        return BenchmarkConfig.local(
+                String.format("entity-persistence.snapshot.every-n-events = %d%n", snapshotEveryNEvents) +
+                        String.format("entity-persistence.snapshot.every-interval = 0s%n"));
+    }
+}
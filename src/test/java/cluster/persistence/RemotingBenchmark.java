@@ -0,0 +1,205 @@
+package cluster.persistence;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.cluster.Cluster;
+import akka.cluster.MemberStatus;
+import akka.cluster.sharding.ClusterSharding;
+import akka.cluster.sharding.ClusterShardingSettings;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.HdrHistogram.Histogram;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.StreamSupport;
+
+/**
+ * Runs a commanding node and a write-side node that hosts all the shards in one JVM, and measures
+ * the round trip from a DepositCommand sent through a sharding proxy on the commanding node to the
+ * CommandAck of the entity on the other node, one command at a time for the latency and with many
+ * commands in flight for the throughput. The nodes use classic Netty remoting, and then the
+ * remoting settings of artery-tcp.conf and artery-aeron-udp.conf, with the transport, lanes and
+ * large message destinations of those profiles.
+ * <p>
+ * Both nodes share the cpus of one machine, so the throughput is lower than that of two machines
+ * and includes the cost of the transport on both sides.
+ */
+public class RemotingBenchmark {
+    private static final int entityCount = 1000;
+    private static final int latencyCount = 10000;
+    private static final int throughputCount = 100000;
+    private static final int throughputInFlight = 64;
+
+    /**
+     * Takes the transports to compare, any of classic, artery-tcp and artery-aeron-udp, and
+     * compares all three by default. An Artery transport may be followed by the number of inbound
+     * and outbound lanes to use instead of those of its profile, as in artery-tcp:1:1. The embedded
+     * Aeron media driver of this Akka version maps its files with JDK internals that were removed
+     * in JDK 14, so on later JDKs leave artery-aeron-udp out.
+     */
+    public static void main(String[] args) throws Exception {
+        final List<String> transports = args.length > 0 ? Arrays.asList(args) : Arrays.asList("classic", "artery-tcp", "artery-aeron-udp");
+        for (String transport : transports) {
+            final String[] parts = transport.split(":");
+            if (parts[0].equals("classic")) {
+                testTransport("Classic Netty TCP", ConfigFactory.empty());
+            } else {
+                Config remoting = ConfigFactory.parseResources(parts[0] + ".conf").withOnlyPath("akka.remote");
+                if (parts.length == 3) {
+                    remoting = ConfigFactory.parseString(
+                            String.format("akka.remote.artery.advanced.inbound-lanes = %s%n", parts[1]) +
+                                    String.format("akka.remote.artery.advanced.outbound-lanes = %s%n", parts[2]))
+                            .withFallback(remoting);
+                }
+                final Config advanced = remoting.withFallback(ConfigFactory.defaultReference()).getConfig("akka.remote.artery.advanced");
+                testTransport(String.format("%s, %d inbound and %d outbound lanes", parts[0],
+                        advanced.getInt("inbound-lanes"), advanced.getInt("outbound-lanes")), remoting);
+            }
+        }
+    }
+
+    private static void testTransport(String name, Config remoting) throws Exception {
+        final ActorSystem commander = ActorSystem.create("remoting", config(remoting));
+        ActorSystem node = null;
+        try {
+            final Cluster cluster = Cluster.get(commander);
+            cluster.join(cluster.selfAddress());
+            node = startNode(cluster, remoting);
+            awaitMembersUp(commander, 2);
+            final ActorRef proxy = ClusterSharding.get(commander).startProxy("entity", Optional.of("write-side"),
+                    EntityRouting.get(commander).messageExtractor());
+
+            run(commander, proxy, throughputCount / 10, throughputInFlight);
+            final Result latency = run(commander, proxy, latencyCount, 1);
+            final Result throughput = run(commander, proxy, throughputCount, throughputInFlight);
+
+            System.out.println();
+            System.out.printf("========== %s ==========%n", name);
+            System.out.printf("Round trip, 1 in flight, %,d commands, latency ms p50 %.3f p90 %.3f p99 %.3f max %.3f%n",
+                    latencyCount, latency.latency.getValueAtPercentile(50) / 1000.0, latency.latency.getValueAtPercentile(90) / 1000.0,
+                    latency.latency.getValueAtPercentile(99) / 1000.0, latency.latency.getMaxValue() / 1000.0);
+            System.out.printf("Throughput, %d in flight, %,d commands in %.3fs, %,.0f/s, latency ms p50 %.3f p99 %.3f%n",
+                    throughputInFlight, throughputCount, throughput.elapsedNanos / 1000000000.0,
+                    throughputCount / (throughput.elapsedNanos / 1000000000.0),
+                    throughput.latency.getValueAtPercentile(50) / 1000.0, throughput.latency.getValueAtPercentile(99) / 1000.0);
+        } finally {
+            if (node != null) {
+                terminate(node);
+            }
+            terminate(commander);
+        }
+    }
+
+    private static Result run(ActorSystem actorSystem, ActorRef proxy, int count, int inFlight) throws Exception {
+        final CompletableFuture<Result> done = new CompletableFuture<>();
+        final ActorRef driver = actorSystem.actorOf(Driver.props(proxy, count, inFlight, done));
+        final Result result = done.get(5, TimeUnit.MINUTES);
+        actorSystem.stop(driver);
+        return result;
+    }
+
+    private static class Result {
+        final Histogram latency = new Histogram(3);
+        long elapsedNanos;
+    }
+
+    /**
+     * Keeps the given number of commands in flight, sending the next one with each
+     * acknowledgement. The acknowledgement carries the send time of its command, so no command
+     * needs to be remembered.
+     */
+    private static class Driver extends AbstractActor {
+        private final ActorRef proxy;
+        private final int count;
+        private final int inFlight;
+        private final CompletableFuture<Result> done;
+        private final KeySpace keySpace = KeySpace.uniform(entityCount);
+        private final Result result = new Result();
+        private final long startNanoTime = System.nanoTime();
+        private int sent;
+        private int acknowledged;
+
+        Driver(ActorRef proxy, int count, int inFlight, CompletableFuture<Result> done) {
+            this.proxy = proxy;
+            this.count = count;
+            this.inFlight = inFlight;
+            this.done = done;
+        }
+
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .match(EntityMessage.CommandAck.class, this::commandAck)
+                    .build();
+        }
+
+        private void commandAck(EntityMessage.CommandAck commandAck) {
+            result.latency.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - commandAck.commandTime));
+            if (++acknowledged == count) {
+                result.elapsedNanos = System.nanoTime() - startNanoTime;
+                done.complete(result);
+            } else if (sent < count) {
+                command();
+            }
+        }
+
+        private void command() {
+            ++sent;
+            proxy.tell(new EntityMessage.DepositCommand(keySpace.nextId(), new EntityMessage.Amount(BigDecimal.ONE)), self());
+        }
+
+        @Override
+        public void preStart() {
+            for (int i = 0; i < inFlight; i++) {
+                command();
+            }
+        }
+
+        static Props props(ActorRef proxy, int count, int inFlight, CompletableFuture<Result> done) {
+            return Props.create(Driver.class, proxy, count, inFlight, done);
+        }
+    }
+
+    private static ActorSystem startNode(Cluster cluster, Config remoting) {
+        final ActorSystem node = ActorSystem.create("remoting", config(remoting, "write-side"));
+        Cluster.get(node).join(cluster.selfAddress());
+        final ClusterShardingSettings settings = ClusterShardingSettings.create(node).withRole("write-side");
+        ClusterSharding.get(node).start("entity", EntityPersistenceActor.props(EntityPersistenceSettings.create(node)),
+                settings, EntityRouting.get(node).messageExtractor(),
+                ClusterSharding.get(node).defaultShardAllocationStrategy(settings), EntityPassivation.stop);
+        return node;
+    }
+
+    private static void awaitMembersUp(ActorSystem actorSystem, int members) throws InterruptedException {
+        final Cluster cluster = Cluster.get(actorSystem);
+        while (StreamSupport.stream(cluster.state().getMembers().spliterator(), false)
+                .filter(member -> member.status().equals(MemberStatus.up()))
+                .count() < members) {
+            Thread.sleep(100);
+        }
+    }
+
+    private static void terminate(ActorSystem actorSystem) throws Exception {
+        actorSystem.terminate();
+        actorSystem.getWhenTerminated().toCompletableFuture().get(1, TimeUnit.MINUTES);
+    }
+
+    private static Config config(Config remoting, String... roles) {
+        return BenchmarkConfig.local(ConfigFactory.parseString(
+                String.format("akka.actor.provider = cluster%n") +
+                        String.format("akka.remote.netty.tcp.port = 0%n") +
+                        String.format("akka.remote.artery.canonical.port = 0%n") +
+                        String.format("akka.cluster.seed-nodes = []%n") +
+                        String.format("akka.cluster.roles = [%s]%n", String.join(",", roles)) +
+                        String.format("akka.cluster.jmx.multi-mbeans-in-same-jvm = on%n") +
+                        String.format("entity-passivation.report-interval = 1h%n"))
+                .withFallback(remoting));
+    }
+}
@@ -0,0 +1,198 @@
+package cluster.persistence;
+
+import com.typesafe.config.ConfigFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Replay, deletion and recovery of {@link SegmentJournalStore} and its {@link SegmentLog}. A crash
+ * is simulated by closing the store and corrupting the segment files before it is opened again.
+ */
+class SegmentJournalStoreTest {
+    private static final String persistenceId = "entity";
+    private Path dir;
+    private SegmentStoreSettings settings;
+    private SegmentJournalStore store;
+
+    @BeforeEach
+    void open() throws IOException {
+        dir = Files.createTempDirectory("segment-journal");
+        settings = settings(4096);
+        store = SegmentJournalStore.acquire(settings);
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        SegmentJournalStore.release(settings);
+    }
+
+    @Test
+    void replaysEventsInRange() throws Exception {
+        write(1, 10);
+
+        assertEquals(sequenceNrs(1, 10), sequenceNrs(store.replay(persistenceId, 1, Long.MAX_VALUE, Long.MAX_VALUE)));
+        assertEquals(sequenceNrs(3, 7), sequenceNrs(store.replay(persistenceId, 3, 7, Long.MAX_VALUE)));
+        assertEquals(sequenceNrs(3, 5), sequenceNrs(store.replay(persistenceId, 3, 7, 3)));
+        assertEquals(Collections.emptyList(), sequenceNrs(store.replay(persistenceId, 11, Long.MAX_VALUE, Long.MAX_VALUE)));
+        assertEquals(Collections.emptyList(), sequenceNrs(store.replay("other", 1, Long.MAX_VALUE, Long.MAX_VALUE)));
+        assertEquals(10, store.highestSequenceNr(persistenceId));
+        assertEquals(0, store.highestSequenceNr("other"));
+        assertEquals("payload 7", new String(store.replay(persistenceId, 7, 7, 1).get(0).payload, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void replaysEventsAcrossSegmentsAfterReopen() throws Exception {
+        write(1, 500);
+        reopen();
+
+        assertEquals(sequenceNrs(1, 500), sequenceNrs(store.replay(persistenceId, 1, Long.MAX_VALUE, Long.MAX_VALUE)));
+        assertEquals(500, store.highestSequenceNr(persistenceId));
+        write(501, 510);
+        assertEquals(sequenceNrs(495, 510), sequenceNrs(store.replay(persistenceId, 495, Long.MAX_VALUE, Long.MAX_VALUE)));
+    }
+
+    @Test
+    void deletedEventsAreNotReplayed() throws Exception {
+        write(1, 10);
+        store.delete(persistenceId, 4);
+        store.commit().toCompletableFuture().get(10, TimeUnit.SECONDS);
+
+        assertEquals(sequenceNrs(5, 10), sequenceNrs(store.replay(persistenceId, 1, Long.MAX_VALUE, Long.MAX_VALUE)));
+        reopen();
+        assertEquals(sequenceNrs(5, 10), sequenceNrs(store.replay(persistenceId, 1, Long.MAX_VALUE, Long.MAX_VALUE)));
+        assertEquals(10, store.highestSequenceNr(persistenceId));
+    }
+
+    @Test
+    void deletingAllEventsKeepsTheHighestSequenceNr() throws Exception {
+        write(1, 10);
+        store.delete(persistenceId, Long.MAX_VALUE);
+        store.commit().toCompletableFuture().get(10, TimeUnit.SECONDS);
+
+        assertEquals(Collections.emptyList(), sequenceNrs(store.replay(persistenceId, 1, Long.MAX_VALUE, Long.MAX_VALUE)));
+        assertEquals(10, store.highestSequenceNr(persistenceId));
+        write(11, 12);
+        reopen();
+        assertEquals(sequenceNrs(11, 12), sequenceNrs(store.replay(persistenceId, 1, Long.MAX_VALUE, Long.MAX_VALUE)));
+    }
+
+    @Test
+    void eventsByTagAreInWriteOrder() throws Exception {
+        final List<SegmentJournalStore.Event> events = new ArrayList<>();
+        for (long sequenceNr = 1; sequenceNr <= 3; sequenceNr++) {
+            events.add(new SegmentJournalStore.Event("a", sequenceNr, Collections.singleton("tag"), payload(sequenceNr)));
+            events.add(new SegmentJournalStore.Event("b", sequenceNr, Collections.singleton("other"), payload(sequenceNr)));
+        }
+        store.append(events);
+        store.commit().toCompletableFuture().get(10, TimeUnit.SECONDS);
+        reopen();
+
+        final List<SegmentJournalStore.Event> tagged = store.eventsByTag("tag", 0, 10);
+        assertEquals(Arrays.asList(1L, 3L, 5L), tagged.stream().map(event -> event.ordering).collect(Collectors.toList()));
+        assertEquals(Collections.singletonList(5L), store.eventsByTag("tag", 3, 10).stream().map(event -> event.ordering).collect(Collectors.toList()));
+    }
+
+    @Test
+    void recoversUpToATornRecord() throws Exception {
+        write(1, 3);
+        SegmentJournalStore.release(settings);
+        corruptRecord(2);
+        store = SegmentJournalStore.acquire(settings);
+
+        assertEquals(sequenceNrs(1, 1), sequenceNrs(store.replay(persistenceId, 1, Long.MAX_VALUE, Long.MAX_VALUE)));
+        assertEquals(1, store.highestSequenceNr(persistenceId));
+    }
+
+    @Test
+    void doesNotResurrectRecordsAfterATornRecord() throws Exception {
+        write(1, 3);
+        SegmentJournalStore.release(settings);
+        corruptRecord(2);
+        store = SegmentJournalStore.acquire(settings);
+
+        write(2, 2);
+        reopen();
+        assertEquals(sequenceNrs(1, 2), sequenceNrs(store.replay(persistenceId, 1, Long.MAX_VALUE, Long.MAX_VALUE)));
+    }
+
+    @Test
+    void rejectsAnEventLargerThanASegment() {
+        final SegmentJournalStore.Event event = new SegmentJournalStore.Event(persistenceId, 1, Collections.emptySet(), new byte[4096]);
+        assertThrows(IOException.class, () -> store.append(Collections.singletonList(event)));
+        assertEquals(0, store.highestSequenceNr(persistenceId));
+    }
+
+    private void write(long fromSequenceNr, long toSequenceNr) throws Exception {
+        final List<SegmentJournalStore.Event> events = new ArrayList<>();
+        for (long sequenceNr = fromSequenceNr; sequenceNr <= toSequenceNr; sequenceNr++) {
+            events.add(new SegmentJournalStore.Event(persistenceId, sequenceNr, Collections.emptySet(), payload(sequenceNr)));
+        }
+        store.append(events);
+        store.commit().toCompletableFuture().get(10, TimeUnit.SECONDS);
+    }
+
+    private void reopen() throws IOException {
+        SegmentJournalStore.release(settings);
+        store = SegmentJournalStore.acquire(settings);
+    }
+
+    /**
+     * Flips a byte in the body of the record with the number, counted from 1, in the first
+     * segment, as if the crash happened while the record was written.
+     */
+    private void corruptRecord(int record) throws IOException {
+        try (FileChannel channel = FileChannel.open(dir.resolve("segment-0000000000.log"), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final ByteBuffer length = ByteBuffer.allocate(4);
+            long offset = 0;
+            for (int i = 1; i < record; i++) {
+                channel.read(length, offset);
+                length.flip();
+                offset += 4 + 4 + 1 + length.getInt();
+                length.clear();
+            }
+            final ByteBuffer body = ByteBuffer.allocate(1);
+            channel.read(body, offset + 4 + 4 + 1);
+            body.put(0, (byte) ~body.get(0));
+            body.rewind();
+            channel.write(body, offset + 4 + 4 + 1);
+        }
+    }
+
+    private SegmentStoreSettings settings(int segmentSize) {
+        return new SegmentStoreSettings(ConfigFactory.parseString(
+                String.format("dir = \"%s\"%n", dir) +
+                        String.format("segment-size = %d%n", segmentSize) +
+                        String.format("fsync = on%n")));
+    }
+
+    private static byte[] payload(long sequenceNr) {
+        return String.format("payload %d", sequenceNr).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<Long> sequenceNrs(long from, long to) {
+        return LongStream.rangeClosed(from, to).boxed().collect(Collectors.toList());
+    }
+
+    private static List<Long> sequenceNrs(List<SegmentJournalStore.Event> events) {
+        return events.stream().map(event -> event.sequenceNr).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,91 @@
+package cluster.persistence;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.persistence.SnapshotSelectionCriteria;
+import akka.persistence.query.EventEnvelope;
+import akka.persistence.query.Offset;
+import akka.persistence.query.PersistenceQuery;
+import akka.persistence.query.javadsl.EventsByTagQuery;
+import akka.stream.ActorMaterializer;
+import akka.stream.javadsl.Sink;
+import akka.testkit.javadsl.TestKit;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs an entity on {@link SegmentJournal}, {@link SegmentSnapshotStore} and the segment read
+ * journal, and recovers it in a new actor system from the same directories.
+ */
+class SegmentJournalTest {
+    private static final String entityId = "entity-1";
+    private static final int deposits = 10;
+    private static final int snapshotEvery = 4;
+
+    @Test
+    void recoversEntityFromSnapshotAndEventsAfterRestart() throws Exception {
+        final Path dir = Files.createTempDirectory("segment-journal");
+        final Config config = BenchmarkConfig.local(ConfigFactory.parseString(
+                String.format("akka.persistence.journal.plugin = segment-journal%n") +
+                        String.format("akka.persistence.snapshot-store.plugin = segment-snapshot-store%n") +
+                        String.format("segment-journal.dir = \"%s\"%n", dir.resolve("journal")) +
+                        String.format("segment-snapshot-store.dir = \"%s\"%n", dir.resolve("snapshots")) +
+                        String.format("entity-persistence.snapshot.every-n-events = %d%n", snapshotEvery)));
+
+        final ActorSystem writer = ActorSystem.create("segment", config);
+        try {
+            final TestKit probe = new TestKit(writer);
+            final ActorRef entity = writer.actorOf(EntityPersistenceActor.props(EntityPersistenceSettings.create(writer)), entityId);
+            for (int i = 0; i < deposits; i++) {
+                entity.tell(new EntityMessage.DepositCommand(new Entity.Id(entityId), new EntityMessage.Amount(BigDecimal.ONE)), probe.getRef());
+                probe.expectMsgClass(Duration.ofSeconds(10), EntityMessage.CommandAck.class);
+            }
+        } finally {
+            TestKit.shutdownActorSystem(writer);
+        }
+
+        final SegmentStoreSettings snapshotSettings = new SegmentStoreSettings(config.getConfig("segment-snapshot-store"));
+        final SegmentSnapshots snapshots = SegmentSnapshots.acquire(snapshotSettings);
+        try {
+            final long snapshotSequenceNr = deposits / snapshotEvery * snapshotEvery;
+            assertEquals(snapshotSequenceNr, snapshots.load(entityId, SnapshotSelectionCriteria.latest())
+                    .orElseThrow(AssertionError::new).getKey().sequenceNr());
+        } finally {
+            SegmentSnapshots.release(snapshotSettings);
+        }
+
+        final ActorSystem reader = ActorSystem.create("segment", config);
+        try {
+            final TestKit probe = new TestKit(reader);
+            final ActorRef entity = reader.actorOf(EntityPersistenceActor.props(EntityPersistenceSettings.create(reader)), entityId);
+            entity.tell(new EntityMessage.Query(new Entity.Id(entityId)), probe.getRef());
+            final EntityMessage.QueryAck queryAck = probe.expectMsgClass(Duration.ofSeconds(10), EntityMessage.QueryAck.class);
+            assertEquals(deposits * 100, queryAck.entity.balance.minorUnits);
+
+            final List<EventEnvelope> events = PersistenceQuery.get(reader)
+                    .getReadJournalFor(EventsByTagQuery.class, "segment-query-journal")
+                    .eventsByTag(EntityRouting.get(reader).eventTag(new Entity.Id(entityId)), Offset.noOffset())
+                    .take(deposits)
+                    .runWith(Sink.seq(), ActorMaterializer.create(reader))
+                    .toCompletableFuture().get(10, TimeUnit.SECONDS);
+            assertEquals(LongStream.rangeClosed(1, deposits).boxed().collect(Collectors.toList()),
+                    events.stream().map(EventEnvelope::sequenceNr).collect(Collectors.toList()));
+            assertTrue(events.stream().allMatch(event -> event.event() instanceof EntityMessage.DepositEvent));
+        } finally {
+            TestKit.shutdownActorSystem(reader);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package cluster.persistence;
+
+import akka.persistence.SnapshotMetadata;
+import akka.persistence.SnapshotSelectionCriteria;
+import com.typesafe.config.ConfigFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Saving, loading and deleting snapshots with {@link SegmentSnapshots}, also after the store is
+ * opened again from its segment files.
+ */
+class SegmentSnapshotsTest {
+    private static final String persistenceId = "entity";
+    private Path dir;
+    private SegmentStoreSettings settings;
+    private SegmentSnapshots snapshots;
+
+    @BeforeEach
+    void open() throws IOException {
+        dir = Files.createTempDirectory("segment-snapshots");
+        settings = new SegmentStoreSettings(ConfigFactory.parseString(
+                String.format("dir = \"%s\"%n", dir) +
+                        String.format("segment-size = 4k%n") +
+                        String.format("fsync = on%n")));
+        snapshots = SegmentSnapshots.acquire(settings);
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        SegmentSnapshots.release(settings);
+    }
+
+    @Test
+    void loadsTheNewestMatchingSnapshot() throws Exception {
+        save(10, 1000);
+        save(30, 3000);
+        save(20, 2000);
+
+        assertEquals(30, load(SnapshotSelectionCriteria.latest()));
+        assertEquals(20, load(SnapshotSelectionCriteria.create(25, Long.MAX_VALUE)));
+        assertEquals(10, load(SnapshotSelectionCriteria.create(Long.MAX_VALUE, 1500)));
+        assertFalse(snapshots.load(persistenceId, SnapshotSelectionCriteria.create(5, Long.MAX_VALUE)).isPresent());
+        assertFalse(snapshots.load("other", SnapshotSelectionCriteria.latest()).isPresent());
+    }
+
+    @Test
+    void loadsSnapshotsAcrossSegmentsAfterReopen() throws Exception {
+        for (long sequenceNr = 1; sequenceNr <= 200; sequenceNr++) {
+            save(sequenceNr, sequenceNr);
+        }
+        reopen();
+
+        assertEquals(200, load(SnapshotSelectionCriteria.latest()));
+        assertEquals(150, load(SnapshotSelectionCriteria.create(150, Long.MAX_VALUE)));
+    }
+
+    @Test
+    void deletedSnapshotsStayDeletedAfterReopen() throws Exception {
+        save(10, 1000);
+        save(20, 2000);
+        save(30, 3000);
+        snapshots.delete(persistenceId, SnapshotSelectionCriteria.create(30, 3000, 30, 0));
+        snapshots.delete(persistenceId, SnapshotSelectionCriteria.create(10, Long.MAX_VALUE));
+
+        assertEquals(20, load(SnapshotSelectionCriteria.latest()));
+        reopen();
+        assertEquals(20, load(SnapshotSelectionCriteria.latest()));
+        snapshots.delete(persistenceId, SnapshotSelectionCriteria.latest());
+        reopen();
+        assertFalse(snapshots.load(persistenceId, SnapshotSelectionCriteria.latest()).isPresent());
+    }
+
+    private void save(long sequenceNr, long timestamp) throws IOException {
+        snapshots.save(new SnapshotMetadata(persistenceId, sequenceNr, timestamp),
+                String.format("snapshot %d", sequenceNr).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Loads the newest matching snapshot and returns its sequence number, after checking that it is
+     * the snapshot that was saved with it.
+     */
+    private long load(SnapshotSelectionCriteria criteria) {
+        final Optional<Map.Entry<SnapshotMetadata, byte[]>> loaded = snapshots.load(persistenceId, criteria);
+        final long sequenceNr = loaded.orElseThrow(AssertionError::new).getKey().sequenceNr();
+        assertEquals(String.format("snapshot %d", sequenceNr), new String(loaded.get().getValue(), StandardCharsets.UTF_8));
+        return sequenceNr;
+    }
+
+    private void reopen() throws IOException {
+        SegmentSnapshots.release(settings);
+        snapshots = SegmentSnapshots.acquire(settings);
+    }
+}
@@ -0,0 +1,336 @@
+package cluster.persistence;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization and deserialization of each message type that crosses the wire or is stored in the
+ * journal, for each serializer. The multi-threaded variants run on all available cores so that
+ * contention on state shared by a serializer shows up as lower per-thread throughput. The buffer
+ * variants serialize into and deserialize from a direct buffer as Artery does with its envelope
+ * buffers, through a byte array for the serializers that only have the byte array methods.
+ * <p>
+ * Run with {@code mvn -Pjmh test-compile exec:exec} or from {@link #main(String[])}; both add the GC
+ * profiler to report allocation per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class SerializationBenchmark {
+    @Param({"DepositCommand", "WithdrawalCommand", "Query", "QueryAckNotFound", "DepositEvent", "WithdrawalEvent", "CommandAck", "QueryAck", "Entity"})
+    public String messageType;
+
+    @Param({"java", "fst", "compact"})
+    public String serializer;
+
+    private Codec codec;
+    private Object message;
+    private byte[] bytes;
+    private ByteBuffer buffer;
+    private ByteBuffer serialized;
+
+    @Setup
+    public void setup() {
+        message = message(messageType);
+        codec = codec(serializer, message);
+        bytes = codec.toBinary(message);
+        buffer = envelopeBuffer();
+        serialized = envelopeBuffer();
+        codec.toBuffer(message, serialized);
+        serialized.flip();
+    }
+
+    @Benchmark
+    public Object serialize() {
+        return codec.toBinary(message);
+    }
+
+    @Benchmark
+    public Object deserialize() {
+        return codec.fromBinary(bytes);
+    }
+
+    @Benchmark
+    public Object serializeToBuffer() {
+        buffer.clear();
+        codec.toBuffer(message, buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public Object deserializeFromBuffer() {
+        serialized.rewind();
+        return codec.fromBuffer(serialized);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Object serializeMultiThreaded() {
+        return codec.toBinary(message);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Object deserializeMultiThreaded() {
+        return codec.fromBinary(bytes);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        printSerializedSizes();
+        printAllocations();
+
+        new Runner(new OptionsBuilder()
+                .include(SerializationBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build())
+                .run();
+    }
+
+    private static void printSerializedSizes() {
+        final String[] messageTypes = {"DepositCommand", "WithdrawalCommand", "Query", "QueryAckNotFound", "DepositEvent", "WithdrawalEvent", "CommandAck", "QueryAck", "Entity"};
+        final String[] serializers = {"java", "fst", "compact"};
+
+        System.out.printf("%-20s", "Serialized bytes");
+        for (String serializer : serializers) {
+            System.out.printf("%10s", serializer);
+        }
+        System.out.println();
+
+        for (String messageType : messageTypes) {
+            final Object message = message(messageType);
+            System.out.printf("%-20s", messageType);
+            for (String serializer : serializers) {
+                System.out.printf("%10d", codec(serializer, message).toBinary(message).length);
+            }
+            System.out.println();
+        }
+    }
+
+    /**
+     * The bytes allocated by one serialization into a direct buffer and one deserialization from
+     * it, by way of a byte array and, where the serializer supports it, straight to and from the
+     * buffer. Only the messages that are sent between nodes are measured.
+     */
+    private static void printAllocations() {
+        final String[] messageTypes = {"DepositCommand", "WithdrawalCommand", "Query", "QueryAckNotFound", "CommandAck", "QueryAck"};
+        final String[] serializers = {"fst", "compact"};
+        final int count = 200000;
+
+        System.out.printf("%-20s", "Allocated bytes");
+        for (String serializer : serializers) {
+            System.out.printf("%16s%16s", serializer + " byte[]", serializer + " buffer");
+        }
+        System.out.println();
+
+        final ByteBuffer buffer = envelopeBuffer();
+        for (String messageType : messageTypes) {
+            final Object message = message(messageType);
+            System.out.printf("%-20s", messageType);
+            for (String serializer : serializers) {
+                final Codec codec = codec(serializer, message);
+                final Codec byteArrayCodec = new Codec() {
+                    @Override
+                    public byte[] toBinary(Object message) {
+                        return codec.toBinary(message);
+                    }
+
+                    @Override
+                    public Object fromBinary(byte[] bytes) {
+                        return codec.fromBinary(bytes);
+                    }
+                };
+                for (Codec path : new Codec[]{byteArrayCodec, codec}) {
+                    path.roundTrip(message, buffer, count);
+                    final long allocated = allocatedBytes();
+                    path.roundTrip(message, buffer, count);
+                    System.out.printf("%16.1f", (allocatedBytes() - allocated) / (double) count);
+                }
+            }
+            System.out.println();
+        }
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Artery keeps a pool of direct little endian buffers of the maximum frame size.
+     */
+    private static ByteBuffer envelopeBuffer() {
+        return ByteBuffer.allocateDirect(256 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    static Object message(String messageType) {
+        final Entity.Id id = new Entity.Id("12345");
+        final EntityMessage.Amount amount = new EntityMessage.Amount(new BigDecimal("1234.56"));
+        final EntityMessage.DepositCommand depositCommand = new EntityMessage.DepositCommand(id, amount);
+        final EntityMessage.Query query = new EntityMessage.Query(id);
+
+        switch (messageType) {
+            case "DepositCommand":
+                return depositCommand;
+            case "WithdrawalCommand":
+                return new EntityMessage.WithdrawalCommand(id, amount);
+            case "Query":
+                return query;
+            case "QueryAckNotFound":
+                return EntityMessage.QueryAckNotFound.from(query);
+            case "DepositEvent":
+                return new EntityMessage.DepositEvent(id, amount);
+            case "WithdrawalEvent":
+                return new EntityMessage.WithdrawalEvent(id, amount);
+            case "CommandAck":
+                return EntityMessage.CommandAck.from(depositCommand, new EntityMessage.DepositEvent(depositCommand));
+            case "QueryAck":
+                return EntityMessage.QueryAck.from(query, Entity.deposit(id.id, amount.minorUnits));
+            case "Entity":
+                return Entity.deposit(id.id, amount.minorUnits);
+            default:
+                throw new IllegalArgumentException(String.format("Unknown message type %s", messageType));
+        }
+    }
+
+    static Codec codec(String serializer, Object message) {
+        switch (serializer) {
+            case "java":
+                return new JavaCodec();
+            case "fst":
+                final FstSerializer fstSerializer = new FstSerializer();
+                return new Codec() {
+                    @Override
+                    public byte[] toBinary(Object message) {
+                        return fstSerializer.toBinary(message);
+                    }
+
+                    @Override
+                    public Object fromBinary(byte[] bytes) {
+                        return fstSerializer.fromBinary(bytes);
+                    }
+                };
+            case "compact":
+                final CompactSerializer compactSerializer = new CompactSerializer();
+                final String manifest = compactSerializer.manifest(message);
+                return new Codec() {
+                    @Override
+                    public byte[] toBinary(Object message) {
+                        return compactSerializer.toBinary(message);
+                    }
+
+                    @Override
+                    public Object fromBinary(byte[] bytes) {
+                        try {
+                            return compactSerializer.fromBinary(bytes, manifest);
+                        } catch (NotSerializableException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+
+                    @Override
+                    public void toBuffer(Object message, ByteBuffer buffer) {
+                        compactSerializer.toBinary(message, buffer);
+                    }
+
+                    @Override
+                    public Object fromBuffer(ByteBuffer buffer) {
+                        try {
+                            return compactSerializer.fromBinary(buffer, manifest);
+                        } catch (NotSerializableException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                };
+            default:
+                throw new IllegalArgumentException(String.format("Unknown serializer %s", serializer));
+        }
+    }
+
+    interface Codec {
+        byte[] toBinary(Object message);
+
+        Object fromBinary(byte[] bytes);
+
+        /**
+         * Artery copies the bytes of a serializer without buffer methods into its buffer.
+         */
+        default void toBuffer(Object message, ByteBuffer buffer) {
+            buffer.put(toBinary(message));
+        }
+
+        /**
+         * Artery copies the bytes out of its buffer for a serializer without buffer methods.
+         */
+        default Object fromBuffer(ByteBuffer buffer) {
+            final byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            return fromBinary(bytes);
+        }
+
+        default void roundTrip(Object message, ByteBuffer buffer, int count) {
+            for (int i = 0; i < count; i++) {
+                buffer.clear();
+                toBuffer(message, buffer);
+                buffer.flip();
+                if (fromBuffer(buffer) == null) {
+                    throw new IllegalStateException();
+                }
+            }
+        }
+    }
+
+    private static class JavaCodec implements Codec {
+        @Override
+        public byte[] toBinary(Object message) {
+            try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                 ObjectOutputStream out = new ObjectOutputStream(bos)) {
+                out.writeObject(message);
+                out.flush();
+                return bos.toByteArray();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public Object fromBinary(byte[] bytes) {
+            try (ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
+                 ObjectInputStream in = new ObjectInputStream(bis)) {
+                return in.readObject();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package cluster.persistence;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.cluster.Cluster;
+import akka.cluster.MemberStatus;
+import akka.cluster.sharding.ClusterSharding;
+import akka.cluster.sharding.ClusterShardingSettings;
+import akka.cluster.sharding.ShardRegion;
+import akka.pattern.Patterns;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+/**
+ * Runs three write-side nodes and a querier node in one JVM, first with the default allocation
+ * strategy and then with {@link EntityAllocationStrategy}. The shards are allocated while the
+ * queries are spread uniformly, after which the queries turn zipf distributed, so that some shards
+ * become much hotter than others, as when the hot spot of a workload moves. Every interval it
+ * prints the share of the queries that each node served, from the queries sent per shard and the
+ * shards that each node hosts, and how far the busiest node is above the mean.
+ * <p>
+ * The nodes share one JVM and so report the same cpu and heap, so the cpu and heap weights are 0
+ * here and only the message rates tell the nodes apart.
+ */
+public class ShardAllocationBenchmark {
+    private static final int nodeCount = 3;
+    private static final int entityCount = 3000;
+    private static final int concurrency = 20;
+    private static final Duration warmUpTime = Duration.ofSeconds(15);
+    private static final Duration runTime = Duration.ofSeconds(60);
+    private static final Duration interval = Duration.ofSeconds(5);
+    private static final Duration timeout = Duration.ofSeconds(10);
+
+    public static void main(String[] args) throws Exception {
+        testAllocation(false);
+        testAllocation(true);
+    }
+
+    private static void testAllocation(boolean loadAware) throws Exception {
+        final List<ActorSystem> nodes = new ArrayList<>();
+        final ActorSystem querier = ActorSystem.create("allocation", config(loadAware));
+        try {
+            Cluster.get(querier).join(Cluster.get(querier).selfAddress());
+            final List<ActorRef> regions = new ArrayList<>();
+            for (int i = 0; i < nodeCount; i++) {
+                final ActorSystem node = ActorSystem.create("allocation", config(loadAware, "write-side"));
+                Cluster.get(node).join(Cluster.get(querier).selfAddress());
+                nodes.add(node);
+            }
+            awaitMembersUp(querier, nodeCount + 1);
+            for (ActorSystem node : nodes) {
+                regions.add(startSharding(node, loadAware));
+            }
+            final ActorRef proxy = ClusterSharding.get(querier).startProxy("entity", Optional.of("write-side"),
+                    EntityRouting.get(querier).messageExtractor());
+            final ShardRegion.MessageExtractor messageExtractor = EntityRouting.get(querier).messageExtractor();
+
+            final KeySpace uniform = KeySpace.uniform(entityCount);
+            final long warmUpStart = System.nanoTime();
+            while (System.nanoTime() - warmUpStart < warmUpTime.toNanos()) {
+                query(proxy, uniform, new HashMap<>(), messageExtractor);
+            }
+
+            System.out.println();
+            System.out.printf("========== %s ==========%n", loadAware ? "Load aware allocation" : "Default allocation");
+            final KeySpace keySpace = KeySpace.zipf(entityCount, 1.0);
+            final List<Double> imbalances = new ArrayList<>();
+            Map<String, Set<String>> previousShards = null;
+            int shardMoves = 0;
+            final long start = System.nanoTime();
+            while (System.nanoTime() - start < runTime.toNanos()) {
+                final Map<String, Long> shardQueries = new HashMap<>();
+                final long intervalStart = System.nanoTime();
+                while (System.nanoTime() - intervalStart < interval.toNanos()) {
+                    query(proxy, keySpace, shardQueries, messageExtractor);
+                }
+
+                final Map<String, Set<String>> nodeShards = nodeShards(nodes, regions);
+                if (previousShards != null) {
+                    for (Map.Entry<String, Set<String>> shards : nodeShards.entrySet()) {
+                        final Set<String> arrived = new HashSet<>(shards.getValue());
+                        arrived.removeAll(previousShards.getOrDefault(shards.getKey(), new HashSet<>()));
+                        shardMoves += arrived.size();
+                    }
+                }
+                previousShards = nodeShards;
+
+                final long total = shardQueries.values().stream().mapToLong(Long::longValue).sum();
+                final List<Double> shares = new ArrayList<>();
+                final StringBuilder line = new StringBuilder();
+                for (Map.Entry<String, Set<String>> shards : nodeShards.entrySet()) {
+                    final long served = shards.getValue().stream().mapToLong(shardId -> shardQueries.getOrDefault(shardId, 0L)).sum();
+                    shares.add(served / (double) total);
+                    line.append(String.format("%s %4.1f%% (%2d shards)  ", shards.getKey(), 100.0 * served / total, shards.getValue().size()));
+                }
+                final double imbalance = shares.stream().mapToDouble(Double::doubleValue).max().orElse(0) * nodeCount;
+                imbalances.add(imbalance);
+                System.out.printf("%3ds  %s busiest/mean %.2f  %,.0f queries/s%n", TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start),
+                        line, imbalance, total / (interval.toNanos() / 1000000000.0));
+            }
+
+            final List<Double> lastHalf = imbalances.subList(imbalances.size() / 2, imbalances.size());
+            System.out.printf("Busiest/mean over the second half %.2f, shard moves %d%n",
+                    lastHalf.stream().mapToDouble(Double::doubleValue).average().orElse(0), shardMoves);
+        } finally {
+            for (ActorSystem node : nodes) {
+                terminate(node);
+            }
+            terminate(querier);
+        }
+    }
+
+    private static void query(ActorRef proxy, KeySpace keySpace, Map<String, Long> shardQueries,
+                              ShardRegion.MessageExtractor messageExtractor) throws Exception {
+        final List<CompletableFuture<Object>> replies = new ArrayList<>(concurrency);
+        for (int q = 0; q < concurrency; q++) {
+            final EntityMessage.Query query = new EntityMessage.Query(keySpace.nextId());
+            shardQueries.merge(messageExtractor.shardId(query), 1L, Long::sum);
+            replies.add(ask(proxy, query));
+        }
+        CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0])).get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The shards that each node hosts, by node, in node order.
+     */
+    private static Map<String, Set<String>> nodeShards(List<ActorSystem> nodes, List<ActorRef> regions) throws Exception {
+        final Map<String, Set<String>> nodeShards = new LinkedHashMap<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            final ShardRegion.CurrentShardRegionState state = (ShardRegion.CurrentShardRegionState) ask(regions.get(i),
+                    ShardRegion.getShardRegionStateInstance()).get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+            nodeShards.put(String.format("node %d", i + 1), state.getShards().stream()
+                    .map(ShardRegion.ShardState::shardId)
+                    .collect(Collectors.toSet()));
+        }
+        return nodeShards;
+    }
+
+    private static ActorRef startSharding(ActorSystem actorSystem, boolean loadAware) {
+        final ClusterShardingSettings settings = ClusterShardingSettings.create(actorSystem).withRole("write-side");
+        return ClusterSharding.get(actorSystem).start("entity", EntityPersistenceActor.props(EntityPersistenceSettings.create(actorSystem)),
+                settings, EntityRouting.get(actorSystem).messageExtractor(),
+                loadAware ? new EntityAllocationStrategy(actorSystem) : ClusterSharding.get(actorSystem).defaultShardAllocationStrategy(settings),
+                EntityPassivation.stop);
+    }
+
+    private static CompletableFuture<Object> ask(ActorRef destination, Object message) {
+        return Patterns.ask(destination, message, timeout).toCompletableFuture();
+    }
+
+    private static void awaitMembersUp(ActorSystem actorSystem, int members) throws InterruptedException {
+        final Cluster cluster = Cluster.get(actorSystem);
+        while (StreamSupport.stream(cluster.state().getMembers().spliterator(), false)
+                .filter(member -> member.status().equals(MemberStatus.up()))
+                .count() < members) {
+            Thread.sleep(100);
+        }
+    }
+
+    private static void terminate(ActorSystem actorSystem) throws Exception {
+        actorSystem.terminate();
+        actorSystem.getWhenTerminated().toCompletableFuture().get(1, TimeUnit.MINUTES);
+    }
+
+    private static Config config(boolean loadAware, String... roles) {
+        return BenchmarkConfig.local(
+                String.format("akka.actor.provider = cluster%n") +
+                        String.format("akka.remote.netty.tcp.port = 0%n") +
+                        String.format("akka.cluster.seed-nodes = []%n") +
+                        String.format("akka.cluster.roles = [%s]%n", String.join(",", roles)) +
+                        String.format("akka.cluster.jmx.multi-mbeans-in-same-jvm = on%n") +
+                        String.format("akka.cluster.sharding.rebalance-interval = 2s%n") +
+                        String.format("entity-passivation.report-interval = 1h%n") +
+                        String.format("entity-allocation.enabled = %b%n", loadAware) +
+                        String.format("entity-allocation.cpu-weight = 0%n") +
+                        String.format("entity-allocation.heap-weight = 0%n") +
+                        String.format("entity-allocation.rebalance-after-rounds = 2%n") +
+                        String.format("entity-allocation.rebalance-cooldown = 5s%n") +
+                        String.format("entity-allocation.publish-interval = 1s%n"));
+    }
+}
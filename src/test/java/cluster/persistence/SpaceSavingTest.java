@@ -0,0 +1,103 @@
+package cluster.persistence;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The counts and the top keys of {@link SpaceSaving} against exact counts, within and beyond its
+ * capacity.
+ */
+class SpaceSavingTest {
+    @Test
+    void countsExactlyWithinCapacity() {
+        final SpaceSaving counts = new SpaceSaving(4);
+        add(counts, "a", 5);
+        add(counts, "b", 3);
+        add(counts, "c", 7);
+        add(counts, "d", 1);
+
+        assertEquals(Arrays.asList("c", "a", "b", "d"), counts.top(10));
+        assertEquals(Arrays.asList("c", "a"), counts.top(2));
+        assertEquals(5, counts.count("a"));
+        assertEquals(0, counts.count("e"));
+    }
+
+    @Test
+    void newKeyTakesOverTheSmallestCount() {
+        final SpaceSaving counts = new SpaceSaving(2);
+        add(counts, "a", 5);
+        add(counts, "b", 2);
+        counts.add("c");
+
+        assertEquals(2, counts.size());
+        assertEquals(0, counts.count("b"));
+        assertEquals(3, counts.count("c"));
+        assertEquals(Arrays.asList("a", "c"), counts.top(2));
+    }
+
+    @Test
+    void keepsTheHeavyHittersOfALargeKeySpace() {
+        final int capacity = 100;
+        final SpaceSaving counts = new SpaceSaving(capacity);
+        final Map<String, Long> exact = new HashMap<>();
+        final Random random = new Random(42);
+        final int adds = 200000;
+        for (int i = 0; i < adds; i++) {
+            // One in four adds goes to ten hot keys, the rest is spread over a million keys.
+            final String key = random.nextInt(4) == 0 ? "hot-" + random.nextInt(10) : "cold-" + random.nextInt(1000000);
+            counts.add(key);
+            exact.merge(key, 1L, Long::sum);
+        }
+
+        assertEquals(capacity, counts.size());
+        final List<String> top = counts.top(10);
+        for (int hot = 0; hot < 10; hot++) {
+            assertTrue(top.contains("hot-" + hot), top.toString());
+        }
+        for (String key : counts.top(capacity)) {
+            final long count = counts.count(key);
+            assertTrue(count >= exact.get(key), key);
+            assertTrue(count - exact.get(key) <= adds / capacity, key);
+        }
+    }
+
+    @Test
+    void halvingForgetsTheKeysThatDropToZero() {
+        final SpaceSaving counts = new SpaceSaving(4);
+        add(counts, "a", 8);
+        add(counts, "b", 1);
+        add(counts, "c", 3);
+        counts.halve();
+
+        assertEquals(2, counts.size());
+        assertEquals(4, counts.count("a"));
+        assertEquals(1, counts.count("c"));
+        assertEquals(0, counts.count("b"));
+
+        add(counts, "d", 2);
+        add(counts, "e", 3);
+        add(counts, "f", 1);
+        assertEquals(0, counts.count("c"));
+        assertEquals(2, counts.count("f"));
+        assertEquals(Arrays.asList("a", "e"), counts.top(2));
+        counts.halve();
+        counts.halve();
+        counts.halve();
+        assertEquals(Collections.emptyList(), counts.top(4));
+    }
+
+    private static void add(SpaceSaving counts, String key, int times) {
+        for (int i = 0; i < times; i++) {
+            counts.add(key);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package cluster.persistence;
+
+import akka.persistence.journal.EventAdapter;
+import akka.persistence.journal.EventSeq;
+import akka.persistence.journal.Tagged;
+
+/**
+ * The in-memory journal stores {@link Tagged} events as they are, so benchmarks that recover
+ * from it bind this adapter to hand the entity the event payload during replay.
+ */
+public class UntaggingEventAdapter implements EventAdapter {
+    @Override
+    public String manifest(Object event) {
+        return "";
+    }
+
+    @Override
+    public Object toJournal(Object event) {
+        return event;
+    }
+
+    @Override
+    public EventSeq fromJournal(Object event, String manifest) {
+        return event instanceof Tagged ? EventSeq.single(((Tagged) event).payload()) : EventSeq.single(event);
+    }
+}